@@ -143,6 +143,8 @@ public class NfcSyncPGPContentSignerBuilder
                 }
                 // catch this when signatureGenerator.generate() is executed and divert digest to card,
                 // when doing the operation again reuse creationTimestamp (this will be hashed)
+                // alternatively, add the signed hash to signedHashes and call generate() again. this
+                // works because the digest is only computed once, further trailer updates are ignored
                 throw new NfcInteractionNeeded(getDigest(), getHashAlgorithm());
             }
 
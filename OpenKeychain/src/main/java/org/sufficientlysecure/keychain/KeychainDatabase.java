@@ -33,6 +33,8 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteException;
 
+import org.sufficientlysecure.keychain.daos.KeyRingCache;
+import org.sufficientlysecure.keychain.daos.KeySearchDao;
 import org.sufficientlysecure.keychain.daos.LocalSecretKeyStorage;
 import org.sufficientlysecure.keychain.util.Preferences;
 import timber.log.Timber;
@@ -48,7 +50,7 @@ import timber.log.Timber;
  */
 public class KeychainDatabase {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 34;
+    private static final int DATABASE_VERSION = 39;
     private final SupportSQLiteOpenHelper supportSQLiteOpenHelper;
 
     private static KeychainDatabase sInstance;
@@ -56,6 +58,8 @@ public class KeychainDatabase {
     public static KeychainDatabase getInstance(Context context) {
         if (sInstance == null || Constants.IS_RUNNING_UNITTEST) {
             sInstance = new KeychainDatabase(context.getApplicationContext());
+            // keyrings cached from a previous instance may not match this database
+            KeyRingCache.getInstance().invalidateAll();
         }
         return sInstance;
     }
@@ -116,6 +120,10 @@ public class KeychainDatabase {
         db.execSQL(OverriddenWarningsModel.CREATE_TABLE);
         db.execSQL(AutocryptPeersModel.CREATE_TABLE);
         db.execSQL(ApiAllowedKeysModel.CREATE_TABLE);
+        db.execSQL(KeySummaryModel.CREATE_TABLE);
+        db.execSQL(SignatureVerificationsModel.CREATE_TABLE);
+        db.execSQL(KeyRingsGenerationModel.CREATE_TABLE);
+        new KeyRingsGenerationModel.InsertInitialGeneration(db).execute();
         db.execSQL(KeysModel.UNIFIEDKEYVIEW);
         db.execSQL(KeysModel.VALIDKEYSVIEW);
         db.execSQL(KeysModel.VALIDMASTERKEYSVIEW);
@@ -128,6 +136,9 @@ public class KeychainDatabase {
                 + CertsModel.VERIFIED + ", " + CertsModel.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX uids_by_email ON user_packets ("
                 + UserPacketsModel.EMAIL + ");");
+        createKeySummaryIndices(db);
+        createSignatureVerificationsIndex(db);
+        KeySearchDao.createTable(db);
 
         Preferences.getPreferences(context).setKeySignaturesTableInitialized();
     }
@@ -339,7 +350,8 @@ public class KeychainDatabase {
                 db.execSQL("DROP TABLE IF EXISTS api_accounts");
 
             case 29:
-                recreateUnifiedKeyView(db);
+                // the views are built on key_summary now, which only exists from case 34 on
+                dropUnifiedKeyViews(db);
 
             case 30:
                 // ignore. this case only came up in an unreleased beta.
@@ -348,13 +360,57 @@ public class KeychainDatabase {
                 addSubkeyValidFromField(db);
 
             case 32:
-                recreateUnifiedKeyView(db);
+                dropUnifiedKeyViews(db);
 
             case 33:
                 dropKeyMetadataForeignKey(db);
+
+            case 34:
+                createKeySummaryTable(db);
+
+            case 35:
+                addKeyRingDigestColumns(db);
+
+            case 36:
+                KeySearchDao.createTable(db);
+
+            case 37:
+                db.execSQL(SignatureVerificationsModel.CREATE_TABLE);
+                createSignatureVerificationsIndex(db);
+
+            case 38:
+                db.execSQL(KeyRingsGenerationModel.CREATE_TABLE);
+                new KeyRingsGenerationModel.InsertInitialGeneration(db).execute();
         }
     }
 
+    private void createSignatureVerificationsIndex(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS signature_verifications_by_master_key_id ON signature_verifications ("
+                + SignatureVerificationsModel.MASTER_KEY_ID + ");");
+    }
+
+    private void addKeyRingDigestColumns(SupportSQLiteDatabase db) {
+        // digests are filled in as keyrings are saved, until then they are just never matched
+        db.execSQL("ALTER TABLE keyrings_public ADD COLUMN raw_digest BLOB NULL");
+        db.execSQL("ALTER TABLE keyrings_public ADD COLUMN canonical_digest BLOB NULL");
+    }
+
+    private void createKeySummaryTable(SupportSQLiteDatabase db) {
+        db.execSQL(KeySummaryModel.CREATE_TABLE);
+        createKeySummaryIndices(db);
+        recreateUnifiedKeyView(db);
+
+        // backfill once, from here on the table is maintained incrementally by KeySummaryDao
+        new KeySummaryModel.InsertAllKeySummaries(db).execute();
+    }
+
+    private void createKeySummaryIndices(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS key_summary_by_secret ON key_summary ("
+                + KeySummaryModel.HAS_ANY_SECRET_INT + ", " + KeySummaryModel.CREATION + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS key_summary_by_email ON key_summary ("
+                + KeySummaryModel.EMAIL + " COLLATE NOCASE);");
+    }
+
     private void addSubkeyValidFromField(SupportSQLiteDatabase db) {
         try {
             db.execSQL("ALTER TABLE keys ADD COLUMN validFrom INTEGER NOT NULL DEFAULT 0;");
@@ -365,18 +421,22 @@ public class KeychainDatabase {
     }
 
     private void recreateUnifiedKeyView(SupportSQLiteDatabase db) {
+        dropUnifiedKeyViews(db);
+        db.execSQL(KeysModel.UNIFIEDKEYVIEW);
+        db.execSQL(KeysModel.VALIDKEYSVIEW);
+        db.execSQL(KeysModel.VALIDMASTERKEYSVIEW);
+        db.execSQL(UserPacketsModel.UIDSTATUS);
+    }
+
+    private void dropUnifiedKeyViews(SupportSQLiteDatabase db) {
         // noinspection deprecation
         db.execSQL("DROP VIEW IF EXISTS " + KeysModel.UNIFIEDKEYVIEW_VIEW_NAME);
-        db.execSQL(KeysModel.UNIFIEDKEYVIEW);
         // noinspection deprecation
         db.execSQL("DROP VIEW IF EXISTS " + KeysModel.VALIDKEYS_VIEW_NAME);
-        db.execSQL(KeysModel.VALIDKEYSVIEW);
         // noinspection deprecation
         db.execSQL("DROP VIEW IF EXISTS " + KeysModel.VALIDMASTERKEYS_VIEW_NAME);
-        db.execSQL(KeysModel.VALIDMASTERKEYSVIEW);
         // noinspection deprecation
         db.execSQL("DROP VIEW IF EXISTS " + UserPacketsModel.UIDSTATUS_VIEW_NAME);
-        db.execSQL(UserPacketsModel.UIDSTATUS);
     }
 
     private void dropKeyMetadataForeignKey(SupportSQLiteDatabase db) {
@@ -474,6 +534,9 @@ public class KeychainDatabase {
             throw new IOException("Cannot write " + out.getName());
         }
         copy(in, out);
+        if (restore) {
+            KeyRingCache.getInstance().invalidateAll();
+        }
     }
 
 }
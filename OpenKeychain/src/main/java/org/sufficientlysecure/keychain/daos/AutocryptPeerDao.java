@@ -25,6 +25,7 @@ import java.util.List;
 import android.content.Context;
 import android.database.Cursor;
 import androidx.annotation.Nullable;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.squareup.sqldelight.SqlDelightQuery;
 import org.sufficientlysecure.keychain.AutocryptPeersModel.DeleteByIdentifier;
@@ -40,15 +41,20 @@ import org.sufficientlysecure.keychain.model.AutocryptPeer.GossipOrigin;
 
 
 public class AutocryptPeerDao extends AbstractDao {
+    private final KeySummaryDao keySummaryDao;
+
     public static AutocryptPeerDao getInstance(Context context) {
         KeychainDatabase keychainDatabase = KeychainDatabase.getInstance(context);
         DatabaseNotifyManager databaseNotifyManager = DatabaseNotifyManager.create(context);
+        KeySummaryDao keySummaryDao = KeySummaryDao.create(context);
 
-        return new AutocryptPeerDao(keychainDatabase, databaseNotifyManager);
+        return new AutocryptPeerDao(keychainDatabase, databaseNotifyManager, keySummaryDao);
     }
 
-    private AutocryptPeerDao(KeychainDatabase database, DatabaseNotifyManager databaseNotifyManager) {
+    private AutocryptPeerDao(KeychainDatabase database, DatabaseNotifyManager databaseNotifyManager,
+            KeySummaryDao keySummaryDao) {
         super(database, databaseNotifyManager);
+        this.keySummaryDao = keySummaryDao;
     }
 
     public Long getMasterKeyIdForAutocryptPeer(String autocryptId) {
@@ -96,11 +102,27 @@ public class AutocryptPeerDao extends AbstractDao {
 
     public void updateKey(String packageName, String autocryptId, Date effectiveDate, long masterKeyId,
             boolean isMutual) {
-        ensureAutocryptPeerExists(packageName, autocryptId);
+        SupportSQLiteDatabase db = getWritableDb();
+        db.beginTransaction();
+        try {
+            ensureAutocryptPeerExists(packageName, autocryptId);
+            AutocryptPeer previousPeer = getAutocryptPeer(packageName, autocryptId);
+
+            UpdateKey updateStatement = new UpdateKey(db, AutocryptPeer.FACTORY);
+            updateStatement.bind(packageName, autocryptId, effectiveDate, masterKeyId, isMutual);
+            updateStatement.executeUpdateDelete();
+
+            // the package name is listed in the summary of both the previous and the new key
+            Long previousMasterKeyId = previousPeer != null ? previousPeer.master_key_id() : null;
+            if (previousMasterKeyId != null && previousMasterKeyId != masterKeyId) {
+                keySummaryDao.updateKeySummary(previousMasterKeyId);
+            }
+            keySummaryDao.updateKeySummary(masterKeyId);
 
-        UpdateKey updateStatement = new UpdateKey(getWritableDb(), AutocryptPeer.FACTORY);
-        updateStatement.bind(packageName, autocryptId, effectiveDate, masterKeyId, isMutual);
-        updateStatement.executeUpdateDelete();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
         getDatabaseNotifyManager().notifyAutocryptUpdate(autocryptId, masterKeyId);
     }
@@ -130,17 +152,35 @@ public class AutocryptPeerDao extends AbstractDao {
 
     public void deleteByIdentifier(String packageName, String autocryptId) {
         Long masterKeyId = getMasterKeyIdForAutocryptPeer(autocryptId);
-        DeleteByIdentifier deleteStatement = new DeleteByIdentifier(getReadableDb());
-        deleteStatement.bind(packageName, autocryptId);
-        deleteStatement.execute();
+        SupportSQLiteDatabase db = getWritableDb();
+        db.beginTransaction();
+        try {
+            DeleteByIdentifier deleteStatement = new DeleteByIdentifier(db);
+            deleteStatement.bind(packageName, autocryptId);
+            deleteStatement.execute();
+            if (masterKeyId != null) {
+                keySummaryDao.updateKeySummary(masterKeyId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         if (masterKeyId != null) {
             getDatabaseNotifyManager().notifyAutocryptDelete(autocryptId, masterKeyId);
         }
     }
 
     public void deleteByMasterKeyId(long masterKeyId) {
-        DeleteByMasterKeyId deleteStatement = new DeleteByMasterKeyId(getReadableDb());
-        deleteStatement.bind(masterKeyId);
-        deleteStatement.execute();
+        SupportSQLiteDatabase db = getWritableDb();
+        db.beginTransaction();
+        try {
+            DeleteByMasterKeyId deleteStatement = new DeleteByMasterKeyId(db);
+            deleteStatement.bind(masterKeyId);
+            deleteStatement.execute();
+            keySummaryDao.updateKeySummary(masterKeyId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 }
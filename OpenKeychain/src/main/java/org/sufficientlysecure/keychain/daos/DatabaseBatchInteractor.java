@@ -1,8 +1,12 @@
 package org.sufficientlysecure.keychain.daos;
 
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 
+import android.os.SystemClock;
+
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import org.sufficientlysecure.keychain.CertsModel.InsertCert;
@@ -10,6 +14,7 @@ import org.sufficientlysecure.keychain.KeyRingsPublicModel.InsertKeyRingPublic;
 import org.sufficientlysecure.keychain.KeySignaturesModel.InsertKeySignature;
 import org.sufficientlysecure.keychain.KeysModel.InsertKey;
 import org.sufficientlysecure.keychain.UserPacketsModel.InsertUserPacket;
+import org.sufficientlysecure.keychain.livedata.KeyListLiveData;
 import org.sufficientlysecure.keychain.model.Certification;
 import org.sufficientlysecure.keychain.model.KeyRingPublic;
 import org.sufficientlysecure.keychain.model.KeySignature;
@@ -19,6 +24,7 @@ import org.sufficientlysecure.keychain.model.UserPacket;
 
 public class DatabaseBatchInteractor {
     private final SupportSQLiteDatabase db;
+    private final DatabaseNotifyManager databaseNotifyManager;
 
     private final InsertKeyRingPublic insertKeyRingPublicStatement;
     private final InsertKey insertSubKeyStatement;
@@ -26,8 +32,11 @@ public class DatabaseBatchInteractor {
     private final InsertCert insertCertificationStatement;
     private final InsertKeySignature insertKeySignerStatement;
 
-    DatabaseBatchInteractor(SupportSQLiteDatabase db) {
+    private BatchSession batchSession;
+
+    DatabaseBatchInteractor(SupportSQLiteDatabase db, DatabaseNotifyManager databaseNotifyManager) {
         this.db = db;
+        this.databaseNotifyManager = databaseNotifyManager;
 
         insertKeyRingPublicStatement = KeyRingPublic.createInsertStatement(db);
         insertSubKeyStatement = SubKey.createInsertStatement(db);
@@ -63,6 +72,171 @@ public class DatabaseBatchInteractor {
         }
     }
 
+    /**
+     * Starts a batch session. Until {@link #endBatchSession} is called, the writes of all keyrings
+     * go into shared transactions, which are committed after maxKeyRings keyrings or once they
+     * have been open for maxTransactionMillis, whichever comes first. Key change notifications
+     * are deferred until the next commit. They are sent once per changed key, until more than
+     * {@link KeyListLiveData#MAX_INCREMENTAL_KEYS} keys changed in this session. After that, they are
+     * coalesced into a single notification for all keys per commit.
+     * <p>
+     * Other threads can't access the database while a transaction is open, so the caps should
+     * keep transactions short.
+     */
+    void beginBatchSession(int maxKeyRings, long maxTransactionMillis) {
+        if (batchSession != null) {
+            throw new IllegalStateException("batch session already in progress!");
+        }
+        batchSession = new BatchSession(maxKeyRings, maxTransactionMillis);
+    }
+
+    /**
+     * Ends the batch session, committing the open transaction if successful is true and rolling
+     * it back otherwise. A transaction in which the writes of a keyring were not finished is always
+     * rolled back.
+     *
+     * @return the master key ids of all keyrings that were finished during the session, but whose
+     * writes were rolled back after all
+     */
+    List<Long> endBatchSession(boolean successful) {
+        if (batchSession == null) {
+            throw new IllegalStateException("no batch session in progress!");
+        }
+        try {
+            endSessionTransaction(successful);
+            return batchSession.rolledBackMasterKeyIds;
+        } finally {
+            batchSession = null;
+        }
+    }
+
+    /**
+     * Commits the transaction of the batch session now, if one is open. The session itself stays
+     * active, the next keyring opens a new transaction.
+     */
+    void commitBatchSession() {
+        if (batchSession != null) {
+            endSessionTransaction(true);
+        }
+    }
+
+    boolean isInBatchSession() {
+        return batchSession != null;
+    }
+
+    /**
+     * Called before the writes of a single keyring. Opens the transaction of the batch session if
+     * there is none. Does nothing outside of a batch session.
+     */
+    void beginKeyRing() {
+        if (batchSession == null) {
+            return;
+        }
+        batchSession.keyRingUnfinished = true;
+        if (batchSession.transactionOpen) {
+            return;
+        }
+        db.beginTransaction();
+        batchSession.transactionOpen = true;
+        batchSession.transactionStartTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Called after the writes of a single keyring. Commits the transaction of the batch session
+     * if one of its caps is reached. Does nothing outside of a batch session.
+     */
+    void finishKeyRing(long masterKeyId) {
+        if (batchSession == null || !batchSession.transactionOpen) {
+            return;
+        }
+        batchSession.keyRingUnfinished = false;
+        batchSession.masterKeyIdsInTransaction.add(masterKeyId);
+
+        long transactionMillis = SystemClock.elapsedRealtime() - batchSession.transactionStartTime;
+        if (batchSession.masterKeyIdsInTransaction.size() >= batchSession.maxKeyRings
+                || transactionMillis >= batchSession.maxTransactionMillis) {
+            endSessionTransaction(true);
+        }
+    }
+
+    /**
+     * Notifies about a changed key, or defers the notification until the next commit while in a
+     * batch session.
+     */
+    void notifyKeyChange(long masterKeyId) {
+        if (batchSession != null) {
+            batchSession.pendingNotifyMasterKeyIds.add(masterKeyId);
+        } else {
+            databaseNotifyManager.notifyKeyChange(masterKeyId);
+        }
+    }
+
+    /**
+     * Registers an action which undoes a write outside of the database, like a keyring blob in
+     * storage. It is run if the transaction of the batch session is rolled back. Does nothing
+     * outside of a batch session, where the transaction has already been committed.
+     */
+    void addRollbackAction(Runnable rollbackAction) {
+        if (batchSession != null && batchSession.transactionOpen) {
+            batchSession.rollbackActions.add(rollbackAction);
+        }
+    }
+
+    private void endSessionTransaction(boolean successful) {
+        if (!batchSession.transactionOpen) {
+            return;
+        }
+        batchSession.transactionOpen = false;
+        // a keyring whose writes threw an exception failed its nested transaction, which makes
+        // sqlite roll back the whole transaction even if it is marked successful
+        successful &= !batchSession.keyRingUnfinished;
+        batchSession.keyRingUnfinished = false;
+
+        boolean committed = false;
+        try {
+            if (successful) {
+                db.setTransactionSuccessful();
+            }
+            db.endTransaction();
+            committed = successful;
+        } finally {
+            if (!committed) {
+                rollBackSessionTransaction();
+            }
+            batchSession.masterKeyIdsInTransaction.clear();
+            batchSession.rollbackActions.clear();
+        }
+
+        // per key for small sessions, so the key list only reloads the keys that actually changed. beyond
+        // that it reloads everything anyway, and one notification per key would flood the content resolver.
+        batchSession.notifiedKeyCount += batchSession.pendingNotifyMasterKeyIds.size();
+        if (batchSession.notifiedKeyCount > KeyListLiveData.MAX_INCREMENTAL_KEYS) {
+            if (!batchSession.pendingNotifyMasterKeyIds.isEmpty()) {
+                databaseNotifyManager.notifyAllKeysChange();
+            }
+        } else {
+            for (long masterKeyId : batchSession.pendingNotifyMasterKeyIds) {
+                databaseNotifyManager.notifyKeyChange(masterKeyId);
+            }
+        }
+        batchSession.pendingNotifyMasterKeyIds.clear();
+    }
+
+    private void rollBackSessionTransaction() {
+        batchSession.rolledBackMasterKeyIds.addAll(batchSession.masterKeyIdsInTransaction);
+
+        KeyRingCache keyRingCache = KeyRingCache.getInstance();
+        // the trusted key index may include secret keys from the rolled back transaction
+        keyRingCache.invalidateTrustedKeys();
+        for (long masterKeyId : batchSession.masterKeyIdsInTransaction) {
+            keyRingCache.invalidate(masterKeyId);
+        }
+        // undo in reverse order, so the oldest state of each keyring is restored last
+        for (int i = batchSession.rollbackActions.size() - 1; i >= 0; i--) {
+            batchSession.rollbackActions.get(i).run();
+        }
+    }
+
     public static BatchOp createInsertKeyRingPublic(KeyRingPublic keyRingPublic) {
         return new BatchOp(keyRingPublic, null, null, null, null);
     }
@@ -99,4 +273,23 @@ public class DatabaseBatchInteractor {
             this.keySignature = keySignature;
         }
     }
+
+    private static class BatchSession {
+        final int maxKeyRings;
+        final long maxTransactionMillis;
+
+        boolean transactionOpen;
+        long transactionStartTime;
+        boolean keyRingUnfinished;
+        final LinkedHashSet<Long> pendingNotifyMasterKeyIds = new LinkedHashSet<>();
+        int notifiedKeyCount;
+        final ArrayList<Long> masterKeyIdsInTransaction = new ArrayList<>();
+        final ArrayList<Long> rolledBackMasterKeyIds = new ArrayList<>();
+        final ArrayList<Runnable> rollbackActions = new ArrayList<>();
+
+        BatchSession(int maxKeyRings, long maxTransactionMillis) {
+            this.maxKeyRings = maxKeyRings;
+            this.maxTransactionMillis = maxTransactionMillis;
+        }
+    }
 }
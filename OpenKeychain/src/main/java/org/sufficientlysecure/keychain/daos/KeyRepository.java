@@ -20,17 +20,20 @@ package org.sufficientlysecure.keychain.daos;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 
 import android.content.Context;
 import android.database.Cursor;
 import androidx.annotation.WorkerThread;
+import androidx.sqlite.db.SimpleSQLiteQuery;
 
 import com.squareup.sqldelight.SqlDelightQuery;
 import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.sufficientlysecure.keychain.KeychainDatabase;
 import org.sufficientlysecure.keychain.model.Certification;
 import org.sufficientlysecure.keychain.model.KeyRingPublic;
+import org.sufficientlysecure.keychain.model.KeyRingsGeneration;
 import org.sufficientlysecure.keychain.model.KeySignature;
 import org.sufficientlysecure.keychain.model.SubKey;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
@@ -47,8 +50,19 @@ import timber.log.Timber;
 
 @WorkerThread
 public class KeyRepository extends AbstractDao {
+    // fts tables can't be queried from sqldelight files, so these are plain sql on top of unifiedKeyView
+    private static final String SEARCH_UNIFIED_KEY_INFO = "SELECT unifiedKeyView.* FROM unifiedKeyView "
+            + "INNER JOIN (SELECT docid FROM key_search WHERE key_search MATCH ?1) AS hits ON (hits.docid = unifiedKeyView.master_key_id) "
+            + "ORDER BY unifiedKeyView.master_key_id IN (SELECT docid FROM key_search WHERE key_search MATCH ?2) DESC, "
+            + "has_any_secret_int DESC, IFNULL(name, email) COLLATE NOCASE ASC, creation DESC";
+    private static final String SEARCH_UNIFIED_KEY_INFO_BY_MAIL_ADDRESS = "SELECT unifiedKeyView.* FROM unifiedKeyView "
+            + "INNER JOIN (SELECT docid FROM key_search WHERE key_search MATCH ?1) AS hits ON (hits.docid = unifiedKeyView.master_key_id) "
+            + "WHERE email LIKE ?2 "
+            + "ORDER BY creation DESC";
+
     final LocalPublicKeyStorage mLocalPublicKeyStorage;
     final LocalSecretKeyStorage localSecretKeyStorage;
+    final KeyRingCache keyRingCache;
 
     OperationLog mLog;
     int mIndent;
@@ -77,6 +91,7 @@ public class KeyRepository extends AbstractDao {
         super(database, databaseNotifyManager);
         mLocalPublicKeyStorage = localPublicKeyStorage;
         this.localSecretKeyStorage = localSecretKeyStorage;
+        this.keyRingCache = KeyRingCache.getInstance();
         mIndent = indent;
         mLog = log;
     }
@@ -101,17 +116,43 @@ public class KeyRepository extends AbstractDao {
         mLog = new OperationLog();
     }
 
+    /** Drops the cached keyrings if any process wrote keyrings since they were cached. */
+    void validateKeyRingCache() {
+        Long databaseGeneration = mapSingleRow(KeyRingsGeneration.FACTORY.selectGeneration(),
+                KeyRingsGeneration.FACTORY.selectGenerationMapper());
+        keyRingCache.validate(databaseGeneration != null ? databaseGeneration : 0);
+    }
+
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(long masterKeyId) throws NotFoundException {
+        validateKeyRingCache();
+        CanonicalizedPublicKeyRing cachedKeyRing = keyRingCache.getPublicKeyRing(masterKeyId);
+        if (cachedKeyRing != null) {
+            return cachedKeyRing;
+        }
+
+        long cacheGeneration = keyRingCache.getGeneration();
         UnifiedKeyInfo unifiedKeyInfo = getUnifiedKeyInfo(masterKeyId);
         if (unifiedKeyInfo == null) {
             throw new NotFoundException();
         }
 
         byte[] publicKeyData = loadPublicKeyRingData(masterKeyId);
-        return new CanonicalizedPublicKeyRing(publicKeyData, unifiedKeyInfo.verified());
+        CanonicalizedPublicKeyRing keyRing = new CanonicalizedPublicKeyRing(publicKeyData, unifiedKeyInfo.verified());
+        // data read inside of a transaction might still be rolled back
+        if (!getReadableDb().inTransaction()) {
+            keyRingCache.putPublicKeyRing(cacheGeneration, masterKeyId, keyRing, publicKeyData.length);
+        }
+        return keyRing;
     }
 
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(long masterKeyId) throws NotFoundException {
+        validateKeyRingCache();
+        CanonicalizedSecretKeyRing cachedKeyRing = keyRingCache.getSecretKeyRing(masterKeyId);
+        if (cachedKeyRing != null) {
+            return cachedKeyRing;
+        }
+
+        long cacheGeneration = keyRingCache.getGeneration();
         UnifiedKeyInfo unifiedKeyInfo = getUnifiedKeyInfo(masterKeyId);
         if (unifiedKeyInfo == null || !unifiedKeyInfo.has_any_secret()) {
             throw new NotFoundException();
@@ -120,7 +161,12 @@ public class KeyRepository extends AbstractDao {
         if (secretKeyData == null) {
             throw new IllegalStateException("Missing expected secret key data!");
         }
-        return new CanonicalizedSecretKeyRing(secretKeyData, unifiedKeyInfo.verified());
+        CanonicalizedSecretKeyRing keyRing = new CanonicalizedSecretKeyRing(secretKeyData, unifiedKeyInfo.verified());
+        // data read inside of a transaction might still be rolled back
+        if (!getReadableDb().inTransaction()) {
+            keyRingCache.putSecretKeyRing(cacheGeneration, masterKeyId, keyRing, secretKeyData.length);
+        }
+        return keyRing;
     }
 
     public List<Long> getAllMasterKeyIds() {
@@ -150,7 +196,30 @@ public class KeyRepository extends AbstractDao {
     }
 
     public List<UnifiedKeyInfo> getUnifiedKeyInfosByMailAddress(String mailAddress) {
-        SqlDelightQuery query = SubKey.FACTORY.selectUnifiedKeyInfoSearchMailAddress('%' + mailAddress + '%');
+        String emailLike = '%' + mailAddress + '%';
+        String matchQuery = KeySearchDao.buildMatchQueryFromLikePattern(emailLike);
+        if (matchQuery == null) {
+            SqlDelightQuery query = SubKey.FACTORY.selectUnifiedKeyInfoSearchMailAddress(emailLike);
+            return mapAllRows(query, SubKey.UNIFIED_KEY_INFO_MAPPER);
+        }
+        SimpleSQLiteQuery query = new SimpleSQLiteQuery(SEARCH_UNIFIED_KEY_INFO_BY_MAIL_ADDRESS,
+                new Object[] { matchQuery, emailLike });
+        return mapAllRows(query, SubKey.UNIFIED_KEY_INFO_MAPPER);
+    }
+
+    /**
+     * Searches keys by prefixes of words in their user ids, and by prefixes of their fingerprints and key ids.
+     * Every word of the search text must match. Keys whose primary user id matches come first, then secret
+     * keys, and then keys in the same order as {@link #getAllUnifiedKeyInfo()}.
+     */
+    public List<UnifiedKeyInfo> searchUnifiedKeyInfo(String searchText) {
+        String matchQuery = KeySearchDao.buildMatchQuery(searchText, null);
+        if (matchQuery == null) {
+            return Collections.emptyList();
+        }
+        String primaryUserIdMatchQuery = KeySearchDao.buildMatchQuery(searchText, KeySearchDao.COLUMN_PRIMARY_USER_ID);
+        SimpleSQLiteQuery query = new SimpleSQLiteQuery(SEARCH_UNIFIED_KEY_INFO,
+                new Object[] { matchQuery, primaryUserIdMatchQuery });
         return mapAllRows(query, SubKey.UNIFIED_KEY_INFO_MAPPER);
     }
 
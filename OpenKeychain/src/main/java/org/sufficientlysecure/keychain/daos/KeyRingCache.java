@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.daos;
+
+
+import androidx.collection.LongSparseArray;
+import androidx.collection.LruCache;
+
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+
+
+/**
+ * Process-wide cache of parsed keyrings, keyed by master key id. The cache is bounded by the
+ * encoded size of the cached keyrings, and must be invalidated by all code that writes keyrings
+ * to the database.
+ * <p>
+ * Other processes can write keyrings too, which can't invalidate this cache directly. All writes
+ * increment the keyrings generation in the database, and readers must pass it to {@link #validate}
+ * before using the cache, which drops everything if it changed.
+ * <p>
+ * Entries are only added while no write to the database is in progress on the calling thread,
+ * and only if no key was invalidated since the keyring was read. This makes sure a keyring read
+ * from the database concurrently with a write can't end up in the cache after the write.
+ * <p>
+ * Additionally, this caches the master keys of all keyrings with a secret key, which are used to
+ * verify third-party certifications. This index has its own generation, and is only invalidated
+ * by writes that may change the set of secret keys, or the public key of one of them.
+ */
+public class KeyRingCache {
+    private static final int MAX_CACHED_PUBLIC_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_CACHED_SECRET_BYTES = 1024 * 1024;
+
+    private static KeyRingCache instance;
+
+    private final LruCache<Long, CachedKeyRing<CanonicalizedPublicKeyRing>> publicKeyRings =
+            new KeyRingLruCache<>(MAX_CACHED_PUBLIC_BYTES);
+    private final LruCache<Long, CachedKeyRing<CanonicalizedSecretKeyRing>> secretKeyRings =
+            new KeyRingLruCache<>(MAX_CACHED_SECRET_BYTES);
+    private long generation;
+
+    private long databaseGeneration = -1;
+
+    private LongSparseArray<CanonicalizedPublicKey> trustedMasterKeys;
+    private long trustedKeysGeneration;
+
+    public static synchronized KeyRingCache getInstance() {
+        if (instance == null) {
+            instance = new KeyRingCache();
+        }
+        return instance;
+    }
+
+    private KeyRingCache() {
+    }
+
+    /**
+     * Drops all cached data if the keyrings generation in the database changed since the last call,
+     * which means another process may have written keyrings.
+     */
+    synchronized void validate(long databaseGeneration) {
+        if (this.databaseGeneration != databaseGeneration) {
+            invalidateAll();
+            this.databaseGeneration = databaseGeneration;
+        }
+    }
+
+    /**
+     * Called by writes of this process after they incremented the keyrings generation. These writes
+     * invalidate what they change themselves, so the cache stays valid if it was up to date with the
+     * previous generation. If the write is rolled back, the next validate call drops the cache.
+     */
+    synchronized void advanceDatabaseGeneration(long databaseGeneration) {
+        if (this.databaseGeneration == databaseGeneration - 1) {
+            this.databaseGeneration = databaseGeneration;
+        }
+    }
+
+    CanonicalizedPublicKeyRing getPublicKeyRing(long masterKeyId) {
+        CachedKeyRing<CanonicalizedPublicKeyRing> cachedKeyRing = publicKeyRings.get(masterKeyId);
+        return cachedKeyRing != null ? cachedKeyRing.keyRing : null;
+    }
+
+    CanonicalizedSecretKeyRing getSecretKeyRing(long masterKeyId) {
+        CachedKeyRing<CanonicalizedSecretKeyRing> cachedKeyRing = secretKeyRings.get(masterKeyId);
+        return cachedKeyRing != null ? cachedKeyRing.keyRing : null;
+    }
+
+    /**
+     * Returns the current generation of the cache. This must be obtained before a keyring is read
+     * from the database, and passed to the corresponding put method afterwards.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    synchronized void putPublicKeyRing(long generation, long masterKeyId, CanonicalizedPublicKeyRing keyRing,
+            int encodedSize) {
+        if (this.generation == generation) {
+            publicKeyRings.put(masterKeyId, new CachedKeyRing<>(keyRing, encodedSize));
+        }
+    }
+
+    synchronized void putSecretKeyRing(long generation, long masterKeyId, CanonicalizedSecretKeyRing keyRing,
+            int encodedSize) {
+        if (this.generation == generation) {
+            secretKeyRings.put(masterKeyId, new CachedKeyRing<>(keyRing, encodedSize));
+        }
+    }
+
+    /** Returns the cached trusted master keys. The returned object is shared and must not be modified. */
+    synchronized LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
+        return trustedMasterKeys;
+    }
+
+    /**
+     * Returns the current generation of the trusted key index. This must be obtained before the
+     * trusted keys are read from the database, and passed to putTrustedMasterKeys afterwards.
+     */
+    synchronized long getTrustedKeysGeneration() {
+        return trustedKeysGeneration;
+    }
+
+    synchronized void putTrustedMasterKeys(long trustedKeysGeneration,
+            LongSparseArray<CanonicalizedPublicKey> trustedMasterKeys) {
+        if (this.trustedKeysGeneration == trustedKeysGeneration) {
+            this.trustedMasterKeys = trustedMasterKeys;
+        }
+    }
+
+    /** Must be called on every write that may change which keyrings have a secret key. */
+    synchronized void invalidateTrustedKeys() {
+        trustedKeysGeneration += 1;
+        trustedMasterKeys = null;
+    }
+
+    synchronized void invalidate(long masterKeyId) {
+        generation += 1;
+        publicKeyRings.remove(masterKeyId);
+        secretKeyRings.remove(masterKeyId);
+        if (trustedMasterKeys != null && trustedMasterKeys.indexOfKey(masterKeyId) >= 0) {
+            invalidateTrustedKeys();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        databaseGeneration = -1;
+        generation += 1;
+        publicKeyRings.evictAll();
+        secretKeyRings.evictAll();
+        invalidateTrustedKeys();
+    }
+
+    public int getHitCount() {
+        return publicKeyRings.hitCount() + secretKeyRings.hitCount();
+    }
+
+    public int getMissCount() {
+        return publicKeyRings.missCount() + secretKeyRings.missCount();
+    }
+
+    public int getEvictionCount() {
+        return publicKeyRings.evictionCount() + secretKeyRings.evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "KeyRingCache[public=" + publicKeyRings + ", secret=" + secretKeyRings + "]";
+    }
+
+    private static class CachedKeyRing<T extends CanonicalizedKeyRing> {
+        final T keyRing;
+        final int encodedSize;
+
+        CachedKeyRing(T keyRing, int encodedSize) {
+            this.keyRing = keyRing;
+            this.encodedSize = encodedSize;
+        }
+    }
+
+    private static class KeyRingLruCache<T extends CanonicalizedKeyRing> extends LruCache<Long, CachedKeyRing<T>> {
+        KeyRingLruCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(Long masterKeyId, CachedKeyRing<T> cachedKeyRing) {
+            return cachedKeyRing.encodedSize;
+        }
+    }
+}
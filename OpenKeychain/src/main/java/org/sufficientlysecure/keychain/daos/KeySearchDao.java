@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.daos;
+
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import org.sufficientlysecure.keychain.KeychainDatabase;
+
+
+/**
+ * Maintains the key_search full-text index, which holds one row per master key (docid = master_key_id)
+ * with all user ids, and the fingerprints and long and short key ids of all subkeys as hex. Rows are
+ * updated by KeyWritableRepository whenever a key is saved or deleted.
+ * <p>
+ * The index is queried with prefix matches built by {@link #buildMatchQuery}. Since sqlite's simple
+ * tokenizer splits on all ascii punctuation, a user id like "Alice <alice@example.com>" is found by
+ * "ali", "alice@exa" or "example.com", and a key by any prefix of its fingerprint or key ids.
+ */
+public class KeySearchDao extends AbstractDao {
+    static final String COLUMN_PRIMARY_USER_ID = "primary_user_id";
+
+    private static final String CREATE_TABLE =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS key_search USING fts4(primary_user_id, user_ids, key_ids)";
+    private static final String DELETE_ALL = "DELETE FROM key_search";
+    private static final String DELETE_BY_MASTER_KEY_ID = "DELETE FROM key_search WHERE docid = ?";
+    private static final String INSERT_SELECT = "INSERT INTO key_search (docid, primary_user_id, user_ids, key_ids) "
+            + "SELECT keys.master_key_id, "
+            + "(SELECT user_id FROM user_packets AS up WHERE up.master_key_id = keys.master_key_id AND up.type IS NULL ORDER BY up.rank LIMIT 1), "
+            + "(SELECT GROUP_CONCAT(user_id, ' ') FROM user_packets AS up WHERE up.master_key_id = keys.master_key_id AND up.type IS NULL), "
+            + "GROUP_CONCAT(hex(keys.fingerprint) || ' ' || substr(hex(keys.fingerprint), -16) || ' ' || substr(hex(keys.fingerprint), -8), ' ') "
+            + "FROM keys";
+    private static final String INSERT_BY_MASTER_KEY_ID =
+            INSERT_SELECT + " WHERE keys.master_key_id = ? GROUP BY keys.master_key_id";
+    private static final String INSERT_ALL = INSERT_SELECT + " GROUP BY keys.master_key_id";
+
+    /** Creates the key_search table and fills it from all keys in the database. */
+    public static void createTable(SupportSQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE);
+        rebuildSearchIndex(db);
+    }
+
+    /** Recomputes the whole index. This is only needed if keys were written without going through KeyWritableRepository. */
+    public static void rebuildSearchIndex(SupportSQLiteDatabase db) {
+        db.execSQL(DELETE_ALL);
+        db.execSQL(INSERT_ALL);
+    }
+
+    static KeySearchDao create(Context context) {
+        KeychainDatabase database = KeychainDatabase.getInstance(context);
+        DatabaseNotifyManager databaseNotifyManager = DatabaseNotifyManager.create(context);
+
+        return new KeySearchDao(database, databaseNotifyManager);
+    }
+
+    private KeySearchDao(KeychainDatabase database, DatabaseNotifyManager databaseNotifyManager) {
+        super(database, databaseNotifyManager);
+    }
+
+    /** Recomputes the index row of a single key from its keys and user_packets rows. Must be called inside a transaction. */
+    void updateSearchIndex(long masterKeyId) {
+        deleteFromSearchIndex(masterKeyId);
+
+        SupportSQLiteStatement insertStatement = getWritableDb().compileStatement(INSERT_BY_MASTER_KEY_ID);
+        insertStatement.bindLong(1, masterKeyId);
+        insertStatement.executeInsert();
+    }
+
+    /** Removes the index row of a key. Unlike key_summary, fts tables don't take part in foreign key cascades. */
+    void deleteFromSearchIndex(long masterKeyId) {
+        SupportSQLiteDatabase db = getWritableDb();
+        SupportSQLiteStatement deleteStatement = db.compileStatement(DELETE_BY_MASTER_KEY_ID);
+        deleteStatement.bindLong(1, masterKeyId);
+        deleteStatement.executeUpdateDelete();
+    }
+
+    /**
+     * Builds an fts MATCH expression which finds rows containing a token starting with each search term.
+     * Terms are quoted, so that input like "OR" or "-" is never interpreted as query syntax. If a column is
+     * given, only that column is matched.
+     *
+     * @return the match expression, or null if the search text contains no searchable terms
+     */
+    @Nullable
+    static String buildMatchQuery(String searchText, @Nullable String column) {
+        StringBuilder builder = new StringBuilder();
+        for (String term : splitIntoTerms(searchText)) {
+            if (term.matches("0[xX][0-9a-fA-F]+")) {
+                term = term.substring(2);
+            }
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            if (column != null) {
+                builder.append(column).append(':');
+            }
+            builder.append('"').append(term).append("*\"");
+        }
+        return builder.length() > 0 ? builder.toString() : null;
+    }
+
+    /**
+     * Builds an fts MATCH expression that finds a superset of the keys with a user id matching the given
+     * LIKE pattern. Only terms which start at a token boundary in every match of the pattern can be used,
+     * e.g. "example" and "com" for "%@example.com", but not "xample" for "%xample.com".
+     *
+     * @return the match expression, or null if no usable terms could be extracted
+     */
+    @Nullable
+    static String buildMatchQueryFromLikePattern(String likePattern) {
+        StringBuilder builder = new StringBuilder();
+        int termStart = 0;
+        for (int i = 0; i <= likePattern.length(); i++) {
+            if (i < likePattern.length() && !isTokenSeparator(likePattern.charAt(i))) {
+                continue;
+            }
+            boolean isAnchored = termStart == 0 || !isLikeWildcard(likePattern.charAt(termStart - 1));
+            if (i > termStart && isAnchored) {
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append('"').append(likePattern, termStart, i).append("*\"");
+            }
+            termStart = i + 1;
+        }
+        return builder.length() > 0 ? builder.toString() : null;
+    }
+
+    private static String[] splitIntoTerms(String searchText) {
+        StringBuilder normalized = new StringBuilder(searchText.length());
+        for (int i = 0; i < searchText.length(); i++) {
+            char c = searchText.charAt(i);
+            normalized.append(isTokenSeparator(c) ? ' ' : c);
+        }
+        String trimmed = normalized.toString().trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split(" +");
+    }
+
+    private static boolean isLikeWildcard(char c) {
+        return c == '%' || c == '_';
+    }
+
+    /** Same as sqlite's simple tokenizer: all ascii characters except letters and digits separate tokens. */
+    private static boolean isTokenSeparator(char c) {
+        return c < 0x80 && !Character.isLetterOrDigit(c);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.daos;
+
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import com.squareup.sqldelight.SqlDelightQuery;
+import org.sufficientlysecure.keychain.KeySummaryModel.DeleteByMasterKeyId;
+import org.sufficientlysecure.keychain.KeySummaryModel.InsertKeySummaryByMasterKeyId;
+import org.sufficientlysecure.keychain.KeySummaryModel.UpdateHasDuplicateByNameAndEmail;
+import org.sufficientlysecure.keychain.KeychainDatabase;
+import org.sufficientlysecure.keychain.model.KeySummary;
+
+
+/**
+ * Maintains the key_summary table, which holds one precomputed row per master key
+ * and backs the unifiedKeyView. All writes that affect a key's summary must go
+ * through here, in the same transaction as the write itself.
+ */
+class KeySummaryDao extends AbstractDao {
+    static KeySummaryDao create(Context context) {
+        KeychainDatabase database = KeychainDatabase.getInstance(context);
+        DatabaseNotifyManager databaseNotifyManager = DatabaseNotifyManager.create(context);
+
+        return new KeySummaryDao(database, databaseNotifyManager);
+    }
+
+    private KeySummaryDao(KeychainDatabase database, DatabaseNotifyManager databaseNotifyManager) {
+        super(database, databaseNotifyManager);
+    }
+
+    @Nullable
+    KeySummary getKeySummary(long masterKeyId) {
+        SqlDelightQuery query = KeySummary.FACTORY.selectByMasterKeyId(masterKeyId);
+        return mapSingleRow(query, KeySummary.MAPPER);
+    }
+
+    void updateKeySummary(long masterKeyId) {
+        SupportSQLiteDatabase db = getWritableDb();
+        db.beginTransaction();
+        try {
+            updateKeySummary(masterKeyId, getKeySummary(masterKeyId));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Recomputes the summary row of a single key. The previous summary, if any, must be
+     * passed in so that duplicate flags of keys that shared its name and email are updated
+     * as well. Must be called inside a transaction.
+     */
+    void updateKeySummary(long masterKeyId, @Nullable KeySummary previousSummary) {
+        SupportSQLiteDatabase db = getWritableDb();
+
+        DeleteByMasterKeyId deleteStatement = KeySummary.createDeleteStatement(db);
+        deleteStatement.bind(masterKeyId);
+        deleteStatement.executeUpdateDelete();
+
+        InsertKeySummaryByMasterKeyId insertStatement = KeySummary.createInsertStatement(db);
+        insertStatement.bind(masterKeyId);
+        insertStatement.executeInsert();
+
+        KeySummary keySummary = getKeySummary(masterKeyId);
+        updateDuplicates(previousSummary);
+        if (keySummary != null && !isSameUserId(keySummary, previousSummary)) {
+            updateDuplicates(keySummary);
+        }
+    }
+
+    /**
+     * Updates duplicate flags of all keys sharing name and email with the given summary.
+     * This is necessary after the key of that summary was deleted.
+     */
+    void updateDuplicates(@Nullable KeySummary keySummary) {
+        if (keySummary == null || keySummary.name() == null || keySummary.email() == null) {
+            return;
+        }
+
+        UpdateHasDuplicateByNameAndEmail updateStatement = KeySummary.createUpdateHasDuplicateStatement(getWritableDb());
+        updateStatement.bind(keySummary.name(), keySummary.email());
+        updateStatement.executeUpdateDelete();
+    }
+
+    private static boolean isSameUserId(KeySummary keySummary, @Nullable KeySummary other) {
+        return other != null && keySummary.name() != null && keySummary.email() != null
+                && keySummary.name().equals(other.name()) && keySummary.email().equals(other.email());
+    }
+}
@@ -19,10 +19,14 @@ package org.sufficientlysecure.keychain.daos;
 
 
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 
 import androidx.sqlite.db.SupportSQLiteDatabase;
@@ -31,15 +35,23 @@ import androidx.annotation.NonNull;
 import androidx.collection.LongSparseArray;
 
 import org.openintents.openpgp.util.OpenPgpUtils;
+import org.sufficientlysecure.keychain.CertsModel.DeleteByMasterKeyIdAndCertifier;
+import org.sufficientlysecure.keychain.CertsModel.UpdateVerifiedByMasterKeyIdAndCertifier;
+import org.sufficientlysecure.keychain.KeyRingsGenerationModel.IncrementGeneration;
 import org.sufficientlysecure.keychain.KeyRingsPublicModel.DeleteByMasterKeyId;
+import org.sufficientlysecure.keychain.KeyRingsPublicModel.UpdateRawDigest;
 import org.sufficientlysecure.keychain.KeychainDatabase;
 import org.sufficientlysecure.keychain.KeysModel.UpdateHasSecretByKeyId;
 import org.sufficientlysecure.keychain.KeysModel.UpdateHasSecretByMasterKeyId;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.daos.DatabaseBatchInteractor.BatchOp;
 import org.sufficientlysecure.keychain.model.Certification;
+import org.sufficientlysecure.keychain.model.Certification.Certifier;
 import org.sufficientlysecure.keychain.model.KeyRingPublic;
+import org.sufficientlysecure.keychain.model.KeyRingPublic.KeyRingDigests;
+import org.sufficientlysecure.keychain.model.KeyRingsGeneration;
 import org.sufficientlysecure.keychain.model.KeySignature;
+import org.sufficientlysecure.keychain.model.KeySummary;
 import org.sufficientlysecure.keychain.model.SubKey;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
 import org.sufficientlysecure.keychain.model.UserPacket;
@@ -80,10 +92,16 @@ import timber.log.Timber;
  */
 public class KeyWritableRepository extends KeyRepository {
     private static final int MAX_CACHED_KEY_SIZE = 1024 * 50;
+    private static final int BATCH_SESSION_MAX_KEY_RINGS = 100;
+    private static final long BATCH_SESSION_MAX_TRANSACTION_MILLIS = 500;
 
     private final Context context;
+    private final KeychainDatabase keychainDatabase;
     private final DatabaseNotifyManager databaseNotifyManager;
     private AutocryptPeerDao autocryptPeerDao;
+    private KeySummaryDao keySummaryDao;
+    private KeySearchDao keySearchDao;
+    private SignatureVerificationDao signatureVerificationDao;
     private DatabaseBatchInteractor databaseBatchInteractor;
 
     public static KeyWritableRepository create(Context context) {
@@ -91,51 +109,100 @@ public class KeyWritableRepository extends KeyRepository {
         LocalSecretKeyStorage localSecretKeyStorage = LocalSecretKeyStorage.getInstance(context);
         DatabaseNotifyManager databaseNotifyManager = DatabaseNotifyManager.create(context);
         AutocryptPeerDao autocryptPeerDao = AutocryptPeerDao.getInstance(context);
+        KeySummaryDao keySummaryDao = KeySummaryDao.create(context);
+        KeySearchDao keySearchDao = KeySearchDao.create(context);
+        SignatureVerificationDao signatureVerificationDao = SignatureVerificationDao.create(context);
         KeychainDatabase database = KeychainDatabase.getInstance(context);
 
         return new KeyWritableRepository(context, database,
-                localPublicKeyStorage, localSecretKeyStorage, databaseNotifyManager, autocryptPeerDao);
+                localPublicKeyStorage, localSecretKeyStorage, databaseNotifyManager, autocryptPeerDao, keySummaryDao,
+                keySearchDao, signatureVerificationDao);
         }
 
     private KeyWritableRepository(Context context,
             KeychainDatabase database, LocalPublicKeyStorage localPublicKeyStorage,
             LocalSecretKeyStorage localSecretKeyStorage,
-            DatabaseNotifyManager databaseNotifyManager, AutocryptPeerDao autocryptPeerDao) {
+            DatabaseNotifyManager databaseNotifyManager, AutocryptPeerDao autocryptPeerDao,
+            KeySummaryDao keySummaryDao, KeySearchDao keySearchDao,
+            SignatureVerificationDao signatureVerificationDao) {
         this(context, database, localPublicKeyStorage, localSecretKeyStorage, databaseNotifyManager, new OperationLog(), 0,
-                autocryptPeerDao);
+                autocryptPeerDao, keySummaryDao, keySearchDao, signatureVerificationDao);
     }
 
     private KeyWritableRepository(Context context, KeychainDatabase database,
             LocalPublicKeyStorage localPublicKeyStorage,
             LocalSecretKeyStorage localSecretKeyStorage, DatabaseNotifyManager databaseNotifyManager,
-            OperationLog log, int indent, AutocryptPeerDao autocryptPeerDao) {
+            OperationLog log, int indent, AutocryptPeerDao autocryptPeerDao, KeySummaryDao keySummaryDao,
+            KeySearchDao keySearchDao, SignatureVerificationDao signatureVerificationDao) {
         super(database, databaseNotifyManager, localPublicKeyStorage, localSecretKeyStorage, log, indent);
 
         this.context = context;
+        this.keychainDatabase = database;
         this.databaseNotifyManager = databaseNotifyManager;
         this.autocryptPeerDao = autocryptPeerDao;
-        this.databaseBatchInteractor = new DatabaseBatchInteractor(getWritableDb());
+        this.keySummaryDao = keySummaryDao;
+        this.keySearchDao = keySearchDao;
+        this.signatureVerificationDao = signatureVerificationDao;
+        this.databaseBatchInteractor = new DatabaseBatchInteractor(getWritableDb(), databaseNotifyManager);
     }
 
+    /**
+     * Returns the master keys of all keyrings with a secret key. The result is cached until a
+     * secret key is saved or deleted, in this or any other process, and must not be modified.
+     */
     private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
+        // drops the index if another process wrote keyrings, which may have added a secret key
+        validateKeyRingCache();
+        LongSparseArray<CanonicalizedPublicKey> cachedTrustedKeys = keyRingCache.getTrustedMasterKeys();
+        if (cachedTrustedKeys != null) {
+            return cachedTrustedKeys;
+        }
+
+        long cacheGeneration = keyRingCache.getTrustedKeysGeneration();
         LongSparseArray<CanonicalizedPublicKey> result = new LongSparseArray<>();
 
         List<UnifiedKeyInfo> unifiedKeyInfoWithSecret = getAllUnifiedKeyInfoWithSecret();
         for (UnifiedKeyInfo unifiedKeyInfo : unifiedKeyInfoWithSecret) {
             try {
-                byte[] blob = loadPublicKeyRingData(unifiedKeyInfo.master_key_id());
-                if (blob != null) {
-                    result.put(unifiedKeyInfo.master_key_id(),
-                            new CanonicalizedPublicKeyRing(blob, unifiedKeyInfo.verified()).getPublicKey());
-                }
+                CanonicalizedPublicKeyRing keyRing = getCanonicalizedPublicKeyRing(unifiedKeyInfo.master_key_id());
+                result.put(unifiedKeyInfo.master_key_id(), keyRing.getPublicKey());
             } catch (NotFoundException e) {
                 throw new IllegalStateException("Error reading secret key data, this should not happen!", e);
             }
         }
 
+        // unlike keyrings, this may be cached inside of a transaction. writes of secret keys
+        // invalidate it again after their transaction ends, see saveCanonicalizedSecretKeyRing
+        keyRingCache.putTrustedMasterKeys(cacheGeneration, result);
         return result;
     }
 
+    /**
+     * Invalidates the cached keyring in this process, and increments the keyrings generation so
+     * other processes drop their caches. Must be called inside the transaction of every keyring write.
+     */
+    private void invalidateKeyRing(long masterKeyId) {
+        new IncrementGeneration(getWritableDb()).executeUpdateDelete();
+        Long databaseGeneration = mapSingleRow(KeyRingsGeneration.FACTORY.selectGeneration(),
+                KeyRingsGeneration.FACTORY.selectGenerationMapper());
+        if (databaseGeneration != null) {
+            keyRingCache.advanceDatabaseGeneration(databaseGeneration);
+        }
+        keyRingCache.invalidate(masterKeyId);
+    }
+
+    private KeyRingDigests getKeyRingDigests(long masterKeyId) {
+        return mapSingleRow(KeyRingPublic.FACTORY.selectDigestsByMasterKeyId(masterKeyId), KeyRingPublic.DIGESTS_MAPPER);
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available!", e);
+        }
+    }
+
     // bits, in order: CESA. make SURE these are correct, we will get bad log entries otherwise!!
     private static final LogType LOG_TYPES_FLAG_MASTER[] = new LogType[]{
             LogType.MSG_IP_MASTER_FLAGS_XXXX, LogType.MSG_IP_MASTER_FLAGS_CXXX,
@@ -168,7 +235,8 @@ public class KeyWritableRepository extends KeyRepository {
      * and need to be saved externally to be preserved past the operation.
      */
     @SuppressWarnings("unchecked")
-    private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing, boolean selfCertsAreTrusted) {
+    private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing, boolean selfCertsAreTrusted,
+            byte[] rawDigest) {
 
         // start with ok result
         int result = SaveKeyringResult.SAVED_PUBLIC;
@@ -193,7 +261,8 @@ public class KeyWritableRepository extends KeyRepository {
             log(LogType.MSG_IP_INSERT_KEYRING);
 
             byte[] encodedRingIfDbCachable = encodedKeyRing.length < MAX_CACHED_KEY_SIZE ? encodedKeyRing : null;
-            KeyRingPublic keyRingPublic = KeyRingPublic.create(masterKeyId, encodedRingIfDbCachable);
+            KeyRingPublic keyRingPublic = KeyRingPublic.create(masterKeyId, encodedRingIfDbCachable,
+                    rawDigest, sha256(encodedKeyRing));
             operations.add(DatabaseBatchInteractor.createInsertKeyRingPublic(keyRingPublic));
 
             log(LogType.MSG_IP_INSERT_SUBKEYS);
@@ -508,10 +577,30 @@ public class KeyWritableRepository extends KeyRepository {
             mIndent -= 1;
         }
 
+        // large keyrings are written to storage before the transaction, so an error here can never
+        // roll back a surrounding transaction that other keyrings are written in. if the transaction
+        // is rolled back instead, the previous blob is restored to match the database again.
+        Runnable restorePublicKeyBlob = null;
+        if (encodedKeyRing.length >= MAX_CACHED_KEY_SIZE) {
+            try {
+                byte[] previousKeyRing = mLocalPublicKeyStorage.readPublicKey(masterKeyId);
+                mLocalPublicKeyStorage.writePublicKey(masterKeyId, encodedKeyRing);
+                restorePublicKeyBlob = () -> restorePublicKeyBlob(masterKeyId, previousKeyRing);
+            } catch (IOException e) {
+                log(LogType.MSG_IP_ERROR_OP_EXC);
+                Timber.e(e, "OperationApplicationException during import");
+                return SaveKeyringResult.RESULT_ERROR;
+            }
+        }
+
         SupportSQLiteDatabase db = databaseBatchInteractor.getDb();
+        boolean successful = false;
         try {
             db.beginTransaction();
 
+            // remember the old summary before it is deleted, its duplicate flags may need an update
+            KeySummary previousSummary = keySummaryDao.getKeySummary(masterKeyId);
+
             // delete old version of this keyRing (from database only!), which also deletes all keys and userIds on cascade
             DeleteByMasterKeyId deleteStatement = new DeleteByMasterKeyId(db);
             deleteStatement.bind(masterKeyId);
@@ -526,24 +615,41 @@ public class KeyWritableRepository extends KeyRepository {
 
             log(LogType.MSG_IP_APPLY_BATCH);
             databaseBatchInteractor.applyBatch(operations);
-            if (encodedKeyRing.length >= MAX_CACHED_KEY_SIZE) {
-                mLocalPublicKeyStorage.writePublicKey(masterKeyId, encodedKeyRing);
-            }
-            databaseNotifyManager.notifyKeyChange(masterKeyId);
+            keySummaryDao.updateKeySummary(masterKeyId, previousSummary);
+            keySearchDao.updateSearchIndex(masterKeyId);
+            signatureVerificationDao.pruneVerifications(masterKeyId);
+            invalidateKeyRing(masterKeyId);
+            databaseBatchInteractor.notifyKeyChange(masterKeyId);
 
             db.setTransactionSuccessful();
+            successful = true;
             log(LogType.MSG_IP_SUCCESS);
             return result;
-        } catch (IOException e) {
-            log(LogType.MSG_IP_ERROR_OP_EXC);
-            Timber.e(e, "OperationApplicationException during import");
-            return SaveKeyringResult.RESULT_ERROR;
         } finally {
             db.endTransaction();
+            if (restorePublicKeyBlob != null) {
+                if (successful) {
+                    databaseBatchInteractor.addRollbackAction(restorePublicKeyBlob);
+                } else {
+                    restorePublicKeyBlob.run();
+                }
+            }
         }
 
     }
 
+    private void restorePublicKeyBlob(long masterKeyId, byte[] previousKeyRing) {
+        try {
+            if (previousKeyRing != null) {
+                mLocalPublicKeyStorage.writePublicKey(masterKeyId, previousKeyRing);
+            } else {
+                mLocalPublicKeyStorage.deletePublicKey(masterKeyId);
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Could not restore public key blob after rollback!");
+        }
+    }
+
     private void writeSecretKeyRing(CanonicalizedSecretKeyRing keyRing, long masterKeyId) throws IOException {
         byte[] encodedKey = keyRing.getEncoded();
         localSecretKeyStorage.writeSecretKey(masterKeyId, encodedKey);
@@ -557,13 +663,31 @@ public class KeyWritableRepository extends KeyRepository {
             Timber.e(e, "Could not delete file!");
             return false;
         }
-        autocryptPeerDao.deleteByMasterKeyId(masterKeyId);
 
-        DeleteByMasterKeyId deleteStatement = new DeleteByMasterKeyId(getWritableDb());
-        deleteStatement.bind(masterKeyId);
-        int deletedRows = deleteStatement.executeUpdateDelete();
+        SupportSQLiteDatabase db = getWritableDb();
+        int deletedRows;
+        try {
+            db.beginTransaction();
+
+            autocryptPeerDao.deleteByMasterKeyId(masterKeyId);
+            KeySummary previousSummary = keySummaryDao.getKeySummary(masterKeyId);
+
+            DeleteByMasterKeyId deleteStatement = new DeleteByMasterKeyId(db);
+            deleteStatement.bind(masterKeyId);
+            deletedRows = deleteStatement.executeUpdateDelete();
+
+            // the summary row itself is deleted on cascade, but other keys may no longer be duplicates
+            keySummaryDao.updateDuplicates(previousSummary);
+            keySearchDao.deleteFromSearchIndex(masterKeyId);
+            signatureVerificationDao.deleteByMasterKeyId(masterKeyId);
+            invalidateKeyRing(masterKeyId);
 
-        databaseNotifyManager.notifyKeyChange(masterKeyId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        databaseBatchInteractor.notifyKeyChange(masterKeyId);
 
         return deletedRows > 0;
     }
@@ -579,6 +703,12 @@ public class KeyWritableRepository extends KeyRepository {
         WrappedSignature selfCert;
         WrappedSignature selfRevocation;
         LongSparseArray<WrappedSignature> trustedCerts = new LongSparseArray<>();
+        // set if trusted certs are known from the database instead of being in trustedCerts
+        boolean hasStoredTrustedCerts = false;
+
+        boolean hasTrustedCerts() {
+            return hasStoredTrustedCerts || trustedCerts.size() > 0;
+        }
 
         @Override
         public int compareTo(@NonNull UserPacketItem o) {
@@ -595,8 +725,8 @@ public class KeyWritableRepository extends KeyRepository {
             }
             // if one is *trusted* but the other isn't, that one comes first
             // this overrides the primary attribute, even!
-            if ((trustedCerts.size() == 0) != (o.trustedCerts.size() == 0)) {
-                return trustedCerts.size() > o.trustedCerts.size() ? -1 : 1;
+            if (hasTrustedCerts() != o.hasTrustedCerts()) {
+                return hasTrustedCerts() ? -1 : 1;
             }
             // if one key is primary but the other isn't, the primary one always comes first
             if (isPrimary != o.isPrimary) {
@@ -609,8 +739,11 @@ public class KeyWritableRepository extends KeyRepository {
     /**
      * Saves an UncachedKeyRing of the secret variant into the db.
      * This method will fail if no corresponding public keyring is in the database!
+     *
+     * @param secretKeyTypes types of the secret keys, as computed in the prepare stage
      */
-    private int saveCanonicalizedSecretKeyRing(CanonicalizedSecretKeyRing keyRing) {
+    private int saveCanonicalizedSecretKeyRing(CanonicalizedSecretKeyRing keyRing,
+            HashMap<Long, SecretKeyType> secretKeyTypes) {
 
         long masterKeyId = keyRing.getMasterKeyId();
         log(LogType.MSG_IS, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
@@ -630,20 +763,22 @@ public class KeyWritableRepository extends KeyRepository {
                 return SaveKeyringResult.RESULT_ERROR;
             }
 
-            {
+            SupportSQLiteDatabase db = getWritableDb();
+            db.beginTransaction();
+            try {
                 UpdateHasSecretByMasterKeyId resetStatement =
-                        SubKey.createUpdateHasSecretByMasterKeyIdStatement(getWritableDb());
+                        SubKey.createUpdateHasSecretByMasterKeyIdStatement(db);
                 resetStatement.bind(masterKeyId, SecretKeyType.GNU_DUMMY);
                 resetStatement.executeUpdateDelete();
 
-                UpdateHasSecretByKeyId updateStatement = SubKey.createUpdateHasSecretByKeyId(getWritableDb());
+                UpdateHasSecretByKeyId updateStatement = SubKey.createUpdateHasSecretByKeyId(db);
 
                 // then, mark exactly the keys we have available
                 log(LogType.MSG_IS_IMPORTING_SUBKEYS);
                 mIndent += 1;
                 for (CanonicalizedSecretKey sub : keyRing.secretKeyIterator()) {
                     long id = sub.getKeyId();
-                    SecretKeyType mode = sub.getSecretKeyTypeSuperExpensive();
+                    SecretKeyType mode = secretKeyTypes.get(id);
                     updateStatement.bind(id, mode);
                     int upd = updateStatement.executeUpdateDelete();
                     if (upd == 1) {
@@ -669,9 +804,18 @@ public class KeyWritableRepository extends KeyRepository {
 
                 // this implicitly leaves all keys which were not in the secret key ring
                 // with has_secret = 1
+
+                keySummaryDao.updateKeySummary(masterKeyId);
+                invalidateKeyRing(masterKeyId);
+                keyRingCache.invalidateTrustedKeys();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                // an index built while the transaction was open may have seen uncommitted data
+                keyRingCache.invalidateTrustedKeys();
             }
 
-            databaseNotifyManager.notifyKeyChange(masterKeyId);
+            databaseBatchInteractor.notifyKeyChange(masterKeyId);
 
             log(LogType.MSG_IS_SUCCESS);
             return result;
@@ -695,15 +839,70 @@ public class KeyWritableRepository extends KeyRepository {
             ArrayList<CanonicalizedKeyRing> canKeyRings,
             boolean forceRefresh,
             boolean skipSave) {
+        PreparedKeyRing preparedKeyRing = preparePublicKeyRing(publicRing, expectedFingerprint, canKeyRings,
+                forceRefresh, skipSave);
+        return savePreparedKeyRing(preparedKeyRing, skipSave);
+    }
+
+    /** If we have an expected fingerprint, makes sure it matches. */
+    private boolean checkExpectedFingerprint(CanonicalizedPublicKeyRing canPublicRing, byte[] expectedFingerprint) {
+        if (expectedFingerprint == null) {
+            return true;
+        }
+        if (!canPublicRing.containsBoundSubkey(expectedFingerprint)) {
+            log(LogType.MSG_IP_FINGERPRINT_ERROR);
+            return false;
+        }
+        log(LogType.MSG_IP_FINGERPRINT_OK);
+        return true;
+    }
+
+    /**
+     * First stage of savePublicKeyRing: merges the keyring with the data already in the database and
+     * canonicalizes it, without writing anything. This stage only reads from the database, so it can
+     * run in parallel for different keys as long as each thread uses its own repository (see
+     * {@link #createWithNewLog()}). The result must be passed to {@link #savePreparedKeyRing}, with
+     * the same value for skipSave.
+     * <p>
+     * Testing the passphrases of secret keys is expensive, so it is done here as well unless the
+     * save is skipped. In the save stage it would hold up the writer, and with it the open
+     * transaction of a batch session.
+     */
+    public PreparedKeyRing preparePublicKeyRing(UncachedKeyRing publicRing,
+            byte[] expectedFingerprint,
+            ArrayList<CanonicalizedKeyRing> canKeyRings,
+            boolean forceRefresh,
+            boolean skipSave) {
 
+        long masterKeyId = publicRing.getMasterKeyId();
         try {
-            long masterKeyId = publicRing.getMasterKeyId();
             log(LogType.MSG_IP, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
             mIndent += 1;
 
             if (publicRing.isSecret()) {
                 log(LogType.MSG_IP_BAD_TYPE_SECRET);
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
+            }
+
+            // Early breakout if we saw exactly this data before, without parsing the old keyring
+            byte[] rawDigest = sha256(publicRing.getEncoded());
+            if (!forceRefresh) {
+                KeyRingDigests digests = getKeyRingDigests(masterKeyId);
+                if (digests != null && (Arrays.equals(rawDigest, digests.raw_digest())
+                        || Arrays.equals(rawDigest, digests.canonical_digest()))) {
+                    try {
+                        CanonicalizedPublicKeyRing canPublicRing = getCanonicalizedPublicKeyRing(masterKeyId);
+                        // the digest only says the data is known, not that it is the key that was asked for
+                        if (!checkExpectedFingerprint(canPublicRing, expectedFingerprint)) {
+                            return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
+                        }
+                        if (canKeyRings != null) canKeyRings.add(canPublicRing);
+                        log(LogType.MSG_IP_SUCCESS_IDENTICAL);
+                        return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.UPDATED, mLog, canPublicRing);
+                    } catch (NotFoundException e) {
+                        // deleted in the meantime, go on as for a new keyring
+                    }
+                }
             }
 
             CanonicalizedPublicKeyRing canPublicRing;
@@ -720,29 +919,35 @@ public class KeyWritableRepository extends KeyRepository {
 
                 // If this is null, there is an error in the log so we can just return
                 if (publicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent, false,
+                        signatureVerificationDao);
                 if (canPublicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
                 if (canKeyRings != null) canKeyRings.add(canPublicRing);
 
                 // Early breakout if nothing changed
                 if (!forceRefresh && Arrays.hashCode(publicRing.getEncoded())
                         == Arrays.hashCode(oldPublicRing.getEncoded())) {
+                    if (!checkExpectedFingerprint(canPublicRing, expectedFingerprint)) {
+                        return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    }
                     log(LogType.MSG_IP_SUCCESS_IDENTICAL);
-                    return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, canPublicRing);
+                    // remember the input, so the next time it can be detected without a merge
+                    return PreparedKeyRing.createIdentical(masterKeyId, mLog, canPublicRing, rawDigest);
                 }
             } catch (PgpGeneralException | NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring.
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent, false,
+                        signatureVerificationDao);
                 if (canPublicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
                 if (canKeyRings != null) canKeyRings.add(canPublicRing);
             }
@@ -757,12 +962,13 @@ public class KeyWritableRepository extends KeyRepository {
                 log(LogType.MSG_IP_MERGE_SECRET);
                 secretRing = secretRing.merge(publicRing, mLog, mIndent);
                 if (secretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
                 // This has always been a secret key ring, this is a safe cast
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent, false,
+                        signatureVerificationDao);
                 if (canSecretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
 
             } catch (NotFoundException e) {
@@ -771,44 +977,17 @@ public class KeyWritableRepository extends KeyRepository {
             }
 
 
-            // If we have an expected fingerprint, make sure it matches
-            if (expectedFingerprint != null) {
-                if (!canPublicRing.containsBoundSubkey(expectedFingerprint)) {
-                    log(LogType.MSG_IP_FINGERPRINT_ERROR);
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
-                } else {
-                    log(LogType.MSG_IP_FINGERPRINT_OK);
-                }
-            }
-
-            int result;
-            if (skipSave) {
-                // skip save method, set fixed result
-                result = SaveKeyringResult.SAVED_PUBLIC
-                        | (alreadyExists ? SaveKeyringResult.UPDATED : 0);
-            } else {
-                result = saveCanonicalizedPublicKeyRing(canPublicRing, canSecretRing != null);
-            }
-
-            // Save the saved keyring (if any)
-            if (canSecretRing != null) {
-                int secretResult;
-                if (skipSave) {
-                    // skip save method, set fixed result
-                    secretResult = SaveKeyringResult.SAVED_SECRET;
-                } else {
-                    secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
-                }
-
-                if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
-                    result |= SaveKeyringResult.SAVED_SECRET;
-                }
+            if (!checkExpectedFingerprint(canPublicRing, expectedFingerprint)) {
+                return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
-            return new SaveKeyringResult(result, mLog, canPublicRing);
+            HashMap<Long, SecretKeyType> secretKeyTypes = canSecretRing != null && !skipSave
+                    ? canSecretRing.getSecretKeyTypesSuperExpensive() : null;
+            return PreparedKeyRing.createPublic(masterKeyId, mLog, canPublicRing, canSecretRing, secretKeyTypes,
+                    alreadyExists, rawDigest);
         } catch (IOException e) {
             log(LogType.MSG_IP_ERROR_IO_EXC);
-            return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+            return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
         } finally {
             mIndent -= 1;
         }
@@ -834,15 +1013,25 @@ public class KeyWritableRepository extends KeyRepository {
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing,
                                                ArrayList<CanonicalizedKeyRing> canKeyRings,
                                                boolean skipSave) {
+        PreparedKeyRing preparedKeyRing = prepareSecretKeyRing(secretRing, canKeyRings, skipSave);
+        return savePreparedKeyRing(preparedKeyRing, skipSave);
+    }
 
+    /**
+     * First stage of saveSecretKeyRing, see {@link #preparePublicKeyRing}.
+     */
+    public PreparedKeyRing prepareSecretKeyRing(UncachedKeyRing secretRing,
+                                                ArrayList<CanonicalizedKeyRing> canKeyRings,
+                                                boolean skipSave) {
+
+        long masterKeyId = secretRing.getMasterKeyId();
         try {
-            long masterKeyId = secretRing.getMasterKeyId();
             log(LogType.MSG_IS, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
             mIndent += 1;
 
             if (!secretRing.isSecret()) {
                 log(LogType.MSG_IS_BAD_TYPE_PUBLIC);
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
             CanonicalizedSecretKeyRing canSecretRing;
@@ -859,14 +1048,15 @@ public class KeyWritableRepository extends KeyRepository {
 
                 // If this is null, there is an error in the log so we can just return
                 if (secretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 // This is a safe cast, because we made sure this is a secret ring above
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent, false,
+                        signatureVerificationDao);
                 if (canSecretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
                 if (canKeyRings != null) canKeyRings.add(canSecretRing);
 
@@ -875,14 +1065,15 @@ public class KeyWritableRepository extends KeyRepository {
                         == Arrays.hashCode(oldSecretRing.getEncoded())) {
                     log(LogType.MSG_IS_SUCCESS_IDENTICAL,
                             KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
-                    return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
+                    return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.UPDATED, mLog, null);
                 }
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 // This is a safe cast, because we made sure this is a secret ring above
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent, false,
+                        signatureVerificationDao);
                 if (canSecretRing == null) {
 
                     // Special case: If keyring canonicalization failed, try again after adding
@@ -891,13 +1082,14 @@ public class KeyWritableRepository extends KeyRepository {
                         log(LogType.MSG_IS_MERGE_SPECIAL);
                         UncachedKeyRing oldPublicRing = getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing();
                         secretRing = secretRing.merge(oldPublicRing, mLog, mIndent);
-                        canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                        canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent, false,
+                                signatureVerificationDao);
                     } catch (NotFoundException e2) {
                         // nothing, this is handled right in the next line
                     }
 
                     if (canSecretRing == null) {
-                        return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                        return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
                     }
                 }
                 if (canKeyRings != null) canKeyRings.add(canSecretRing);
@@ -912,7 +1104,7 @@ public class KeyWritableRepository extends KeyRepository {
                 log(LogType.MSG_IS_MERGE_PUBLIC);
                 publicRing = oldPublicRing.merge(secretRing, mLog, mIndent);
                 if (publicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
 
             } catch (NotFoundException e) {
@@ -921,43 +1113,246 @@ public class KeyWritableRepository extends KeyRepository {
             }
 
             CanonicalizedPublicKeyRing canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog,
-                    mIndent);
+                    mIndent, false, signatureVerificationDao);
             if (canPublicRing == null) {
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
-            int publicResult;
-            if (skipSave) {
-                // skip save method, set fixed result
-                publicResult = SaveKeyringResult.SAVED_PUBLIC;
-            } else {
-                publicResult = saveCanonicalizedPublicKeyRing(canPublicRing, true);
+            HashMap<Long, SecretKeyType> secretKeyTypes =
+                    skipSave ? null : canSecretRing.getSecretKeyTypesSuperExpensive();
+            return PreparedKeyRing.createSecret(masterKeyId, mLog, canPublicRing, canSecretRing, secretKeyTypes,
+                    alreadyExists);
+        } catch (IOException e) {
+            log(LogType.MSG_IS_ERROR_IO_EXC);
+            return PreparedKeyRing.createFinished(masterKeyId, SaveKeyringResult.RESULT_ERROR, mLog, null);
+        } finally {
+            mIndent -= 1;
+        }
+    }
+
+    public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing) {
+        return saveSecretKeyRing(secretRing, null, false);
+    }
+
+    /**
+     * Second stage of savePublicKeyRing and saveSecretKeyRing: writes a keyring that was prepared by
+     * {@link #preparePublicKeyRing} or {@link #prepareSecretKeyRing}. Logging continues in the log of
+     * the prepared keyring, which may have been created by a different repository instance.
+     * <p>
+     * Database writes are not thread safe, so this must only be called from a single writer thread.
+     */
+    public SaveKeyringResult savePreparedKeyRing(PreparedKeyRing preparedKeyRing, boolean skipSave) {
+        if (!skipSave && preparedKeyRing.canSecretRing != null && preparedKeyRing.secretKeyTypes == null) {
+            throw new IllegalArgumentException("Keyring was prepared with skipSave, it can't be saved!");
+        }
+        if (!skipSave) {
+            // results of the prepare stage, which can't write to the database itself
+            signatureVerificationDao.writePendingVerifications();
+        }
+
+        try {
+            return savePreparedKeyRingInternal(preparedKeyRing, skipSave);
+        } finally {
+            // verifications are only pruned for keyrings that were saved, but the others must not pile up
+            signatureVerificationDao.clearUsedVerifications(preparedKeyRing.masterKeyId);
+        }
+    }
+
+    private SaveKeyringResult savePreparedKeyRingInternal(PreparedKeyRing preparedKeyRing, boolean skipSave) {
+        if (preparedKeyRing.finishedResult != null) {
+            if (!skipSave && preparedKeyRing.rawDigest != null) {
+                updateRawDigest(preparedKeyRing.masterKeyId, preparedKeyRing.rawDigest);
             }
+            return preparedKeyRing.finishedResult;
+        }
 
-            if ((publicResult & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+        mLog = preparedKeyRing.log;
+        mIndent += 1;
+        try {
+            if (skipSave) {
+                return preparedKeyRing.isSecret ? savePreparedSecretKeyRing(preparedKeyRing, true)
+                        : savePreparedPublicKeyRing(preparedKeyRing, true);
             }
 
-            int result;
+            databaseBatchInteractor.beginKeyRing();
+            SaveKeyringResult result = preparedKeyRing.isSecret ? savePreparedSecretKeyRing(preparedKeyRing, false)
+                    : savePreparedPublicKeyRing(preparedKeyRing, false);
+            databaseBatchInteractor.finishKeyRing(preparedKeyRing.masterKeyId);
+            return result;
+        } finally {
+            mIndent -= 1;
+        }
+    }
+
+    private void updateRawDigest(long masterKeyId, byte[] rawDigest) {
+        UpdateRawDigest updateStatement = new UpdateRawDigest(databaseBatchInteractor.getDb());
+        updateStatement.bind(rawDigest, masterKeyId);
+        updateStatement.executeUpdateDelete();
+    }
+
+    private SaveKeyringResult savePreparedPublicKeyRing(PreparedKeyRing preparedKeyRing, boolean skipSave) {
+        CanonicalizedPublicKeyRing canPublicRing = preparedKeyRing.canPublicRing;
+        CanonicalizedSecretKeyRing canSecretRing = preparedKeyRing.canSecretRing;
+
+        int result;
+        if (skipSave) {
+            // skip save method, set fixed result
+            result = SaveKeyringResult.SAVED_PUBLIC
+                    | (preparedKeyRing.alreadyExists ? SaveKeyringResult.UPDATED : 0);
+        } else {
+            result = saveCanonicalizedPublicKeyRing(canPublicRing, canSecretRing != null, preparedKeyRing.rawDigest);
+        }
+
+        // Save the saved keyring (if any)
+        if (canSecretRing != null) {
+            int secretResult;
             if (skipSave) {
                 // skip save method, set fixed result
-                result = SaveKeyringResult.SAVED_SECRET
-                        | (alreadyExists ? SaveKeyringResult.UPDATED : 0);
+                secretResult = SaveKeyringResult.SAVED_SECRET;
             } else {
-                result = saveCanonicalizedSecretKeyRing(canSecretRing);
+                secretResult = saveCanonicalizedSecretKeyRing(canSecretRing, preparedKeyRing.secretKeyTypes);
             }
 
-            return new SaveKeyringResult(result, mLog, canSecretRing);
-        } catch (IOException e) {
-            log(LogType.MSG_IS_ERROR_IO_EXC);
+            if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
+                result |= SaveKeyringResult.SAVED_SECRET;
+            }
+        }
+
+        return new SaveKeyringResult(result, mLog, canPublicRing);
+    }
+
+    private SaveKeyringResult savePreparedSecretKeyRing(PreparedKeyRing preparedKeyRing, boolean skipSave) {
+        CanonicalizedSecretKeyRing canSecretRing = preparedKeyRing.canSecretRing;
+
+        int publicResult;
+        if (skipSave) {
+            // skip save method, set fixed result
+            publicResult = SaveKeyringResult.SAVED_PUBLIC;
+        } else {
+            publicResult = saveCanonicalizedPublicKeyRing(preparedKeyRing.canPublicRing, true, null);
+        }
+
+        if ((publicResult & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
             return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
-        } finally {
-            mIndent -= 1;
         }
+
+        int result;
+        if (skipSave) {
+            // skip save method, set fixed result
+            result = SaveKeyringResult.SAVED_SECRET
+                    | (preparedKeyRing.alreadyExists ? SaveKeyringResult.UPDATED : 0);
+        } else {
+            result = saveCanonicalizedSecretKeyRing(canSecretRing, preparedKeyRing.secretKeyTypes);
+        }
+
+        return new SaveKeyringResult(result, mLog, canSecretRing);
     }
 
-    public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing) {
-        return saveSecretKeyRing(secretRing, null, false);
+    /**
+     * Begins a batch session, in which the saves of many keyrings are committed together in
+     * transactions that are capped by size and time, and key change notifications are deferred.
+     * Must be ended with {@link #endBatchSession}.
+     */
+    public void beginBatchSession() {
+        databaseBatchInteractor.beginBatchSession(
+                BATCH_SESSION_MAX_KEY_RINGS, BATCH_SESSION_MAX_TRANSACTION_MILLIS);
+    }
+
+    /**
+     * Commits the pending writes of the batch session now. Other threads can't access the
+     * database while a transaction is open, so this should be called before waiting on them.
+     */
+    public void commitBatchSession() {
+        databaseBatchInteractor.commitBatchSession();
+    }
+
+    /**
+     * Ends the batch session. Returns the master key ids of keyrings which were saved during the
+     * session, but rolled back because a later write in the same transaction failed.
+     */
+    public List<Long> endBatchSession(boolean successful) {
+        return databaseBatchInteractor.endBatchSession(successful);
+    }
+
+    /**
+     * Returns a repository that works on the same database, but has its own log. Each thread
+     * preparing keyrings in parallel must use its own instance.
+     */
+    public KeyWritableRepository createWithNewLog() {
+        return new KeyWritableRepository(context, keychainDatabase, mLocalPublicKeyStorage, localSecretKeyStorage,
+                databaseNotifyManager, new OperationLog(), 0, autocryptPeerDao, keySummaryDao,
+                keySearchDao, signatureVerificationDao);
+    }
+
+    /**
+     * A keyring which has been merged and canonicalized, but not yet written to the database.
+     */
+    public static class PreparedKeyRing {
+        final long masterKeyId;
+        final OperationLog log;
+        final SaveKeyringResult finishedResult;
+        final CanonicalizedPublicKeyRing canPublicRing;
+        final CanonicalizedSecretKeyRing canSecretRing;
+        // computed in the prepare stage, null if there is no secret keyring or the save is skipped
+        final HashMap<Long, SecretKeyType> secretKeyTypes;
+        final boolean isSecret;
+        final boolean alreadyExists;
+        // digest of the input encoding of a public keyring, to be stored with the keyring
+        final byte[] rawDigest;
+
+        private PreparedKeyRing(long masterKeyId, OperationLog log, SaveKeyringResult finishedResult,
+                CanonicalizedPublicKeyRing canPublicRing, CanonicalizedSecretKeyRing canSecretRing,
+                HashMap<Long, SecretKeyType> secretKeyTypes, boolean isSecret, boolean alreadyExists,
+                byte[] rawDigest) {
+            this.masterKeyId = masterKeyId;
+            this.log = log;
+            this.finishedResult = finishedResult;
+            this.canPublicRing = canPublicRing;
+            this.canSecretRing = canSecretRing;
+            this.secretKeyTypes = secretKeyTypes;
+            this.isSecret = isSecret;
+            this.alreadyExists = alreadyExists;
+            this.rawDigest = rawDigest;
+        }
+
+        static PreparedKeyRing createFinished(long masterKeyId, int result, OperationLog log,
+                CanonicalizedKeyRing keyRing) {
+            SaveKeyringResult finishedResult = new SaveKeyringResult(result, log, keyRing);
+            return new PreparedKeyRing(masterKeyId, log, finishedResult, null, null, null, false, false, null);
+        }
+
+        /** A public keyring which was identical to the stored one after merging, only its raw digest is saved. */
+        static PreparedKeyRing createIdentical(long masterKeyId, OperationLog log,
+                CanonicalizedPublicKeyRing canPublicRing, byte[] rawDigest) {
+            SaveKeyringResult finishedResult = new SaveKeyringResult(SaveKeyringResult.UPDATED, log, canPublicRing);
+            return new PreparedKeyRing(masterKeyId, log, finishedResult, null, null, null, false, false, rawDigest);
+        }
+
+        static PreparedKeyRing createPublic(long masterKeyId, OperationLog log,
+                CanonicalizedPublicKeyRing canPublicRing, CanonicalizedSecretKeyRing canSecretRing,
+                HashMap<Long, SecretKeyType> secretKeyTypes, boolean alreadyExists, byte[] rawDigest) {
+            return new PreparedKeyRing(masterKeyId, log, null, canPublicRing, canSecretRing, secretKeyTypes, false,
+                    alreadyExists, rawDigest);
+        }
+
+        static PreparedKeyRing createSecret(long masterKeyId, OperationLog log,
+                CanonicalizedPublicKeyRing canPublicRing, CanonicalizedSecretKeyRing canSecretRing,
+                HashMap<Long, SecretKeyType> secretKeyTypes, boolean alreadyExists) {
+            return new PreparedKeyRing(masterKeyId, log, null, canPublicRing, canSecretRing, secretKeyTypes, true,
+                    alreadyExists, null);
+        }
+
+        public long getMasterKeyId() {
+            return masterKeyId;
+        }
+
+        /**
+         * Returns true if there is nothing left to write, e.g. because the keyring was identical
+         * to the one in the database, or because there was an error.
+         */
+        public boolean isFinished() {
+            return finishedResult != null;
+        }
     }
 
     @NonNull
@@ -987,22 +1382,41 @@ public class KeyWritableRepository extends KeyRepository {
             log.add(LogType.MSG_TRUST_COUNT, 1, totalKeys);
         }
 
-        for (long masterKeyId : masterKeyIds) {
-            try {
-                log.add(LogType.MSG_TRUST_KEY, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+        // on initialization, key_signatures must be populated from scratch, which takes a full save
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = isTrustDbInitialized ? getTrustedMasterKeys() : null;
+
+        beginBatchSession();
+        try {
+            for (long masterKeyId : masterKeyIds) {
+                try {
+                    log.add(LogType.MSG_TRUST_KEY, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+
+                    if (trustedKeys != null) {
+                        int updatedCerts = updateTrustedCertsInPlace(masterKeyId, signerMasterKeyIds, trustedKeys);
+                        if (updatedCerts >= 0) {
+                            log.add(LogType.MSG_TRUST_KEY_IN_PLACE, 2, updatedCerts);
+                            progress.setProgress(processedKeys++, totalKeys);
+                            continue;
+                        }
+                        log.add(LogType.MSG_TRUST_KEY_REORDER, 2);
+                    }
 
-                byte[] pubKeyData = loadPublicKeyRingData(masterKeyId);
-                UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(pubKeyData);
+                    byte[] pubKeyData = loadPublicKeyRingData(masterKeyId);
+                    UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(pubKeyData);
 
-                clearLog();
-                SaveKeyringResult result = savePublicKeyRing(uncachedKeyRing, true);
+                    clearLog();
+                    SaveKeyringResult result = savePublicKeyRing(uncachedKeyRing, true);
 
-                log.add(result, 1);
-                progress.setProgress(processedKeys++, totalKeys);
-            } catch (NotFoundException | PgpGeneralException | IOException e) {
-                Timber.e(e, "Error updating trust database");
-                return new UpdateTrustResult(UpdateTrustResult.RESULT_ERROR, log);
+                    log.add(result, 1);
+                    progress.setProgress(processedKeys++, totalKeys);
+                } catch (NotFoundException | PgpGeneralException | IOException e) {
+                    Timber.e(e, "Error updating trust database");
+                    return new UpdateTrustResult(UpdateTrustResult.RESULT_ERROR, log);
+                }
             }
+        } finally {
+            // keys updated before an error are still consistent on their own, so they are kept
+            endBatchSession(true);
         }
 
         preferences.setKeySignaturesTableInitialized();
@@ -1011,6 +1425,269 @@ public class KeyWritableRepository extends KeyRepository {
         return new UpdateTrustResult(UpdateTrustResult.RESULT_OK, log);
     }
 
+    /**
+     * Updates the certs of a keyring which were issued by the given signers, after the set of
+     * trusted keys changed. Certs of signers which are still trusted are only marked as verified
+     * again, certs of signers which are no longer trusted are deleted, and only the certs of
+     * newly trusted signers are verified, against these signers alone. The rest of the keyring
+     * stays as it is. Since the order of user ids depends on whether they have trusted certs,
+     * this is only possible if that order stays the same.
+     *
+     * @return the number of changed cert rows, or -1 if the keyring must be saved again instead
+     */
+    private int updateTrustedCertsInPlace(long masterKeyId, List<Long> signerMasterKeyIds,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys) throws NotFoundException, IOException {
+        List<UserPacket> userPackets = mapAllRows(
+                UserPacket.FACTORY.selectAllByMasterKeyId(masterKeyId), UserPacket.USER_PACKET_MAPPER);
+        List<Certifier> certifiers = mapAllRows(
+                Certification.FACTORY.selectCertifiersByMasterKeyId(masterKeyId), Certification.CERTIFIER_MAPPER);
+
+        // trusted signers which already have cert rows were trusted before, their certs stay valid
+        List<Long> keptSigners = new ArrayList<>();
+        List<Long> untrustedSigners = new ArrayList<>();
+        LongSparseArray<CanonicalizedPublicKey> newlyTrustedKeys = new LongSparseArray<>();
+        for (long signerMasterKeyId : signerMasterKeyIds) {
+            // self certs are never affected by changes in trust
+            if (signerMasterKeyId == masterKeyId) {
+                continue;
+            }
+            CanonicalizedPublicKey trustedKey = trustedKeys.get(signerMasterKeyId);
+            if (trustedKey == null) {
+                untrustedSigners.add(signerMasterKeyId);
+            } else if (hasCertsByCertifier(certifiers, signerMasterKeyId)) {
+                keptSigners.add(signerMasterKeyId);
+            } else {
+                newlyTrustedKeys.put(signerMasterKeyId, trustedKey);
+            }
+        }
+
+        // the stored trusted certs of other keys are still valid, they don't need to be verified again
+        boolean[] hasStoredTrustedCerts = new boolean[userPackets.size()];
+        for (Certifier certifier : certifiers) {
+            if (certifier.rank() >= hasStoredTrustedCerts.length) {
+                return -1;
+            }
+            if (!untrustedSigners.contains(certifier.key_id_certifier())) {
+                hasStoredTrustedCerts[(int) certifier.rank()] = true;
+            }
+        }
+
+        ArrayList<BatchOp> operations = new ArrayList<>();
+        if (newlyTrustedKeys.size() > 0 || !untrustedSigners.isEmpty()) {
+            UncachedPublicKey masterKey = getCanonicalizedPublicKeyRing(masterKeyId).getPublicKey();
+
+            // classify the user packets in keyring order, exactly like saveCanonicalizedPublicKeyRing
+            // does, but only verify the certs of newly trusted signers
+            List<UserPacketItem> items = new ArrayList<>();
+            List<UserPacket> matchedPackets = new ArrayList<>();
+            boolean orderMayChange = false;
+            boolean orderUnknown = false;
+            for (byte[] rawUserId : masterKey.getUnorderedRawUserIds()) {
+                String userId = Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(rawUserId);
+                UserPacket userPacket = findUserPacket(userPackets, null, userId, null);
+                if (userPacket == null) {
+                    return -1;
+                }
+
+                UserPacketItem item = new UserPacketItem();
+                item.isPrimary = userPacket.is_primary();
+                item.hasStoredTrustedCerts = hasStoredTrustedCerts[(int) userPacket.rank()];
+                classifyCerts(item, masterKeyId, masterKey.getSignaturesForRawId(rawUserId), newlyTrustedKeys,
+                        cert -> cert.verifySignature(masterKey, rawUserId));
+                orderMayChange |= hasCertsByChangedSigners(
+                        masterKey.getSignaturesForRawId(rawUserId), untrustedSigners, newlyTrustedKeys);
+                orderUnknown |= !item.hasStoredTrustedCerts && hasUnstoredTrustedCerts(item, masterKeyId,
+                        masterKey.getSignaturesForRawId(rawUserId), trustedKeys, newlyTrustedKeys);
+                items.add(item);
+                matchedPackets.add(userPacket);
+            }
+            for (WrappedUserAttribute userAttribute : masterKey.getUnorderedUserAttributes()) {
+                UserPacket userPacket = findUserPacket(
+                        userPackets, (long) userAttribute.getType(), null, userAttribute.getEncoded());
+                if (userPacket == null) {
+                    return -1;
+                }
+
+                UserPacketItem item = new UserPacketItem();
+                item.type = userAttribute.getType();
+                item.hasStoredTrustedCerts = hasStoredTrustedCerts[(int) userPacket.rank()];
+                classifyCerts(item, masterKeyId, masterKey.getSignaturesForUserAttribute(userAttribute),
+                        newlyTrustedKeys, cert -> cert.verifySignature(masterKey, userAttribute));
+                orderMayChange |= hasCertsByChangedSigners(
+                        masterKey.getSignaturesForUserAttribute(userAttribute), untrustedSigners, newlyTrustedKeys);
+                orderUnknown |= !item.hasStoredTrustedCerts && hasUnstoredTrustedCerts(item, masterKeyId,
+                        masterKey.getSignaturesForUserAttribute(userAttribute), trustedKeys, newlyTrustedKeys);
+                items.add(item);
+                matchedPackets.add(userPacket);
+            }
+            if (items.size() != userPackets.size()) {
+                return -1;
+            }
+
+            if (orderMayChange) {
+                if (orderUnknown) {
+                    return -1;
+                }
+                // the user ids must end up with the ranks they already have
+                List<UserPacketItem> sortedItems = new ArrayList<>(items);
+                Collections.sort(sortedItems);
+                for (int rank = 0; rank < sortedItems.size(); rank++) {
+                    UserPacket userPacket = matchedPackets.get(items.indexOf(sortedItems.get(rank)));
+                    if (userPacket.rank() != rank
+                            || userPacket.is_revoked() != (sortedItems.get(rank).selfRevocation != null)) {
+                        return -1;
+                    }
+                }
+            }
+
+            for (int i = 0; i < items.size(); i++) {
+                UserPacketItem item = items.get(i);
+                // same as in saveCanonicalizedPublicKeyRing, revoked user ids don't keep trusted certs
+                if (item.selfRevocation != null) {
+                    continue;
+                }
+                int rank = (int) matchedPackets.get(i).rank();
+                for (int j = 0; j < item.trustedCerts.size(); j++) {
+                    WrappedSignature sig = item.trustedCerts.valueAt(j);
+                    if (!sig.isRevocation()) {
+                        operations.add(buildCertOperations(masterKeyId, rank, sig, VerificationStatus.VERIFIED_SECRET));
+                    }
+                }
+            }
+        }
+
+        int changedCerts = operations.size();
+        databaseBatchInteractor.beginKeyRing();
+        SupportSQLiteDatabase db = databaseBatchInteractor.getDb();
+        db.beginTransaction();
+        try {
+            DeleteByMasterKeyIdAndCertifier deleteStatement = Certification.createDeleteByCertifierStatement(db);
+            for (long signerMasterKeyId : untrustedSigners) {
+                deleteStatement.bind(masterKeyId, signerMasterKeyId);
+                changedCerts += deleteStatement.executeUpdateDelete();
+            }
+            UpdateVerifiedByMasterKeyIdAndCertifier updateStatement =
+                    Certification.createUpdateVerifiedByCertifierStatement(db);
+            for (long signerMasterKeyId : keptSigners) {
+                updateStatement.bind(VerificationStatus.VERIFIED_SECRET, masterKeyId, signerMasterKeyId);
+                changedCerts += updateStatement.executeUpdateDelete();
+            }
+            databaseBatchInteractor.applyBatch(operations);
+            keySummaryDao.updateKeySummary(masterKeyId);
+            invalidateKeyRing(masterKeyId);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        databaseBatchInteractor.notifyKeyChange(masterKeyId);
+        databaseBatchInteractor.finishKeyRing(masterKeyId);
+
+        return changedCerts;
+    }
+
+    private static boolean hasCertsByCertifier(List<Certifier> certifiers, long certifierMasterKeyId) {
+        for (Certifier certifier : certifiers) {
+            if (certifier.key_id_certifier() == certifierMasterKeyId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasCertsByChangedSigners(Iterator<WrappedSignature> certs, List<Long> untrustedSigners,
+            LongSparseArray<CanonicalizedPublicKey> newlyTrustedKeys) {
+        for (WrappedSignature cert : new IterableIterator<>(certs)) {
+            long certId = cert.getKeyId();
+            if (untrustedSigners.contains(certId) || newlyTrustedKeys.indexOfKey(certId) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the user packet may have trusted certs by keys other than the newly trusted
+     * ones which aren't in the database, i.e. revocations and all certs of revoked user packets.
+     * Whether these count for the order of user ids can only be told by verifying them.
+     */
+    private static boolean hasUnstoredTrustedCerts(UserPacketItem item, long masterKeyId,
+            Iterator<WrappedSignature> certs, LongSparseArray<CanonicalizedPublicKey> trustedKeys,
+            LongSparseArray<CanonicalizedPublicKey> newlyTrustedKeys) {
+        for (WrappedSignature cert : new IterableIterator<>(certs)) {
+            long certId = cert.getKeyId();
+            if (certId == masterKeyId || trustedKeys.indexOfKey(certId) < 0
+                    || newlyTrustedKeys.indexOfKey(certId) >= 0) {
+                continue;
+            }
+            if (item.selfRevocation != null || cert.isRevocation()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static UserPacket findUserPacket(List<UserPacket> userPackets, Long type, String userId,
+            byte[] attributeData) {
+        for (UserPacket userPacket : userPackets) {
+            boolean typeMatches = type == null ? userPacket.type() == null : type.equals(userPacket.type());
+            if (typeMatches && (type == null
+                    ? userId.equals(userPacket.user_id())
+                    : Arrays.equals(attributeData, userPacket.attribute_data()))) {
+                return userPacket;
+            }
+        }
+        return null;
+    }
+
+    private interface CertVerifier {
+        boolean verify(WrappedSignature cert) throws PgpGeneralException;
+    }
+
+    /**
+     * Fills in the self certificates and trusted certificates of a user packet item, following
+     * the same rules as saveCanonicalizedPublicKeyRing, but without logging.
+     */
+    private static void classifyCerts(UserPacketItem item, long masterKeyId, Iterator<WrappedSignature> certs,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys, CertVerifier verifier) {
+        for (WrappedSignature cert : new IterableIterator<>(certs)) {
+            long certId = cert.getKeyId();
+            if (certId == masterKeyId) {
+                if (!cert.isRevocation()) {
+                    item.selfCert = cert;
+                } else {
+                    item.selfRevocation = cert;
+                }
+                continue;
+            }
+
+            CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+            if (trustedKey == null) {
+                continue;
+            }
+
+            try {
+                cert.init(trustedKey);
+                if (!verifier.verify(cert)) {
+                    continue;
+                }
+
+                WrappedSignature prev = item.trustedCerts.get(certId);
+                if (prev != null) {
+                    if (prev.getCreationTime().after(cert.getCreationTime())) {
+                        continue;
+                    }
+                    if (!prev.isRevocation() && !prev.isRevokable()) {
+                        continue;
+                    }
+                }
+                item.trustedCerts.put(certId, cert);
+            } catch (PgpGeneralException e) {
+                Timber.e(e, "Error verifying certificate");
+            }
+        }
+    }
+
     private BatchOp buildCertOperations(long masterKeyId, int rank, WrappedSignature cert, VerificationStatus verificationStatus) {
         try {
             Certification certification = Certification.create(masterKeyId, rank, cert.getKeyId(),
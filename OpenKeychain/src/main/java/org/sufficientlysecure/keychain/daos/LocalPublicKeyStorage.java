@@ -21,64 +21,96 @@ package org.sufficientlysecure.keychain.daos;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import android.content.Context;
 
 import okhttp3.internal.Util;
+import timber.log.Timber;
 
 
+/**
+ * Storage for public keyrings which are too large to be kept in the database. Keyrings are kept
+ * in a {@link SegmentBlobStore}, which is shared by all instances for the same directory.
+ * <p>
+ * Earlier versions stored one file per keyring, these are moved into the blob store when it is
+ * first opened.
+ */
 class LocalPublicKeyStorage {
-    private static final String FORMAT_STR_PUBLIC_KEY = "0x%016x.pub";
-    private static final String PUBLIC_KEYS_DIR_NAME = "public_keys";
+    private static final Pattern PATTERN_LEGACY_PUBLIC_KEY = Pattern.compile("0x([0-9a-f]{16})\\.pub");
+    private static final String LEGACY_PUBLIC_KEYS_DIR_NAME = "public_keys";
+    private static final String PUBLIC_KEY_SEGMENTS_DIR_NAME = "public_key_segments";
+
+    private static File openedSegmentsDir;
+    private static SegmentBlobStore openedBlobStore;
 
 
-    private final File localPublicKeysDir;
+    private final File legacyPublicKeysDir;
+    private final File publicKeySegmentsDir;
 
 
     public static LocalPublicKeyStorage getInstance(Context context) {
-        File localPublicKeysDir = new File(context.getFilesDir(), PUBLIC_KEYS_DIR_NAME);
-        return new LocalPublicKeyStorage(localPublicKeysDir);
+        File legacyPublicKeysDir = new File(context.getFilesDir(), LEGACY_PUBLIC_KEYS_DIR_NAME);
+        File publicKeySegmentsDir = new File(context.getFilesDir(), PUBLIC_KEY_SEGMENTS_DIR_NAME);
+        return new LocalPublicKeyStorage(legacyPublicKeysDir, publicKeySegmentsDir);
     }
 
-    private LocalPublicKeyStorage(File localPublicKeysDir) {
-        this.localPublicKeysDir = localPublicKeysDir;
+    private LocalPublicKeyStorage(File legacyPublicKeysDir, File publicKeySegmentsDir) {
+        this.legacyPublicKeysDir = legacyPublicKeysDir;
+        this.publicKeySegmentsDir = publicKeySegmentsDir;
     }
 
-    private File getPublicKeyFile(long masterKeyId) throws IOException {
-        if (!localPublicKeysDir.exists()) {
-            localPublicKeysDir.mkdir();
+    private SegmentBlobStore getBlobStore() throws IOException {
+        synchronized (LocalPublicKeyStorage.class) {
+            if (openedBlobStore == null || !publicKeySegmentsDir.equals(openedSegmentsDir)) {
+                SegmentBlobStore blobStore = SegmentBlobStore.open(publicKeySegmentsDir);
+                migrateLegacyPublicKeys(blobStore);
+                openedBlobStore = blobStore;
+                openedSegmentsDir = publicKeySegmentsDir;
+            }
+            return openedBlobStore;
         }
-        if (!localPublicKeysDir.isDirectory()) {
-            throw new IOException("Failed creating public key directory!");
+    }
+
+    private void migrateLegacyPublicKeys(SegmentBlobStore blobStore) throws IOException {
+        File[] legacyFiles = legacyPublicKeysDir.listFiles();
+        if (legacyFiles == null) {
+            return;
         }
 
-        String keyFilename = String.format(FORMAT_STR_PUBLIC_KEY, masterKeyId);
-        return new File(localPublicKeysDir, keyFilename);
+        for (File legacyFile : legacyFiles) {
+            Matcher matcher = PATTERN_LEGACY_PUBLIC_KEY.matcher(legacyFile.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+
+            long masterKeyId = new BigInteger(matcher.group(1), 16).longValue();
+            // if the file is still there after a successful move, the blob store has the newer data
+            if (!blobStore.contains(masterKeyId)) {
+                FileInputStream fileInputStream = new FileInputStream(legacyFile);
+                try {
+                    blobStore.put(masterKeyId, readIntoByteArray(fileInputStream));
+                } finally {
+                    Util.closeQuietly(fileInputStream);
+                }
+            }
+            if (!legacyFile.delete()) {
+                Timber.e("Failed to delete migrated public key file %s", legacyFile.getName());
+            }
+        }
+        // noinspection ResultOfMethodCallIgnored - only succeeds if empty, which is what we want
+        legacyPublicKeysDir.delete();
     }
 
     void writePublicKey(long masterKeyId, byte[] encoded) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
-
-        FileOutputStream fileOutputStream = new FileOutputStream(publicKeyFile);
-        try {
-            fileOutputStream.write(encoded);
-        } finally {
-            Util.closeQuietly(fileOutputStream);
-        }
+        getBlobStore().put(masterKeyId, encoded);
     }
 
     byte[] readPublicKey(long masterKeyId) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
-
-        try {
-            FileInputStream fileInputStream = new FileInputStream(publicKeyFile);
-            return readIntoByteArray(fileInputStream);
-        } catch (FileNotFoundException e) {
-            return null;
-        }
+        return getBlobStore().get(masterKeyId);
     }
 
     private static byte[] readIntoByteArray(FileInputStream fileInputStream) throws IOException {
@@ -94,12 +126,6 @@ class LocalPublicKeyStorage {
     }
 
     void deletePublicKey(long masterKeyId) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
-        if (publicKeyFile.exists()) {
-            boolean deleteSuccess = publicKeyFile.delete();
-            if (!deleteSuccess) {
-                throw new IOException("File exists, but could not be deleted!");
-            }
-        }
+        getBlobStore().delete(masterKeyId);
     }
 }
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.daos;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import timber.log.Timber;
+
+
+/**
+ * An append-only store for blobs keyed by a long id.
+ * <p>
+ * Blobs are appended as records to segment files, which are memory-mapped for reading. Each
+ * record consists of a header (magic, id, length, crc32) followed by the data, a negative length
+ * marks a deletion. The offset index is kept in memory and rebuilt from the record headers when
+ * the store is opened, so there is no separate index file that could get out of sync. A torn
+ * record at the end of a segment, e.g. after a crash during a write, is cut off on open.
+ * <p>
+ * Overwritten and deleted records stay in their segment until the store is compacted, which
+ * happens in the background once there is more garbage than live data.
+ * <p>
+ * The store may be opened by several processes at once. Every access holds an exclusive lock on a
+ * lock file in the directory, and first catches up with records that other processes appended or
+ * segments they replaced. File locks are held per process, so there must only be a single instance
+ * per directory in each process.
+ */
+class SegmentBlobStore {
+    private static final String FORMAT_STR_SEGMENT = "segment_%08d.dat";
+    private static final Pattern PATTERN_SEGMENT = Pattern.compile("segment_(\\d{8})\\.dat");
+    private static final String LOCK_FILE_NAME = "lock";
+
+    private static final int RECORD_MAGIC = 0x4f4b4231; // "OKB1"
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+    private static final int LENGTH_DELETED = -1;
+
+    private static final long MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final long MIN_GARBAGE_FOR_COMPACTION = 1024 * 1024;
+
+    private static final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor();
+
+    private final File directory;
+    private final FileChannel lockChannel;
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final HashMap<Long, Location> index = new HashMap<>();
+
+    private long liveBytes;
+    private long garbageBytes;
+    private boolean compactionScheduled;
+
+    static SegmentBlobStore open(File directory) throws IOException {
+        if (!directory.exists()) {
+            directory.mkdir();
+        }
+        if (!directory.isDirectory()) {
+            throw new IOException("Failed creating blob store directory!");
+        }
+
+        SegmentBlobStore store = new SegmentBlobStore(directory);
+        synchronized (store) {
+            FileLock lock = store.lockAndRefresh();
+            lock.release();
+        }
+        return store;
+    }
+
+    private SegmentBlobStore(File directory) throws IOException {
+        this.directory = directory;
+        this.lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw").getChannel();
+    }
+
+    synchronized boolean contains(long id) throws IOException {
+        FileLock lock = lockAndRefresh();
+        try {
+            return index.containsKey(id);
+        } finally {
+            lock.release();
+        }
+    }
+
+    synchronized byte[] get(long id) throws IOException {
+        FileLock lock = lockAndRefresh();
+        try {
+            Location location = index.get(id);
+            if (location == null) {
+                return null;
+            }
+
+            byte[] data = readData(location);
+            if (crc32(data) != location.crc) {
+                throw new IOException("Checksum mismatch in blob store!");
+            }
+            return data;
+        } finally {
+            lock.release();
+        }
+    }
+
+    synchronized void put(long id, byte[] data) throws IOException {
+        FileLock lock = lockAndRefresh();
+        try {
+            Location location = appendRecord(id, data);
+            Location previous = index.put(id, location);
+            liveBytes += HEADER_SIZE + data.length;
+            if (previous != null) {
+                liveBytes -= HEADER_SIZE + previous.length;
+                garbageBytes += HEADER_SIZE + previous.length;
+            }
+        } finally {
+            lock.release();
+        }
+        maybeScheduleCompaction();
+    }
+
+    synchronized void delete(long id) throws IOException {
+        FileLock lock = lockAndRefresh();
+        try {
+            Location previous = index.get(id);
+            if (previous == null) {
+                return;
+            }
+            appendRecord(id, null);
+            index.remove(id);
+            liveBytes -= HEADER_SIZE + previous.length;
+            garbageBytes += HEADER_SIZE + previous.length + HEADER_SIZE;
+        } finally {
+            lock.release();
+        }
+        maybeScheduleCompaction();
+    }
+
+    /**
+     * Copies all live records into a fresh segment and deletes all older segments.
+     */
+    synchronized void compact() throws IOException {
+        FileLock lock = lockAndRefresh();
+        try {
+            if (garbageBytes == 0) {
+                return;
+            }
+
+            List<Segment> oldSegments = new ArrayList<>(segments);
+            addSegment();
+
+            for (Entry<Long, Location> entry : index.entrySet()) {
+                byte[] data = readData(entry.getValue());
+                entry.setValue(appendRecord(entry.getKey(), data));
+            }
+
+            // the copies must be on disk before the only other copy of the data is deleted
+            for (Segment segment : segments) {
+                if (!oldSegments.contains(segment)) {
+                    segment.channel.force(true);
+                }
+            }
+
+            // oldest first, so an interruption can't bring back records deleted in a later segment
+            for (Segment segment : oldSegments) {
+                segments.remove(segment);
+                segment.close();
+                if (!segment.file.delete()) {
+                    Timber.e("Failed to delete compacted segment %s", segment.file.getName());
+                }
+            }
+            garbageBytes = 0;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Takes the lock file, and brings the index up to date with writes of other processes. Must be
+     * called while synchronized on this store, the returned lock must be released afterwards.
+     */
+    private FileLock lockAndRefresh() throws IOException {
+        FileLock lock = lockChannel.lock();
+        try {
+            refresh();
+        } catch (IOException | RuntimeException e) {
+            lock.release();
+            throw e;
+        }
+        return lock;
+    }
+
+    /**
+     * Catches up with other processes. These append to the last segment, add a new segment once it
+     * is full, or replace all segments when compacting. Only the first case can be handled without
+     * reading all segments again.
+     */
+    private void refresh() throws IOException {
+        if (!segments.isEmpty()) {
+            Segment lastSegment = segments.get(segments.size() - 1);
+            if (lastSegment.file.exists() && !getSegmentFile(lastSegment.number + 1).exists()) {
+                long size = lastSegment.channel.size();
+                if (size == lastSegment.size) {
+                    return;
+                }
+                if (size > lastSegment.size) {
+                    long offset = lastSegment.size;
+                    lastSegment.size = size;
+                    loadRecords(lastSegment, offset);
+                    return;
+                }
+            }
+        }
+
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        index.clear();
+        liveBytes = 0;
+        garbageBytes = 0;
+        loadSegments();
+    }
+
+    private static byte[] readData(Location location) throws IOException {
+        byte[] data = new byte[location.length];
+        ByteBuffer view = location.segment.getMappedBuffer(location.dataOffset + location.length).duplicate();
+        view.position((int) location.dataOffset);
+        view.get(data);
+        return data;
+    }
+
+    private void maybeScheduleCompaction() {
+        if (compactionScheduled || garbageBytes < MIN_GARBAGE_FOR_COMPACTION || garbageBytes < liveBytes) {
+            return;
+        }
+        compactionScheduled = true;
+        compactionExecutor.execute(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                Timber.e(e, "Error compacting blob store");
+            } finally {
+                synchronized (SegmentBlobStore.this) {
+                    compactionScheduled = false;
+                }
+            }
+        });
+    }
+
+    private Location appendRecord(long id, byte[] data) throws IOException {
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.size >= MAX_SEGMENT_SIZE) {
+            segment = addSegment();
+        }
+
+        int length = data != null ? data.length : LENGTH_DELETED;
+        int crc = data != null ? crc32(data) : 0;
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + (data != null ? data.length : 0));
+        record.putInt(RECORD_MAGIC);
+        record.putLong(id);
+        record.putInt(length);
+        record.putInt(crc);
+        if (data != null) {
+            record.put(data);
+        }
+        record.flip();
+
+        long offset = segment.size;
+        while (record.hasRemaining()) {
+            segment.channel.write(record, offset + record.position());
+        }
+        segment.size = offset + record.limit();
+
+        return data != null ? new Location(segment, offset + HEADER_SIZE, length, crc) : null;
+    }
+
+    private Segment addSegment() throws IOException {
+        int number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).number + 1;
+        Segment segment = new Segment(number, getSegmentFile(number));
+        segments.add(segment);
+        return segment;
+    }
+
+    private File getSegmentFile(int number) {
+        return new File(directory, String.format(FORMAT_STR_SEGMENT, number));
+    }
+
+    private void loadSegments() throws IOException {
+        ArrayList<Integer> segmentNumbers = new ArrayList<>();
+        String[] fileNames = directory.list();
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                Matcher matcher = PATTERN_SEGMENT.matcher(fileName);
+                if (matcher.matches()) {
+                    segmentNumbers.add(Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+        Collections.sort(segmentNumbers);
+
+        for (int number : segmentNumbers) {
+            Segment segment = new Segment(number, getSegmentFile(number));
+            segments.add(segment);
+            loadRecords(segment, 0);
+        }
+    }
+
+    private void loadRecords(Segment segment, long startOffset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long offset = startOffset;
+        while (offset + HEADER_SIZE <= segment.size) {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (segment.channel.read(header, offset + header.position()) < 0) {
+                    break;
+                }
+            }
+            header.flip();
+
+            int magic = header.getInt();
+            long id = header.getLong();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (magic != RECORD_MAGIC || length < LENGTH_DELETED
+                    || offset + HEADER_SIZE + Math.max(length, 0) > segment.size) {
+                break;
+            }
+
+            Location previous;
+            if (length == LENGTH_DELETED) {
+                previous = index.remove(id);
+                garbageBytes += HEADER_SIZE;
+            } else {
+                previous = index.put(id, new Location(segment, offset + HEADER_SIZE, length, crc));
+                liveBytes += HEADER_SIZE + length;
+            }
+            if (previous != null) {
+                liveBytes -= HEADER_SIZE + previous.length;
+                garbageBytes += HEADER_SIZE + previous.length;
+            }
+
+            offset += HEADER_SIZE + Math.max(length, 0);
+        }
+
+        if (offset < segment.size) {
+            Timber.e("Truncating torn record at end of %s", segment.file.getName());
+            segment.channel.truncate(offset);
+            segment.size = offset;
+        }
+    }
+
+    private static int crc32(byte[] data) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data);
+        return (int) crc32.getValue();
+    }
+
+    private static class Location {
+        final Segment segment;
+        final long dataOffset;
+        final int length;
+        final int crc;
+
+        Location(Segment segment, long dataOffset, int length, int crc) {
+            this.segment = segment;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    private static class Segment {
+        final int number;
+        final File file;
+        final FileChannel channel;
+        long size;
+        MappedByteBuffer mappedBuffer;
+
+        Segment(int number, File file) throws IOException {
+            this.number = number;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = channel.size();
+        }
+
+        /**
+         * Returns a mapping of this segment which covers at least the given number of bytes.
+         * Segments are only appended to, so the existing mapping is reused as long as it is large
+         * enough.
+         */
+        MappedByteBuffer getMappedBuffer(long minSize) throws IOException {
+            if (mappedBuffer == null || mappedBuffer.capacity() < minSize) {
+                mappedBuffer = channel.map(MapMode.READ_ONLY, 0, size);
+            }
+            return mappedBuffer;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Timber.e(e, "Error closing segment");
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.daos;
+
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import com.squareup.sqldelight.SqlDelightQuery;
+import org.sufficientlysecure.keychain.KeychainDatabase;
+import org.sufficientlysecure.keychain.SignatureVerificationsModel.DeleteByCacheKey;
+import org.sufficientlysecure.keychain.SignatureVerificationsModel.DeleteByMasterKeyId;
+import org.sufficientlysecure.keychain.SignatureVerificationsModel.InsertVerification;
+import org.sufficientlysecure.keychain.model.SignatureVerification;
+import org.sufficientlysecure.keychain.pgp.SignatureVerificationCache;
+
+
+/**
+ * Persists the results of signature verifications during canonicalization, in the
+ * signature_verifications table.
+ * <p>
+ * Keyrings are canonicalized in the prepare stage of KeyWritableRepository, which may run on several
+ * threads and must not write to the database. New results are therefore only kept in memory, and
+ * written by {@link #writePendingVerifications} from the writer thread.
+ * <p>
+ * Stored results are loaded with a single query for all signatures of a master key, on the first lookup
+ * for it, so canonicalize doesn't query the database once per signature. They are kept in memory until
+ * the keyring is saved or dropped.
+ * <p>
+ * The cache keys looked up or put for each master key are remembered as well. A verdict is only useful
+ * for exactly the same signature, so once a keyring is saved, {@link #pruneVerifications} drops the
+ * rows of signatures that weren't part of it, like superseded self-signatures of a refreshed key.
+ */
+public class SignatureVerificationDao extends AbstractDao implements SignatureVerificationCache {
+    private final ConcurrentHashMap<ByteBuffer, SignatureVerification> pendingVerifications =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Set<ByteBuffer>> usedCacheKeys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Map<ByteBuffer, Boolean>> storedVerifications =
+            new ConcurrentHashMap<>();
+
+    static SignatureVerificationDao create(Context context) {
+        KeychainDatabase database = KeychainDatabase.getInstance(context);
+        DatabaseNotifyManager databaseNotifyManager = DatabaseNotifyManager.create(context);
+
+        return new SignatureVerificationDao(database, databaseNotifyManager);
+    }
+
+    private SignatureVerificationDao(KeychainDatabase database, DatabaseNotifyManager databaseNotifyManager) {
+        super(database, databaseNotifyManager);
+    }
+
+    @Nullable
+    @Override
+    public Boolean getVerificationResult(long masterKeyId, byte[] cacheKey) {
+        markUsed(masterKeyId, cacheKey);
+
+        SignatureVerification pending = pendingVerifications.get(ByteBuffer.wrap(cacheKey));
+        if (pending != null) {
+            return pending.verified();
+        }
+
+        return getStoredVerifications(masterKeyId).get(ByteBuffer.wrap(cacheKey));
+    }
+
+    private Map<ByteBuffer, Boolean> getStoredVerifications(long masterKeyId) {
+        Map<ByteBuffer, Boolean> verifications = storedVerifications.get(masterKeyId);
+        if (verifications != null) {
+            return verifications;
+        }
+
+        SqlDelightQuery query = SignatureVerification.FACTORY.selectByMasterKeyId(masterKeyId);
+        List<SignatureVerification> rows =
+                mapAllRows(query, SignatureVerification.FACTORY.selectByMasterKeyIdMapper()::map);
+        HashMap<ByteBuffer, Boolean> loadedVerifications = new HashMap<>(rows.size());
+        for (SignatureVerification row : rows) {
+            loadedVerifications.put(ByteBuffer.wrap(row.cache_key()), row.verified());
+        }
+
+        // another thread may have loaded them in the meantime, which is just as good
+        verifications = storedVerifications.putIfAbsent(masterKeyId, loadedVerifications);
+        return verifications != null ? verifications : loadedVerifications;
+    }
+
+    @Override
+    public void putVerificationResult(long masterKeyId, byte[] cacheKey, boolean verified) {
+        markUsed(masterKeyId, cacheKey);
+
+        pendingVerifications.put(ByteBuffer.wrap(cacheKey),
+                SignatureVerification.create(cacheKey, masterKeyId, verified));
+    }
+
+    /** Writes all results which were put since the last call. Must only be called from the writer thread. */
+    void writePendingVerifications() {
+        if (pendingVerifications.isEmpty()) {
+            return;
+        }
+
+        SupportSQLiteDatabase db = getWritableDb();
+        db.beginTransaction();
+        try {
+            InsertVerification insertStatement = new InsertVerification(db);
+            Iterator<SignatureVerification> it = pendingVerifications.values().iterator();
+            while (it.hasNext()) {
+                SignatureVerification verification = it.next();
+                insertStatement.bind(verification.cache_key(), verification.master_key_id(), verification.verified());
+                insertStatement.executeInsert();
+                it.remove();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void markUsed(long masterKeyId, byte[] cacheKey) {
+        Set<ByteBuffer> cacheKeys = usedCacheKeys.get(masterKeyId);
+        if (cacheKeys == null) {
+            Set<ByteBuffer> newCacheKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            cacheKeys = usedCacheKeys.putIfAbsent(masterKeyId, newCacheKeys);
+            if (cacheKeys == null) {
+                cacheKeys = newCacheKeys;
+            }
+        }
+        cacheKeys.add(ByteBuffer.wrap(cacheKey));
+    }
+
+    /**
+     * Removes the results for signatures on a key which weren't used since the last call for this key.
+     * Does nothing if the key wasn't canonicalized with this cache since then. Must be called from the
+     * writer thread, inside a transaction, after {@link #writePendingVerifications}.
+     */
+    void pruneVerifications(long masterKeyId) {
+        storedVerifications.remove(masterKeyId);
+        Set<ByteBuffer> cacheKeys = usedCacheKeys.remove(masterKeyId);
+        if (cacheKeys == null) {
+            return;
+        }
+
+        SqlDelightQuery query = SignatureVerification.FACTORY.selectCacheKeysByMasterKeyId(masterKeyId);
+        List<byte[]> storedCacheKeys =
+                mapAllRows(query, SignatureVerification.FACTORY.selectCacheKeysByMasterKeyIdMapper()::map);
+
+        DeleteByCacheKey deleteStatement = new DeleteByCacheKey(getWritableDb());
+        for (byte[] storedCacheKey : storedCacheKeys) {
+            if (!cacheKeys.contains(ByteBuffer.wrap(storedCacheKey))) {
+                deleteStatement.bind(storedCacheKey);
+                deleteStatement.executeUpdateDelete();
+            }
+        }
+    }
+
+    /** Forgets the results loaded and used for a key, for keyrings which were not saved after all. */
+    void clearUsedVerifications(long masterKeyId) {
+        storedVerifications.remove(masterKeyId);
+        usedCacheKeys.remove(masterKeyId);
+    }
+
+    /** Removes all results for signatures on a key. Must be called inside a transaction. */
+    void deleteByMasterKeyId(long masterKeyId) {
+        DeleteByMasterKeyId deleteStatement = new DeleteByMasterKeyId(getWritableDb());
+        deleteStatement.bind(masterKeyId);
+        deleteStatement.executeUpdateDelete();
+        storedVerifications.remove(masterKeyId);
+        usedCacheKeys.remove(masterKeyId);
+
+        Iterator<SignatureVerification> it = pendingVerifications.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().master_key_id() == masterKeyId) {
+                it.remove();
+            }
+        }
+    }
+}
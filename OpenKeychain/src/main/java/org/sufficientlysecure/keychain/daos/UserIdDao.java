@@ -6,6 +6,7 @@ import java.util.Map;
 
 import android.content.Context;
 import android.database.Cursor;
+import androidx.sqlite.db.SimpleSQLiteQuery;
 
 import com.squareup.sqldelight.SqlDelightQuery;
 import org.sufficientlysecure.keychain.KeychainDatabase;
@@ -14,6 +15,11 @@ import org.sufficientlysecure.keychain.model.UserPacket.UidStatus;
 
 
 public class UserIdDao extends AbstractDao {
+    // narrows down candidate emails through the key_search index, which LIKE with a leading wildcard can't use
+    private static final String SELECT_UID_STATUS_BY_EMAIL_LIKE_AND_MATCH = "SELECT * FROM uidStatus WHERE email IN ("
+            + "SELECT email FROM user_packets WHERE email LIKE ?1 AND master_key_id IN ("
+            + "SELECT docid FROM key_search WHERE key_search MATCH ?2))";
+
     public static UserIdDao getInstance(Context context) {
         KeychainDatabase keychainDatabase = KeychainDatabase.getInstance(context);
         DatabaseNotifyManager databaseNotifyManager = DatabaseNotifyManager.create(context);
@@ -26,7 +32,13 @@ public class UserIdDao extends AbstractDao {
     }
 
     public UidStatus getUidStatusByEmailLike(String emailLike) {
-        SqlDelightQuery query = UserPacket.FACTORY.selectUserIdStatusByEmailLike(emailLike);
+        String matchQuery = KeySearchDao.buildMatchQueryFromLikePattern(emailLike);
+        if (matchQuery == null) {
+            SqlDelightQuery query = UserPacket.FACTORY.selectUserIdStatusByEmailLike(emailLike);
+            return mapSingleRow(query, UserPacket.UID_STATUS_MAPPER);
+        }
+        SimpleSQLiteQuery query = new SimpleSQLiteQuery(SELECT_UID_STATUS_BY_EMAIL_LIKE_AND_MATCH,
+                new Object[] { emailLike, matchQuery });
         return mapSingleRow(query, UserPacket.UID_STATUS_MAPPER);
     }
 
@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.keyimport;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import org.sufficientlysecure.keychain.util.Preferences;
@@ -25,22 +26,51 @@ import timber.log.Timber;
 
 import java.net.Proxy;
 import java.util.ArrayList;
-import java.util.Vector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Search two or more types of server for online keys.
+ * <p>
+ * Sources are searched concurrently on a shared, bounded executor. Each source gets its own
+ * deadline, counted from when its search actually starts, and results are merged as soon as a
+ * source answers.
  */
 public class CloudSearch {
 
     private final static long SECONDS = 1000;
+    private final static int MAX_CONCURRENT_SEARCHES = 6;
+
+    private static final ThreadPoolExecutor searchExecutor = new ThreadPoolExecutor(
+            MAX_CONCURRENT_SEARCHES, MAX_CONCURRENT_SEARCHES, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        searchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public interface SearchListener {
+        /**
+         * Called on the searching thread whenever a source answered while others are still
+         * pending, with a snapshot of all results merged so far.
+         */
+        void onPartialResults(ArrayList<ImportKeysListEntry> results);
+    }
 
     public static ArrayList<ImportKeysListEntry> search(
             @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull final ParcelableProxy proxy)
             throws KeyserverClient.CloudSearchFailureException {
+        return search(query, cloudPrefs, proxy, null);
+    }
+
+    public static ArrayList<ImportKeysListEntry> search(
+            @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull final ParcelableProxy proxy,
+            @Nullable SearchListener listener) throws KeyserverClient.CloudSearchFailureException {
 
         final ArrayList<KeyserverClient> servers = new ArrayList<>();
-        // it's a Vector for sync, multiple threads might report problems
-        final Vector<KeyserverClient.CloudSearchFailureException> problems = new Vector<>();
+        final ArrayList<KeyserverClient.CloudSearchFailureException> problems = new ArrayList<>();
 
         if (cloudPrefs.isKeyserverEnabled()) {
             servers.add(HkpKeyserverClient.fromHkpKeyserverAddress(cloudPrefs.getKeyserver()));
@@ -52,43 +82,65 @@ public class CloudSearch {
             servers.add(WebKeyDirectoryClient.getInstance());
         }
 
-        int numberOfServers = servers.size();
-        final ImportKeysList results = new ImportKeysList(numberOfServers);
-
-        if (numberOfServers > 0) {
-            ArrayList<Thread> searchThreads = new ArrayList<>();
-            for (final KeyserverClient keyserverClient : servers) {
-                Runnable r = new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            results.addAll(keyserverClient.search(query, proxy));
-                        } catch (KeyserverClient.CloudSearchFailureException e) {
-                            problems.add(e);
+        final ImportKeysList results = new ImportKeysList();
+
+        if (!servers.isEmpty()) {
+            // wait 10 seconds for each source. If using proxy, wait 30 seconds.
+            long sourceTimeout = (proxy.getProxy() == Proxy.NO_PROXY ? 10 : 30) * SECONDS;
+            // sources that are stuck in the queue behind other searches don't get to wait forever
+            long overallDeadline = System.currentTimeMillis() + 2 * sourceTimeout;
+
+            LinkedBlockingQueue<SourceSearch> finishedSearches = new LinkedBlockingQueue<>();
+            ArrayList<SourceSearch> pendingSearches = new ArrayList<>();
+            for (KeyserverClient keyserverClient : servers) {
+                SourceSearch sourceSearch = new SourceSearch(keyserverClient, query, proxy, finishedSearches);
+                sourceSearch.future = searchExecutor.submit(sourceSearch);
+                pendingSearches.add(sourceSearch);
+            }
+
+            int timedOutSearches = 0;
+            try {
+                while (!pendingSearches.isEmpty()) {
+                    long now = System.currentTimeMillis();
+                    long nextDeadline = overallDeadline;
+                    for (Iterator<SourceSearch> it = pendingSearches.iterator(); it.hasNext(); ) {
+                        SourceSearch sourceSearch = it.next();
+                        long deadline = sourceSearch.getDeadline(sourceTimeout, overallDeadline);
+                        if (deadline <= now) {
+                            // kill searches that haven't returned in time
+                            sourceSearch.future.cancel(true);
+                            it.remove();
+                            timedOutSearches += 1;
+                        } else {
+                            nextDeadline = Math.min(nextDeadline, deadline);
                         }
-                        results.finishedAdding(); // notifies if all searchers done
                     }
-                };
-                Thread searchThread = new Thread(r);
-                searchThreads.add(searchThread);
-                searchThread.start();
-            }
+                    if (pendingSearches.isEmpty()) {
+                        break;
+                    }
+
+                    SourceSearch finishedSearch = finishedSearches.poll(nextDeadline - now, TimeUnit.MILLISECONDS);
+                    if (finishedSearch == null || !pendingSearches.remove(finishedSearch)) {
+                        continue;
+                    }
 
-            // wait for either all the searches to come back, or 10 seconds. If using proxy, wait 30 seconds.
-            synchronized (results) {
-                try {
-                    results.wait((proxy.getProxy() == Proxy.NO_PROXY ? 30 : 10) * SECONDS);
-                    for (Thread thread : searchThreads) {
-                        // kill threads that haven't returned yet
-                        thread.interrupt();
+                    if (finishedSearch.problem != null) {
+                        problems.add(finishedSearch.problem);
+                    } else if (results.addAll(finishedSearch.result) && listener != null
+                            && !pendingSearches.isEmpty()) {
+                        listener.onPartialResults(new ArrayList<>(results));
                     }
-                } catch (InterruptedException ignored) {
                 }
+            } catch (InterruptedException e) {
+                for (SourceSearch sourceSearch : pendingSearches) {
+                    sourceSearch.future.cancel(true);
+                }
+                timedOutSearches += pendingSearches.size();
             }
 
-            if (results.outstandingSuppliers() > 0) {
+            if (timedOutSearches > 0) {
                 String message = "Launched " + servers.size() + " cloud searchers, but " +
-                        results.outstandingSuppliers() + "failed to complete.";
+                        timedOutSearches + " failed to complete.";
                 problems.add(new KeyserverClient.QueryFailedException(message));
             }
         } else {
@@ -108,4 +160,41 @@ public class CloudSearch {
 
         return results;
     }
+
+    private static class SourceSearch implements Runnable {
+        private final KeyserverClient keyserverClient;
+        private final String query;
+        private final ParcelableProxy proxy;
+        private final LinkedBlockingQueue<SourceSearch> finishedSearches;
+
+        Future<?> future;
+        private volatile long startTime;
+        List<ImportKeysListEntry> result;
+        KeyserverClient.CloudSearchFailureException problem;
+
+        SourceSearch(KeyserverClient keyserverClient, String query, ParcelableProxy proxy,
+                LinkedBlockingQueue<SourceSearch> finishedSearches) {
+            this.keyserverClient = keyserverClient;
+            this.query = query;
+            this.proxy = proxy;
+            this.finishedSearches = finishedSearches;
+        }
+
+        long getDeadline(long sourceTimeout, long overallDeadline) {
+            long startTime = this.startTime;
+            return startTime == 0 ? overallDeadline : Math.min(startTime + sourceTimeout, overallDeadline);
+        }
+
+        @Override
+        public void run() {
+            startTime = System.currentTimeMillis();
+            try {
+                result = keyserverClient.search(query, proxy);
+            } catch (KeyserverClient.CloudSearchFailureException e) {
+                problem = e;
+            }
+            // the queue hands the fields over to the waiting thread
+            finishedSearches.add(this);
+        }
+    }
 }
@@ -19,17 +19,17 @@ package org.sufficientlysecure.keychain.keyimport;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+
+import org.bouncycastle.util.encoders.Hex;
 
 /**
- * Just an ArrayList, only with a synchronized dupe-merging add/addAll, and a sign-off method
+ * Just an ArrayList, only with a synchronized dupe-merging add/addAll. Entries are indexed by
+ * fingerprint, so merging stays cheap while results come in incrementally.
  */
 public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
 
-    private int mSupplierCount;
-
-    public ImportKeysList(int supplierCount) {
-        mSupplierCount = supplierCount;
-    }
+    private final HashMap<String, ImportKeysListEntry> mEntriesByFingerprint = new HashMap<>();
 
     @Override
     public boolean add(ImportKeysListEntry toAdd) {
@@ -49,14 +49,27 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
     // NOTE: side-effects
     // NOTE: synchronized
     private synchronized boolean addOrMerge(ImportKeysListEntry toAdd) {
-        for (ImportKeysListEntry existing : this) {
-            if (toAdd.hasSameKeyAs(existing)) {
-                return mergeDupes(toAdd, existing);
-            }
+        byte[] fingerprint = toAdd.getFingerprint();
+        if (fingerprint == null) {
+            // entries without fingerprint are never considered dupes, see hasSameKeyAs
+            return super.add(toAdd);
         }
+
+        String fingerprintHex = Hex.toHexString(fingerprint);
+        ImportKeysListEntry existing = mEntriesByFingerprint.get(fingerprintHex);
+        if (existing != null) {
+            return mergeDupes(toAdd, existing);
+        }
+        mEntriesByFingerprint.put(fingerprintHex, toAdd);
         return super.add(toAdd);
     }
 
+    @Override
+    public synchronized void clear() {
+        mEntriesByFingerprint.clear();
+        super.clear();
+    }
+
     // being a little anal about the ArrayList#addAll contract here
     private boolean mergeDupes(ImportKeysListEntry incoming, ImportKeysListEntry existing) {
         boolean modified = false;
@@ -90,16 +103,4 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
 
         return modified;
     }
-
-    // NOTE: synchronized
-    public synchronized void finishedAdding() {
-        mSupplierCount--;
-        if (mSupplierCount == 0) {
-            this.notify();
-        }
-    }
-
-    public int outstandingSuppliers() {
-        return mSupplierCount;
-    }
 }
@@ -110,7 +110,10 @@ public class WebKeyDirectoryClient implements KeyserverClient {
 
             if (response.isSuccessful()) {
                 return response.body().bytes();
-            } else if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+            }
+            // release the connection, so it can be reused for the next request
+            response.close();
+            if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
                 return null;
             } else {
                 throw new QueryFailedException("Error while fetching key from Web Key Directory. " +
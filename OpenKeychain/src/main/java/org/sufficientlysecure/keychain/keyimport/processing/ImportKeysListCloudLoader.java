@@ -18,6 +18,8 @@
 package org.sufficientlysecure.keychain.keyimport.processing;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import androidx.annotation.Nullable;
 import androidx.loader.content.AsyncTaskLoader;
 import org.sufficientlysecure.keychain.keyimport.CloudSearch;
@@ -46,6 +48,8 @@ public class ImportKeysListCloudLoader
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
     /**
      * Searches a keyserver as specified in cloudPrefs, using an explicit proxy if passed
      *
@@ -79,17 +83,42 @@ public class ImportKeysListCloudLoader
             queryServer(false);
         }
 
-        // Now we have all the data needed to build the parcelable key ring for this key
-        for (ImportKeysListEntry e : mEntryList) {
-            if (e.getParcelableKeyRing() == null) {
-                e.setParcelableKeyRing(ParcelableKeyRing.createFromReference(e.getFingerprint(), e.getKeyIdHex(),
-                        e.getFbUsername()));
-            }
-        }
+        setParcelableKeyRings(mEntryList);
 
         return mEntryListWrapper;
     }
 
+    private static void setParcelableKeyRings(ArrayList<ImportKeysListEntry> entryList) {
+        // Now we have all the data needed to build the parcelable key ring for this key. Cloud
+        // results only ever carry a reference, which is rebuilt here in case a source that
+        // answered later added to the entry
+        for (ImportKeysListEntry e : entryList) {
+            e.setParcelableKeyRing(ParcelableKeyRing.createFromReference(e.getFingerprint(), e.getKeyIdHex(),
+                    e.getFbUsername()));
+        }
+    }
+
+    /**
+     * Delivers results of the sources that answered so far, while the search is still running.
+     * The final result is delivered by the loader as usual, after this one since both are posted
+     * to the main thread.
+     */
+    private void deliverPartialResult(ArrayList<ImportKeysListEntry> partialEntryList) {
+        setParcelableKeyRings(partialEntryList);
+        GetKeyResult getKeyResult = new GetKeyResult(GetKeyResult.RESULT_OK, null);
+        final AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> partialResult =
+                new AsyncTaskResultWrapper<>(partialEntryList, getKeyResult);
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStarted() && !isAbandoned()) {
+                    deliverResult(partialResult);
+                }
+            }
+        });
+    }
+
     @Override
     protected void onReset() {
         super.onReset();
@@ -137,10 +166,18 @@ public class ImportKeysListCloudLoader
         }
 
         try {
+            // fingerprint searches must return a single result, so there's nothing to stream
+            CloudSearch.SearchListener searchListener = enforceFingerprint ? null : new CloudSearch.SearchListener() {
+                @Override
+                public void onPartialResults(ArrayList<ImportKeysListEntry> results) {
+                    deliverPartialResult(results);
+                }
+            };
             ArrayList<ImportKeysListEntry> searchResult = CloudSearch.search(
                     mState.mServerQuery,
                     mState.mCloudPrefs,
-                    proxy
+                    proxy,
+                    searchListener
             );
 
             mEntryList.clear();
@@ -0,0 +1,399 @@
+package org.sufficientlysecure.keychain.livedata;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.lifecycle.LiveData;
+import org.sufficientlysecure.keychain.daos.DatabaseNotifyManager;
+import org.sufficientlysecure.keychain.daos.KeyRepository;
+import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
+import org.sufficientlysecure.keychain.ui.adapter.FlexibleKeyDetailsItem;
+import org.sufficientlysecure.keychain.ui.adapter.FlexibleKeyItem;
+import org.sufficientlysecure.keychain.ui.adapter.FlexibleKeyItemFactory;
+import timber.log.Timber;
+
+
+/**
+ * LiveData for the items of the key list, for all keys as returned by {@link KeyRepository#getAllUnifiedKeyInfo()}.
+ * <p>
+ * Instead of reloading the whole list on every change, this observes the notify uris of single keys and only
+ * reloads the rows of keys that actually changed, merging them into the previously loaded list. Notifications
+ * are coalesced, so that a burst of changes (e.g. during a key sync) results in a few small reloads instead of
+ * one full reload per key. Changes to all keys, or more changes than {@link #MAX_INCREMENTAL_KEYS}, still lead
+ * to a full reload.
+ * <p>
+ * If a search query is set, the list only contains keys found by {@link KeyRepository#searchUnifiedKeyInfo},
+ * in the same order. Search results are always reloaded as a whole, which is cheap through the search index.
+ * <p>
+ * Keys are mapped to list items on the worker thread as well. Items of unchanged keys are reused, and if
+ * only rows changed in place, {@link KeyListItems#getItemsChangedSince} returns just those, so the list
+ * doesn't have to diff or rebind all items.
+ */
+public class KeyListLiveData extends LiveData<KeyListLiveData.KeyListItems> {
+    private static final long RELOAD_DELAY_MS = 150;
+    public static final int MAX_INCREMENTAL_KEYS = 100;
+
+    /** Same order as selectAllUnifiedKeyInfo: has_any_secret_int DESC, IFNULL(name, email) COLLATE NOCASE, creation DESC */
+    private static final Comparator<UnifiedKeyInfo> KEY_LIST_ORDER = (lhs, rhs) -> {
+        int result = Boolean.compare(rhs.has_any_secret(), lhs.has_any_secret());
+        if (result != 0) {
+            return result;
+        }
+        result = compareNoCase(sortName(lhs), sortName(rhs));
+        if (result != 0) {
+            return result;
+        }
+        return Long.compare(rhs.creation(), lhs.creation());
+    };
+
+    // reloads must be applied in order, so there is only a single worker thread
+    private static final ThreadPoolExecutor reloadExecutor =
+            new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    static {
+        reloadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final ContentResolver contentResolver;
+    private final KeyRepository keyRepository;
+    // only used on the worker thread
+    private final FlexibleKeyItemFactory flexibleKeyItemFactory;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ContentObserver observer = new KeyListContentObserver(handler);
+
+    // all fields below are only accessed on the main thread
+    private final HashSet<Long> pendingMasterKeyIds = new HashSet<>();
+    private boolean pendingFullReload = true;
+    @Nullable
+    private String searchQuery;
+    private boolean isObserving;
+    private boolean isReloadScheduled;
+    private boolean isReloadRunning;
+
+    private final Runnable reloadRunnable = this::startReload;
+
+    public KeyListLiveData(Context context) {
+        contentResolver = context.getContentResolver();
+        keyRepository = KeyRepository.create(context);
+        flexibleKeyItemFactory = new FlexibleKeyItemFactory(context.getResources());
+    }
+
+    @Override
+    protected void onActive() {
+        // keep observing while inactive, so we know which keys changed in the meantime
+        if (!isObserving) {
+            contentResolver.registerContentObserver(DatabaseNotifyManager.getNotifyUriAllKeys(), true, observer);
+            isObserving = true;
+        }
+        if (pendingFullReload || !pendingMasterKeyIds.isEmpty()) {
+            scheduleReload(0);
+        }
+    }
+
+    /** Stops observing changes. Must be called once this LiveData is no longer used, e.g. in ViewModel.onCleared(). */
+    @MainThread
+    public void stopObserving() {
+        if (isObserving) {
+            contentResolver.unregisterContentObserver(observer);
+            isObserving = false;
+        }
+        handler.removeCallbacks(reloadRunnable);
+        isReloadScheduled = false;
+    }
+
+    /** Sets a search query to filter the list by, or null to show all keys. */
+    @MainThread
+    public void setSearchQuery(@Nullable String searchQuery) {
+        if (searchQuery != null && searchQuery.trim().isEmpty()) {
+            searchQuery = null;
+        }
+        if (searchQuery == null ? this.searchQuery == null : searchQuery.equals(this.searchQuery)) {
+            return;
+        }
+        this.searchQuery = searchQuery;
+        pendingFullReload = true;
+        if (hasActiveObservers()) {
+            scheduleReload(RELOAD_DELAY_MS);
+        }
+    }
+
+    @Nullable
+    public String getSearchQuery() {
+        return searchQuery;
+    }
+
+    @MainThread
+    private void onKeysChanged(@Nullable Uri uri) {
+        Long masterKeyId = getMasterKeyIdFromUri(uri);
+        if (masterKeyId == null) {
+            pendingFullReload = true;
+        } else {
+            pendingMasterKeyIds.add(masterKeyId);
+        }
+        if (hasActiveObservers()) {
+            scheduleReload(RELOAD_DELAY_MS);
+        }
+    }
+
+    private void scheduleReload(long delayMs) {
+        if (isReloadScheduled || isReloadRunning) {
+            // either already queued, or will be rescheduled once the running reload is finished
+            return;
+        }
+        isReloadScheduled = true;
+        handler.postDelayed(reloadRunnable, delayMs);
+    }
+
+    @MainThread
+    private void startReload() {
+        isReloadScheduled = false;
+
+        KeyListItems previousItems = getValue();
+        List<UnifiedKeyInfo> previousKeys = previousItems != null ? previousItems.keys : null;
+        String searchQuery = this.searchQuery;
+        boolean fullReload = pendingFullReload || previousKeys == null || searchQuery != null ||
+                pendingMasterKeyIds.size() > MAX_INCREMENTAL_KEYS;
+        HashSet<Long> changedMasterKeyIds = new HashSet<>(pendingMasterKeyIds);
+        pendingFullReload = false;
+        pendingMasterKeyIds.clear();
+
+        isReloadRunning = true;
+        reloadExecutor.execute(() -> {
+            List<UnifiedKeyInfo> keys;
+            if (searchQuery != null) {
+                keys = loadSearchResults(searchQuery);
+            } else if (fullReload) {
+                keys = keyRepository.getAllUnifiedKeyInfo();
+            } else {
+                keys = loadChangedKeys(previousKeys, changedMasterKeyIds);
+            }
+            KeyListItems items = mapToItems(keys, searchQuery != null, previousItems);
+            handler.post(() -> onReloadFinished(items));
+        });
+    }
+
+    @MainThread
+    private void onReloadFinished(KeyListItems items) {
+        isReloadRunning = false;
+        setValue(items);
+
+        if (hasActiveObservers() && (pendingFullReload || !pendingMasterKeyIds.isEmpty())) {
+            scheduleReload(RELOAD_DELAY_MS);
+        }
+    }
+
+    @WorkerThread
+    private List<UnifiedKeyInfo> loadSearchResults(String searchQuery) {
+        // results are ranked, but the list is sectioned, so they are shown in list order
+        List<UnifiedKeyInfo> keys = new ArrayList<>(keyRepository.searchUnifiedKeyInfo(searchQuery));
+        Collections.sort(keys, KEY_LIST_ORDER);
+        return keys;
+    }
+
+    @WorkerThread
+    private List<UnifiedKeyInfo> loadChangedKeys(List<UnifiedKeyInfo> previousKeys, HashSet<Long> changedMasterKeyIds) {
+        List<UnifiedKeyInfo> changedKeys = keyRepository.getUnifiedKeyInfo(toLongArray(changedMasterKeyIds));
+
+        // has_duplicate is derived from other keys with the same user id, so those rows may have changed as well
+        ArrayList<UnifiedKeyInfo> oldAndNewChangedKeys = new ArrayList<>(changedKeys);
+        for (UnifiedKeyInfo previousKey : previousKeys) {
+            if (changedMasterKeyIds.contains(previousKey.master_key_id())) {
+                oldAndNewChangedKeys.add(previousKey);
+            }
+        }
+        HashSet<Long> affectedMasterKeyIds = new HashSet<>();
+        for (UnifiedKeyInfo previousKey : previousKeys) {
+            if (!changedMasterKeyIds.contains(previousKey.master_key_id()) &&
+                    hasSameUserId(previousKey, oldAndNewChangedKeys)) {
+                affectedMasterKeyIds.add(previousKey.master_key_id());
+            }
+        }
+        if (!affectedMasterKeyIds.isEmpty()) {
+            changedMasterKeyIds.addAll(affectedMasterKeyIds);
+            changedKeys = new ArrayList<>(changedKeys);
+            changedKeys.addAll(keyRepository.getUnifiedKeyInfo(toLongArray(affectedMasterKeyIds)));
+        }
+
+        ArrayList<UnifiedKeyInfo> result = new ArrayList<>(previousKeys.size() + changedKeys.size());
+        for (UnifiedKeyInfo previousKey : previousKeys) {
+            if (!changedMasterKeyIds.contains(previousKey.master_key_id())) {
+                result.add(previousKey);
+            }
+        }
+        for (UnifiedKeyInfo changedKey : changedKeys) {
+            int index = Collections.binarySearch(result, changedKey, KEY_LIST_ORDER);
+            result.add(index < 0 ? -index - 1 : index, changedKey);
+        }
+
+        Timber.d("Incremental key list reload: %d rows changed, %d rows total", changedKeys.size(), result.size());
+        return result;
+    }
+
+    @WorkerThread
+    private KeyListItems mapToItems(List<UnifiedKeyInfo> keys, boolean isSearchResult,
+            @Nullable KeyListItems previousItems) {
+        List<FlexibleKeyItem> items = flexibleKeyItemFactory.mapUnifiedKeyInfoToFlexibleKeyItems(
+                keys, isSearchResult, previousItems != null ? previousItems.items : null);
+        List<FlexibleKeyItem> changedItems =
+                previousItems != null ? getItemsChangedInPlace(previousItems.items, items) : null;
+        return new KeyListItems(keys, items, previousItems != null ? previousItems.items : null, changedItems);
+    }
+
+    /**
+     * Returns the items which replace a previous item of the same key at the same position, in the same
+     * section. Returns null if any item was added, removed or moved, or if too many items changed.
+     */
+    @Nullable
+    private static List<FlexibleKeyItem> getItemsChangedInPlace(List<FlexibleKeyItem> previousItems,
+            List<FlexibleKeyItem> items) {
+        if (previousItems.size() != items.size()) {
+            return null;
+        }
+        ArrayList<FlexibleKeyItem> changedItems = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            FlexibleKeyItem previousItem = previousItems.get(i);
+            FlexibleKeyItem item = items.get(i);
+            if (previousItem == item) {
+                continue;
+            }
+            if (!(previousItem instanceof FlexibleKeyDetailsItem) || !(item instanceof FlexibleKeyDetailsItem)) {
+                return null;
+            }
+            // equals compares the master key id
+            boolean isSameRow = previousItem.equals(item) &&
+                    ((FlexibleKeyDetailsItem) previousItem).getHeader() == ((FlexibleKeyDetailsItem) item).getHeader();
+            if (!isSameRow || changedItems.size() >= MAX_INCREMENTAL_KEYS) {
+                return null;
+            }
+            changedItems.add(item);
+        }
+        return changedItems;
+    }
+
+    private static boolean hasSameUserId(UnifiedKeyInfo key, List<UnifiedKeyInfo> candidates) {
+        if (key.name() == null || key.email() == null) {
+            return false;
+        }
+        for (UnifiedKeyInfo candidate : candidates) {
+            if (compareNoCase(key.name(), candidate.name()) == 0 &&
+                    compareNoCase(key.email(), candidate.email()) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    private static Long getMasterKeyIdFromUri(@Nullable Uri uri) {
+        if (uri == null) {
+            return null;
+        }
+        List<String> pathSegments = uri.getPathSegments();
+        List<String> allKeysPathSegments = DatabaseNotifyManager.getNotifyUriAllKeys().getPathSegments();
+        if (pathSegments.size() != allKeysPathSegments.size() + 1) {
+            return null;
+        }
+        try {
+            return Long.parseLong(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long[] toLongArray(HashSet<Long> masterKeyIds) {
+        long[] result = new long[masterKeyIds.size()];
+        int i = 0;
+        for (Long masterKeyId : masterKeyIds) {
+            result[i++] = masterKeyId;
+        }
+        return result;
+    }
+
+    private static String sortName(UnifiedKeyInfo keyInfo) {
+        String name = keyInfo.name();
+        return name != null ? name : keyInfo.email();
+    }
+
+    /** Compares like sqlite's NOCASE collation, which only folds ASCII characters. NULL sorts first. */
+    private static int compareNoCase(@Nullable String lhs, @Nullable String rhs) {
+        if (lhs == null || rhs == null) {
+            return lhs == null ? (rhs == null ? 0 : -1) : 1;
+        }
+        int length = Math.min(lhs.length(), rhs.length());
+        for (int i = 0; i < length; i++) {
+            char l = lhs.charAt(i);
+            char r = rhs.charAt(i);
+            if (l != r) {
+                l = l >= 'A' && l <= 'Z' ? (char) (l + 32) : l;
+                r = r >= 'A' && r <= 'Z' ? (char) (r + 32) : r;
+                if (l != r) {
+                    return l - r;
+                }
+            }
+        }
+        return lhs.length() - rhs.length();
+    }
+
+    public static class KeyListItems {
+        /** The keys in list order. */
+        public final List<UnifiedKeyInfo> keys;
+        /** The list items of all keys, including the dummy item. */
+        public final List<FlexibleKeyItem> items;
+        @Nullable
+        private final List<FlexibleKeyItem> previousItems;
+        @Nullable
+        private final List<FlexibleKeyItem> changedItems;
+
+        KeyListItems(List<UnifiedKeyInfo> keys, List<FlexibleKeyItem> items,
+                @Nullable List<FlexibleKeyItem> previousItems, @Nullable List<FlexibleKeyItem> changedItems) {
+            this.keys = keys;
+            this.items = items;
+            this.previousItems = previousItems;
+            this.changedItems = changedItems;
+        }
+
+        /**
+         * Returns the items which changed in place since displayedItems, or null if the whole list must be
+         * updated. An observer may have missed values while inactive, so this only works for the items of
+         * the immediately previous value.
+         */
+        @Nullable
+        public List<FlexibleKeyItem> getItemsChangedSince(@Nullable List<FlexibleKeyItem> displayedItems) {
+            return displayedItems != null && displayedItems == previousItems ? changedItems : null;
+        }
+    }
+
+    private class KeyListContentObserver extends ContentObserver {
+        KeyListContentObserver(Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            // only called directly on API < 16, where we don't learn which key changed
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            onKeysChanged(uri);
+        }
+    }
+}
@@ -18,6 +18,9 @@ public abstract class Certification implements CertsModel {
     public static final SelectVerifyingCertDetailsMapper<CertDetails> CERT_DETAILS_MAPPER =
             new SelectVerifyingCertDetailsMapper<>(AutoValue_Certification_CertDetails::new);
 
+    public static final SelectCertifiersByMasterKeyIdMapper<Certifier> CERTIFIER_MAPPER =
+            new SelectCertifiersByMasterKeyIdMapper<>(AutoValue_Certification_Certifier::new);
+
     public static Certification create(long masterKeyId, long rank, long keyIdCertifier, long type,
             VerificationStatus verified, Date creation, byte[] data) {
         long creationUnixTime = creation.getTime() / 1000;
@@ -28,6 +31,15 @@ public abstract class Certification implements CertsModel {
         return new InsertCert(db, FACTORY);
     }
 
+    public static DeleteByMasterKeyIdAndCertifier createDeleteByCertifierStatement(SupportSQLiteDatabase db) {
+        return new DeleteByMasterKeyIdAndCertifier(db);
+    }
+
+    public static UpdateVerifiedByMasterKeyIdAndCertifier createUpdateVerifiedByCertifierStatement(
+            SupportSQLiteDatabase db) {
+        return new UpdateVerifiedByMasterKeyIdAndCertifier(db, FACTORY);
+    }
+
     public void bindTo(InsertCert statement) {
         statement.bind(master_key_id(), rank(), key_id_certifier(), type(), verified(), creation(), data());
     }
@@ -36,4 +48,9 @@ public abstract class Certification implements CertsModel {
     public static abstract class CertDetails implements CertsModel.SelectVerifyingCertDetailsModel {
 
     }
+
+    @AutoValue
+    public static abstract class Certifier implements CertsModel.SelectCertifiersByMasterKeyIdModel {
+
+    }
 }
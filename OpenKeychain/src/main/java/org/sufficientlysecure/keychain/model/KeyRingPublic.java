@@ -12,9 +12,12 @@ public abstract class KeyRingPublic implements KeyRingsPublicModel {
     public static final Factory<KeyRingPublic> FACTORY = new Factory<>(AutoValue_KeyRingPublic::new);
 
     public static final Mapper<KeyRingPublic> MAPPER = new Mapper<>(FACTORY);
+    public static final SelectDigestsByMasterKeyIdMapper<KeyRingDigests> DIGESTS_MAPPER =
+            FACTORY.selectDigestsByMasterKeyIdMapper(AutoValue_KeyRingPublic_KeyRingDigests::new);
 
-    public static KeyRingPublic create(long masterKeyId, byte[] keyRingData) {
-        return new AutoValue_KeyRingPublic(masterKeyId, keyRingData);
+    public static KeyRingPublic create(long masterKeyId, byte[] keyRingData, byte[] rawDigest,
+            byte[] canonicalDigest) {
+        return new AutoValue_KeyRingPublic(masterKeyId, keyRingData, rawDigest, canonicalDigest);
     }
 
     public static InsertKeyRingPublic createInsertStatement(SupportSQLiteDatabase db) {
@@ -22,6 +25,10 @@ public abstract class KeyRingPublic implements KeyRingsPublicModel {
     }
 
     public void bindTo(InsertKeyRingPublic statement) {
-        statement.bind(master_key_id(), key_ring_data());
+        statement.bind(master_key_id(), key_ring_data(), raw_digest(), canonical_digest());
+    }
+
+    @AutoValue
+    public static abstract class KeyRingDigests implements SelectDigestsByMasterKeyIdModel {
     }
 }
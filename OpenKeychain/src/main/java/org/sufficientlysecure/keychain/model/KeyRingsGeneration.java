@@ -0,0 +1,11 @@
+package org.sufficientlysecure.keychain.model;
+
+
+import com.google.auto.value.AutoValue;
+import org.sufficientlysecure.keychain.KeyRingsGenerationModel;
+
+
+@AutoValue
+public abstract class KeyRingsGeneration implements KeyRingsGenerationModel {
+    public static final Factory<KeyRingsGeneration> FACTORY = new Factory<>(AutoValue_KeyRingsGeneration::new);
+}
@@ -0,0 +1,28 @@
+package org.sufficientlysecure.keychain.model;
+
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import com.google.auto.value.AutoValue;
+import org.sufficientlysecure.keychain.KeySummaryModel;
+
+
+@AutoValue
+public abstract class KeySummary implements KeySummaryModel {
+    public static final Factory<KeySummary> FACTORY =
+            new Factory<>(AutoValue_KeySummary::new, CustomColumnAdapters.VERIFICATON_STATUS_ADAPTER);
+
+    public static final Mapper<KeySummary> MAPPER = new Mapper<>(FACTORY);
+
+    public static InsertKeySummaryByMasterKeyId createInsertStatement(SupportSQLiteDatabase db) {
+        return new InsertKeySummaryByMasterKeyId(db);
+    }
+
+    public static DeleteByMasterKeyId createDeleteStatement(SupportSQLiteDatabase db) {
+        return new DeleteByMasterKeyId(db);
+    }
+
+    public static UpdateHasDuplicateByNameAndEmail createUpdateHasDuplicateStatement(SupportSQLiteDatabase db) {
+        return new UpdateHasDuplicateByNameAndEmail(db);
+    }
+}
@@ -0,0 +1,15 @@
+package org.sufficientlysecure.keychain.model;
+
+
+import com.google.auto.value.AutoValue;
+import org.sufficientlysecure.keychain.SignatureVerificationsModel;
+
+
+@AutoValue
+public abstract class SignatureVerification implements SignatureVerificationsModel {
+    public static final Factory<SignatureVerification> FACTORY = new Factory<>(AutoValue_SignatureVerification::new);
+
+    public static SignatureVerification create(byte[] cacheKey, long masterKeyId, boolean verified) {
+        return new AutoValue_SignatureVerification(cacheKey, masterKeyId, verified);
+    }
+}
@@ -19,9 +19,9 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 public abstract class SubKey implements KeysModel {
     public static final Factory<SubKey> FACTORY =
             new Factory<>(AutoValue_SubKey::new, CustomColumnAdapters.SECRET_KEY_TYPE_ADAPTER);
-    public static final UnifiedKeyViewMapper<UnifiedKeyInfo, Certification> UNIFIED_KEY_INFO_MAPPER =
+    public static final UnifiedKeyViewMapper<UnifiedKeyInfo, KeySummary> UNIFIED_KEY_INFO_MAPPER =
             FACTORY.selectAllUnifiedKeyInfoMapper(
-                    AutoValue_SubKey_UnifiedKeyInfo::new, Certification.FACTORY);
+                    AutoValue_SubKey_UnifiedKeyInfo::new, KeySummary.FACTORY);
     public static Mapper<SubKey> SUBKEY_MAPPER = new Mapper<>(FACTORY);
     public static RowMapper<SecretKeyType> SKT_MAPPER = FACTORY.selectSecretKeyTypeMapper();
 
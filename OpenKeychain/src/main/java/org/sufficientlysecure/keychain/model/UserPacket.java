@@ -5,6 +5,7 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.annotation.NonNull;
 
 import com.google.auto.value.AutoValue;
+import com.squareup.sqldelight.RowMapper;
 import org.sufficientlysecure.keychain.UserPacketsModel;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing.VerificationStatus;
 
@@ -12,6 +13,7 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing.VerificationStat
 @AutoValue
 public abstract class UserPacket implements UserPacketsModel {
     public static final Factory<UserPacket> FACTORY = new Factory<>(AutoValue_UserPacket::new);
+    public static final RowMapper<UserPacket> USER_PACKET_MAPPER = FACTORY.selectAllByMasterKeyIdMapper();
     public static final SelectUserIdsByMasterKeyIdMapper<UserId> USER_ID_MAPPER =
             FACTORY.selectUserIdsByMasterKeyIdMapper(AutoValue_UserPacket_UserId::new);
     public static final SelectUserAttributesByTypeAndMasterKeyIdMapper<UserAttribute> USER_ATTRIBUTE_MAPPER =
@@ -20,17 +20,39 @@ package org.sufficientlysecure.keychain.network;
 
 import java.net.Proxy;
 import java.net.URL;
+import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
 
+import androidx.annotation.Nullable;
+
 import okhttp3.CertificatePinner;
 import okhttp3.OkHttpClient;
 
+/**
+ * Hands out OkHttpClients for network requests.
+ * <p>
+ * All clients are derived from a single root client, so they share its connection pool and
+ * dispatcher. Clients are cached by the parameters they are built from, so that subsequent
+ * requests to the same server, e.g. while refreshing many keys, reuse keep-alive connections
+ * instead of doing a new TCP and TLS handshake each time. OkHttp only reuses a connection for
+ * requests with the same address, which includes proxy and ssl socket factory, so pinned and
+ * unpinned clients never share connections.
+ */
 public class OkHttpClientFactory {
+    private static OkHttpClient rootClient;
     private static OkHttpClient client;
+    private static final HashMap<ClientKey, OkHttpClient> clientCache = new HashMap<>();
 
-    public static OkHttpClient getSimpleClient() {
+    private static synchronized OkHttpClient getRootClient() {
+        if (rootClient == null) {
+            rootClient = new OkHttpClient();
+        }
+        return rootClient;
+    }
+
+    public static synchronized OkHttpClient getSimpleClient() {
         if (client == null) {
-            client = new OkHttpClient.Builder()
+            client = getRootClient().newBuilder()
                     .connectTimeout(5000, TimeUnit.MILLISECONDS)
                     .readTimeout(25000, TimeUnit.MILLISECONDS)
                     .build();
@@ -39,7 +61,7 @@ public class OkHttpClientFactory {
     }
 
     public static OkHttpClient getSimpleClientPinned(CertificatePinner pinner) {
-        return new OkHttpClient.Builder()
+        return getRootClient().newBuilder()
                 .connectTimeout(5000, TimeUnit.MILLISECONDS)
                 .readTimeout(25000, TimeUnit.MILLISECONDS)
                 .certificatePinner(pinner)
@@ -56,7 +78,23 @@ public class OkHttpClientFactory {
     }
 
     private static OkHttpClient getClientPinnedIfAvailable(URL url, Proxy proxy, boolean followRedirects) {
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        // If a pinned cert is available, use it!
+        // NOTE: this fails gracefully back to "no pinning" if no cert is available.
+        TlsCertificatePinning tlsCertificatePinning = new TlsCertificatePinning(url);
+        boolean isHttpsProtocol = "https".equals(url.getProtocol());
+        boolean isPinAvailable = tlsCertificatePinning.isPinAvailable();
+        boolean usePinning = isHttpsProtocol && isPinAvailable;
+
+        // unpinned clients don't depend on the host, so they can be shared between hosts
+        ClientKey clientKey = new ClientKey(usePinning ? url.getHost() : null, proxy, followRedirects);
+        synchronized (clientCache) {
+            OkHttpClient cachedClient = clientCache.get(clientKey);
+            if (cachedClient != null) {
+                return cachedClient;
+            }
+        }
+
+        OkHttpClient.Builder builder = getRootClient().newBuilder();
 
         builder.followRedirects(followRedirects)
                 .followSslRedirects(false);
@@ -71,16 +109,55 @@ public class OkHttpClientFactory {
                     .readTimeout(25000, TimeUnit.MILLISECONDS);
         }
 
-        // If a pinned cert is available, use it!
-        // NOTE: this fails gracefully back to "no pinning" if no cert is available.
-        TlsCertificatePinning tlsCertificatePinning = new TlsCertificatePinning(url);
-        boolean isHttpsProtocol = "https".equals(url.getProtocol());
-        boolean isPinAvailable = tlsCertificatePinning.isPinAvailable();
-        if (isHttpsProtocol && isPinAvailable) {
+        if (usePinning) {
             tlsCertificatePinning.pinCertificate(builder);
         }
 
-        return builder.build();
+        OkHttpClient newClient = builder.build();
+        synchronized (clientCache) {
+            // another thread may have been faster, keep that one so only one client is used
+            OkHttpClient cachedClient = clientCache.get(clientKey);
+            if (cachedClient != null) {
+                return cachedClient;
+            }
+            clientCache.put(clientKey, newClient);
+        }
+        return newClient;
     }
 
+    private static class ClientKey {
+        @Nullable
+        private final String pinnedHost;
+        @Nullable
+        private final Proxy proxy;
+        private final boolean followRedirects;
+
+        ClientKey(@Nullable String pinnedHost, @Nullable Proxy proxy, boolean followRedirects) {
+            this.pinnedHost = pinnedHost;
+            this.proxy = proxy;
+            this.followRedirects = followRedirects;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey other = (ClientKey) o;
+            return followRedirects == other.followRedirects
+                    && (pinnedHost == null ? other.pinnedHost == null : pinnedHost.equals(other.pinnedHost))
+                    && (proxy == null ? other.proxy == null : proxy.equals(other.proxy));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = pinnedHost != null ? pinnedHost.hashCode() : 0;
+            result = 31 * result + (proxy != null ? proxy.hashCode() : 0);
+            result = 31 * result + (followRedirects ? 1 : 0);
+            return result;
+        }
+    }
 }
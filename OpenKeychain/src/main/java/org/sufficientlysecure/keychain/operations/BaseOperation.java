@@ -126,4 +126,12 @@ public abstract class BaseOperation<T extends Parcelable> implements PassphraseC
         }
     }
 
+    /**
+     * Should be called after a key was successfully unlocked, to pass any S2K session keys that
+     * were derived in the process back to the passphrase cache.
+     */
+    protected void updateCachedSessionKeys(long masterKeyId, long subKeyId, Passphrase passphrase) {
+        PassphraseCacheService.updateCachedSessionKeys(mContext, masterKeyId, subKeyId, passphrase);
+    }
+
 }
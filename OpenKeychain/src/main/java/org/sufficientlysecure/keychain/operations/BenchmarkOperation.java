@@ -50,6 +50,10 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
 import timber.log.Timber;
 
 
+/**
+ * Quick on-device benchmark of symmetric encryption and S2K, started from the debug menu.
+ * Detailed benchmarks that run on the JVM are in the test sources, in the benchmark package.
+ */
 public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
 
     public BenchmarkOperation(Context context, KeyWritableRepository databaseInteractor, Progressable
@@ -126,10 +130,11 @@ public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
             while (iterations < 255 && totalTime < 100) {
                 iterations += 1;
 
+                // nanoTime, single runs are too short for the resolution of currentTimeMillis
                 S2K s2k = new S2K(HashAlgorithmTags.SHA1, iv, iterations);
-                totalTime = System.currentTimeMillis();
+                long startTime = System.nanoTime();
                 decryptorFactory.makeKeyFromPassPhrase(SymmetricKeyAlgorithmTags.AES_128, s2k);
-                totalTime = System.currentTimeMillis() -totalTime;
+                totalTime = (System.nanoTime() - startTime) / 1000000;
 
                 if ((iterations % 10) == 0) {
                     log.add(LogType.MSG_BENCH_S2K_FOR_IT, 1, Integer.toString(iterations), Long.toString(totalTime));
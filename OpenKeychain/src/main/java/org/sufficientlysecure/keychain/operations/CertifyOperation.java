@@ -128,6 +128,7 @@ public class CertifyOperation extends BaseReadWriteOperation<CertifyActionsParce
                 log.add(LogType.MSG_CRT_ERROR_UNLOCK, 2);
                 return new CertifyResult(CertifyResult.RESULT_ERROR, log);
             }
+            updateCachedSessionKeys(parcel.getMasterKeyId(), parcel.getMasterKeyId(), passphrase);
         } catch (PgpGeneralException e) {
             log.add(LogType.MSG_CRT_ERROR_UNLOCK, 2);
             return new CertifyResult(CertifyResult.RESULT_ERROR, log);
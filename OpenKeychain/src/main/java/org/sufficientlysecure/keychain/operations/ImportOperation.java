@@ -19,25 +19,26 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
+import android.database.SQLException;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.daos.KeyMetadataDao;
 import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository.PreparedKeyRing;
 import org.sufficientlysecure.keychain.keyimport.FacebookKeyserverClient;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserverAddress;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserverClient;
@@ -84,6 +85,7 @@ import timber.log.Timber;
 public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel> {
 
     private static final int MAX_THREADS = 10;
+    private static final int MAX_PENDING_KEYS_PER_THREAD = 4;
 
     public static final String CACHE_FILE_NAME = "key_import.pcl";
 
@@ -104,22 +106,19 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         this.keyMetadataDao = KeyMetadataDao.create(context);
     }
 
-    // Overloaded functions for using progressable supplied in constructor during import
-    public ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int num,
-            HkpKeyserverAddress keyserver, ParcelableProxy proxy, boolean skipSave, boolean forceReinsert) {
-        return serialKeyRingImport(entries, num, keyserver, mProgressable, proxy, skipSave, forceReinsert);
-    }
-
     @NonNull
-    private ImportKeyResult serialKeyRingImport(ParcelableFileCache<ParcelableKeyRing> cache,
-            HkpKeyserverAddress keyserver, ParcelableProxy proxy, boolean skipSave, boolean forceReinsert) {
+    private ImportKeyResult fileCacheKeyRingImport(ParcelableFileCache<ParcelableKeyRing> cache,
+            boolean skipSave, boolean forceReinsert) {
 
         // get entries from cached file
         try {
             IteratorWithSize<ParcelableKeyRing> it = cache.readCache();
             int numEntries = it.getSize();
 
-            return serialKeyRingImport(it, numEntries, keyserver, mProgressable, proxy, skipSave, forceReinsert);
+            // keys in the cache are only decoded, so there is no point in more threads than cpus
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            return pipelinedKeyRingImport(it, numEntries, numThreads, null, ParcelableProxy.getForNoProxy(),
+                    skipSave, forceReinsert);
         } catch (IOException e) {
 
             // Special treatment here, we need a lot
@@ -133,19 +132,22 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
     }
 
     /**
+     * Imports keys in a pipeline: keys are fetched, decoded, merged and canonicalized in parallel
+     * on numThreads worker threads, while the calling thread writes the prepared keyrings to the
+     * database one by one, in the order given by the iterator. Writes are grouped into the
+     * transactions of a batch session.
+     *
      * @param entries      keys to import
-     * @param numTotalKeys          number of keys to import
+     * @param numTotalKeys number of keys to import
+     * @param numThreads   number of threads to prepare keys on
      * @param hkpKeyserver contains uri of keyserver to import from, if it is an import from cloud
-     * @param progressable Allows multi-threaded import to supply a progressable that ignores the
-     *                     progress of a single key being imported
      */
     @NonNull
-    private ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int numTotalKeys,
-            HkpKeyserverAddress hkpKeyserver, Progressable progressable, @NonNull ParcelableProxy proxy,
+    private ImportKeyResult pipelinedKeyRingImport(Iterator<ParcelableKeyRing> entries, int numTotalKeys,
+            int numThreads, HkpKeyserverAddress hkpKeyserver, @NonNull ParcelableProxy proxy,
             boolean skipSave, boolean forceReinsert) {
-        if (progressable != null) {
-            progressable.setProgress(R.string.progress_importing, 0, 100);
-        }
+        Progressable progressable = mProgressable != null ? mProgressable : new ProgressScaler();
+        progressable.setProgress(R.string.progress_importing, 0, 100);
 
         OperationLog log = new OperationLog();
         log.add(LogType.MSG_IMPORT, 0, numTotalKeys);
@@ -158,104 +160,155 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         int newKeys = 0, updatedKeys = 0, missingKeys = 0, badKeys = 0;
         ArrayList<Long> secretMasterKeyIds = new ArrayList<>();
         ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        // keys which are prepared in parallel to the save of another keyring with the same master
+        // key id might be based on outdated data, so they are prepared again before saving
+        HashSet<Long> savedMasterKeyIds = new HashSet<>();
+
+        // saved keys in the order they were counted, to uncount them if their transaction is rolled back
+        ArrayList<SavedKey> savedKeys = new ArrayList<>();
 
         ArrayList<CanonicalizedKeyRing> canKeyRings = new ArrayList<>();
 
         boolean cancelled = false;
         int keyImportsFinished = 0;
 
-        // iterate over all entries
-        while (entries.hasNext()) {
-            ParcelableKeyRing entry = entries.next();
+        ExecutorService prepareExecutor = Executors.newFixedThreadPool(numThreads);
+        ArrayDeque<Future<ImportEntry>> pendingEntries = new ArrayDeque<>();
+        int maxPendingEntries = numThreads * MAX_PENDING_KEYS_PER_THREAD;
 
-            // Has this action been cancelled? If so, don't proceed any further
-            if (checkCancelled()) {
-                cancelled = true;
-                break;
-            }
+        boolean inBatchSession = false;
+        boolean databaseFailed = false;
+        if (!skipSave) {
+            mKeyWritableRepository.beginBatchSession();
+            inBatchSession = true;
+        }
+        try {
+            while (entries.hasNext() || !pendingEntries.isEmpty()) {
+                // Has this action been cancelled? If so, don't proceed any further
+                if (checkCancelled()) {
+                    cancelled = true;
+                    break;
+                }
 
-            boolean keyWasDownloaded = false;
+                while (entries.hasNext() && pendingEntries.size() < maxPendingEntries) {
+                    ParcelableKeyRing entry = entries.next();
+                    pendingEntries.add(prepareExecutor.submit(
+                            () -> prepareImportEntry(entry, hkpKeyserver, proxy, skipSave, forceReinsert)));
+                }
 
-            try {
+                Future<ImportEntry> nextEntry = pendingEntries.poll();
+                // the workers can't read from the database while a transaction is open, so it
+                // must be committed before waiting for them
+                if (inBatchSession && !nextEntry.isDone()) {
+                    mKeyWritableRepository.commitBatchSession();
+                }
 
-                UncachedKeyRing key = null;
+                ImportEntry importEntry = getImportEntry(nextEntry);
+                // an interrupted import stops like a cancelled one, keeping the keys saved so far
+                if (importEntry == null || checkCancelled()) {
+                    cancelled = true;
+                    break;
+                }
+                log.addAll(importEntry.log.toList());
 
-                // If there is already byte data, use that
-                if (entry.getBytes() != null) {
-                    key = UncachedKeyRing.decodeFromData(entry.getBytes());
-                } else {
-                    try {
-                        key = fetchKeyFromInternet(hkpKeyserver, proxy, log, entry, key);
-                    } catch (QueryNotFoundException e) {
-                        // note that this does NOT fire on network errors! those will be logged inline and return in null
-                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_NOT_FOUND, 2);
-                        missingKeys += 1;
-
-                        byte[] fingerprintHex = entry.getExpectedFingerprint();
-                        if (fingerprintHex != null) {
-                            keyMetadataDao.renewKeyLastUpdatedTime(
-                                    KeyFormattingUtils.getKeyIdFromFingerprint(fingerprintHex), false);
+                if (importEntry.missing) {
+                    missingKeys += 1;
+
+                    byte[] fingerprintHex = importEntry.entry.getExpectedFingerprint();
+                    if (fingerprintHex != null) {
+                        keyMetadataDao.renewKeyLastUpdatedTime(
+                                KeyFormattingUtils.getKeyIdFromFingerprint(fingerprintHex), false);
+                    }
+                    continue;
+                }
+
+                if (importEntry.preparedKeyRing != null) {
+                    UncachedKeyRing key = importEntry.key;
+
+                    SaveKeyringResult result;
+                    // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
+                    // and https://github.com/open-keychain/open-keychain/issues/1480
+                    synchronized (mKeyRepository) {
+                        mKeyRepository.clearLog();
+                        PreparedKeyRing preparedKeyRing = importEntry.preparedKeyRing;
+                        if (!savedMasterKeyIds.add(key.getMasterKeyId())) {
+                            importEntry.canKeyRings.clear();
+                            preparedKeyRing = prepareKeyRing(
+                                    mKeyWritableRepository, importEntry, skipSave, forceReinsert);
+                        }
+                        try {
+                            result = mKeyWritableRepository.savePreparedKeyRing(preparedKeyRing, skipSave);
+                        } catch (SQLException e) {
+                            // this rolls back the open transaction, the other keys in it are uncounted below
+                            Timber.e(e, "Database error during import");
+                            badKeys += 1;
+                            databaseFailed = true;
+                            break;
                         }
-                        continue;
                     }
+                    canKeyRings.addAll(importEntry.canKeyRings);
 
-                    if (key != null) {
-                        keyWasDownloaded = true;
+                    if (!result.success()) {
+                        badKeys += 1;
+                    } else {
+                        SavedKey savedKey = new SavedKey(key.getMasterKeyId(), result.updated(),
+                                !result.updated() && key.isSecret());
+                        savedKeys.add(savedKey);
+                        if (savedKey.updated) {
+                            updatedKeys += 1;
+                        } else {
+                            newKeys += 1;
+                            if (savedKey.newSecret) {
+                                secretMasterKeyIds.add(key.getMasterKeyId());
+                            }
+                        }
+                        importedMasterKeyIds.add(key.getMasterKeyId());
 
-                        if (key.isSecret()) {
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
-                            badKeys += 1;
-                            continue;
+                        if (!skipSave && importEntry.keyWasDownloaded) {
+                            keyMetadataDao.renewKeyLastUpdatedTime(key.getMasterKeyId(), true);
                         }
                     }
-                }
 
-                if (key == null) {
-                    log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
+                    log.add(result, 2);
+                } else {
                     badKeys += 1;
-                    continue;
                 }
 
-                SaveKeyringResult result;
-                // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
-                // and https://github.com/open-keychain/open-keychain/issues/1480
-                synchronized (mKeyRepository) {
-                    mKeyRepository.clearLog();
-                    if (key.isSecret()) {
-                        result = mKeyWritableRepository.saveSecretKeyRing(key, canKeyRings, skipSave);
-                    } else {
-                        result = mKeyWritableRepository.savePublicKeyRing(key, entry.getExpectedFingerprint(), canKeyRings,
-                                forceReinsert, skipSave);
-                    }
+                // update progress
+                keyImportsFinished += 1;
+                progressable.setProgress(keyImportsFinished, numTotalKeys);
+            }
+
+            if (inBatchSession) {
+                inBatchSession = false;
+                List<Long> rolledBackMasterKeyIds = mKeyWritableRepository.endBatchSession(!databaseFailed);
+                if (!rolledBackMasterKeyIds.isEmpty()) {
+                    log.add(LogType.MSG_IMPORT_ERROR_DB, 1, rolledBackMasterKeyIds.size());
                 }
-                if (!result.success()) {
-                    badKeys += 1;
-                } else {
-                    if (result.updated()) {
-                        updatedKeys += 1;
-                        importedMasterKeyIds.add(key.getMasterKeyId());
+                for (Long masterKeyId : rolledBackMasterKeyIds) {
+                    SavedKey savedKey = removeLastSavedKey(savedKeys, masterKeyId);
+                    if (savedKey == null) {
+                        // the save of this key failed anyways, it is already counted as bad
+                        continue;
+                    }
+                    if (savedKey.updated) {
+                        updatedKeys -= 1;
                     } else {
-                        newKeys += 1;
-                        if (key.isSecret()) {
-                            secretMasterKeyIds.add(key.getMasterKeyId());
-                        }
-                        importedMasterKeyIds.add(key.getMasterKeyId());
+                        newKeys -= 1;
                     }
-
-                    if (!skipSave && keyWasDownloaded) {
-                        keyMetadataDao.renewKeyLastUpdatedTime(key.getMasterKeyId(), true);
+                    if (savedKey.newSecret) {
+                        secretMasterKeyIds.remove(masterKeyId);
                     }
+                    importedMasterKeyIds.remove(masterKeyId);
+                    badKeys += 1;
                 }
-
-                log.add(result, 2);
-            } catch (IOException | PgpGeneralException e) {
-                Timber.e(e, "Encountered bad key on import!");
-                ++badKeys;
             }
-
-            // update progress
-            keyImportsFinished += 1;
-            progressable.setProgress(keyImportsFinished, numTotalKeys);
+        } finally {
+            // only reached in a batch session if an exception was thrown while saving
+            if (inBatchSession) {
+                mKeyWritableRepository.endBatchSession(false);
+            }
+            prepareExecutor.shutdownNow();
         }
 
         // Special: consolidate on secret key import (cannot be cancelled!)
@@ -323,6 +376,126 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         return result;
     }
 
+    /**
+     * Fetches or decodes a single entry and prepares its keyring for saving. This runs on the
+     * worker threads of pipelinedKeyRingImport and must not write to the database.
+     */
+    private ImportEntry prepareImportEntry(ParcelableKeyRing entry, HkpKeyserverAddress hkpKeyserver,
+            @NonNull ParcelableProxy proxy, boolean skipSave, boolean forceReinsert) {
+        ImportEntry importEntry = new ImportEntry(entry);
+        if (checkCancelled()) {
+            return importEntry;
+        }
+
+        try {
+            UncachedKeyRing key = null;
+
+            // If there is already byte data, use that
+            if (entry.getBytes() != null) {
+                key = UncachedKeyRing.decodeFromData(entry.getBytes());
+            } else {
+                try {
+                    key = fetchKeyFromInternet(hkpKeyserver, proxy, importEntry.log, entry, key);
+                } catch (QueryNotFoundException e) {
+                    // note that this does NOT fire on network errors! those will be logged inline and return in null
+                    importEntry.log.add(LogType.MSG_IMPORT_FETCH_ERROR_NOT_FOUND, 2);
+                    importEntry.missing = true;
+                    return importEntry;
+                }
+
+                if (key != null) {
+                    importEntry.keyWasDownloaded = true;
+
+                    if (key.isSecret()) {
+                        importEntry.log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
+                        return importEntry;
+                    }
+                }
+            }
+
+            if (key == null) {
+                importEntry.log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
+                return importEntry;
+            }
+
+            importEntry.key = key;
+            importEntry.preparedKeyRing = prepareKeyRing(
+                    mKeyWritableRepository.createWithNewLog(), importEntry, skipSave, forceReinsert);
+        } catch (IOException | PgpGeneralException e) {
+            Timber.e(e, "Encountered bad key on import!");
+        }
+
+        return importEntry;
+    }
+
+    private static PreparedKeyRing prepareKeyRing(KeyWritableRepository keyRepository, ImportEntry importEntry,
+            boolean skipSave, boolean forceReinsert) {
+        UncachedKeyRing key = importEntry.key;
+        if (key.isSecret()) {
+            return keyRepository.prepareSecretKeyRing(key, importEntry.canKeyRings, skipSave);
+        } else {
+            return keyRepository.preparePublicKeyRing(key, importEntry.entry.getExpectedFingerprint(),
+                    importEntry.canKeyRings, forceReinsert, skipSave);
+        }
+    }
+
+    /** Returns the prepared entry, or null if this thread was interrupted while waiting for it. */
+    @Nullable
+    private static ImportEntry getImportEntry(Future<ImportEntry> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Timber.e(e, "Interrupted while waiting for key to be prepared");
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // prepareImportEntry does not throw any checked exceptions, so this is what
+            // would have happened if we were preparing the key on this thread
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Nullable
+    private static SavedKey removeLastSavedKey(ArrayList<SavedKey> savedKeys, long masterKeyId) {
+        for (int i = savedKeys.size() - 1; i >= 0; i--) {
+            if (savedKeys.get(i).masterKeyId == masterKeyId) {
+                return savedKeys.remove(i);
+            }
+        }
+        return null;
+    }
+
+    private static class SavedKey {
+        final long masterKeyId;
+        final boolean updated;
+        final boolean newSecret;
+
+        SavedKey(long masterKeyId, boolean updated, boolean newSecret) {
+            this.masterKeyId = masterKeyId;
+            this.updated = updated;
+            this.newSecret = newSecret;
+        }
+    }
+
+    /**
+     * A single entry of an import, prepared for saving. If preparedKeyRing is null, the entry
+     * could not be fetched or decoded.
+     */
+    private static class ImportEntry {
+        final ParcelableKeyRing entry;
+        final OperationLog log = new OperationLog();
+        final ArrayList<CanonicalizedKeyRing> canKeyRings = new ArrayList<>();
+
+        UncachedKeyRing key;
+        PreparedKeyRing preparedKeyRing;
+        boolean keyWasDownloaded;
+        boolean missing;
+
+        ImportEntry(ParcelableKeyRing entry) {
+            this.entry = entry;
+        }
+    }
+
     private UncachedKeyRing fetchKeyFromInternet(HkpKeyserverAddress hkpKeyserver, @NonNull ParcelableProxy proxy,
             OperationLog log, ParcelableKeyRing entry, UncachedKeyRing key)
             throws PgpGeneralException, IOException, QueryNotFoundException {
@@ -447,10 +620,10 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         boolean forceReinsert = importInput.isForceReinsert();
 
         ImportKeyResult result;
-        if (keyList == null) {// import from file, do serially
+        if (keyList == null) {// import from file
             ParcelableFileCache<ParcelableKeyRing> cache =
                     new ParcelableFileCache<>(mContext, CACHE_FILE_NAME);
-            result = serialKeyRingImport(cache, null, null, skipSave, forceReinsert);
+            result = fileCacheKeyRingImport(cache, skipSave, forceReinsert);
         } else {
             ParcelableProxy proxy;
             if (cryptoInput.getParcelableProxy() == null) {
@@ -465,68 +638,14 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                 proxy = cryptoInput.getParcelableProxy();
             }
 
-            result = multiThreadedKeyImport(keyList, keyServer, proxy, skipSave, forceReinsert);
+            // keys are mostly fetched from the network, so use more threads than there are cpus
+            int numThreads = Math.max(1, Math.min(MAX_THREADS, keyList.size()));
+            result = pipelinedKeyRingImport(keyList.iterator(), keyList.size(), numThreads, keyServer, proxy,
+                    skipSave, forceReinsert);
         }
         return result;
     }
 
-    @NonNull
-    private ImportKeyResult multiThreadedKeyImport(List<ParcelableKeyRing> keyList, HkpKeyserverAddress keyServer,
-            ParcelableProxy proxy, boolean skipSave, boolean forceReinsert) {
-        Timber.d("Multi-threaded key import starting");
-
-        final Iterator<ParcelableKeyRing> keyListIterator = keyList.iterator();
-        final int totKeys = keyList.size();
-
-        ExecutorService importExecutor = new ThreadPoolExecutor(0, MAX_THREADS, 30L, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>());
-        ExecutorCompletionService<ImportKeyResult> importCompletionService =
-                new ExecutorCompletionService<>(importExecutor);
-
-        while (keyListIterator.hasNext()) { // submit all key rings to be imported
-
-            final ParcelableKeyRing pkRing = keyListIterator.next();
-
-            Callable<ImportKeyResult> importOperationCallable = new Callable<ImportKeyResult>
-                    () {
-
-                @Override
-                public ImportKeyResult call() {
-                    if (checkCancelled()) {
-                        return null;
-                    }
-
-                    ArrayList<ParcelableKeyRing> list = new ArrayList<>();
-                    list.add(pkRing);
-                    ProgressScaler ignoreProgressable = new ProgressScaler();
-
-                    return serialKeyRingImport(list.iterator(), 1, keyServer, ignoreProgressable,
-                            proxy, skipSave, forceReinsert);
-                }
-            };
-
-            importCompletionService.submit(importOperationCallable);
-        }
-
-        KeyImportAccumulator accumulator = new KeyImportAccumulator(totKeys, mProgressable);
-        while (!accumulator.isImportFinished()) { // accumulate the results of each import
-            try {
-                accumulator.accumulateKeyImport(importCompletionService.take().get());
-            } catch (InterruptedException | ExecutionException e) {
-                Timber.e(e, "A key could not be imported during multi-threaded " +
-                        "import");
-                // do nothing?
-                if (e instanceof ExecutionException) {
-                    // Since serialKeyRingImport does not throw any exceptions, this is what
-                    // would have happened if
-                    // we were importing the key on this thread
-                    throw new RuntimeException(e);
-                }
-            }
-        }
-        return accumulator.getConsolidatedResult();
-    }
-
     /**
      * Used to accumulate the results of individual key imports
      */
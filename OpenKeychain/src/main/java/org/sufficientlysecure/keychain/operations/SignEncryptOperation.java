@@ -20,12 +20,21 @@ package org.sufficientlysecure.keychain.operations;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
 import android.net.Uri;
 import androidx.annotation.NonNull;
 
+import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.daos.KeyRepository;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
@@ -47,10 +56,18 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
  * operations, using URIs or byte arrays as input and output.
  * <p/>
  * This operation is fail-fast: If any sign/encrypt sub-operation fails or returns
- * a pending result, it will terminate.
+ * a pending result, it will terminate. Multiple input uris are processed in parallel.
  */
 public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
+    private static final int SIGN_ENCRYPT_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private static final ThreadPoolExecutor signEncryptExecutor = new ThreadPoolExecutor(
+            SIGN_ENCRYPT_THREADS, SIGN_ENCRYPT_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        signEncryptExecutor.allowCoreThreadTimeOut(true);
+    }
+
     public SignEncryptOperation(Context context, KeyRepository keyRepository,
                                 Progressable progressable, AtomicBoolean cancelled) {
         super(context, keyRepository, progressable, cancelled);
@@ -59,6 +76,9 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
     @NonNull
     public SignEncryptResult execute(SignEncryptParcel input, CryptoInputParcel cryptoInput) {
+        if (input.getBytes() == null && input.getInputUris().size() > 1) {
+            return executeParallel(input, cryptoInput);
+        }
 
         OperationLog log = new OperationLog();
         log.add(LogType.MSG_SE, 0);
@@ -122,4 +142,154 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
                 results.get(results.size() - 1).getOutputBytes());
     }
 
+    /**
+     * Signs and/or encrypts multiple input uris. The first input is processed alone, which looks up
+     * and unlocks all keys, or returns early if a passphrase is required. The remaining inputs are
+     * independent of each other and processed in parallel, reusing those keys.
+     * <p>
+     * Results and log entries are in the same order as the inputs. As in the sequential case, the
+     * operation stops at the first error, but inputs that are already being processed are finished.
+     */
+    @NonNull
+    private SignEncryptResult executeParallel(SignEncryptParcel input, CryptoInputParcel cryptoInput) {
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_SE, 0);
+
+        List<Uri> inputUris = input.getInputUris();
+        List<Uri> outputUris = input.getOutputUris();
+        if (outputUris.size() > inputUris.size()) {
+            throw new AssertionError("Got outputs left but no inputs. This is a programming error, please report!");
+        }
+        int total = inputUris.size();
+
+        // all signatures must have the same creation time, so security token hashes can be merged
+        if (input.getSignEncryptData().getSignatureMasterKeyId() != Constants.key.none
+                && cryptoInput.getSignatureTime() == null) {
+            cryptoInput = cryptoInput.withSignatureTime(new Date());
+        }
+
+        PgpSignEncryptOperation.SharedKeys sharedKeys = new PgpSignEncryptOperation.SharedKeys();
+        ParallelProgress parallelProgress = new ParallelProgress(mProgressable, total);
+        AtomicBoolean aborted = new AtomicBoolean(false);
+
+        ArrayList<Callable<PgpSignEncryptResult>> tasks = new ArrayList<>(total);
+        for (int i = 0; i < total; i++) {
+            PgpSignEncryptInputParcel inputParcel = PgpSignEncryptInputParcel.createForInputUri(
+                    input.getSignEncryptData(), i < outputUris.size() ? outputUris.get(i) : null, inputUris.get(i));
+            Progressable progressable = parallelProgress.getProgressable(i);
+            CryptoInputParcel taskCryptoInput = cryptoInput;
+            tasks.add(() -> {
+                if (aborted.get() || checkCancelled()) {
+                    return null;
+                }
+                PgpSignEncryptOperation op =
+                        new PgpSignEncryptOperation(mContext, mKeyRepository, progressable, mCancelled);
+                op.setSharedKeys(sharedKeys);
+                PgpSignEncryptResult result = op.execute(inputParcel, taskCryptoInput);
+                if (!result.success() && !result.isPending()) {
+                    aborted.set(true);
+                }
+                return result;
+            });
+        }
+
+        ArrayList<Future<PgpSignEncryptResult>> futures = new ArrayList<>(total);
+        ArrayList<PgpSignEncryptResult> results = new ArrayList<>(total);
+        SecurityTokenSignOperationsBuilder pendingInputBuilder = null;
+        boolean skippedInputs = false;
+        try {
+            // the first input runs alone, the others are only started once it looked up all keys
+            futures.add(signEncryptExecutor.submit(tasks.get(0)));
+            for (int i = 0; i < total; i++) {
+                PgpSignEncryptResult result = futures.get(i).get();
+                if (i == 0 && result != null && (result.success() || result.isPending())) {
+                    for (int j = 1; j < total; j++) {
+                        futures.add(signEncryptExecutor.submit(tasks.get(j)));
+                    }
+                }
+
+                if (result == null) {
+                    // skipped after cancellation, or after a later input failed
+                    skippedInputs = true;
+                    continue;
+                }
+                results.add(result);
+                log.add(result, 2);
+
+                if (result.isPending()) {
+                    RequiredInputParcel requiredInput = result.getRequiredInputParcel();
+                    // Passphrase returns immediately, nfc are aggregated
+                    if (requiredInput.mType == RequiredInputType.PASSPHRASE) {
+                        return new SignEncryptResult(log, requiredInput, results, cryptoInput);
+                    }
+                    if (pendingInputBuilder == null) {
+                        pendingInputBuilder = new SecurityTokenSignOperationsBuilder(requiredInput.mSignatureTime,
+                                requiredInput.getMasterKeyId(), requiredInput.getSubKeyId());
+                    }
+                    pendingInputBuilder.addAll(requiredInput);
+                } else if (!result.success()) {
+                    return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // don't start any more inputs if we return early
+            aborted.set(true);
+        }
+
+        if (skippedInputs) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+        }
+
+        if (pendingInputBuilder != null && !pendingInputBuilder.isEmpty()) {
+            return new SignEncryptResult(log, pendingInputBuilder.build(), results, cryptoInput);
+        }
+
+        log.add(LogType.MSG_SE_SUCCESS, 1);
+        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results,
+                results.get(results.size() - 1).getOutputBytes());
+    }
+
+    /** Combines the progress of inputs processed in parallel into a single progress. */
+    private static class ParallelProgress {
+        private final Progressable progressable;
+        private final int[] inputProgress;
+        private int totalProgress;
+
+        ParallelProgress(Progressable progressable, int inputCount) {
+            this.progressable = progressable;
+            this.inputProgress = new int[inputCount];
+        }
+
+        Progressable getProgressable(int index) {
+            return new Progressable() {
+                @Override
+                public void setProgress(Integer resourceId, int current, int total) {
+                    onProgress(index, resourceId, total > 0 ? 100 * current / total : 0);
+                }
+
+                @Override
+                public void setPreventCancel() {
+                    if (progressable != null) {
+                        progressable.setPreventCancel();
+                    }
+                }
+            };
+        }
+
+        private synchronized void onProgress(int index, Integer resourceId, int percent) {
+            totalProgress += percent - inputProgress[index];
+            inputProgress[index] = percent;
+            if (progressable != null) {
+                progressable.setProgress(resourceId, totalProgress / inputProgress.length, 100);
+            }
+        }
+    }
+
 }
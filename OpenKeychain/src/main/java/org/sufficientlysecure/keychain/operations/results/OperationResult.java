@@ -439,6 +439,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_KC_ERROR_NO_UID (LogLevel.ERROR, R.string.msg_kc_error_no_uid),
         MSG_KC_ERROR_MASTER_ALGO (LogLevel.ERROR, R.string.msg_kc_error_master_algo),
         MSG_KC_ERROR_DUP_KEY (LogLevel.ERROR, R.string.msg_kc_error_dup_key),
+        MSG_KC_ERROR_ENCODE (LogLevel.ERROR, R.string.msg_kc_error_encode),
         MSG_KC_MASTER (LogLevel.DEBUG, R.string.msg_kc_master),
         MSG_KC_MASTER_BAD_TYPE(LogLevel.WARN, R.string.msg_kc_master_bad_type),
         MSG_KC_MASTER_BAD_LOCAL(LogLevel.WARN, R.string.msg_kc_master_bad_local),
@@ -481,6 +482,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_KC_UID_DUP (LogLevel.DEBUG, R.string.msg_kc_uid_dup),
         MSG_KC_UID_TOO_MANY (LogLevel.DEBUG, R.string.msg_kc_uid_too_many),
         MSG_KC_UID_FOREIGN (LogLevel.DEBUG, R.string.msg_kc_uid_foreign),
+        MSG_KC_UID_FOREIGN_TOO_MANY (LogLevel.WARN, R.string.msg_kc_uid_foreign_too_many),
         MSG_KC_UID_NO_CERT (LogLevel.DEBUG, R.string.msg_kc_uid_no_cert),
         MSG_KC_UID_REVOKE_DUP (LogLevel.DEBUG, R.string.msg_kc_uid_revoke_dup),
         MSG_KC_UID_REVOKE_OLD (LogLevel.DEBUG, R.string.msg_kc_uid_revoke_old),
@@ -496,6 +498,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_KC_UAT_CERT_DUP (LogLevel.DEBUG, R.string.msg_kc_uat_cert_dup),
         MSG_KC_UAT_DUP (LogLevel.DEBUG, R.string.msg_kc_uat_dup),
         MSG_KC_UAT_FOREIGN (LogLevel.DEBUG, R.string.msg_kc_uat_foreign),
+        MSG_KC_UAT_FOREIGN_TOO_MANY (LogLevel.WARN, R.string.msg_kc_uat_foreign_too_many),
         MSG_KC_UAT_NO_CERT (LogLevel.DEBUG, R.string.msg_kc_uat_no_cert),
         MSG_KC_UAT_REVOKE_DUP (LogLevel.DEBUG, R.string.msg_kc_uat_revoke_dup),
         MSG_KC_UAT_REVOKE_OLD (LogLevel.DEBUG, R.string.msg_kc_uat_revoke_old),
@@ -710,6 +713,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_OK (LogLevel.OK, R.string.msg_pse_ok),
         MSG_PSE_PENDING_NFC (LogLevel.INFO, R.string.msg_pse_pending_nfc),
         MSG_PSE_PENDING_PASSPHRASE (LogLevel.INFO, R.string.msg_pse_pending_passphrase),
+        MSG_PSE_RESUMING (LogLevel.DEBUG, R.string.msg_pse_resuming),
         MSG_PSE (LogLevel.DEBUG, R.string.msg_pse),
         MSG_PSE_SIGNING (LogLevel.DEBUG, R.string.msg_pse_signing),
         MSG_PSE_SIGNING_CLEARTEXT (LogLevel.DEBUG, R.string.msg_pse_signing_cleartext),
@@ -764,6 +768,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_MERGE_ERROR (LogLevel.ERROR, R.string.msg_import_merge_error),
         MSG_IMPORT_ERROR (LogLevel.ERROR, R.string.msg_import_error),
         MSG_IMPORT_ERROR_IO (LogLevel.ERROR, R.string.msg_import_error_io),
+        MSG_IMPORT_ERROR_DB (LogLevel.ERROR, R.plurals.msg_import_error_db),
         MSG_IMPORT_PARTIAL (LogLevel.ERROR, R.string.msg_import_partial),
         MSG_IMPORT_SUCCESS (LogLevel.OK, R.string.msg_import_success),
 
@@ -889,6 +894,8 @@ public abstract class OperationResult implements Parcelable {
         MSG_TRUST (LogLevel.START, R.string.msg_trust),
         MSG_TRUST_OK (LogLevel.OK, R.string.msg_trust_ok),
         MSG_TRUST_KEY (LogLevel.INFO, R.string.msg_trust_key),
+        MSG_TRUST_KEY_IN_PLACE (LogLevel.DEBUG, R.plurals.msg_trust_key_in_place),
+        MSG_TRUST_KEY_REORDER (LogLevel.DEBUG, R.string.msg_trust_key_reorder),
         MSG_TRUST_INITIALIZE (LogLevel.INFO, R.string.msg_trust_initialize),
         MSG_TRUST_COUNT_NONE (LogLevel.DEBUG, R.string.msg_trust_count_none),
         MSG_TRUST_COUNT (LogLevel.DEBUG, R.plurals.msg_trust_count);
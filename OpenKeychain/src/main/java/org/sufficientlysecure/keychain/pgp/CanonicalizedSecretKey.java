@@ -146,9 +146,27 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
      *
      * This method can potentially take a LONG time (i.e. seconds), so it should only
      * ever be called by {@link KeyWritableRepository} for the purpose of caching its output
-     * in the database.
+     * in the database. To classify all keys of a ring, use
+     * {@link CanonicalizedSecretKeyRing#getSecretKeyTypesSuperExpensive} instead.
      */
     public SecretKeyType getSecretKeyTypeSuperExpensive() {
+        SecretKeyType secretKeyType = getSecretKeyTypeFromMetadata();
+        if (secretKeyType != null) {
+            return secretKeyType;
+        }
+
+        try {
+            return isUnlockableWithSessionKey(makeEmptyPassphraseSessionKey())
+                    ? SecretKeyType.PASSPHRASE_EMPTY : SecretKeyType.PASSPHRASE;
+        } catch (PGPException e) {
+            return SecretKeyType.PASSPHRASE;
+        }
+    }
+
+    /** Returns the SecretKeyType as far as it can be determined from the packet metadata, or null
+     * if the key is encrypted and a trial decryption with an empty passphrase is required.
+     */
+    SecretKeyType getSecretKeyTypeFromMetadata() {
         S2K s2k = mSecretKey.getS2K();
         if (s2k != null && s2k.getType() == S2K.GNU_DUMMY_S2K) {
             // divert to card is special
@@ -159,16 +177,38 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
             return SecretKeyType.GNU_DUMMY;
         }
 
+        // we store keys with an empty passphrase unencrypted, so this is the usual case for those
+        if (mSecretKey.getKeyEncryptionAlgorithm() == SymmetricKeyAlgorithmTags.NULL) {
+            return SecretKeyType.PASSPHRASE_EMPTY;
+        }
+
+        // other implementations may still encrypt using an empty passphrase
+        return null;
+    }
+
+    /** Returns the parameters of the S2K used to encrypt this key. Keys with equal parameters
+     * share the same session key for a given passphrase.
+     */
+    ParcelableS2K getS2KParameters() {
+        return ParcelableS2K.fromS2K(mSecretKey.getKeyEncryptionAlgorithm(), mSecretKey.getS2K());
+    }
+
+    /** Derives the session key for an empty passphrase. This is the EXPENSIVE part. */
+    byte[] makeEmptyPassphraseSessionKey() throws PGPException {
+        PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
+                Constants.BOUNCY_CASTLE_PROVIDER_NAME).build("".toCharArray());
+        return keyDecryptor.makeKeyFromPassPhrase(mSecretKey.getKeyEncryptionAlgorithm(), mSecretKey.getS2K());
+    }
+
+    boolean isUnlockableWithSessionKey(byte[] sessionKey) {
         try {
-            PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
-                    Constants.BOUNCY_CASTLE_PROVIDER_NAME).build("".toCharArray());
-            // If this doesn't throw
+            PBESecretKeyDecryptor keyDecryptor = new SessionKeySecretKeyDecryptorBuilder()
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(sessionKey);
+            // If this doesn't throw, the session key is correct
             mSecretKey.extractPrivateKey(keyDecryptor);
-            // It means the passphrase is empty
-            return SecretKeyType.PASSPHRASE_EMPTY;
+            return true;
         } catch (PGPException e) {
-            // Otherwise, it's just a regular ol' passphrase
-            return SecretKeyType.PASSPHRASE;
+            return false;
         }
     }
 
@@ -19,19 +19,36 @@ package org.sufficientlysecure.keychain.pgp;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPKeyRing;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPSecretKey;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
 import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.jcajce.JcaPGPObjectFactory;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import timber.log.Timber;
 
 public class CanonicalizedSecretKeyRing extends CanonicalizedKeyRing {
+    private static final int S2K_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final ThreadPoolExecutor s2kExecutor = new ThreadPoolExecutor(
+            S2K_THREADS, S2K_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        s2kExecutor.allowCoreThreadTimeOut(true);
+    }
 
     private PGPSecretKeyRing mRing;
 
@@ -88,6 +105,93 @@ public class CanonicalizedSecretKeyRing extends CanonicalizedKeyRing {
         });
     }
 
+    /** Returns the SecretKeyType of all secret keys in this ring, by key id.
+     *
+     * Stripped, divert-to-card and unencrypted keys are classified by their metadata alone. The
+     * remaining keys are tested for an empty passphrase, grouped by S2K parameters: keys which
+     * were encrypted together share these, so the S2K is derived once per group rather than once
+     * per key. If there is more than one group, they are tested in parallel.
+     *
+     * Keys which can't be tested, because the test failed or the calling thread was interrupted,
+     * are classified as PASSPHRASE. The interrupt status of the thread is kept.
+     *
+     * This can still take a LONG time, see {@link CanonicalizedSecretKey#getSecretKeyTypeSuperExpensive}.
+     */
+    public HashMap<Long, SecretKeyType> getSecretKeyTypesSuperExpensive() {
+        HashMap<Long, SecretKeyType> result = new HashMap<>();
+        HashMap<ParcelableS2K, List<CanonicalizedSecretKey>> keysByS2K = new HashMap<>();
+        for (CanonicalizedSecretKey key : secretKeyIterator()) {
+            SecretKeyType secretKeyType = key.getSecretKeyTypeFromMetadata();
+            if (secretKeyType != null) {
+                result.put(key.getKeyId(), secretKeyType);
+                continue;
+            }
+            ParcelableS2K s2kParameters = key.getS2KParameters();
+            List<CanonicalizedSecretKey> keys = keysByS2K.get(s2kParameters);
+            if (keys == null) {
+                keys = new ArrayList<>();
+                keysByS2K.put(s2kParameters, keys);
+            }
+            keys.add(key);
+        }
+
+        if (keysByS2K.size() == 1) {
+            result.putAll(getSecretKeyTypesBySharedS2K(keysByS2K.values().iterator().next()));
+            return result;
+        }
+
+        ArrayList<List<CanonicalizedSecretKey>> groups = new ArrayList<>(keysByS2K.values());
+        ArrayList<Future<HashMap<Long, SecretKeyType>>> futures = new ArrayList<>();
+        for (List<CanonicalizedSecretKey> keys : groups) {
+            futures.add(s2kExecutor.submit(() -> getSecretKeyTypesBySharedS2K(keys)));
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            Future<HashMap<Long, SecretKeyType>> future = futures.get(i);
+            if (!interrupted) {
+                try {
+                    result.putAll(future.get());
+                    continue;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Timber.e(e, "Error testing secret keys");
+                }
+            }
+            // keys which couldn't be tested are assumed to have a passphrase, which is the safe choice
+            future.cancel(true);
+            putSecretKeyType(result, groups.get(i), SecretKeyType.PASSPHRASE);
+        }
+        return result;
+    }
+
+    private static void putSecretKeyType(HashMap<Long, SecretKeyType> result, List<CanonicalizedSecretKey> keys,
+            SecretKeyType secretKeyType) {
+        for (CanonicalizedSecretKey key : keys) {
+            result.put(key.getKeyId(), secretKeyType);
+        }
+    }
+
+    /** Classifies keys which all share the same S2K parameters, deriving the S2K only once. */
+    private static HashMap<Long, SecretKeyType> getSecretKeyTypesBySharedS2K(List<CanonicalizedSecretKey> keys) {
+        HashMap<Long, SecretKeyType> result = new HashMap<>();
+        byte[] sessionKey = null;
+        try {
+            sessionKey = keys.get(0).makeEmptyPassphraseSessionKey();
+        } catch (PGPException e) {
+            Timber.e(e, "Error deriving S2K for empty passphrase");
+        }
+        for (CanonicalizedSecretKey key : keys) {
+            boolean isEmptyPassphrase = sessionKey != null && key.isUnlockableWithSessionKey(sessionKey);
+            result.put(key.getKeyId(), isEmptyPassphrase ? SecretKeyType.PASSPHRASE_EMPTY : SecretKeyType.PASSPHRASE);
+        }
+        if (sessionKey != null) {
+            Arrays.fill(sessionKey, (byte) 0);
+        }
+        return result;
+    }
+
     public IterableIterator<CanonicalizedPublicKey> publicKeyIterator() {
         final Iterator<PGPPublicKey> it = getRing().getPublicKeys();
         return new IterableIterator<>(new Iterator<CanonicalizedPublicKey>() {
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.bcpg.UserAttributePacket;
+import org.bouncycastle.bcpg.UserIDPacket;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPUserAttributeSubpacketVector;
+
+
+/**
+ * SHA-256 digests of all signature packets of a PGPPublicKey, taken from a single encoding of the key.
+ * Getting the encoding of each PGPSignature separately re-encodes it, and comparing full encodings is
+ * slow for keys with many certifications.
+ * <p>
+ * The digests of each section are in the same order as the iterators of PGPPublicKey: getKeySignatures
+ * for the key itself (which are the binding signatures for a subkey), and getSignaturesForID and
+ * getSignaturesForUserAttribute for all user ids or user attributes with the same packet. Callers
+ * should still check that the number of signatures matches, and use {@link #digestSignature} if it
+ * doesn't. Trust packets are ignored.
+ */
+class KeySignatureDigests {
+    private final ByteBuffer keyDigest;
+    private final List<ByteBuffer> keySignatures;
+    private final List<ByteBuffer> userPackets;
+    private final List<List<ByteBuffer>> userPacketSignatures;
+
+    private KeySignatureDigests(ByteBuffer keyDigest, List<ByteBuffer> keySignatures,
+            List<ByteBuffer> userPackets, List<List<ByteBuffer>> userPacketSignatures) {
+        this.keyDigest = keyDigest;
+        this.keySignatures = keySignatures;
+        this.userPackets = userPackets;
+        this.userPacketSignatures = userPacketSignatures;
+    }
+
+    static KeySignatureDigests create(PGPPublicKey key) throws IOException {
+        MessageDigest keyDigest = createDigest();
+        ArrayList<ByteBuffer> keySignatures = new ArrayList<>();
+        ArrayList<ByteBuffer> userPackets = new ArrayList<>();
+        ArrayList<List<ByteBuffer>> userPacketSignatures = new ArrayList<>();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(key.getEncoded()));
+        ArrayList<ByteBuffer> sectionSignatures = keySignatures;
+        RawPacket packet;
+        while ((packet = RawPacket.read(in)) != null) {
+            switch (packet.tag) {
+                case PacketTags.TRUST:
+                    continue;
+                case PacketTags.USER_ID:
+                case PacketTags.USER_ATTRIBUTE:
+                    sectionSignatures = new ArrayList<>();
+                    userPackets.add(ByteBuffer.wrap(packet.encoded));
+                    userPacketSignatures.add(sectionSignatures);
+                    break;
+                case PacketTags.SIGNATURE:
+                    sectionSignatures.add(ByteBuffer.wrap(createDigest().digest(packet.encoded)));
+                    break;
+            }
+            keyDigest.update(packet.encoded);
+        }
+
+        return new KeySignatureDigests(ByteBuffer.wrap(keyDigest.digest()), keySignatures,
+                userPackets, userPacketSignatures);
+    }
+
+    /** Returns true if both keys have the same packets, apart from trust packets. */
+    boolean isSameKey(KeySignatureDigests other) {
+        return keyDigest.equals(other.keyDigest);
+    }
+
+    List<ByteBuffer> getKeySignatures() {
+        return keySignatures;
+    }
+
+    List<ByteBuffer> getUserIdSignatures(byte[] rawUserId) throws IOException {
+        return getUserPacketSignatures(PublicKeyRebuilder.encodePacket(new UserIDPacket(rawUserId)));
+    }
+
+    List<ByteBuffer> getUserAttributeSignatures(PGPUserAttributeSubpacketVector userAttribute) throws IOException {
+        return getUserPacketSignatures(
+                PublicKeyRebuilder.encodePacket(new UserAttributePacket(userAttribute.toSubpacketArray())));
+    }
+
+    /** Adds the digests of all signatures of this key to the given set. */
+    void addAllSignaturesTo(Set<ByteBuffer> signatures) {
+        signatures.addAll(keySignatures);
+        for (List<ByteBuffer> sectionSignatures : userPacketSignatures) {
+            signatures.addAll(sectionSignatures);
+        }
+    }
+
+    /** Computes the digest of a single signature, the same way as for the signatures of a key. */
+    static ByteBuffer digestSignature(PGPSignature signature) throws IOException {
+        // the encoding of a PGPSignature includes its trust packet, if any
+        RawPacket packet = RawPacket.read(new DataInputStream(new ByteArrayInputStream(signature.getEncoded())));
+        if (packet == null) {
+            throw new IOException("Empty signature encoding!");
+        }
+        return ByteBuffer.wrap(createDigest().digest(packet.encoded));
+    }
+
+    private List<ByteBuffer> getUserPacketSignatures(ByteBuffer userPacket) {
+        ArrayList<ByteBuffer> signatures = new ArrayList<>();
+        for (int i = 0; i < userPackets.size(); i++) {
+            if (userPackets.get(i).equals(userPacket)) {
+                signatures.addAll(userPacketSignatures.get(i));
+            }
+        }
+        return signatures;
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available!", e);
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
@@ -92,6 +93,13 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
     public static final int PROGRESS_STRIDE_MILLISECONDS = 200;
     public static final String PASSPHRASE_FORMAT_NUMERIC9X4 = "numeric9x4";
 
+    // buffer sizes for streaming data, larger inputs get larger buffers to cut down per-chunk overhead
+    private static final int STREAM_BUFFER_SIZE_SMALL = 1 << 13;
+    private static final int STREAM_BUFFER_SIZE_LARGE = 1 << 16;
+    private static final int STREAM_BUFFER_SIZE_HUGE = 1 << 18;
+    private static final long LARGE_INPUT_THRESHOLD = 4 * 1024 * 1024;
+    private static final long HUGE_INPUT_THRESHOLD = 256 * 1024 * 1024;
+
     public PgpDecryptVerifyOperation(Context context, KeyRepository keyRepository, Progressable progressable) {
         super(context, keyRepository, progressable);
     }
@@ -111,6 +119,9 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             try {
                 InputStream inputStream = mContext.getContentResolver().openInputStream(input.getInputUri());
                 long inputSize = FileHelper.getFileSize(mContext, input.getInputUri(), 0);
+                // buffer here, otherwise bouncycastle wraps the stream into a small buffer of its own
+                inputStream = new BufferedInputStream(inputStream,
+                        getStreamBufferSize(inputSize > 0 ? inputSize : InputData.UNKNOWN_FILESIZE));
                 inputData = new InputData(inputStream, inputSize);
             } catch (SecurityException e) {
                 Timber.e(e, "Access denied for input URI: %s", input.getInputUri());
@@ -126,7 +137,11 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         }
 
         if (input.getOutputUri() == null) {
-            outputStream = new ByteArrayOutputStream();
+            // the output is returned as a byte array, so it must fit into memory anyway. the
+            // cleartext is usually about as large as the input, start out at that size.
+            byte[] inputBytes = input.getInputBytes();
+            outputStream = inputBytes != null
+                    ? new ByteArrayOutputStream(inputBytes.length) : new ByteArrayOutputStream();
         } else {
             try {
                 outputStream = mContext.getContentResolver().openOutputStream(input.getOutputUri());
@@ -204,6 +219,24 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         }
     }
 
+    /**
+     * Returns the size of the buffer used to stream data of the given size. Small inputs keep a
+     * small buffer, large files are streamed in larger chunks so that the per-chunk work of output,
+     * signature and charset checks is amortized. Inputs of unknown size are treated as large.
+     */
+    static int getStreamBufferSize(long inputSize) {
+        if (inputSize == InputData.UNKNOWN_FILESIZE) {
+            return STREAM_BUFFER_SIZE_LARGE;
+        }
+        if (inputSize >= HUGE_INPUT_THRESHOLD) {
+            return STREAM_BUFFER_SIZE_HUGE;
+        }
+        if (inputSize >= LARGE_INPUT_THRESHOLD) {
+            return STREAM_BUFFER_SIZE_LARGE;
+        }
+        return STREAM_BUFFER_SIZE_SMALL;
+    }
+
     private static class EncryptStreamResult {
 
         // this is non-null iff an error occurred, return directly
@@ -482,7 +515,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         long wholeSize = inputData.getSize() - inputData.getStreamPosition();
         boolean sizeIsKnown = inputData.getSize() != InputData.UNKNOWN_FILESIZE && wholeSize > 0;
         int length;
-        byte[] buffer = new byte[8192];
+        byte[] buffer = new byte[getStreamBufferSize(sizeIsKnown ? wholeSize : InputData.UNKNOWN_FILESIZE)];
         byte[] firstBytes = new byte[48];
         CharsetVerifier charsetVerifier = new CharsetVerifier(buffer, mimeType, charset);
 
@@ -816,6 +849,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
                         return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
                     }
+                    updateCachedSessionKeys(decryptionKey.getRing().getMasterKeyId(), decryptionKey.getKeyId(),
+                            passphrase);
                 } catch (PgpGeneralException e) {
                     log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
                     return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
@@ -997,7 +1032,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             long alreadyWritten = 0;
             long wholeSize = inputData.getSize() - inputData.getStreamPosition();
             int length;
-            byte[] buffer = new byte[1 << 16];
+            byte[] buffer = new byte[getStreamBufferSize(wholeSize > 0 ? wholeSize : InputData.UNKNOWN_FILESIZE)];
             InputStream in = inputData.getInputStream();
             while ((length = in.read(buffer)) > 0) {
                 if (out != null) {
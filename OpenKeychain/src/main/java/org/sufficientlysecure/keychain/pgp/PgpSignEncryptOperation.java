@@ -29,15 +29,25 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.SignatureException;
 import java.util.Collection;
 import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.bcpg.BCPGOutputStream;
@@ -104,6 +114,17 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         }
     }
 
+    // suspended operations are dropped if the security token doesn't return in time
+    private static final long SUSPENDED_OPERATION_TIMEOUT_MS = 10 * 60 * 1000;
+
+    private static final ConcurrentHashMap<PgpSignEncryptInputParcel, SuspendedOperation> suspendedOperations =
+            new ConcurrentHashMap<>();
+    // expired operations are also purged on every execute, this is for when none follows
+    private static final Handler purgeHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable purgeRunnable = PgpSignEncryptOperation::purgeExpiredOperations;
+
+    private SharedKeys sharedKeys;
+
     public PgpSignEncryptOperation(Context context, KeyRepository keyRepository, Progressable progressable, AtomicBoolean cancelled) {
         super(context, keyRepository, progressable, cancelled);
     }
@@ -112,9 +133,120 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         super(context, keyRepository, progressable);
     }
 
+    /**
+     * Keys looked up for a PgpSignEncryptData, and the signing key after it was unlocked. Operations on
+     * several inputs with the same data can share an instance, so this work is only done by the first of
+     * them. This is thread safe, so the operations may run in parallel once the keys are known.
+     */
+    public static class SharedKeys {
+        private volatile CanonicalizedSecretKey signingKey;
+        private final ConcurrentHashMap<Long, List<CanonicalizedPublicKey>> encryptionKeys = new ConcurrentHashMap<>();
+    }
+
+    public void setSharedKeys(SharedKeys sharedKeys) {
+        this.sharedKeys = sharedKeys;
+    }
+
+    /**
+     * State of an operation which stopped to have its hash signed by a security token. At that point, all
+     * output up to the signature packet has been written to the still open output streams. Once the token
+     * returns the signed hash, the signature packet is appended and the streams are closed, instead of
+     * reading, compressing and encrypting the whole input a second time.
+     * <p>
+     * This relies on the NfcSyncPGPContentSigner caching its digest, so generate() can be called again
+     * on the same signature generator after the signed hash was added to its map.
+     */
+    private static class SuspendedOperation {
+        final long suspendTime = SystemClock.elapsedRealtime();
+        final ByteBuffer hashToSign;
+        final Map<ByteBuffer, byte[]> signedHashes;
+        final PGPSignatureGenerator signatureGenerator;
+        final OutputStream signatureOut;
+        final OutputStreams streams;
+        final int signatureHashAlgorithm;
+
+        SuspendedOperation(byte[] hashToSign, Map<ByteBuffer, byte[]> signedHashes,
+                PGPSignatureGenerator signatureGenerator, OutputStream signatureOut, OutputStreams streams,
+                int signatureHashAlgorithm) {
+            this.hashToSign = ByteBuffer.wrap(hashToSign);
+            this.signedHashes = signedHashes;
+            this.signatureGenerator = signatureGenerator;
+            this.signatureOut = signatureOut;
+            this.streams = streams;
+            this.signatureHashAlgorithm = signatureHashAlgorithm;
+        }
+
+        boolean isExpired() {
+            return SystemClock.elapsedRealtime() - suspendTime > SUSPENDED_OPERATION_TIMEOUT_MS;
+        }
+    }
+
+    /** The output streams of an operation, which must be closed in this order to write all trailing packets. */
+    private static class OutputStreams {
+        final PGPCompressedDataGenerator compressGen;
+        final OutputStream encryptionOut;
+        final ArmoredOutputStream armorOut;
+        final ArmoredOutputStream detachedArmorOut;
+        final ByteArrayOutputStream detachedByteOut;
+        final OutputStream out;
+        final OutputStream outputStream;
+
+        OutputStreams(PGPCompressedDataGenerator compressGen, OutputStream encryptionOut,
+                ArmoredOutputStream armorOut, ArmoredOutputStream detachedArmorOut,
+                ByteArrayOutputStream detachedByteOut, OutputStream out, OutputStream outputStream) {
+            this.compressGen = compressGen;
+            this.encryptionOut = encryptionOut;
+            this.armorOut = armorOut;
+            this.detachedArmorOut = detachedArmorOut;
+            this.detachedByteOut = detachedByteOut;
+            this.out = out;
+            this.outputStream = outputStream;
+        }
+
+        void close() throws IOException {
+            if (compressGen != null) {
+                compressGen.close();
+            }
+
+            if (encryptionOut != null) {
+                encryptionOut.close();
+            }
+            // Note: Closing ArmoredOutputStream does not close the underlying stream
+            if (armorOut != null) {
+                armorOut.close();
+            }
+            // Note: Closing ArmoredOutputStream does not close the underlying stream
+            if (detachedArmorOut != null) {
+                detachedArmorOut.close();
+            }
+            // Also closes detachedBcpgOut
+            if (detachedByteOut != null) {
+                detachedByteOut.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+            if (outputStream != null) {
+                outputStream.close();
+            }
+        }
+    }
+
     @NonNull
     @Override
     public PgpSignEncryptResult execute(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput) {
+        purgeExpiredOperations();
+
+        SuspendedOperation suspendedOperation = takeSuspendedOperation(input, cryptoInput);
+        if (suspendedOperation != null) {
+            PgpSignEncryptResult result = resumeSuspendedOperation(suspendedOperation, cryptoInput);
+            if (result.success() && suspendedOperation.streams.outputStream instanceof ByteArrayOutputStream) {
+                byte[] outputData = ((ByteArrayOutputStream) suspendedOperation.streams.outputStream).toByteArray();
+                result.setOutputBytes(outputData);
+            }
+            return result;
+        }
+
         OperationLog log = new OperationLog();
 
         InputData inputData;
@@ -153,7 +285,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
             }
         }
 
-        PgpSignEncryptResult result = executeInternal(input.getData(), cryptoInput, inputData, outStream);
+        PgpSignEncryptResult result = executeInternal(input.getData(), cryptoInput, inputData, outStream, input);
         if (outStream instanceof ByteArrayOutputStream) {
             byte[] outputData = ((ByteArrayOutputStream) outStream).toByteArray();
             result.setOutputBytes(outputData);
@@ -165,14 +297,17 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
     @NonNull
     public PgpSignEncryptResult execute(PgpSignEncryptData data, CryptoInputParcel cryptoInput,
             InputData inputData, OutputStream outputStream) {
-        return executeInternal(data, cryptoInput, inputData, outputStream);
+        // the output stream is owned by the caller, so the operation can't be suspended
+        return executeInternal(data, cryptoInput, inputData, outputStream, null);
     }
 
     /**
      * Signs and/or encrypts data based on parameters of class
+     *
+     * @param suspendKey if not null, the operation is suspended under this key if it needs a security token
      */
     private PgpSignEncryptResult executeInternal(PgpSignEncryptData data, CryptoInputParcel cryptoInput,
-            InputData inputData, OutputStream outputStream) {
+            InputData inputData, OutputStream outputStream, @Nullable PgpSignEncryptInputParcel suspendKey) {
         int indent = 0;
         OperationLog log = new OperationLog();
 
@@ -215,8 +350,8 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         }
 
         /* Get keys for signature generation for later usage */
-        CanonicalizedSecretKey signingKey = null;
-        if (enableSignature) {
+        CanonicalizedSecretKey signingKey = sharedKeys != null ? sharedKeys.signingKey : null;
+        if (enableSignature && signingKey == null) {
 
             updateProgress(R.string.progress_extracting_signature_key, 0, 100);
 
@@ -285,6 +420,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                             log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
                             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                         }
+                        updateCachedSessionKeys(signingMasterKeyId, signingKey.getKeyId(), localPassphrase);
                         break;
                     }
 
@@ -298,6 +434,10 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
                 }
 
+                if (sharedKeys != null) {
+                    sharedKeys.signingKey = signingKey;
+                }
+
             } catch (KeyWritableRepository.NotFoundException e) {
                 log.add(LogType.MSG_PSE_ERROR_SIGN_KEY, indent);
                 return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
@@ -362,6 +502,8 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
         /* Initialize signature generator object for later usage */
         PGPSignatureGenerator signatureGenerator = null;
+        // mutable, so signed hashes can be added if the operation is resumed
+        Map<ByteBuffer, byte[]> signedHashes = new HashMap<>(cryptoInput.getCryptoData());
         if (enableSignature) {
             updateProgress(R.string.progress_preparing_signature, 4, 100);
 
@@ -369,7 +511,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 boolean cleartext = data.isCleartextSignature() && data.isEnableAsciiArmorOutput() && !enableEncryption;
                 signatureGenerator = signingKey.getDataSignatureGenerator(
                         signatureHashAlgorithm, cleartext,
-                        cryptoInput.getCryptoData(), cryptoInput.getSignatureTime());
+                        signedHashes, cryptoInput.getSignatureTime());
             } catch (PgpGeneralException e) {
                 log.add(LogType.MSG_PSE_ERROR_NFC, indent);
                 return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
@@ -564,17 +706,21 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 throw new AssertionError("cannot clearsign in non-ascii armored text, this is a bug!");
             }
 
+            OutputStreams streams = new OutputStreams(compressGen, encryptionOut, armorOut,
+                    detachedArmorOut, detachedByteOut, out, outputStream);
+
             if (enableSignature) {
                 updateProgress(R.string.progress_generating_signature, 95, 100);
+                OutputStream signatureOut = detachedBcpgOut != null ? detachedBcpgOut : pOut;
                 try {
-                    if (detachedBcpgOut != null) {
-                        signatureGenerator.generate().encode(detachedBcpgOut);
-                    } else {
-                        signatureGenerator.generate().encode(pOut);
-                    }
+                    signatureGenerator.generate().encode(signatureOut);
                 } catch (NfcSyncPGPContentSignerBuilder.NfcInteractionNeeded e) {
                     // this secret key diverts to a OpenPGP card, throw exception with hash that will be signed
                     log.add(LogType.MSG_PSE_PENDING_NFC, indent);
+                    if (suspendKey != null) {
+                        suspendOperation(suspendKey, new SuspendedOperation(e.hashToSign, signedHashes,
+                                signatureGenerator, signatureOut, streams, signatureHashAlgorithm));
+                    }
                     return new PgpSignEncryptResult(log, RequiredInputParcel.createSecurityTokenSignOperation(
                             signingKey.getRing().getMasterKeyId(), signingKey.getKeyId(),
                             e.hashToSign, e.hashAlgo, cryptoInput.getSignatureTime()), cryptoInput);
@@ -585,32 +731,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
             Timber.d("sign/encrypt time taken: " + format("%.2f", opTime / 1000.0) + "s");
 
             // closing outputs
-            // NOTE: closing needs to be done in the correct order!
-            if (compressGen != null) {
-                compressGen.close();
-            }
-
-            if (encryptionOut != null) {
-                encryptionOut.close();
-            }
-            // Note: Closing ArmoredOutputStream does not close the underlying stream
-            if (armorOut != null) {
-                armorOut.close();
-            }
-            // Note: Closing ArmoredOutputStream does not close the underlying stream
-            if (detachedArmorOut != null) {
-                detachedArmorOut.close();
-            }
-            // Also closes detachedBcpgOut
-            if (detachedByteOut != null) {
-                detachedByteOut.close();
-            }
-            if (out != null) {
-                out.close();
-            }
-            if (outputStream != null) {
-                outputStream.close();
-            }
+            streams.close();
 
         } catch (SignatureException e) {
             log.add(LogType.MSG_PSE_ERROR_SIG, indent);
@@ -626,6 +747,118 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         updateProgress(R.string.progress_done, 100, 100);
 
         log.add(LogType.MSG_PSE_OK, indent);
+        return createOkResult(log, opTime, detachedByteOut, signatureHashAlgorithm);
+    }
+
+    @Nullable
+    private static SuspendedOperation takeSuspendedOperation(
+            PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput) {
+        SuspendedOperation suspendedOperation = suspendedOperations.get(input);
+        if (suspendedOperation == null || !cryptoInput.getCryptoData().containsKey(suspendedOperation.hashToSign)) {
+            return null;
+        }
+        // only one caller may resume, the streams can't be written concurrently
+        if (!suspendedOperations.remove(input, suspendedOperation)) {
+            return null;
+        }
+        if (suspendedOperation.isExpired()) {
+            closeQuietly(suspendedOperation);
+            return null;
+        }
+        return suspendedOperation;
+    }
+
+    private static void suspendOperation(PgpSignEncryptInputParcel input, SuspendedOperation suspendedOperation) {
+        SuspendedOperation previous = suspendedOperations.put(input, suspendedOperation);
+        if (previous != null) {
+            closeQuietly(previous);
+        }
+
+        // by then, this and all earlier operations are expired
+        purgeHandler.removeCallbacks(purgeRunnable);
+        purgeHandler.postDelayed(purgeRunnable, SUSPENDED_OPERATION_TIMEOUT_MS + 1000);
+    }
+
+    /** Drops operations the security token never returned for, to release their output streams. */
+    private static void purgeExpiredOperations() {
+        Iterator<SuspendedOperation> it = suspendedOperations.values().iterator();
+        while (it.hasNext()) {
+            SuspendedOperation suspendedOperation = it.next();
+            if (suspendedOperation.isExpired()) {
+                it.remove();
+                closeQuietly(suspendedOperation);
+            }
+        }
+    }
+
+    /**
+     * Drops the operations which wait for a security token to sign one of the given hashes, because
+     * the token operation was cancelled. Operations are only suspended within a process, so this only
+     * affects those of the calling process.
+     */
+    public static void dropSuspendedOperations(byte[][] hashesToSign) {
+        for (byte[] hashToSign : hashesToSign) {
+            ByteBuffer hash = ByteBuffer.wrap(hashToSign);
+            Iterator<SuspendedOperation> it = suspendedOperations.values().iterator();
+            while (it.hasNext()) {
+                SuspendedOperation suspendedOperation = it.next();
+                if (suspendedOperation.hashToSign.equals(hash)) {
+                    it.remove();
+                    closeQuietly(suspendedOperation);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(SuspendedOperation suspendedOperation) {
+        try {
+            suspendedOperation.streams.close();
+        } catch (IOException e) {
+            Timber.e(e, "Error closing streams of suspended operation");
+        }
+    }
+
+    /** Appends the signature created with a signed hash from the security token, and closes the streams. */
+    private PgpSignEncryptResult resumeSuspendedOperation(
+            SuspendedOperation suspendedOperation, CryptoInputParcel cryptoInput) {
+        int indent = 0;
+        OperationLog log = new OperationLog();
+
+        log.add(LogType.MSG_PSE, indent);
+        indent += 1;
+        log.add(LogType.MSG_PSE_RESUMING, indent);
+
+        updateProgress(R.string.progress_generating_signature, 95, 100);
+
+        long opTime, startTime = System.currentTimeMillis();
+        try {
+            // the signer looks up its cached digest in this map, which now contains the signed hash
+            suspendedOperation.signedHashes.putAll(cryptoInput.getCryptoData());
+            suspendedOperation.signatureGenerator.generate().encode(suspendedOperation.signatureOut);
+
+            opTime = System.currentTimeMillis() - startTime;
+            Timber.d("sign/encrypt resume time taken: " + format("%.2f", opTime / 1000.0) + "s");
+
+            suspendedOperation.streams.close();
+        } catch (PGPException e) {
+            closeQuietly(suspendedOperation);
+            log.add(LogType.MSG_PSE_ERROR_PGP, indent);
+            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        } catch (IOException e) {
+            closeQuietly(suspendedOperation);
+            log.add(LogType.MSG_PSE_ERROR_IO, indent);
+            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        }
+
+        updateProgress(R.string.progress_done, 100, 100);
+
+        log.add(LogType.MSG_PSE_OK, indent);
+        return createOkResult(log, opTime, suspendedOperation.streams.detachedByteOut,
+                suspendedOperation.signatureHashAlgorithm);
+    }
+
+    private static PgpSignEncryptResult createOkResult(OperationLog log, long opTime,
+            ByteArrayOutputStream detachedByteOut, int signatureHashAlgorithm) {
         PgpSignEncryptResult result = new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_OK, log);
         result.mOperationTime = opTime;
         if (detachedByteOut != null) {
@@ -649,12 +882,25 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
     private boolean processEncryptionMasterKeyId(int indent, OperationLog log, PgpSignEncryptData data,
             PGPEncryptedDataGenerator cPk, long encryptMasterKeyId) {
+        List<CanonicalizedPublicKey> sharedEncryptionKeys =
+                sharedKeys != null ? sharedKeys.encryptionKeys.get(encryptMasterKeyId) : null;
+        if (sharedEncryptionKeys != null) {
+            for (CanonicalizedPublicKey key : sharedEncryptionKeys) {
+                cPk.addMethod(key.getPubKeyEncryptionGenerator(data.isHiddenRecipients()));
+                log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
+                        KeyFormattingUtils.convertKeyIdToHex(key.getKeyId()));
+            }
+            return true;
+        }
+
         try {
             CanonicalizedPublicKeyRing keyRing = mKeyRepository.getCanonicalizedPublicKeyRing(encryptMasterKeyId);
             List<Long> encryptSubKeyIds = mKeyRepository.getPublicEncryptionIds(encryptMasterKeyId);
+            List<CanonicalizedPublicKey> encryptionKeys = new ArrayList<>(encryptSubKeyIds.size());
             for (Long subKeyId : encryptSubKeyIds) {
                 CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
                 cPk.addMethod(key.getPubKeyEncryptionGenerator(data.isHiddenRecipients()));
+                encryptionKeys.add(key);
                 log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
                         KeyFormattingUtils.convertKeyIdToHex(subKeyId));
             }
@@ -668,6 +914,9 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 log.add(LogType.MSG_PSE_ERROR_REVOKED_OR_EXPIRED, indent);
                 return false;
             }
+            if (sharedKeys != null) {
+                sharedKeys.encryptionKeys.put(encryptMasterKeyId, encryptionKeys);
+            }
         } catch (KeyWritableRepository.NotFoundException e) {
             log.add(LogType.MSG_PSE_KEY_UNKNOWN, indent + 1,
                     KeyFormattingUtils.convertKeyIdToHex(encryptMasterKeyId));
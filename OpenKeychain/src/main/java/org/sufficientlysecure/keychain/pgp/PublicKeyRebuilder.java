@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import androidx.annotation.Nullable;
+
+import org.bouncycastle.bcpg.BCPGOutputStream;
+import org.bouncycastle.bcpg.ContainedPacket;
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.bcpg.UserAttributePacket;
+import org.bouncycastle.bcpg.UserIDPacket;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPUserAttributeSubpacketVector;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+
+
+/**
+ * Removes certifications, user ids and user attributes from a PGPPublicKey, and builds the resulting
+ * key in a single step. PGPPublicKey.removeCertification copies the whole key on each call, which
+ * takes quadratic time for keys with many certifications, e.g. keys flooded with third-party certs.
+ * <p>
+ * Removals are only recorded, and applied in {@link #build} by filtering the encoding of the original
+ * key. Everything that isn't removed stays exactly as it was, including the order of packets. Like
+ * with removeCertification, a removed user id or user attribute takes all its certifications with it.
+ */
+@SuppressWarnings("unchecked") // BouncyCastle doesn't do generics here :(
+class PublicKeyRebuilder {
+    private static final ByteBuffer KEY_SIGNATURES = ByteBuffer.wrap(new byte[0]);
+
+    private final PGPPublicKey key;
+
+    private final ArrayList<PGPSignature> removedKeySignatures = new ArrayList<>();
+    private final ArrayList<byte[]> removedUserIds = new ArrayList<>();
+    private final ArrayList<PGPUserAttributeSubpacketVector> removedUserAttributes = new ArrayList<>();
+    private final HashMap<ByteBuffer, ArrayList<PGPSignature>> removedUserIdSignatures = new HashMap<>();
+    private final HashMap<PGPUserAttributeSubpacketVector, ArrayList<PGPSignature>> removedUserAttributeSignatures =
+            new HashMap<>();
+
+    private final HashMap<ByteBuffer, Integer> userIdCounts = new HashMap<>();
+    private int remainingUserIds;
+
+    @Nullable
+    private List<PGPSignature> replacedKeySignatures;
+
+    PublicKeyRebuilder(PGPPublicKey key) {
+        this.key = key;
+
+        for (byte[] rawUserId : new IterableIterator<byte[]>(key.getRawUserIDs())) {
+            ByteBuffer userId = ByteBuffer.wrap(rawUserId);
+            Integer count = userIdCounts.get(userId);
+            userIdCounts.put(userId, count == null ? 1 : count + 1);
+            remainingUserIds += 1;
+        }
+    }
+
+    /** Removes a direct key signature, revocation or subkey binding signature. */
+    void removeCertification(PGPSignature certification) {
+        removedKeySignatures.add(certification);
+    }
+
+    void removeCertification(byte[] rawUserId, PGPSignature certification) {
+        ByteBuffer userId = ByteBuffer.wrap(rawUserId);
+        ArrayList<PGPSignature> signatures = removedUserIdSignatures.get(userId);
+        if (signatures == null) {
+            signatures = new ArrayList<>();
+            removedUserIdSignatures.put(userId, signatures);
+        }
+        signatures.add(certification);
+    }
+
+    void removeCertification(PGPUserAttributeSubpacketVector userAttribute, PGPSignature certification) {
+        ArrayList<PGPSignature> signatures = removedUserAttributeSignatures.get(userAttribute);
+        if (signatures == null) {
+            signatures = new ArrayList<>();
+            removedUserAttributeSignatures.put(userAttribute, signatures);
+        }
+        signatures.add(certification);
+    }
+
+    /** Removes the first remaining occurrence of a user id, with all its certifications. */
+    void removeCertification(byte[] rawUserId) {
+        ByteBuffer userId = ByteBuffer.wrap(rawUserId);
+        Integer count = userIdCounts.get(userId);
+        if (count != null && count > 0) {
+            userIdCounts.put(userId, count - 1);
+            remainingUserIds -= 1;
+        }
+        removedUserIds.add(rawUserId);
+    }
+
+    /** Removes the first remaining occurrence of a user attribute, with all its certifications. */
+    void removeCertification(PGPUserAttributeSubpacketVector userAttribute) {
+        removedUserAttributes.add(userAttribute);
+    }
+
+    /** Replaces all key signatures with the given ones. This is meant for subkeys, which have no user ids. */
+    void replaceKeySignatures(List<PGPSignature> keySignatures) {
+        replacedKeySignatures = keySignatures;
+    }
+
+    boolean hasUserIds() {
+        return remainingUserIds > 0;
+    }
+
+    /**
+     * Builds the key with all recorded removals applied. If nothing was removed, the original key is
+     * returned as is.
+     *
+     * @param masterKey the master key this is a subkey of, or null if this is a master key
+     */
+    PGPPublicKey build(@Nullable PGPPublicKey masterKey) throws IOException {
+        if (replacedKeySignatures == null && removedKeySignatures.isEmpty() && removedUserIds.isEmpty()
+                && removedUserAttributes.isEmpty() && removedUserIdSignatures.isEmpty()
+                && removedUserAttributeSignatures.isEmpty()) {
+            return key;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (masterKey != null) {
+            out.write(masterKey.getPublicKeyPacket().getEncoded());
+        }
+        if (replacedKeySignatures != null) {
+            out.write(key.getPublicKeyPacket().getEncoded());
+            for (PGPSignature signature : replacedKeySignatures) {
+                out.write(signature.getEncoded());
+            }
+        } else {
+            writeFilteredKey(out);
+        }
+
+        PGPPublicKeyRing ring = new PGPPublicKeyRing(out.toByteArray(), new JcaKeyFingerprintCalculator());
+        return masterKey != null ? ring.getPublicKey(key.getKeyID()) : ring.getPublicKey();
+    }
+
+    private void writeFilteredKey(ByteArrayOutputStream out) throws IOException {
+        HashMap<ByteBuffer, Integer> removedUserPackets = new HashMap<>();
+        for (byte[] rawUserId : removedUserIds) {
+            increment(removedUserPackets, encodePacket(new UserIDPacket(rawUserId)));
+        }
+        for (PGPUserAttributeSubpacketVector userAttribute : removedUserAttributes) {
+            increment(removedUserPackets, encodePacket(new UserAttributePacket(userAttribute.toSubpacketArray())));
+        }
+
+        HashMap<ByteBuffer, HashMap<ByteBuffer, Integer>> removedSignatures = new HashMap<>();
+        addSignaturePackets(removedSignatures, KEY_SIGNATURES, removedKeySignatures);
+        for (ByteBuffer userId : removedUserIdSignatures.keySet()) {
+            ByteBuffer userIdPacket = encodePacket(new UserIDPacket(userId.array()));
+            addSignaturePackets(removedSignatures, userIdPacket, removedUserIdSignatures.get(userId));
+        }
+        for (PGPUserAttributeSubpacketVector userAttribute : removedUserAttributeSignatures.keySet()) {
+            ByteBuffer userAttributePacket =
+                    encodePacket(new UserAttributePacket(userAttribute.toSubpacketArray()));
+            addSignaturePackets(removedSignatures, userAttributePacket,
+                    removedUserAttributeSignatures.get(userAttribute));
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(key.getEncoded()));
+        HashMap<ByteBuffer, Integer> sectionSignatures = removedSignatures.get(KEY_SIGNATURES);
+        boolean skipSection = false;
+        boolean skipTrust = false;
+
+        RawPacket packet;
+        while ((packet = RawPacket.read(in)) != null) {
+            boolean skip;
+            switch (packet.tag) {
+                case PacketTags.USER_ID:
+                case PacketTags.USER_ATTRIBUTE: {
+                    ByteBuffer userPacket = ByteBuffer.wrap(packet.encoded);
+                    skipSection = decrement(removedUserPackets, userPacket);
+                    sectionSignatures = removedSignatures.get(userPacket);
+                    skip = skipSection;
+                    break;
+                }
+                case PacketTags.SIGNATURE: {
+                    skip = skipSection || (sectionSignatures != null
+                            && decrement(sectionSignatures, ByteBuffer.wrap(packet.encoded)));
+                    break;
+                }
+                case PacketTags.TRUST: {
+                    // trust packets belong to the packet right before them
+                    skip = skipTrust;
+                    break;
+                }
+                default: {
+                    // the key packet itself
+                    skip = false;
+                }
+            }
+
+            if (packet.tag != PacketTags.TRUST) {
+                skipTrust = skip;
+            }
+            if (!skip) {
+                out.write(packet.encoded);
+            }
+        }
+    }
+
+    private static void addSignaturePackets(HashMap<ByteBuffer, HashMap<ByteBuffer, Integer>> removedSignatures,
+            ByteBuffer section, List<PGPSignature> signatures) throws IOException {
+        if (signatures.isEmpty()) {
+            return;
+        }
+        HashMap<ByteBuffer, Integer> sectionSignatures = removedSignatures.get(section);
+        if (sectionSignatures == null) {
+            sectionSignatures = new HashMap<>();
+            removedSignatures.put(section, sectionSignatures);
+        }
+        for (PGPSignature signature : signatures) {
+            // the encoding of a PGPSignature includes its trust packet, if any
+            RawPacket packet = RawPacket.read(new DataInputStream(new ByteArrayInputStream(signature.getEncoded())));
+            if (packet == null) {
+                throw new IOException("Empty signature encoding!");
+            }
+            increment(sectionSignatures, ByteBuffer.wrap(packet.encoded));
+        }
+    }
+
+    static ByteBuffer encodePacket(ContainedPacket packet) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BCPGOutputStream bcpgOut = new BCPGOutputStream(out);
+        bcpgOut.writePacket(packet);
+        bcpgOut.close();
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static void increment(HashMap<ByteBuffer, Integer> counts, ByteBuffer key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private static boolean decrement(HashMap<ByteBuffer, Integer> counts, ByteBuffer key) {
+        Integer count = counts.get(key);
+        if (count == null || count == 0) {
+            return false;
+        }
+        counts.put(key, count - 1);
+        return true;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import androidx.annotation.Nullable;
+
+
+/**
+ * A single packet with its header, as it appears in the encoding of a key. Only definite lengths are
+ * supported, since partial and indeterminate lengths are not allowed in keys.
+ */
+class RawPacket {
+    final int tag;
+    final byte[] encoded;
+
+    private RawPacket(int tag, byte[] encoded) {
+        this.tag = tag;
+        this.encoded = encoded;
+    }
+
+    /** Reads the next packet from the stream, or returns null at the end of the stream. */
+    @Nullable
+    static RawPacket read(DataInputStream in) throws IOException {
+        int header = in.read();
+        if (header < 0) {
+            return null;
+        }
+        if ((header & 0x80) == 0) {
+            throw new IOException("Invalid packet header!");
+        }
+
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        packet.write(header);
+
+        int tag;
+        long bodyLength;
+        if ((header & 0x40) != 0) {
+            tag = header & 0x3f;
+            int first = readByte(in, packet);
+            if (first < 192) {
+                bodyLength = first;
+            } else if (first <= 223) {
+                bodyLength = ((first - 192) << 8) + readByte(in, packet) + 192;
+            } else if (first == 255) {
+                bodyLength = readLength(in, packet, 4);
+            } else {
+                throw new IOException("Partial body lengths are not allowed in keys!");
+            }
+        } else {
+            tag = (header >> 2) & 0x0f;
+            switch (header & 0x03) {
+                case 0:
+                    bodyLength = readLength(in, packet, 1);
+                    break;
+                case 1:
+                    bodyLength = readLength(in, packet, 2);
+                    break;
+                case 2:
+                    bodyLength = readLength(in, packet, 4);
+                    break;
+                default:
+                    throw new IOException("Indeterminate packet lengths are not allowed in keys!");
+            }
+        }
+        if (bodyLength > Integer.MAX_VALUE) {
+            throw new IOException("Packet too large!");
+        }
+
+        byte[] body = new byte[(int) bodyLength];
+        in.readFully(body);
+        packet.write(body);
+        return new RawPacket(tag, packet.toByteArray());
+    }
+
+    private static int readByte(DataInputStream in, ByteArrayOutputStream packet) throws IOException {
+        int b = in.readUnsignedByte();
+        packet.write(b);
+        return b;
+    }
+
+    private static long readLength(DataInputStream in, ByteArrayOutputStream packet, int bytes)
+            throws IOException {
+        long length = 0;
+        for (int i = 0; i < bytes; i++) {
+            length = (length << 8) | readByte(in, packet);
+        }
+        return length;
+    }
+}
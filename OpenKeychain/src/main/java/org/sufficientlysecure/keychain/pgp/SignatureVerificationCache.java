@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import androidx.annotation.Nullable;
+
+
+/**
+ * Remembers the results of signature verifications during {@link UncachedKeyRing#canonicalize}, so
+ * unchanged keyrings can be canonicalized again without any public key operations. Cache keys are
+ * computed by UncachedKeyRing and cover all data the verification depends on.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface SignatureVerificationCache {
+    /** @return the cached verification result, or null if this signature wasn't verified before */
+    @Nullable
+    Boolean getVerificationResult(long masterKeyId, byte[] cacheKey);
+
+    void putVerificationResult(long masterKeyId, byte[] cacheKey, boolean verified);
+}
@@ -24,21 +24,32 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.PacketTags;
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
 import org.bouncycastle.bcpg.SignatureSubpacketTags;
 import org.bouncycastle.bcpg.UserAttributeSubpacketTags;
@@ -96,6 +107,18 @@ public class UncachedKeyRing {
     final boolean mIsSecret;
 
     private static final int CANONICALIZE_MAX_USER_IDS = 100;
+    public static final int CANONICALIZE_MAX_THIRD_PARTY_CERTS = 500;
+
+    private static final int VERIFICATION_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    // below this, handing signatures to other threads costs more than it saves
+    private static final int PARALLEL_VERIFICATION_MIN_SIGNATURES = 4;
+
+    private static final ThreadPoolExecutor verificationExecutor = new ThreadPoolExecutor(
+            VERIFICATION_THREAD_COUNT, VERIFICATION_THREAD_COUNT, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    static {
+        verificationExecutor.allowCoreThreadTimeOut(true);
+    }
 
     UncachedKeyRing(PGPKeyRing ring) {
         mRing = ring;
@@ -359,8 +382,30 @@ public class UncachedKeyRing {
      * @return A canonicalized key, or null on fatal error (log will include a message in this case)
      *
      */
-    @SuppressWarnings("ConstantConditions")
     public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport) {
+        return canonicalize(log, indent, forExport, null);
+    }
+
+    /** Same as {@link #canonicalize(OperationLog, int, boolean)}, but skips verification of self-signatures
+     * whose result is found in the given cache, and adds the results of all others to it.
+     *
+     * @param verificationCache cache for signature verification results, or null to verify everything
+     */
+    public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+            @Nullable SignatureVerificationCache verificationCache) {
+        return canonicalize(log, indent, forExport, verificationCache, CANONICALIZE_MAX_THIRD_PARTY_CERTS);
+    }
+
+    /** Same as {@link #canonicalize(OperationLog, int, boolean, SignatureVerificationCache)}, but with a
+     * custom limit for certificates by other keys. Of those, only maxThirdPartyCerts on each user id and
+     * user attribute are kept, to defend against keys flooded with certificates. See
+     * {@link #selectExcessForeignCerts} for which ones.
+     *
+     * @param maxThirdPartyCerts maximum number of certificates by other keys kept per user id
+     */
+    @SuppressWarnings("ConstantConditions")
+    public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+            @Nullable SignatureVerificationCache verificationCache, int maxThirdPartyCerts) {
 
         log.add(isSecret() ? LogType.MSG_KC_SECRET : LogType.MSG_KC_PUBLIC,
                 indent, KeyFormattingUtils.convertKeyIdToHex(getMasterKeyId()));
@@ -389,12 +434,15 @@ public class UncachedKeyRing {
             return null;
         }
 
+        // self-signatures are verified up front on all cores, the checks below only look up the results
+        SignatureVerificationCache verifications = verifySelfSignaturesInParallel(masterKey, verificationCache);
+
         {
             log.add(LogType.MSG_KC_MASTER,
                     indent, KeyFormattingUtils.convertKeyIdToHex(masterKey.getKeyID()));
             indent += 1;
 
-            PGPPublicKey modified = masterKey;
+            PublicKeyRebuilder rebuilder = new PublicKeyRebuilder(masterKey);
             PGPSignature revocation = null;
             PGPSignature notation = null;
             for (PGPSignature zert : new IterableIterator<PGPSignature>(masterKey.getKeySignatures())) {
@@ -407,7 +455,7 @@ public class UncachedKeyRing {
                         || type == PGPSignature.POSITIVE_CERTIFICATION
                         || type == PGPSignature.CERTIFICATION_REVOCATION) {
                     log.add(LogType.MSG_KC_MASTER_BAD_TYPE_UID, indent);
-                    modified = PGPPublicKey.removeCertification(modified, zert);
+                    rebuilder.removeCertification(zert);
                     badCerts += 1;
                     continue;
                 }
@@ -416,7 +464,7 @@ public class UncachedKeyRing {
                 if (type != PGPSignature.KEY_REVOCATION && type != PGPSignature.DIRECT_KEY) {
                     // Unknown type, just remove
                     log.add(LogType.MSG_KC_MASTER_BAD_TYPE, indent, "0x" + Integer.toString(type, 16));
-                    modified = PGPPublicKey.removeCertification(modified, zert);
+                    rebuilder.removeCertification(zert);
                     badCerts += 1;
                     continue;
                 }
@@ -424,22 +472,22 @@ public class UncachedKeyRing {
                 if (cert.getCreationTime().after(nowPlusOneDay)) {
                     // Creation date in the future? No way!
                     log.add(LogType.MSG_KC_MASTER_BAD_TIME, indent);
-                    modified = PGPPublicKey.removeCertification(modified, zert);
+                    rebuilder.removeCertification(zert);
                     badCerts += 1;
                     continue;
                 }
 
                 try {
-                    cert.init(masterKey);
-                    if (!cert.verifySignature(masterKey)) {
+                    if (!verifySelfSignature(verifications, masterKey, cert, masterKey, PacketTags.PUBLIC_KEY,
+                            null, () -> cert.verifySignature(masterKey))) {
                         log.add(LogType.MSG_KC_MASTER_BAD, indent);
-                        modified = PGPPublicKey.removeCertification(modified, zert);
+                        rebuilder.removeCertification(zert);
                         badCerts += 1;
                         continue;
                     }
                 } catch (PgpGeneralException e) {
                     log.add(LogType.MSG_KC_MASTER_BAD_ERR, indent);
-                    modified = PGPPublicKey.removeCertification(modified, zert);
+                    rebuilder.removeCertification(zert);
                     badCerts += 1;
                     continue;
                 }
@@ -448,7 +496,7 @@ public class UncachedKeyRing {
                 if (forExport && cert.isLocal()) {
                     // Remove revocation certs with "local" flag
                     log.add(LogType.MSG_KC_MASTER_LOCAL, indent);
-                    modified = PGPPublicKey.removeCertification(modified, zert);
+                    rebuilder.removeCertification(zert);
                     continue;
                 }
 
@@ -457,7 +505,7 @@ public class UncachedKeyRing {
                     // must be local, otherwise strip!
                     if (!cert.isLocal()) {
                         log.add(LogType.MSG_KC_MASTER_BAD_TYPE, indent);
-                        modified = PGPPublicKey.removeCertification(modified, zert);
+                        rebuilder.removeCertification(zert);
                         badCerts += 1;
                         continue;
                     }
@@ -468,19 +516,19 @@ public class UncachedKeyRing {
                         // more notations? at least one is superfluous, then.
                     } else if (notation.getCreationTime().before(zert.getCreationTime())) {
                         log.add(LogType.MSG_KC_NOTATION_DUP, indent);
-                        modified = PGPPublicKey.removeCertification(modified, notation);
+                        rebuilder.removeCertification(notation);
                         redundantCerts += 1;
                         notation = zert;
                     } else {
                         log.add(LogType.MSG_KC_NOTATION_DUP, indent);
-                        modified = PGPPublicKey.removeCertification(modified, zert);
+                        rebuilder.removeCertification(zert);
                         redundantCerts += 1;
                     }
                     continue;
                 } else if (cert.isLocal()) {
                     // Remove revocation certs with "local" flag
                     log.add(LogType.MSG_KC_MASTER_BAD_LOCAL, indent);
-                    modified = PGPPublicKey.removeCertification(modified, zert);
+                    rebuilder.removeCertification(zert);
                     badCerts += 1;
                     continue;
                 }
@@ -491,12 +539,12 @@ public class UncachedKeyRing {
                     // more revocations? at least one is superfluous, then.
                 } else if (revocation.getCreationTime().before(zert.getCreationTime())) {
                     log.add(LogType.MSG_KC_REVOKE_DUP, indent);
-                    modified = PGPPublicKey.removeCertification(modified, revocation);
+                    rebuilder.removeCertification(revocation);
                     redundantCerts += 1;
                     revocation = zert;
                 } else {
                     log.add(LogType.MSG_KC_REVOKE_DUP, indent);
-                    modified = PGPPublicKey.removeCertification(modified, zert);
+                    rebuilder.removeCertification(zert);
                     redundantCerts += 1;
                 }
             }
@@ -506,7 +554,7 @@ public class UncachedKeyRing {
                 // If there isn't, might as well strip it
                 if (new WrappedSignature(notation).getNotation().isEmpty()) {
                     log.add(LogType.MSG_KC_NOTATION_EMPTY, indent);
-                    modified = PGPPublicKey.removeCertification(modified, notation);
+                    rebuilder.removeCertification(notation);
                     redundantCerts += 1;
                 }
             }
@@ -524,17 +572,18 @@ public class UncachedKeyRing {
                 if (processedUserIds.contains(userId)) {
                     log.add(LogType.MSG_KC_UID_DUP, indent, userId);
                     // strip out the first found user id with this name
-                    modified = PGPPublicKey.removeCertification(modified, rawUserId);
+                    rebuilder.removeCertification(rawUserId);
                 }
                 if (processedUserIds.size() > CANONICALIZE_MAX_USER_IDS) {
                     log.add(LogType.MSG_KC_UID_TOO_MANY, indent, userId);
                     // strip out the user id
-                    modified = PGPPublicKey.removeCertification(modified, rawUserId);
+                    rebuilder.removeCertification(rawUserId);
                 }
                 processedUserIds.add(userId);
 
                 PGPSignature selfCert = null;
                 revocation = null;
+                ArrayList<PGPSignature> foreignCerts = new ArrayList<>();
 
                 // look through signatures for this specific user id
                 @SuppressWarnings("unchecked")
@@ -552,7 +601,7 @@ public class UncachedKeyRing {
                                 && type != PGPSignature.CERTIFICATION_REVOCATION) {
                             log.add(LogType.MSG_KC_UID_BAD_TYPE,
                                     indent, "0x" + Integer.toString(zert.getSignatureType(), 16));
-                            modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
+                            rebuilder.removeCertification(rawUserId, zert);
                             badCerts += 1;
                             continue;
                         }
@@ -560,7 +609,7 @@ public class UncachedKeyRing {
                         if (cert.getCreationTime().after(nowPlusOneDay)) {
                             // Creation date in the future? No way!
                             log.add(LogType.MSG_KC_UID_BAD_TIME, indent);
-                            modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
+                            rebuilder.removeCertification(rawUserId, zert);
                             badCerts += 1;
                             continue;
                         }
@@ -568,7 +617,7 @@ public class UncachedKeyRing {
                         if (cert.isLocal()) {
                             // Creation date in the future? No way!
                             log.add(LogType.MSG_KC_UID_BAD_LOCAL, indent);
-                            modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
+                            rebuilder.removeCertification(rawUserId, zert);
                             badCerts += 1;
                             continue;
                         }
@@ -579,26 +628,29 @@ public class UncachedKeyRing {
                             if (isSecret()) {
                                 log.add(LogType.MSG_KC_UID_FOREIGN,
                                         indent, KeyFormattingUtils.convertKeyIdToHex(certId));
-                                modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
+                                rebuilder.removeCertification(rawUserId, zert);
                                 badCerts += 1;
+                            } else {
+                                foreignCerts.add(zert);
                             }
                             continue;
                         }
 
                         // Otherwise, first make sure it checks out
                         try {
-                            cert.init(masterKey);
-                            if (!cert.verifySignature(masterKey, rawUserId)) {
+                            if (!verifySelfSignature(verifications, masterKey, cert, masterKey,
+                                    PacketTags.USER_ID, () -> rawUserId,
+                                    () -> cert.verifySignature(masterKey, rawUserId))) {
                                 log.add(LogType.MSG_KC_UID_BAD,
                                         indent, userId);
-                                modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
+                                rebuilder.removeCertification(rawUserId, zert);
                                 badCerts += 1;
                                 continue;
                             }
                         } catch (PgpGeneralException e) {
                             log.add(LogType.MSG_KC_UID_BAD_ERR,
                                     indent, userId);
-                            modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
+                            rebuilder.removeCertification(rawUserId, zert);
                             badCerts += 1;
                             continue;
                         }
@@ -613,13 +665,13 @@ public class UncachedKeyRing {
                                 } else if (selfCert.getCreationTime().before(cert.getCreationTime())) {
                                     log.add(LogType.MSG_KC_UID_CERT_DUP,
                                             indent, userId);
-                                    modified = PGPPublicKey.removeCertification(modified, rawUserId, selfCert);
+                                    rebuilder.removeCertification(rawUserId, selfCert);
                                     redundantCerts += 1;
                                     selfCert = zert;
                                 } else {
                                     log.add(LogType.MSG_KC_UID_CERT_DUP,
                                             indent, userId);
-                                    modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
+                                    rebuilder.removeCertification(rawUserId, zert);
                                     redundantCerts += 1;
                                 }
                                 // If there is a revocation certificate, and it's older than this, drop it
@@ -627,7 +679,7 @@ public class UncachedKeyRing {
                                         && revocation.getCreationTime().before(selfCert.getCreationTime())) {
                                     log.add(LogType.MSG_KC_UID_REVOKE_OLD,
                                             indent, userId);
-                                    modified = PGPPublicKey.removeCertification(modified, rawUserId, revocation);
+                                    rebuilder.removeCertification(rawUserId, revocation);
                                     revocation = null;
                                     redundantCerts += 1;
                                 }
@@ -638,7 +690,7 @@ public class UncachedKeyRing {
                                 if (selfCert != null && selfCert.getCreationTime().after(zert.getCreationTime())) {
                                     log.add(LogType.MSG_KC_UID_REVOKE_OLD,
                                             indent, userId);
-                                    modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
+                                    rebuilder.removeCertification(rawUserId, zert);
                                     redundantCerts += 1;
                                     continue;
                                 }
@@ -649,13 +701,13 @@ public class UncachedKeyRing {
                                 } else if (revocation.getCreationTime().before(cert.getCreationTime())) {
                                     log.add(LogType.MSG_KC_UID_REVOKE_DUP,
                                             indent, userId);
-                                    modified = PGPPublicKey.removeCertification(modified, rawUserId, revocation);
+                                    rebuilder.removeCertification(rawUserId, revocation);
                                     redundantCerts += 1;
                                     revocation = zert;
                                 } else {
                                     log.add(LogType.MSG_KC_UID_REVOKE_DUP,
                                             indent, userId);
-                                    modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
+                                    rebuilder.removeCertification(rawUserId, zert);
                                     redundantCerts += 1;
                                 }
                                 break;
@@ -663,16 +715,26 @@ public class UncachedKeyRing {
                     }
                 }
 
+                List<PGPSignature> excessCerts = selectExcessForeignCerts(foreignCerts, maxThirdPartyCerts);
+                if (!excessCerts.isEmpty()) {
+                    log.add(LogType.MSG_KC_UID_FOREIGN_TOO_MANY, indent,
+                            Integer.toString(excessCerts.size()), userId);
+                    for (PGPSignature excessCert : excessCerts) {
+                        rebuilder.removeCertification(rawUserId, excessCert);
+                    }
+                    redundantCerts += excessCerts.size();
+                }
+
                 // If no valid certificate (if only a revocation) remains, drop it
                 if (selfCert == null && revocation == null) {
                     log.add(LogType.MSG_KC_UID_REMOVE,
                             indent, userId);
-                    modified = PGPPublicKey.removeCertification(modified, rawUserId);
+                    rebuilder.removeCertification(rawUserId);
                 }
             }
 
             // If NO user ids remain, error out!
-            if (modified == null || !modified.getRawUserIDs().hasNext()) {
+            if (!rebuilder.hasUserIds()) {
                 log.add(LogType.MSG_KC_ERROR_NO_UID, indent);
                 return null;
             }
@@ -694,12 +756,13 @@ public class UncachedKeyRing {
                     if (processedUserAttributes.contains(userAttribute)) {
                         log.add(LogType.MSG_KC_UAT_DUP, indent);
                         // strip out the first found user id with this name
-                        modified = PGPPublicKey.removeCertification(modified, userAttribute);
+                        rebuilder.removeCertification(userAttribute);
                     }
                     processedUserAttributes.add(userAttribute);
 
                     PGPSignature selfCert = null;
                     revocation = null;
+                    ArrayList<PGPSignature> foreignCerts = new ArrayList<>();
 
                     // look through signatures for this specific user id
                     @SuppressWarnings("unchecked")
@@ -717,7 +780,7 @@ public class UncachedKeyRing {
                                     && type != PGPSignature.CERTIFICATION_REVOCATION) {
                                 log.add(LogType.MSG_KC_UAT_BAD_TYPE,
                                         indent, "0x" + Integer.toString(zert.getSignatureType(), 16));
-                                modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
+                                rebuilder.removeCertification(userAttribute, zert);
                                 badCerts += 1;
                                 continue;
                             }
@@ -725,7 +788,7 @@ public class UncachedKeyRing {
                             if (cert.getCreationTime().after(nowPlusOneDay)) {
                                 // Creation date in the future? No way!
                                 log.add(LogType.MSG_KC_UAT_BAD_TIME, indent);
-                                modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
+                                rebuilder.removeCertification(userAttribute, zert);
                                 badCerts += 1;
                                 continue;
                             }
@@ -733,7 +796,7 @@ public class UncachedKeyRing {
                             if (cert.isLocal()) {
                                 // Creation date in the future? No way!
                                 log.add(LogType.MSG_KC_UAT_BAD_LOCAL, indent);
-                                modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
+                                rebuilder.removeCertification(userAttribute, zert);
                                 badCerts += 1;
                                 continue;
                             }
@@ -744,26 +807,30 @@ public class UncachedKeyRing {
                                 if (isSecret()) {
                                     log.add(LogType.MSG_KC_UAT_FOREIGN,
                                             indent, KeyFormattingUtils.convertKeyIdToHex(certId));
-                                    modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
+                                    rebuilder.removeCertification(userAttribute, zert);
                                     badCerts += 1;
+                                } else {
+                                    foreignCerts.add(zert);
                                 }
                                 continue;
                             }
 
                             // Otherwise, first make sure it checks out
                             try {
-                                cert.init(masterKey);
-                                if (!cert.verifySignature(masterKey, userAttribute)) {
+                                if (!verifySelfSignature(verifications, masterKey, cert, masterKey,
+                                        PacketTags.USER_ATTRIBUTE,
+                                        () -> new WrappedUserAttribute(userAttribute).getEncoded(),
+                                        () -> cert.verifySignature(masterKey, userAttribute))) {
                                     log.add(LogType.MSG_KC_UAT_BAD,
                                             indent);
-                                    modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
+                                    rebuilder.removeCertification(userAttribute, zert);
                                     badCerts += 1;
                                     continue;
                                 }
                             } catch (PgpGeneralException e) {
                                 log.add(LogType.MSG_KC_UAT_BAD_ERR,
                                         indent);
-                                modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
+                                rebuilder.removeCertification(userAttribute, zert);
                                 badCerts += 1;
                                 continue;
                             }
@@ -778,13 +845,13 @@ public class UncachedKeyRing {
                                     } else if (selfCert.getCreationTime().before(cert.getCreationTime())) {
                                         log.add(LogType.MSG_KC_UAT_CERT_DUP,
                                                 indent);
-                                        modified = PGPPublicKey.removeCertification(modified, userAttribute, selfCert);
+                                        rebuilder.removeCertification(userAttribute, selfCert);
                                         redundantCerts += 1;
                                         selfCert = zert;
                                     } else {
                                         log.add(LogType.MSG_KC_UAT_CERT_DUP,
                                                 indent);
-                                        modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
+                                        rebuilder.removeCertification(userAttribute, zert);
                                         redundantCerts += 1;
                                     }
                                     // If there is a revocation certificate, and it's older than this, drop it
@@ -792,7 +859,7 @@ public class UncachedKeyRing {
                                             && revocation.getCreationTime().before(selfCert.getCreationTime())) {
                                         log.add(LogType.MSG_KC_UAT_REVOKE_OLD,
                                                 indent);
-                                        modified = PGPPublicKey.removeCertification(modified, userAttribute, revocation);
+                                        rebuilder.removeCertification(userAttribute, revocation);
                                         revocation = null;
                                         redundantCerts += 1;
                                     }
@@ -803,7 +870,7 @@ public class UncachedKeyRing {
                                     if (selfCert != null && selfCert.getCreationTime().after(zert.getCreationTime())) {
                                         log.add(LogType.MSG_KC_UAT_REVOKE_OLD,
                                                 indent);
-                                        modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
+                                        rebuilder.removeCertification(userAttribute, zert);
                                         redundantCerts += 1;
                                         continue;
                                     }
@@ -814,13 +881,13 @@ public class UncachedKeyRing {
                                     } else if (revocation.getCreationTime().before(cert.getCreationTime())) {
                                         log.add(LogType.MSG_KC_UAT_REVOKE_DUP,
                                                 indent);
-                                        modified = PGPPublicKey.removeCertification(modified, userAttribute, revocation);
+                                        rebuilder.removeCertification(userAttribute, revocation);
                                         redundantCerts += 1;
                                         revocation = zert;
                                     } else {
                                         log.add(LogType.MSG_KC_UAT_REVOKE_DUP,
                                                 indent);
-                                        modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
+                                        rebuilder.removeCertification(userAttribute, zert);
                                         redundantCerts += 1;
                                     }
                                     break;
@@ -828,11 +895,21 @@ public class UncachedKeyRing {
                         }
                     }
 
+                    List<PGPSignature> excessCerts = selectExcessForeignCerts(foreignCerts, maxThirdPartyCerts);
+                    if (!excessCerts.isEmpty()) {
+                        log.add(LogType.MSG_KC_UAT_FOREIGN_TOO_MANY, indent,
+                                Integer.toString(excessCerts.size()));
+                        for (PGPSignature excessCert : excessCerts) {
+                            rebuilder.removeCertification(userAttribute, excessCert);
+                        }
+                        redundantCerts += excessCerts.size();
+                    }
+
                     // If no valid certificate (if only a revocation) remains, drop it
                     if (selfCert == null && revocation == null) {
                         log.add(LogType.MSG_KC_UAT_REMOVE,
                                 indent);
-                        modified = PGPPublicKey.removeCertification(modified, userAttribute);
+                        rebuilder.removeCertification(userAttribute);
                     }
 
                 } finally {
@@ -842,7 +919,12 @@ public class UncachedKeyRing {
 
 
             // Replace modified key in the keyring
-            ring = replacePublicKey(ring, modified);
+            try {
+                ring = replacePublicKey(ring, rebuilder.build(null));
+            } catch (IOException e) {
+                log.add(LogType.MSG_KC_ERROR_ENCODE, indent);
+                return null;
+            }
             indent -= 1;
 
         }
@@ -890,12 +972,8 @@ public class UncachedKeyRing {
 
             // A subkey needs exactly one subkey binding certificate, and optionally one revocation
             // certificate.
-            PGPPublicKey modified = key;
             PGPSignature selfCert = null, revocation = null;
             uids: for (PGPSignature zert : new IterableIterator<PGPSignature>(key.getSignatures())) {
-                // remove from keyring (for now)
-                modified = PGPPublicKey.removeCertification(modified, zert);
-
                 WrappedSignature cert = new WrappedSignature(zert);
                 int type = cert.getSignatureType();
 
@@ -935,8 +1013,9 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!verifySelfSignature(verifications, masterKey, cert, masterKey,
+                                PacketTags.PUBLIC_SUBKEY, key.getPublicKeyPacket()::getEncoded,
+                                () -> cert.verifySignature(masterKey, key))) {
                             log.add(LogType.MSG_KC_SUB_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -977,8 +1056,9 @@ public class UncachedKeyRing {
                                 for (int i = 0; i < list.size(); i++) {
                                     WrappedSignature subsig = new WrappedSignature(list.get(i));
                                     if (subsig.getSignatureType() == PGPSignature.PRIMARYKEY_BINDING) {
-                                        subsig.init(key);
-                                        if (subsig.verifySignature(masterKey, key)) {
+                                        if (verifySelfSignature(verifications, masterKey, subsig, key,
+                                                PacketTags.PUBLIC_SUBKEY, key.getPublicKeyPacket()::getEncoded,
+                                                () -> subsig.verifySignature(masterKey, key))) {
                                             ok = true;
                                         } else {
                                             log.add(LogType.MSG_KC_SUB_PRIMARY_BAD, indent);
@@ -994,8 +1074,9 @@ public class UncachedKeyRing {
                                 for (int i = 0; i < list.size(); i++) {
                                     WrappedSignature subsig = new WrappedSignature(list.get(i));
                                     if (subsig.getSignatureType() == PGPSignature.PRIMARYKEY_BINDING) {
-                                        subsig.init(key);
-                                        if (subsig.verifySignature(masterKey, key)) {
+                                        if (verifySelfSignature(verifications, masterKey, subsig, key,
+                                                PacketTags.PUBLIC_SUBKEY, key.getPublicKeyPacket()::getEncoded,
+                                                () -> subsig.verifySignature(masterKey, key))) {
                                             ok = true;
                                         } else {
                                             log.add(LogType.MSG_KC_SUB_PRIMARY_BAD, indent);
@@ -1032,8 +1113,9 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!verifySelfSignature(verifications, masterKey, cert, masterKey,
+                                PacketTags.PUBLIC_SUBKEY, key.getPublicKeyPacket()::getEncoded,
+                                () -> cert.verifySignature(masterKey, key))) {
                             log.add(LogType.MSG_KC_SUB_REVOKE_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -1084,14 +1166,23 @@ public class UncachedKeyRing {
                 }
             }
 
-            // re-add certification
-            modified = PGPPublicKey.addCertification(modified, selfCert);
-            // add revocation, if any
+            // keep only the certification, and the revocation if any
+            ArrayList<PGPSignature> keptSignatures = new ArrayList<>();
+            keptSignatures.add(selfCert);
             if (revocation != null) {
-                modified = PGPPublicKey.addCertification(modified, revocation);
+                keptSignatures.add(revocation);
+            }
+            if (!hasExactlySignatures(key, keptSignatures)) {
+                PublicKeyRebuilder rebuilder = new PublicKeyRebuilder(key);
+                rebuilder.replaceKeySignatures(keptSignatures);
+                try {
+                    // replace pubkey in keyring
+                    ring = replacePublicKey(ring, rebuilder.build(masterKey));
+                } catch (IOException e) {
+                    log.add(LogType.MSG_KC_ERROR_ENCODE, indent);
+                    return null;
+                }
             }
-            // replace pubkey in keyring
-            ring = replacePublicKey(ring, modified);
             indent -= 1;
         }
 
@@ -1113,6 +1204,276 @@ public class UncachedKeyRing {
                           : new CanonicalizedPublicKeyRing((PGPPublicKeyRing) ring, VerificationStatus.UNVERIFIED);
     }
 
+    private interface SignatureCheck {
+        boolean verify() throws PgpGeneralException;
+    }
+
+    private interface SignedData {
+        byte[] getEncoded() throws IOException;
+    }
+
+    /** Verifies all self-signatures of this keyring concurrently, before canonicalize goes through them.
+     *
+     * The results are returned as a cache, which is consulted by canonicalize instead of verifying again.
+     * Since canonicalize still looks at all signatures sequentially and in order, the log is exactly the
+     * same as without this step. Verifications which fail with an exception aren't part of the result,
+     * so canonicalize verifies and logs those on its own.
+     *
+     * @param verificationCache cache to look up results first and store new results in, or null
+     * @return a cache with the verification results, or verificationCache if there is too little to verify
+     */
+    @Nullable
+    private SignatureVerificationCache verifySelfSignaturesInParallel(final PGPPublicKey masterKey,
+            @Nullable SignatureVerificationCache verificationCache) {
+        if (VERIFICATION_THREAD_COUNT < 2) {
+            return verificationCache;
+        }
+
+        final long masterKeyId = masterKey.getKeyID();
+        final PrefetchedVerificationCache results = new PrefetchedVerificationCache(verificationCache);
+        ArrayList<Callable<Boolean>> tasks = new ArrayList<>();
+        // tasks must never share a signature object, duplicate user ids return the same ones
+        Set<PGPSignature> seen = Collections.newSetFromMap(new IdentityHashMap<PGPSignature, Boolean>());
+
+        for (PGPSignature zert : new IterableIterator<PGPSignature>(masterKey.getKeySignatures())) {
+            int type = zert.getSignatureType();
+            if (zert.getKeyID() == masterKeyId && seen.add(zert)
+                    && (type == PGPSignature.KEY_REVOCATION || type == PGPSignature.DIRECT_KEY)) {
+                WrappedSignature cert = new WrappedSignature(zert);
+                tasks.add(() -> verifySelfSignature(results, masterKey, cert, masterKey, PacketTags.PUBLIC_KEY,
+                        null, () -> cert.verifySignature(masterKey)));
+            }
+        }
+
+        for (byte[] rawUserId : new IterableIterator<byte[]>(masterKey.getRawUserIDs())) {
+            for (PGPSignature zert : new IterableIterator<PGPSignature>(masterKey.getSignaturesForID(rawUserId))) {
+                if (zert.getKeyID() == masterKeyId && seen.add(zert) && isUserCertificationType(zert)) {
+                    WrappedSignature cert = new WrappedSignature(zert);
+                    tasks.add(() -> verifySelfSignature(results, masterKey, cert, masterKey, PacketTags.USER_ID,
+                            () -> rawUserId, () -> cert.verifySignature(masterKey, rawUserId)));
+                }
+            }
+        }
+
+        for (PGPUserAttributeSubpacketVector userAttribute :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(masterKey.getUserAttributes())) {
+            for (PGPSignature zert : new IterableIterator<PGPSignature>(
+                    masterKey.getSignaturesForUserAttribute(userAttribute))) {
+                if (zert.getKeyID() == masterKeyId && seen.add(zert) && isUserCertificationType(zert)) {
+                    WrappedSignature cert = new WrappedSignature(zert);
+                    tasks.add(() -> verifySelfSignature(results, masterKey, cert, masterKey,
+                            PacketTags.USER_ATTRIBUTE, () -> new WrappedUserAttribute(userAttribute).getEncoded(),
+                            () -> cert.verifySignature(masterKey, userAttribute)));
+                }
+            }
+        }
+
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(mRing.getPublicKeys())) {
+            if (key.isMasterKey() || Arrays.binarySearch(KNOWN_ALGORITHMS, key.getAlgorithm()) < 0) {
+                continue;
+            }
+            for (PGPSignature zert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                int type = zert.getSignatureType();
+                if (zert.getKeyID() != masterKeyId || !seen.add(zert)
+                        || (type != PGPSignature.SUBKEY_BINDING && type != PGPSignature.SUBKEY_REVOCATION)) {
+                    continue;
+                }
+                WrappedSignature cert = new WrappedSignature(zert);
+                tasks.add(() -> verifySelfSignature(results, masterKey, cert, masterKey, PacketTags.PUBLIC_SUBKEY,
+                        key.getPublicKeyPacket()::getEncoded, () -> cert.verifySignature(masterKey, key)));
+
+                if (type == PGPSignature.SUBKEY_BINDING && isSigningAlgo(key.getAlgorithm())) {
+                    addPrimaryKeyBindingTasks(tasks, results, masterKey, key, zert);
+                }
+            }
+        }
+
+        if (tasks.size() < PARALLEL_VERIFICATION_MIN_SIGNATURES) {
+            return verificationCache;
+        }
+
+        try {
+            verificationExecutor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            // whatever wasn't verified yet is verified by canonicalize itself
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
+    private static void addPrimaryKeyBindingTasks(List<Callable<Boolean>> tasks, SignatureVerificationCache results,
+            PGPPublicKey masterKey, PGPPublicKey key, PGPSignature zert) {
+        ArrayList<PGPSignature> embeddedSignatures = new ArrayList<>();
+        try {
+            if (zert.getUnhashedSubPackets() != null) {
+                PGPSignatureList list = zert.getUnhashedSubPackets().getEmbeddedSignatures();
+                for (int i = 0; i < list.size(); i++) {
+                    embeddedSignatures.add(list.get(i));
+                }
+            }
+            if (zert.getHashedSubPackets() != null) {
+                PGPSignatureList list = zert.getHashedSubPackets().getEmbeddedSignatures();
+                for (int i = 0; i < list.size(); i++) {
+                    embeddedSignatures.add(list.get(i));
+                }
+            }
+        } catch (Exception e) {
+            // canonicalize will run into the same error, and log it
+            return;
+        }
+
+        for (PGPSignature embeddedSignature : embeddedSignatures) {
+            if (embeddedSignature.getSignatureType() != PGPSignature.PRIMARYKEY_BINDING) {
+                continue;
+            }
+            WrappedSignature subsig = new WrappedSignature(embeddedSignature);
+            tasks.add(() -> verifySelfSignature(results, masterKey, subsig, key, PacketTags.PUBLIC_SUBKEY,
+                    key.getPublicKeyPacket()::getEncoded, () -> subsig.verifySignature(masterKey, key)));
+        }
+    }
+
+    private static boolean isUserCertificationType(PGPSignature zert) {
+        int type = zert.getSignatureType();
+        return type == PGPSignature.DEFAULT_CERTIFICATION
+                || type == PGPSignature.NO_CERTIFICATION
+                || type == PGPSignature.CASUAL_CERTIFICATION
+                || type == PGPSignature.POSITIVE_CERTIFICATION
+                || type == PGPSignature.CERTIFICATION_REVOCATION;
+    }
+
+    /** Holds the results of verifySelfSignaturesInParallel, in front of the verification cache passed to
+     * canonicalize. New results are passed on to that cache, so they are persisted as usual.
+     */
+    private static class PrefetchedVerificationCache implements SignatureVerificationCache {
+        private final ConcurrentHashMap<ByteBuffer, Boolean> results = new ConcurrentHashMap<>();
+        @Nullable
+        private final SignatureVerificationCache verificationCache;
+
+        PrefetchedVerificationCache(@Nullable SignatureVerificationCache verificationCache) {
+            this.verificationCache = verificationCache;
+        }
+
+        @Nullable
+        @Override
+        public Boolean getVerificationResult(long masterKeyId, byte[] cacheKey) {
+            ByteBuffer key = ByteBuffer.wrap(cacheKey);
+            Boolean result = results.get(key);
+            if (result == null && verificationCache != null) {
+                result = verificationCache.getVerificationResult(masterKeyId, cacheKey);
+                if (result != null) {
+                    results.put(key, result);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void putVerificationResult(long masterKeyId, byte[] cacheKey, boolean verified) {
+            results.put(ByteBuffer.wrap(cacheKey), verified);
+            if (verificationCache != null) {
+                verificationCache.putVerificationResult(masterKeyId, cacheKey, verified);
+            }
+        }
+    }
+
+    /** Selects the certificates by other keys on a user id or user attribute which exceed
+     * maxThirdPartyCerts, and should be removed.
+     *
+     * Revocations never count towards the limit, since removing one would make the revoked certificate
+     * valid again. Of the other certificates, the newest one of each issuer is kept first, then the newest
+     * of the rest. Flooded certificates are usually appended, but so is a new certificate of the user on
+     * merge, so this must not keep the first ones in keyring order.
+     */
+    private static List<PGPSignature> selectExcessForeignCerts(List<PGPSignature> foreignCerts, int maxThirdPartyCerts) {
+        ArrayList<PGPSignature> certifications = new ArrayList<>(foreignCerts.size());
+        for (PGPSignature cert : foreignCerts) {
+            if (cert.getSignatureType() != PGPSignature.CERTIFICATION_REVOCATION) {
+                certifications.add(cert);
+            }
+        }
+        if (certifications.size() <= maxThirdPartyCerts) {
+            return Collections.emptyList();
+        }
+
+        // newest first, stable for certificates of the same time
+        Collections.sort(certifications, (lhs, rhs) -> rhs.getCreationTime().compareTo(lhs.getCreationTime()));
+
+        ArrayList<PGPSignature> newestOfIssuers = new ArrayList<>();
+        ArrayList<PGPSignature> others = new ArrayList<>();
+        HashSet<Long> issuers = new HashSet<>();
+        for (PGPSignature cert : certifications) {
+            if (issuers.add(cert.getKeyID())) {
+                newestOfIssuers.add(cert);
+            } else {
+                others.add(cert);
+            }
+        }
+
+        ArrayList<PGPSignature> byPriority = new ArrayList<>(newestOfIssuers);
+        byPriority.addAll(others);
+        return byPriority.subList(maxThirdPartyCerts, byPriority.size());
+    }
+
+    /** Verifies a self-signature made by signer over the master key and the given data, which is
+     * identified by its packet tag. If a cache is given, the result is looked up there first, and
+     * stored there after a successful verification attempt. Verifications which fail with an
+     * exception are never cached.
+     */
+    private static boolean verifySelfSignature(@Nullable SignatureVerificationCache verificationCache,
+            PGPPublicKey masterKey, WrappedSignature cert, PGPPublicKey signer, int signedDataTag,
+            @Nullable SignedData signedData, SignatureCheck check) throws PgpGeneralException {
+        byte[] cacheKey = null;
+        if (verificationCache != null) {
+            cacheKey = getVerificationCacheKey(masterKey, cert, signer, signedDataTag, signedData);
+        }
+        if (cacheKey != null) {
+            Boolean cachedResult = verificationCache.getVerificationResult(masterKey.getKeyID(), cacheKey);
+            if (cachedResult != null) {
+                return cachedResult;
+            }
+        }
+
+        cert.init(signer);
+        boolean verified = check.verify();
+        if (cacheKey != null) {
+            verificationCache.putVerificationResult(masterKey.getKeyID(), cacheKey, verified);
+        }
+        return verified;
+    }
+
+    /** Computes a digest over everything the result of a signature verification depends on: the
+     * signature packet, the signing key, the master key and the signed data. All parts are length
+     * prefixed, so no two different inputs can produce the same byte sequence.
+     *
+     * @return the cache key, or null if any part could not be encoded
+     */
+    @Nullable
+    private static byte[] getVerificationCacheKey(PGPPublicKey masterKey, WrappedSignature cert,
+            PGPPublicKey signer, int signedDataTag, @Nullable SignedData signedData) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            updateWithLength(digest, cert.getEncoded());
+            updateWithLength(digest, signer.getPublicKeyPacket().getEncoded());
+            updateWithLength(digest, masterKey.getPublicKeyPacket().getEncoded());
+            digest.update((byte) signedDataTag);
+            updateWithLength(digest, signedData != null ? signedData.getEncoded() : new byte[0]);
+            return digest.digest();
+        } catch (IOException e) {
+            Timber.e(e, "Error encoding signature for verification cache");
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available!", e);
+        }
+    }
+
+    private static void updateWithLength(MessageDigest digest, byte[] data) {
+        digest.update((byte) (data.length >> 24));
+        digest.update((byte) (data.length >> 16));
+        digest.update((byte) (data.length >> 8));
+        digest.update((byte) data.length);
+        digest.update(data);
+    }
+
     /** This operation merges information from a different keyring, returning a combined
      * UncachedKeyRing.
      *
@@ -1139,32 +1500,20 @@ public class UncachedKeyRing {
             return null;
         }
 
-        // remember which certs we already added. this is cheaper than semantic deduplication
-        Set<byte[]> certs = new TreeSet<>(new Comparator<byte[]>() {
-            public int compare(byte[] left, byte[] right) {
-                // check for length equality
-                if (left.length != right.length) {
-                    return left.length - right.length;
-                }
-                // compare byte-by-byte
-                for (int i = 0; i < left.length; i++) {
-                    if (left[i] != right[i]) {
-                        return (left[i] & 0xff) - (right[i] & 0xff);
-                    }
-                }
-                // ok they're the same
-                return 0;
-        }});
+        // remember which certs we already added, by a digest of their packet. this is cheaper than
+        // semantic deduplication, and than keeping and comparing full encodings
+        Set<ByteBuffer> certs = new HashSet<>();
 
         try {
             PGPKeyRing result = mRing;
             PGPKeyRing candidate = other.mRing;
 
             // Pre-load all existing certificates
+            HashMap<Long, KeySignatureDigests> resultDigests = new HashMap<>();
             for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(result.getPublicKeys())) {
-                for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getSignatures())) {
-                    certs.add(cert.getEncoded());
-                }
+                KeySignatureDigests digests = KeySignatureDigests.create(key);
+                digests.addAllSignaturesTo(certs);
+                resultDigests.put(key.getKeyID(), digests);
             }
 
             // keep track of the number of new certs we add
@@ -1186,22 +1535,30 @@ public class UncachedKeyRing {
                     continue;
                 }
 
+                // Exactly the same (sub)key, nothing to merge
+                KeySignatureDigests digests = KeySignatureDigests.create(key);
+                KeySignatureDigests resultKeyDigests = resultDigests.get(key.getKeyID());
+                if (resultKeyDigests != null && digests.isSameKey(resultKeyDigests)) {
+                    continue;
+                }
+
                 // Modifiable version of the old key, which we merge stuff into (keep old for comparison)
                 PGPPublicKey modified = resultKey;
 
                 // Iterate certifications
-                for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getKeySignatures())) {
+                List<PGPSignature> keyCerts = toList(key.getKeySignatures());
+                List<ByteBuffer> keyCertDigests = getSignatureDigests(keyCerts, digests.getKeySignatures());
+                for (int i = 0; i < keyCerts.size(); i++) {
+                    PGPSignature cert = keyCerts.get(i);
                     // Don't merge foreign stuff into secret keys
                     if (cert.getKeyID() != masterKeyId && isSecret()) {
                         continue;
                     }
 
-                    byte[] encoded = cert.getEncoded();
                     // Known cert, skip it
-                    if (certs.contains(encoded)) {
+                    if (!certs.add(keyCertDigests.get(i))) {
                         continue;
                     }
-                    certs.add(encoded);
                     modified = PGPPublicKey.addCertification(modified, cert);
                     newCerts += 1;
                 }
@@ -1222,18 +1579,20 @@ public class UncachedKeyRing {
                     if (signaturesIt == null) {
                         continue;
                     }
-                    for (PGPSignature cert : new IterableIterator<>(signaturesIt)) {
+                    List<PGPSignature> userIdCerts = toList(signaturesIt);
+                    List<ByteBuffer> userIdCertDigests =
+                            getSignatureDigests(userIdCerts, digests.getUserIdSignatures(rawUserId));
+                    for (int i = 0; i < userIdCerts.size(); i++) {
+                        PGPSignature cert = userIdCerts.get(i);
                         // Don't merge foreign stuff into secret keys
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(userIdCertDigests.get(i))) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
                         modified = PGPPublicKey.addCertification(modified, rawUserId, cert);
                     }
                 }
@@ -1247,18 +1606,20 @@ public class UncachedKeyRing {
                     if (signaturesIt == null) {
                         continue;
                     }
-                    for (PGPSignature cert : new IterableIterator<>(signaturesIt)) {
+                    List<PGPSignature> userAttributeCerts = toList(signaturesIt);
+                    List<ByteBuffer> userAttributeCertDigests =
+                            getSignatureDigests(userAttributeCerts, digests.getUserAttributeSignatures(vector));
+                    for (int i = 0; i < userAttributeCerts.size(); i++) {
+                        PGPSignature cert = userAttributeCerts.get(i);
                         // Don't merge foreign stuff into secret keys
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(userAttributeCertDigests.get(i))) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
                         modified = PGPPublicKey.addCertification(modified, vector, cert);
                     }
                 }
@@ -1286,6 +1647,29 @@ public class UncachedKeyRing {
 
     }
 
+    private static List<PGPSignature> toList(Iterator<PGPSignature> signatures) {
+        ArrayList<PGPSignature> result = new ArrayList<>();
+        while (signatures.hasNext()) {
+            result.add(signatures.next());
+        }
+        return result;
+    }
+
+    /** Returns the digests of the given signatures. These are taken from the digests of the key they
+     * were read from, unless those don't match up, in which case they are computed one by one.
+     */
+    private static List<ByteBuffer> getSignatureDigests(List<PGPSignature> signatures, List<ByteBuffer> keyDigests)
+            throws IOException {
+        if (signatures.size() == keyDigests.size()) {
+            return keyDigests;
+        }
+        ArrayList<ByteBuffer> result = new ArrayList<>(signatures.size());
+        for (PGPSignature signature : signatures) {
+            result.add(KeySignatureDigests.digestSignature(signature));
+        }
+        return result;
+    }
+
     public UncachedKeyRing extractPublicKeyRing() throws IOException {
         if(!isSecret()) {
             throw new RuntimeException("Tried to extract public keyring from non-secret keyring. " +
@@ -1326,6 +1710,18 @@ public class UncachedKeyRing {
         }
     }
 
+    /** Returns true if the signatures of a key are exactly the given ones, in the same order. */
+    private static boolean hasExactlySignatures(PGPPublicKey key, List<PGPSignature> signatures) {
+        @SuppressWarnings("unchecked")
+        Iterator<PGPSignature> it = key.getSignatures();
+        for (PGPSignature signature : signatures) {
+            if (!it.hasNext() || it.next() != signature) {
+                return false;
+            }
+        }
+        return !it.hasNext();
+    }
+
     /** This method removes a subkey in a keyring.
      *
      * This method essentially wraps PGP*KeyRing.remove*Key, where the keyring may be of either
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.DecryptVerifySecurityProblem;
@@ -47,10 +48,36 @@ import org.sufficientlysecure.keychain.util.Passphrase;
 
 public class ApiPendingIntentFactory {
 
+    private static final String BATCH_URI_SCHEME = "openkeychain-batch";
+
     Context mContext;
+    int mRequestCode;
+    Uri mDataUri;
 
     public ApiPendingIntentFactory(Context context) {
+        this(context, 0, null);
+    }
+
+    private ApiPendingIntentFactory(Context context, int requestCode, Uri dataUri) {
         mContext = context;
+        mRequestCode = requestCode;
+        mDataUri = dataUri;
+    }
+
+    /**
+     * Returns a factory for the PendingIntents of a single message in a batch. PendingIntents which only
+     * differ in their extras are considered the same, so with FLAG_CANCEL_CURRENT each one would cancel
+     * the previous one. Here, each intent gets a data Uri made of the batch id and the index of the
+     * message, which keeps it distinct from those of other messages and other batches, also after the
+     * service is recreated. The request code is the index within the batch.
+     */
+    ApiPendingIntentFactory forBatchMessage(String batchId, int index) {
+        Uri dataUri = new Uri.Builder()
+                .scheme(BATCH_URI_SCHEME)
+                .authority(batchId)
+                .appendPath(Integer.toString(index))
+                .build();
+        return new ApiPendingIntentFactory(mContext, index, dataUri);
     }
 
     PendingIntent requiredInputPi(Intent data, RequiredInputParcel requiredInput,
@@ -186,8 +213,7 @@ public class ApiPendingIntentFactory {
         intent.putExtra(RemoteSecurityProblemDialogActivity.EXTRA_SECURITY_PROBLEM, securityProblem);
         intent.putExtra(RemoteSecurityProblemDialogActivity.EXTRA_SUPPORT_OVERRIDE, supportOverride);
 
-        return PendingIntent.getActivity(mContext, 0, intent,
-                PendingIntent.FLAG_CANCEL_CURRENT | Constants.FLAG_IMMUTABLE_COMPAT);
+        return getActivity(intent, PendingIntent.FLAG_CANCEL_CURRENT | Constants.FLAG_IMMUTABLE_COMPAT);
     }
 
     public PendingIntent createDisplayTransferCodePendingIntent(Passphrase autocryptTransferCode) {
@@ -203,10 +229,7 @@ public class ApiPendingIntentFactory {
             intent.putExtra(RemoteSecurityTokenOperationActivity.EXTRA_DATA, data);
         }
 
-        return PendingIntent.getActivity(mContext, 0,
-                intent,
-                PendingIntent.FLAG_CANCEL_CURRENT | Constants.FLAG_IMMUTABLE_COMPAT
-        );
+        return getActivity(intent, PendingIntent.FLAG_CANCEL_CURRENT | Constants.FLAG_IMMUTABLE_COMPAT);
     }
 
     public PendingIntent createRegisterPendingIntent(Intent data, String packageName, byte[] packageCertificate) {
@@ -215,9 +238,15 @@ public class ApiPendingIntentFactory {
         intent.putExtra(RemoteRegisterActivity.EXTRA_PACKAGE_SIGNATURE, packageCertificate);
         intent.putExtra(RemoteRegisterActivity.EXTRA_DATA, data);
 
-        return PendingIntent.getActivity(mContext, 0,
-                intent,
-                PendingIntent.FLAG_CANCEL_CURRENT | PendingIntent.FLAG_ONE_SHOT
-                        | Constants.FLAG_IMMUTABLE_COMPAT);
+        return getActivity(intent, PendingIntent.FLAG_CANCEL_CURRENT | PendingIntent.FLAG_ONE_SHOT
+                | Constants.FLAG_IMMUTABLE_COMPAT);
+    }
+
+    private PendingIntent getActivity(Intent intent, int flags) {
+        // intents which already carry data, like the one of ViewKeyActivity, need it for themselves
+        if (mDataUri != null && intent.getData() == null) {
+            intent.setData(mDataUri);
+        }
+        return PendingIntent.getActivity(mContext, mRequestCode, intent, flags);
     }
 }
@@ -18,6 +18,12 @@
 package org.sufficientlysecure.keychain.remote;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -27,6 +33,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.UUID;
 
 import android.app.PendingIntent;
 import android.app.Service;
@@ -35,6 +42,7 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.SystemClock;
@@ -94,6 +102,36 @@ public class OpenPgpService extends Service {
     public static final List<Integer> SUPPORTED_VERSIONS =
             Collections.unmodifiableList(Arrays.asList(7, 8, 9, 10, 11, 12));
 
+    /**
+     * Decrypts and verifies a batch of messages in a single call. This is not part of openpgp-api yet.
+     * <p>
+     * Input and output are framed: each message is preceded by its length as a 4 byte big-endian integer,
+     * and the input ends after the last message. For each message, one frame with its decrypted data is
+     * written to the output, which is empty if the message wasn't decrypted successfully. The result
+     * holds one result Intent per message in {@link #RESULT_BATCH_RESULTS}, in the same order, with the
+     * same extras as for ACTION_DECRYPT_VERIFY. PendingIntents in there refer to ACTION_DECRYPT_VERIFY of
+     * that single message, and stay valid independently of each other.
+     * <p>
+     * At most {@link #MAX_BATCH_SIZE} messages are processed per call, and no more messages are started
+     * once the results take up {@link #MAX_BATCH_RESULTS_SIZE} bytes, since all results are returned at
+     * once in a single binder transaction. If there are fewer results than messages, the remaining ones
+     * must be sent in another call.
+     * <p>
+     * If a message can't be read from the input, its result is an error, an empty frame is written for
+     * it, and the batch ends there. The results of the messages before it are still returned.
+     */
+    public static final String ACTION_DECRYPT_VERIFY_BATCH = "org.sufficientlysecure.keychain.action.DECRYPT_VERIFY_BATCH";
+    /** Optional String[], the sender address of each message in the batch. */
+    public static final String EXTRA_BATCH_SENDER_ADDRESSES = "batch_sender_addresses";
+    /** Optional String[], the autocrypt peer id of each message in the batch. */
+    public static final String EXTRA_BATCH_AUTOCRYPT_PEER_IDS = "batch_autocrypt_peer_ids";
+    /** ArrayList of Intents, the result of each message in the batch. */
+    public static final String RESULT_BATCH_RESULTS = "batch_results";
+    public static final int MAX_BATCH_SIZE = 100;
+    /** Well below the binder transaction limit of 1 MB, which is shared by all transactions of a process. */
+    public static final int MAX_BATCH_RESULTS_SIZE = 256 * 1024;
+    private static final int MAX_BATCH_MESSAGE_LENGTH = 32 * 1024 * 1024;
+
     private ApiPermissionHelper mApiPermissionHelper;
     private KeyRepository mKeyRepository;
     private ApiAppDao mApiAppDao;
@@ -412,54 +450,204 @@ public class OpenPgpService extends Service {
                     .build();
 
             DecryptVerifyResult pgpResult = op.execute(input, cryptoInput, inputData, outputStream);
+            return createDecryptVerifyResultIntent(data, targetApiVersion, pgpResult, mApiPendingIntentFactory);
 
-            if (pgpResult.isPending()) {
-                // prepare and return PendingIntent to be executed by client
-                RequiredInputParcel requiredInput = pgpResult.getRequiredInputParcel();
-                PendingIntent pIntent = mApiPendingIntentFactory.requiredInputPi(data,
-                        requiredInput, pgpResult.mCryptoInputParcel);
+        } catch (Exception e) {
+            Timber.e(e, "decryptAndVerifyImpl");
+            return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, e.getMessage());
+        }
+    }
 
-                Intent result = new Intent();
-                result.putExtra(OpenPgpApi.RESULT_INTENT, pIntent);
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
-                return result;
+    /**
+     * Decrypts and verifies many messages in a single call, see {@link #ACTION_DECRYPT_VERIFY_BATCH}.
+     * Permission checks, the lookup of cached crypto input, the allowed key ids and the autocrypt peer
+     * update only happen once per batch, instead of once per message.
+     */
+    private Intent decryptAndVerifyBatchImpl(Intent data, InputStream inputStream, OutputStream outputStream) {
+        if (inputStream == null) {
+            return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, "Input stream required for batch decryption!");
+        }
 
-            } else if (pgpResult.success()) {
-                Intent result = new Intent();
+        try {
+            int targetApiVersion = data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1);
+
+            CryptoInputParcel cryptoInput = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
+            if (cryptoInput == null) {
+                cryptoInput = CryptoInputParcel.createCryptoInputParcel();
+            }
+            // override passphrase in input parcel if given by API call
+            if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
+                cryptoInput = cryptoInput.withPassphrase(
+                        new Passphrase(data.getCharArrayExtra(OpenPgpApi.EXTRA_PASSPHRASE)), null);
+            }
 
-                processDecryptionResultForResultIntent(targetApiVersion, result, pgpResult.getDecryptionResult());
-                processMetadataForResultIntent(result, pgpResult.getDecryptionMetadata());
-                processSignatureResultForResultIntent(targetApiVersion, data, result, pgpResult);
-                processSecurityProblemsPendingIntent(data, result, pgpResult);
+            String[] senderAddresses = data.getStringArrayExtra(EXTRA_BATCH_SENDER_ADDRESSES);
+            String[] autocryptPeerIds = data.getStringArrayExtra(EXTRA_BATCH_AUTOCRYPT_PEER_IDS);
 
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
-                return result;
-            } else {
-                long[] skippedDisallowedEncryptionKeys = pgpResult.getSkippedDisallowedKeys();
-                if (pgpResult.isKeysDisallowed() &&
-                        skippedDisallowedEncryptionKeys != null && skippedDisallowedEncryptionKeys.length > 0) {
-                    // allow user to select allowed keys
-                    Intent result = new Intent();
-                    String packageName = mApiPermissionHelper.getCurrentCallingPackage();
-                    result.putExtra(OpenPgpApi.RESULT_INTENT,
-                            mApiPendingIntentFactory.createRequestKeyPermissionPendingIntent(
-                                    data, packageName, skippedDisallowedEncryptionKeys));
-                    result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
-                    return result;
+            updateAutocryptPeerImpl(data);
+
+            // operations don't keep state between calls, so one is enough for the whole batch
+            PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(this, mKeyRepository, null);
+            ArrayList<Long> allowedKeyIds = new ArrayList<>(getAllowedKeyIds());
+
+            DataInputStream batchInput = new DataInputStream(new BufferedInputStream(inputStream));
+            DataOutputStream batchOutput = outputStream != null ?
+                    new DataOutputStream(new BufferedOutputStream(outputStream)) : null;
+
+            // PendingIntents which only differ in extras are the same, so each message gets its own data Uri
+            String batchId = UUID.randomUUID().toString();
+
+            ArrayList<Intent> results = new ArrayList<>();
+            int resultsSize = 0;
+            while (results.size() < MAX_BATCH_SIZE && resultsSize < MAX_BATCH_RESULTS_SIZE) {
+                int index = results.size();
+
+                byte[] message;
+                try {
+                    message = readBatchFrame(batchInput);
+                } catch (IOException e) {
+                    Timber.e(e, "decryptAndVerifyBatchImpl");
+                    results.add(createErrorResultIntent(OpenPgpError.GENERIC_ERROR, e.getMessage()));
+                    if (batchOutput != null) {
+                        batchOutput.writeInt(0);
+                    }
+                    break;
+                }
+                if (message == null) {
+                    break;
                 }
 
-                String errorMsg = getString(pgpResult.getLog().getLast().mType.getMsgId());
-                return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, errorMsg);
+                // results refer to this message alone, so user interaction can be resolved for it with a regular call
+                Intent messageData = new Intent(data);
+                messageData.setAction(OpenPgpApi.ACTION_DECRYPT_VERIFY);
+                messageData.removeExtra(EXTRA_BATCH_SENDER_ADDRESSES);
+                messageData.removeExtra(EXTRA_BATCH_AUTOCRYPT_PEER_IDS);
+                messageData.removeExtra(OpenPgpApi.EXTRA_AUTOCRYPT_PEER_UPDATE);
+                messageData.removeExtra(OpenPgpApi.EXTRA_AUTOCRYPT_PEER_GOSSIP_UPDATES);
+                if (senderAddresses != null && index < senderAddresses.length) {
+                    messageData.putExtra(OpenPgpApi.EXTRA_SENDER_ADDRESS, senderAddresses[index]);
+                }
+                if (autocryptPeerIds != null && index < autocryptPeerIds.length) {
+                    messageData.putExtra(OpenPgpApi.EXTRA_AUTOCRYPT_PEER_ID, autocryptPeerIds[index]);
+                }
+
+                PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                        .setAllowSymmetricDecryption(false)
+                        .setAllowedKeyIds(allowedKeyIds)
+                        .setSenderAddress(messageData.getStringExtra(OpenPgpApi.EXTRA_SENDER_ADDRESS))
+                        .build();
+
+                ByteArrayOutputStream decryptedMessage = new ByteArrayOutputStream();
+                Intent result;
+                try {
+                    DecryptVerifyResult pgpResult = op.execute(input, cryptoInput,
+                            new InputData(new ByteArrayInputStream(message), message.length), decryptedMessage);
+                    result = createDecryptVerifyResultIntent(messageData, targetApiVersion, pgpResult,
+                            mApiPendingIntentFactory.forBatchMessage(batchId, index));
+                } catch (Exception e) {
+                    Timber.e(e, "decryptAndVerifyBatchImpl");
+                    result = createErrorResultIntent(OpenPgpError.GENERIC_ERROR, e.getMessage());
+                }
+                results.add(result);
+                resultsSize += getParceledSize(result);
+
+                if (batchOutput != null) {
+                    // only successfully decrypted data is returned, so the client never sees partial output
+                    boolean success = result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR)
+                            == OpenPgpApi.RESULT_CODE_SUCCESS;
+                    batchOutput.writeInt(success ? decryptedMessage.size() : 0);
+                    if (success) {
+                        decryptedMessage.writeTo(batchOutput);
+                    }
+                }
+            }
+            if (batchOutput != null) {
+                batchOutput.flush();
             }
 
-        } catch (Exception e) {
-            Timber.e(e, "decryptAndVerifyImpl");
+            Intent result = new Intent();
+            result.putParcelableArrayListExtra(RESULT_BATCH_RESULTS, results);
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            return result;
+
+        } catch (IOException e) {
+            // the output can't be written, so the decrypted data of the results would be lost
+            Timber.e(e, "decryptAndVerifyBatchImpl");
             return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, e.getMessage());
         }
     }
 
+    private static int getParceledSize(Intent intent) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            intent.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /** Reads a message of a batch, prefixed by its length, or returns null at the end of the batch. */
+    @Nullable
+    private static byte[] readBatchFrame(DataInputStream batchInput) throws IOException {
+        int first = batchInput.read();
+        if (first < 0) {
+            return null;
+        }
+        int length = (first << 24) | (batchInput.readUnsignedByte() << 16)
+                | (batchInput.readUnsignedByte() << 8) | batchInput.readUnsignedByte();
+        if (length < 0 || length > MAX_BATCH_MESSAGE_LENGTH) {
+            throw new IOException("Invalid message length in batch: " + length);
+        }
+        byte[] message = new byte[length];
+        batchInput.readFully(message);
+        return message;
+    }
+
+    private Intent createDecryptVerifyResultIntent(Intent data, int targetApiVersion, DecryptVerifyResult pgpResult,
+            ApiPendingIntentFactory pendingIntentFactory) {
+        if (pgpResult.isPending()) {
+            // prepare and return PendingIntent to be executed by client
+            RequiredInputParcel requiredInput = pgpResult.getRequiredInputParcel();
+            PendingIntent pIntent = pendingIntentFactory.requiredInputPi(data,
+                    requiredInput, pgpResult.mCryptoInputParcel);
+
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_INTENT, pIntent);
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
+            return result;
+
+        } else if (pgpResult.success()) {
+            Intent result = new Intent();
+
+            processDecryptionResultForResultIntent(targetApiVersion, result, pgpResult.getDecryptionResult());
+            processMetadataForResultIntent(result, pgpResult.getDecryptionMetadata());
+            processSignatureResultForResultIntent(targetApiVersion, data, result, pgpResult, pendingIntentFactory);
+            processSecurityProblemsPendingIntent(data, result, pgpResult, pendingIntentFactory);
+
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            return result;
+        } else {
+            long[] skippedDisallowedEncryptionKeys = pgpResult.getSkippedDisallowedKeys();
+            if (pgpResult.isKeysDisallowed() &&
+                    skippedDisallowedEncryptionKeys != null && skippedDisallowedEncryptionKeys.length > 0) {
+                // allow user to select allowed keys
+                Intent result = new Intent();
+                String packageName = mApiPermissionHelper.getCurrentCallingPackage();
+                result.putExtra(OpenPgpApi.RESULT_INTENT,
+                        pendingIntentFactory.createRequestKeyPermissionPendingIntent(
+                                data, packageName, skippedDisallowedEncryptionKeys));
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
+                return result;
+            }
+
+            String errorMsg = getString(pgpResult.getLog().getLast().mType.getMsgId());
+            return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, errorMsg);
+        }
+    }
+
     private void processSecurityProblemsPendingIntent(Intent data, Intent result,
-            DecryptVerifyResult decryptVerifyResult) {
+            DecryptVerifyResult decryptVerifyResult, ApiPendingIntentFactory pendingIntentFactory) {
         DecryptVerifySecurityProblem securityProblem = decryptVerifyResult.getSecurityProblem();
         if (securityProblem == null) {
             return;
@@ -478,7 +666,7 @@ public class OpenPgpService extends Service {
 
         String packageName = mApiPermissionHelper.getCurrentCallingPackage();
         result.putExtra(OpenPgpApi.RESULT_INSECURE_DETAIL_INTENT,
-                mApiPendingIntentFactory.createSecurityProblemIntent(packageName, securityProblem, supportOverride));
+                pendingIntentFactory.createSecurityProblemIntent(packageName, securityProblem, supportOverride));
     }
 
     private void processDecryptionResultForResultIntent(int targetApiVersion, Intent result,
@@ -527,7 +715,7 @@ public class OpenPgpService extends Service {
     }
 
     private void processSignatureResultForResultIntent(int targetApiVersion, Intent data,
-            Intent result, DecryptVerifyResult pgpResult) {
+            Intent result, DecryptVerifyResult pgpResult, ApiPendingIntentFactory pendingIntentFactory) {
         OpenPgpSignatureResult signatureResult =
                 getSignatureResultWithApiCompatibilityFallbacks(targetApiVersion, pgpResult);
 
@@ -535,7 +723,7 @@ public class OpenPgpService extends Service {
             case OpenPgpSignatureResult.RESULT_KEY_MISSING: {
                 // If signature key is missing we return a PendingIntent to retrieve the key
                 result.putExtra(OpenPgpApi.RESULT_INTENT,
-                        mApiPendingIntentFactory.createImportFromKeyserverPendingIntent(data,
+                        pendingIntentFactory.createImportFromKeyserverPendingIntent(data,
                                 signatureResult.getKeyId()));
                 break;
             }
@@ -546,7 +734,7 @@ public class OpenPgpService extends Service {
             case OpenPgpSignatureResult.RESULT_INVALID_KEY_INSECURE: {
                 // If signature key is known, return PendingIntent to show key
                 result.putExtra(OpenPgpApi.RESULT_INTENT,
-                        mApiPendingIntentFactory.createShowKeyPendingIntent(data, signatureResult.getKeyId()));
+                        pendingIntentFactory.createShowKeyPendingIntent(data, signatureResult.getKeyId()));
                 break;
             }
             default:
@@ -1064,6 +1252,9 @@ public class OpenPgpService extends Service {
             case OpenPgpApi.ACTION_DECRYPT_METADATA: {
                 return decryptAndVerifyImpl(data, inputStream, outputStream, true, null);
             }
+            case ACTION_DECRYPT_VERIFY_BATCH: {
+                return decryptAndVerifyBatchImpl(data, inputStream, outputStream);
+            }
             case OpenPgpApi.ACTION_GET_SIGN_KEY_ID: {
                 return getSignKeyIdImpl(data);
             }
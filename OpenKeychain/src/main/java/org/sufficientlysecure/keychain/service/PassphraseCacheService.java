@@ -25,9 +25,11 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
@@ -35,6 +37,8 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Parcel;
+import android.os.Process;
 import android.os.RemoteException;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationCompat.Builder;
@@ -56,6 +60,13 @@ import timber.log.Timber;
  * passphrase cache. Use the static methods addCachedPassphrase and getCachedPassphrase for
  * convenience.
  *
+ * Lookups go through a binder connection to the service, which is bound once per process and
+ * kept for its lifetime. This way a lookup is a single synchronous binder call, instead of a
+ * round trip through startService and a reply Messenger. The binding doesn't create the service
+ * and doesn't keep it alive: the service still stops itself once the cache is empty, and the
+ * connection comes back when it is started again. While it isn't connected, lookups use the
+ * intent, which starts the service.
+ *
  * The passphrase cache service always works with both a master key id and a subkey id. The master
  * key id is always used to retrieve relevant info from the database, while the subkey id is used
  * to determine the type behavior (regular passphrase, empty passphrase, stripped key,
@@ -101,9 +112,17 @@ public class PassphraseCacheService extends Service {
     private static final int MSG_PASSPHRASE_CACHE_GET_OKAY = 1;
     private static final int MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND = 2;
 
+    private static final int TRANSACTION_GET_CACHED_PASSPHRASE = IBinder.FIRST_CALL_TRANSACTION;
+    private static final int TRANSACTION_UPDATE_SESSION_KEYS = IBinder.FIRST_CALL_TRANSACTION + 1;
+
+    private static final Object sBindLock = new Object();
+    private static IBinder sServiceBinder;
+    private static boolean sIsBound;
+
     private BroadcastReceiver mIntentReceiver;
 
-    private LongSparseArray<CachedPassphrase> mPassphraseCache = new LongSparseArray<>();
+    // accessed from binder threads for lookups, so all access must be synchronized on it
+    private final LongSparseArray<CachedPassphrase> mPassphraseCache = new LongSparseArray<>();
 
     Context mContext;
 
@@ -161,8 +180,8 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Gets a cached passphrase from memory by sending an intent to the service. This method is
-     * designed to wait until the service returns the passphrase.
+     * Gets a cached passphrase from memory by asking the service. This method is designed to wait
+     * until the service returns the passphrase.
      *
      * @return passphrase or null (if no passphrase is cached for this keyId)
      */
@@ -170,6 +189,110 @@ public class PassphraseCacheService extends Service {
         Timber.d("PassphraseCacheService.getCachedPassphrase() for masterKeyId "
                 + masterKeyId + ", subKeyId " + subKeyId);
 
+        IBinder serviceBinder = getServiceBinder(context);
+        if (serviceBinder != null) {
+            Parcel data = Parcel.obtain();
+            Parcel reply = Parcel.obtain();
+            try {
+                data.writeLong(masterKeyId);
+                data.writeLong(subKeyId);
+                serviceBinder.transact(TRANSACTION_GET_CACHED_PASSPHRASE, data, reply, 0);
+
+                if (reply.readInt() != MSG_PASSPHRASE_CACHE_GET_OKAY) {
+                    throw new KeyNotFoundException();
+                }
+                return reply.readParcelable(Passphrase.class.getClassLoader());
+            } catch (RemoteException e) {
+                Timber.e(e, "PassphraseCacheService: binder call failed, falling back to intent");
+            } finally {
+                data.recycle();
+                reply.recycle();
+            }
+        }
+
+        return getCachedPassphraseViaIntent(context, masterKeyId, subKeyId);
+    }
+
+    /**
+     * Hands S2K session keys which were derived from a cached passphrase back to the service, so
+     * later operations in any process can skip the S2K derivation. The keys are attached to the
+     * cached passphrase, and are evicted and zeroed together with it.
+     * <p>
+     * This is best effort and doesn't block: if the service isn't connected, or the passphrase is
+     * no longer cached, the keys are simply not kept.
+     */
+    public static void updateCachedSessionKeys(Context context, long masterKeyId, long subKeyId,
+            Passphrase passphrase) {
+        if (passphrase == null || !passphrase.hasNewCachedSessionKeys()) {
+            return;
+        }
+
+        IBinder serviceBinder;
+        synchronized (sBindLock) {
+            serviceBinder = sServiceBinder;
+        }
+        if (serviceBinder == null) {
+            return;
+        }
+
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeLong(masterKeyId);
+            data.writeLong(subKeyId);
+            data.writeParcelable(passphrase, 0);
+            serviceBinder.transact(TRANSACTION_UPDATE_SESSION_KEYS, data, null, IBinder.FLAG_ONEWAY);
+        } catch (RemoteException e) {
+            Timber.e(e, "PassphraseCacheService: Failed to update cached session keys");
+        } finally {
+            data.recycle();
+        }
+    }
+
+    /**
+     * Returns a binder connected to the service, binding to it first if necessary. Returns null if
+     * the service isn't running, or the connection isn't established yet.
+     * <p>
+     * The binding is made without BIND_AUTO_CREATE, so it doesn't keep the service and its process
+     * running after the cache is empty. If the service isn't running, there is nothing cached
+     * anyway, and the caller falls back to the intent, which starts it.
+     */
+    private static IBinder getServiceBinder(Context context) {
+        synchronized (sBindLock) {
+            if (sServiceBinder != null && sServiceBinder.isBinderAlive()) {
+                return sServiceBinder;
+            }
+
+            if (!sIsBound) {
+                Intent intent = new Intent(context, PassphraseCacheService.class);
+                sIsBound = context.getApplicationContext().bindService(intent, sServiceConnection, 0);
+                if (!sIsBound) {
+                    Timber.e("PassphraseCacheService: could not bind to service!");
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private static final ServiceConnection sServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            synchronized (sBindLock) {
+                sServiceBinder = service;
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // called when the service stops. the binding stays, we are connected again once it is started
+            synchronized (sBindLock) {
+                sServiceBinder = null;
+            }
+        }
+    };
+
+    private static Passphrase getCachedPassphraseViaIntent(Context context, long masterKeyId, long subKeyId)
+            throws KeyNotFoundException {
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
 
@@ -236,11 +359,13 @@ public class PassphraseCacheService extends Service {
         // passphrase for symmetric encryption?
         if (masterKeyId == Constants.key.symmetric) {
             Timber.d("PassphraseCacheService.getCachedPassphraseImpl() for symmetric encryption");
-            CachedPassphrase cachedPassphrase = mPassphraseCache.get(Constants.key.symmetric);
-            if (cachedPassphrase == null) {
-                return null;
+            synchronized (mPassphraseCache) {
+                CachedPassphrase cachedPassphrase = mPassphraseCache.get(Constants.key.symmetric);
+                if (cachedPassphrase == null) {
+                    return null;
+                }
+                return cachedPassphrase.mPassphrase;
             }
-            return cachedPassphrase.mPassphrase;
         }
 
         // try to get master key id which is used as an identifier for cached passphrases
@@ -260,12 +385,20 @@ public class PassphraseCacheService extends Service {
                 throw new KeyRepository.NotFoundException("secret key for stripped subkey is not available");
         }
 
+        boolean cacheSubs = Preferences.getPreferences(mContext).getPassphraseCacheSubs();
+
         // get cached passphrase
+        synchronized (mPassphraseCache) {
+            return getCachedPassphraseLocked(masterKeyId, subKeyId, cacheSubs);
+        }
+    }
+
+    private Passphrase getCachedPassphraseLocked(long masterKeyId, long subKeyId, boolean cacheSubs) {
         CachedPassphrase cachedPassphrase = mPassphraseCache.get(subKeyId);
         if (cachedPassphrase == null) {
 
             // If we cache strictly by subkey, exit early
-            if (Preferences.getPreferences(mContext).getPassphraseCacheSubs()) {
+            if (cacheSubs) {
                 Timber.d("PassphraseCacheService: specific subkey passphrase not (yet) cached, returning null");
                 // not really an error, just means the passphrase is not cached but not empty either
                 return null;
@@ -379,7 +512,17 @@ public class PassphraseCacheService extends Service {
                     am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, referenceKeyId));
                 }
 
-                mPassphraseCache.put(referenceKeyId, cachedPassphrase);
+                synchronized (mPassphraseCache) {
+                    CachedPassphrase previous = mPassphraseCache.get(referenceKeyId);
+                    if (previous != null) {
+                        if (passphrase != null && previous.mPassphrase != null) {
+                            // keep S2K results derived from the previously cached passphrase, if it's the same
+                            passphrase.mergeCachedSessionKeys(previous.mPassphrase);
+                        }
+                        previous.removeFromMemory();
+                    }
+                    mPassphraseCache.put(referenceKeyId, cachedPassphrase);
+                }
 
                 break;
             }
@@ -390,19 +533,12 @@ public class PassphraseCacheService extends Service {
 
                 Message msg = Message.obtain();
                 try {
-                    // If only one of these is symmetric, error out!
-                    if (masterKeyId == Constants.key.symmetric ^ subKeyId == Constants.key.symmetric) {
-                        Timber.e("PassphraseCacheService: Bad request, missing masterKeyId or subKeyId!");
-                        msg.what = MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND;
-                    } else {
-                        Passphrase passphrase = getCachedPassphraseImpl(masterKeyId, subKeyId);
-                        msg.what = MSG_PASSPHRASE_CACHE_GET_OKAY;
-                        Bundle bundle = new Bundle();
-                        bundle.putParcelable(EXTRA_PASSPHRASE, passphrase);
-                        msg.setData(bundle);
-                    }
+                    Passphrase passphrase = getCachedPassphraseForRequest(masterKeyId, subKeyId);
+                    msg.what = MSG_PASSPHRASE_CACHE_GET_OKAY;
+                    Bundle bundle = new Bundle();
+                    bundle.putParcelable(EXTRA_PASSPHRASE, passphrase);
+                    msg.setData(bundle);
                 } catch (KeyRepository.NotFoundException e) {
-                    Timber.e("PassphraseCacheService: Passphrase for unknown key was requested!");
                     msg.what = MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND;
                 }
 
@@ -426,18 +562,27 @@ public class PassphraseCacheService extends Service {
                     }
                     // Stop specific ttl alarm and
                     am.cancel(buildIntent(this, referenceKeyId));
-                    mPassphraseCache.delete(referenceKeyId);
+                    synchronized (mPassphraseCache) {
+                        CachedPassphrase cachedPassphrase = mPassphraseCache.get(referenceKeyId);
+                        if (cachedPassphrase != null) {
+                            cachedPassphrase.removeFromMemory();
+                        }
+                        mPassphraseCache.delete(referenceKeyId);
+                    }
 
                 } else {
 
-                    // Stop all ttl alarms
-                    for (int i = 0; i < mPassphraseCache.size(); i++) {
-                        CachedPassphrase cachedPassphrase = mPassphraseCache.valueAt(i);
-                        if (cachedPassphrase.mTimeoutMode == TimeoutMode.TTL) {
-                            am.cancel(buildIntent(this, mPassphraseCache.keyAt(i)));
+                    synchronized (mPassphraseCache) {
+                        // Stop all ttl alarms
+                        for (int i = 0; i < mPassphraseCache.size(); i++) {
+                            CachedPassphrase cachedPassphrase = mPassphraseCache.valueAt(i);
+                            if (cachedPassphrase.mTimeoutMode == TimeoutMode.TTL) {
+                                am.cancel(buildIntent(this, mPassphraseCache.keyAt(i)));
+                            }
+                            cachedPassphrase.removeFromMemory();
                         }
+                        mPassphraseCache.clear();
                     }
-                    mPassphraseCache.clear();
 
                 }
                 break;
@@ -456,15 +601,15 @@ public class PassphraseCacheService extends Service {
     /** Called when one specific passphrase for keyId timed out. */
     private void removeTimeoutedPassphrase(long keyId) {
 
-        CachedPassphrase cPass = mPassphraseCache.get(keyId);
-        if (cPass != null) {
-            if (cPass.mPassphrase != null) {
-                // clean internal char[] from memory!
-                cPass.mPassphrase.removeFromMemory();
-            }
+        CachedPassphrase cPass;
+        synchronized (mPassphraseCache) {
+            cPass = mPassphraseCache.get(keyId);
             // remove passphrase object
             mPassphraseCache.remove(keyId);
         }
+        if (cPass != null) {
+            cPass.removeFromMemory();
+        }
 
         Timber.d("PassphraseCacheService Timeout of keyId " + keyId + ", removed from memory!");
 
@@ -473,15 +618,18 @@ public class PassphraseCacheService extends Service {
 
     private void removeScreenLockPassphrases() {
 
-        for (int i = 0; i < mPassphraseCache.size(); ) {
-            CachedPassphrase cPass = mPassphraseCache.valueAt(i);
-            if (cPass.mTimeoutMode == TimeoutMode.LOCK) {
-                // remove passphrase object
-                mPassphraseCache.removeAt(i);
-                continue;
+        synchronized (mPassphraseCache) {
+            for (int i = 0; i < mPassphraseCache.size(); ) {
+                CachedPassphrase cPass = mPassphraseCache.valueAt(i);
+                if (cPass.mTimeoutMode == TimeoutMode.LOCK) {
+                    cPass.removeFromMemory();
+                    // remove passphrase object
+                    mPassphraseCache.removeAt(i);
+                    continue;
+                }
+                // only do this if we didn't remove at, which continues loop by reducing size!
+                i += 1;
             }
-            // only do this if we didn't remove at, which continues loop by reducing size!
-            i += 1;
         }
 
         Timber.d("PassphraseCacheService Removing all cached-until-lock passphrases from memory!");
@@ -490,8 +638,12 @@ public class PassphraseCacheService extends Service {
     }
 
     private void updateService() {
-        if (mPassphraseCache.size() > 0) {
-            startForeground(NotificationIds.PASSPHRASE_CACHE, getNotification());
+        Notification notification;
+        synchronized (mPassphraseCache) {
+            notification = mPassphraseCache.size() > 0 ? getNotification() : null;
+        }
+        if (notification != null) {
+            startForeground(NotificationIds.PASSPHRASE_CACHE, notification);
         } else {
             // stop whole service if no cached passphrases remaining
             Timber.d("PassphraseCacheService: No passphrases remaining in memory, stopping service!");
@@ -567,10 +719,75 @@ public class PassphraseCacheService extends Service {
         return mBinder;
     }
 
+    /**
+     * Returns the passphrase for a lookup request, for both intent and binder lookups.
+     *
+     * @throws KeyRepository.NotFoundException if the request is malformed, or the key is unknown
+     */
+    private Passphrase getCachedPassphraseForRequest(long masterKeyId, long subKeyId)
+            throws KeyRepository.NotFoundException {
+        // If only one of these is symmetric, error out!
+        if (masterKeyId == Constants.key.symmetric ^ subKeyId == Constants.key.symmetric) {
+            Timber.e("PassphraseCacheService: Bad request, missing masterKeyId or subKeyId!");
+            throw new KeyRepository.NotFoundException();
+        }
+        try {
+            return getCachedPassphraseImpl(masterKeyId, subKeyId);
+        } catch (KeyRepository.NotFoundException e) {
+            Timber.e("PassphraseCacheService: Passphrase for unknown key was requested!");
+            throw e;
+        }
+    }
+
+    private void updateCachedSessionKeysImpl(long masterKeyId, long subKeyId, Passphrase passphrase) {
+        long referenceKeyId = Preferences.getPreferences(mContext).getPassphraseCacheSubs() ? subKeyId : masterKeyId;
+        synchronized (mPassphraseCache) {
+            CachedPassphrase cachedPassphrase = mPassphraseCache.get(referenceKeyId);
+            if (cachedPassphrase != null && cachedPassphrase.mPassphrase != null) {
+                cachedPassphrase.mPassphrase.mergeCachedSessionKeys(passphrase);
+            }
+        }
+        passphrase.removeFromMemory();
+    }
+
     public class PassphraseCacheBinder extends Binder {
         public PassphraseCacheService getService() {
             return PassphraseCacheService.this;
         }
+
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+            if (code != TRANSACTION_GET_CACHED_PASSPHRASE && code != TRANSACTION_UPDATE_SESSION_KEYS) {
+                return super.onTransact(code, data, reply, flags);
+            }
+            // the service isn't exported, but make sure only we can access passphrases
+            if (Binder.getCallingUid() != Process.myUid()) {
+                throw new SecurityException("Passphrase cache access from foreign uid!");
+            }
+
+            if (code == TRANSACTION_UPDATE_SESSION_KEYS) {
+                long masterKeyId = data.readLong();
+                long subKeyId = data.readLong();
+                Passphrase passphrase = data.readParcelable(Passphrase.class.getClassLoader());
+                updateCachedSessionKeysImpl(masterKeyId, subKeyId, passphrase);
+                return true;
+            }
+
+            long masterKeyId = data.readLong();
+            long subKeyId = data.readLong();
+            // the returned passphrase is the cached object itself. its session keys are merged, and
+            // it is removed from memory on timeout, so it must not change while it is parceled
+            synchronized (mPassphraseCache) {
+                try {
+                    Passphrase passphrase = getCachedPassphraseForRequest(masterKeyId, subKeyId);
+                    reply.writeInt(MSG_PASSPHRASE_CACHE_GET_OKAY);
+                    reply.writeParcelable(passphrase, 0);
+                } catch (KeyRepository.NotFoundException e) {
+                    reply.writeInt(MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND);
+                }
+            }
+            return true;
+        }
     }
 
     private final IBinder mBinder = new PassphraseCacheBinder();
@@ -603,6 +820,13 @@ public class PassphraseCacheService extends Service {
         static CachedPassphrase getPassphraseLock(Passphrase passphrase, String primaryUserId) {
             return new CachedPassphrase(passphrase, primaryUserId, TimeoutMode.LOCK, null);
         }
+
+        /** Clears the passphrase and all session keys derived from it from memory. */
+        void removeFromMemory() {
+            if (mPassphrase != null) {
+                mPassphrase.removeFromMemory();
+            }
+        }
     }
 
 }
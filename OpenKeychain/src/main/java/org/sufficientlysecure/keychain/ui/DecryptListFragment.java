@@ -21,6 +21,7 @@ package org.sufficientlysecure.keychain.ui;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 
@@ -79,6 +80,7 @@ import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.base.QueueingCryptoOperationFragment;
 // this import NEEDS to be above the ViewModel AND SubViewHolder one, or it won't compile! (as of 16.09.15)
@@ -102,12 +104,21 @@ import timber.log.Timber;
  * <p/>
  * This class has a complex control flow to manage its input URIs. Each URI
  * which is in mInputUris is also in exactly one of mPendingInputUris,
- * mCancelledInputUris, mCurrentInputUri, or a key in mInputDataResults.
+ * mRunningInputUris, mInteractiveInputUris, mCancelledInputUris,
+ * mCurrentInputUri, or a key in mInputDataResults.
  * <p/>
- * Processing of URIs happens using a looping approach:
+ * If there is more than one input, processing starts in the background:
+ * - processPendingInputUris() moves all pending URIs to mRunningInputUris, and
+ * decrypts them concurrently with mDecryptScheduler, without user interaction.
+ * - URIs which need user input, e.g. a passphrase, are moved to
+ * mInteractiveInputUris, and processed by the foreground loop below.
+ * - Once a passphrase was entered in the foreground, all URIs waiting in
+ * mInteractiveInputUris are tried with it again in the background.
+ * <p/>
+ * Processing of URIs in the foreground happens using a looping approach:
  * - There is always exactly one method running which works on mCurrentInputUri
  * - Processing starts in cryptoOperation(), which pops a new mCurrentInputUri
- * from the list of mPendingInputUris.
+ * from mInteractiveInputUris, or the list of mPendingInputUris.
  * - Once a mCurrentInputUri is finished processing, it should be set to null and
  * control handed back to cryptoOperation()
  * - Control flow can move through asynchronous calls, and resume in callbacks
@@ -130,6 +141,8 @@ public class DecryptListFragment
     private ArrayList<Uri> mInputUris;
     private HashMap<Uri, InputDataResult> mInputDataResults;
     private ArrayList<Uri> mPendingInputUris;
+    private HashSet<Uri> mRunningInputUris;
+    private ArrayList<Uri> mInteractiveInputUris;
     private ArrayList<Uri> mCancelledInputUris;
 
     private Uri mCurrentInputUri;
@@ -139,6 +152,10 @@ public class DecryptListFragment
     private DecryptFilesAdapter mAdapter;
     private Uri mCurrentSaveFileUri;
 
+    private DecryptScheduler mDecryptScheduler;
+    // used for background operations, holds the last passphrase entered in the foreground
+    private CryptoInputParcel mSharedCryptoInput = CryptoInputParcel.createCryptoInputParcel();
+
     /**
      * Creates new instance of this fragment
      */
@@ -184,6 +201,15 @@ public class DecryptListFragment
         return view;
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        if (mDecryptScheduler != null) {
+            mDecryptScheduler.cancel();
+        }
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -192,7 +218,8 @@ public class DecryptListFragment
 
         HashMap<Uri, InputDataResult> results = new HashMap<>(mInputUris.size());
         for (Uri uri : mInputUris) {
-            if (mPendingInputUris.contains(uri)) {
+            if (mPendingInputUris.contains(uri) || mRunningInputUris.contains(uri)
+                    || mInteractiveInputUris.contains(uri)) {
                 continue;
             }
             InputDataResult result = mAdapter.getItemResult(uri);
@@ -207,9 +234,9 @@ public class DecryptListFragment
         outState.putBoolean(ARG_CAN_DELETE, mCanDelete);
         outState.putBoolean(ARG_IS_AUTOCRYPT_SETUP, mIsAutocryptSetup);
 
-        // this does not save mCurrentInputUri - if anything is being
-        // processed at fragment recreation time, the operation in
-        // progress will be lost!
+        // this does not save mCurrentInputUri or mRunningInputUris - if
+        // anything is being processed at fragment recreation time, the
+        // operation in progress will be lost!
     }
 
     @Override
@@ -241,6 +268,20 @@ public class DecryptListFragment
         mCancelledInputUris = cancelledUris != null ? cancelledUris : new ArrayList<>();
 
         mPendingInputUris = new ArrayList<>();
+        mRunningInputUris = new HashSet<>();
+        mInteractiveInputUris = new ArrayList<>();
+
+        mDecryptScheduler = new DecryptScheduler(getActivity(), new DecryptScheduler.Callback() {
+            @Override
+            public void onDecryptProgress(Uri inputUri, String msg, int progress, int max) {
+                mAdapter.setProgress(inputUri, progress, max, msg);
+            }
+
+            @Override
+            public void onDecryptFinished(Uri inputUri, InputDataResult result) {
+                onBackgroundOperationFinished(inputUri, result);
+            }
+        });
 
         for (final Uri uri : inputUris) {
             mAdapter.add(uri);
@@ -261,7 +302,79 @@ public class DecryptListFragment
         }
 
         // check if there are any pending input uris
-        cryptoOperation();
+        processPendingInputUris();
+    }
+
+    /**
+     * Starts decrypting all pending input uris in the background, and hands control flow to the
+     * foreground loop if it isn't busy. A single input is always processed in the foreground, so
+     * it can be displayed directly if it turns out to be text.
+     */
+    private void processPendingInputUris() {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+
+        if (mInputUris.size() > 1) {
+            Iterator<Uri> it = mPendingInputUris.iterator();
+            while (it.hasNext()) {
+                Uri uri = it.next();
+                // the foreground loop takes care of requesting the permission
+                if (!hasReadPermission(activity, uri)) {
+                    continue;
+                }
+                it.remove();
+                mRunningInputUris.add(uri);
+                mDecryptScheduler.submit(uri, createInputDataParcel(uri), mSharedCryptoInput);
+            }
+        }
+
+        if (mCurrentInputUri == null) {
+            cryptoOperation();
+        }
+    }
+
+    private void onBackgroundOperationFinished(Uri uri, InputDataResult result) {
+        mRunningInputUris.remove(uri);
+
+        if (result.isPending()) {
+            // needs user input, which is only possible in the foreground
+            mInteractiveInputUris.add(uri);
+            if (mCurrentInputUri == null) {
+                cryptoOperation();
+            }
+            return;
+        }
+
+        if (!result.success()) {
+            onInputError(uri, result);
+            return;
+        }
+
+        mInputDataResults.put(uri, result);
+        processResult(uri);
+    }
+
+    /**
+     * Remembers a passphrase entered for the foreground operation, and tries all inputs waiting for
+     * user input with it again, so inputs encrypted to the same key don't ask for it once each.
+     */
+    private void shareEnteredPassphrase(int resultCode, Intent data) {
+        if (resultCode != Activity.RESULT_OK || data == null) {
+            return;
+        }
+        CryptoInputParcel cryptoInput = data.getParcelableExtra(PassphraseDialogActivity.RESULT_CRYPTO_INPUT);
+        // a symmetric passphrase is not bound to a key, it would be tried for every input
+        if (cryptoInput == null || cryptoInput.getPassphrase() == null
+                || cryptoInput.getPassphraseSubkey() == null) {
+            return;
+        }
+
+        mSharedCryptoInput = cryptoInput;
+        mPendingInputUris.addAll(mInteractiveInputUris);
+        mInteractiveInputUris.clear();
+        processPendingInputUris();
     }
 
     @Override
@@ -278,6 +391,7 @@ public class DecryptListFragment
             }
 
             default: {
+                shareEnteredPassphrase(resultCode, data);
                 super.onActivityResult(requestCode, resultCode, data);
             }
         }
@@ -339,14 +453,18 @@ public class DecryptListFragment
         final Uri uri = mCurrentInputUri;
         mCurrentInputUri = null;
 
+        onInputError(uri, result);
+
+        cryptoOperation();
+    }
+
+    private void onInputError(Uri uri, InputDataResult result) {
         Activity activity = getActivity();
         if (activity != null && "com.fsck.k9.attachmentprovider".equals(uri.getHost())) {
             Toast.makeText(getActivity(), R.string.error_reading_k9, Toast.LENGTH_LONG).show();
         }
 
         mAdapter.addResult(uri, result);
-
-        cryptoOperation();
     }
 
     @Override
@@ -356,7 +474,8 @@ public class DecryptListFragment
 
         Activity activity = getActivity();
 
-        boolean isSingleInput = mInputDataResults.isEmpty() && mPendingInputUris.isEmpty();
+        boolean isSingleInput = mInputDataResults.isEmpty() && mPendingInputUris.isEmpty()
+                && mRunningInputUris.isEmpty() && mInteractiveInputUris.isEmpty();
         if (isSingleInput) {
 
             // there is always at least one mMetadata object, so we know this is >= 1 already
@@ -486,7 +605,7 @@ public class DecryptListFragment
         mAdapter.resetItemData(uri);
 
         // check if there are any pending input uris
-        cryptoOperation();
+        processPendingInputUris();
     }
 
     public void displayBottomSheet(final InputDataResult result, final int index) {
@@ -622,12 +741,14 @@ public class DecryptListFragment
         }
 
         if (mCurrentInputUri == null) {
-            if (mPendingInputUris.isEmpty()) {
+            if (!mInteractiveInputUris.isEmpty()) {
+                mCurrentInputUri = mInteractiveInputUris.remove(0);
+            } else if (!mPendingInputUris.isEmpty()) {
+                mCurrentInputUri = mPendingInputUris.remove(0);
+            } else {
                 // nothing left to do
                 return null;
             }
-
-            mCurrentInputUri = mPendingInputUris.remove(0);
         }
 
         Timber.d("mCurrentInputUri=" + mCurrentInputUri);
@@ -636,11 +757,15 @@ public class DecryptListFragment
             return null;
         }
 
+        return createInputDataParcel(mCurrentInputUri);
+
+    }
+
+    private InputDataParcel createInputDataParcel(Uri inputUri) {
         PgpDecryptVerifyInputParcel.Builder decryptInput = PgpDecryptVerifyInputParcel.builder()
                 .setAllowSymmetricDecryption(true)
                 .setAutocryptSetup(mIsAutocryptSetup);
-        return InputDataParcel.createInputDataParcel(mCurrentInputUri, decryptInput.build());
-
+        return InputDataParcel.createInputDataParcel(inputUri, decryptInput.build());
     }
 
 
@@ -655,17 +780,7 @@ public class DecryptListFragment
      * see https://commonsware.com/blog/2015/10/07/runtime-permissions-files-action-send.html
      */
     private boolean checkAndRequestReadPermission(Activity activity, final Uri uri) {
-        if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
-            return true;
-        }
-
-        // Additional check due to https://commonsware.com/blog/2015/11/09/you-cannot-hold-nonexistent-permissions.html
-        if (Build.VERSION.SDK_INT < VERSION_CODES.M) {
-            return true;
-        }
-
-        if (ContextCompat.checkSelfPermission(activity, Manifest.permission.READ_EXTERNAL_STORAGE)
-                == PackageManager.PERMISSION_GRANTED) {
+        if (hasReadPermission(activity, uri)) {
             return true;
         }
 
@@ -677,6 +792,20 @@ public class DecryptListFragment
 
     }
 
+    private static boolean hasReadPermission(Context context, Uri uri) {
+        if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return true;
+        }
+
+        // Additional check due to https://commonsware.com/blog/2015/11/09/you-cannot-hold-nonexistent-permissions.html
+        if (Build.VERSION.SDK_INT < VERSION_CODES.M) {
+            return true;
+        }
+
+        return ContextCompat.checkSelfPermission(context, Manifest.permission.READ_EXTERNAL_STORAGE)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode,
                                            @NonNull String[] permissions,
@@ -726,6 +855,7 @@ public class DecryptListFragment
 
         // hand control flow back
         cryptoOperation();
+        processPendingInputUris();
 
     }
 
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui;
+
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.MainThread;
+import org.sufficientlysecure.keychain.daos.KeyRepository;
+import org.sufficientlysecure.keychain.operations.InputDataOperation;
+import org.sufficientlysecure.keychain.operations.results.InputDataResult;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.service.InputDataParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+
+
+/**
+ * Runs InputDataOperations for independent inputs concurrently, on a pool bounded by the number of cores.
+ * Operations started through KeychainServiceTask run one at a time, which leaves most cores idle when
+ * decrypting many files.
+ * <p>
+ * Operations run without user interaction. If an input needs a passphrase or a security token, its pending
+ * result is delivered like any other, and it is up to the caller to run it again through its
+ * CryptoOperationHelper. Progress and results are delivered on the main thread, as inputs finish.
+ */
+class DecryptScheduler {
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static final ThreadPoolExecutor decryptExecutor = new ThreadPoolExecutor(
+            THREAD_COUNT, THREAD_COUNT, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    static {
+        decryptExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    interface Callback {
+        void onDecryptProgress(Uri inputUri, String msg, int progress, int max);
+        void onDecryptFinished(Uri inputUri, InputDataResult result);
+    }
+
+    private final Context context;
+    private final KeyRepository keyRepository;
+    private final Callback callback;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    DecryptScheduler(Context context, Callback callback) {
+        this.context = context.getApplicationContext();
+        this.keyRepository = KeyRepository.create(this.context);
+        this.callback = callback;
+    }
+
+    @MainThread
+    void submit(Uri inputUri, InputDataParcel inputParcel, CryptoInputParcel cryptoInput) {
+        decryptExecutor.execute(() -> {
+            if (cancelled.get()) {
+                return;
+            }
+
+            Progressable progressable = new Progressable() {
+                @Override
+                public void setProgress(Integer resourceId, int current, int total) {
+                    String msg = resourceId != null ? context.getString(resourceId) : null;
+                    handler.post(() -> {
+                        if (!cancelled.get()) {
+                            callback.onDecryptProgress(inputUri, msg, current, total);
+                        }
+                    });
+                }
+
+                @Override
+                public void setPreventCancel() {
+                    // background operations can't be cancelled
+                }
+            };
+
+            // operations keep state, so each input gets its own
+            InputDataOperation op = new InputDataOperation(context, keyRepository, progressable);
+            InputDataResult result = op.execute(inputParcel, cryptoInput);
+
+            handler.post(() -> {
+                if (!cancelled.get()) {
+                    callback.onDecryptFinished(inputUri, result);
+                }
+            });
+        });
+    }
+
+    /** Skips all inputs which were not started yet, and drops the results of those still running. */
+    @MainThread
+    void cancel() {
+        cancelled.set(true);
+    }
+}
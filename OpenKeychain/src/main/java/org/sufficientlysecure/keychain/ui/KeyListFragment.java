@@ -23,6 +23,7 @@ import java.util.List;
 
 import android.animation.ObjectAnimator;
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -36,11 +37,10 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ViewAnimator;
 
-import androidx.annotation.WorkerThread;
 import androidx.appcompat.widget.SearchView;
 import androidx.core.view.MenuItemCompat;
 import androidx.fragment.app.FragmentActivity;
-import androidx.lifecycle.LiveData;
+import androidx.lifecycle.ViewModel;
 import androidx.lifecycle.ViewModelProviders;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
@@ -56,9 +56,9 @@ import org.sufficientlysecure.keychain.KeychainDatabase;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.compatibility.ClipboardReflection;
 import org.sufficientlysecure.keychain.daos.DatabaseNotifyManager;
-import org.sufficientlysecure.keychain.daos.KeyRepository;
 import org.sufficientlysecure.keychain.keysync.KeyserverSyncManager;
-import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
+import org.sufficientlysecure.keychain.livedata.KeyListLiveData;
+import org.sufficientlysecure.keychain.livedata.KeyListLiveData.KeyListItems;
 import org.sufficientlysecure.keychain.operations.KeySyncParcel;
 import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
@@ -70,10 +70,8 @@ import org.sufficientlysecure.keychain.ui.adapter.FlexibleKeyDummyItem;
 import org.sufficientlysecure.keychain.ui.adapter.FlexibleKeyHeader;
 import org.sufficientlysecure.keychain.ui.adapter.FlexibleKeyItem;
 import org.sufficientlysecure.keychain.ui.adapter.FlexibleKeyItem.FlexibleSectionableKeyItem;
-import org.sufficientlysecure.keychain.ui.adapter.FlexibleKeyItemFactory;
 import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.base.RecyclerFragment;
-import org.sufficientlysecure.keychain.ui.keyview.GenericViewModel;
 import org.sufficientlysecure.keychain.ui.keyview.ViewKeyActivity;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
@@ -96,8 +94,8 @@ public class KeyListFragment extends RecyclerFragment<FlexibleAdapter<FlexibleKe
 
     private FloatingActionsMenu mFab;
 
-    private KeyRepository keyRepository;
-    private FlexibleKeyItemFactory flexibleKeyItemFactory;
+    private KeyListLiveData keyListLiveData;
+    private List<FlexibleKeyItem> displayedKeyItems;
 
     private Long queuedHighlightMasterKeyId;
 
@@ -238,9 +236,6 @@ public class KeyListFragment extends RecyclerFragment<FlexibleAdapter<FlexibleKe
 
         setLayoutManager(new LinearLayoutManager(activity));
 
-        keyRepository = KeyRepository.create(requireContext());
-        flexibleKeyItemFactory = new FlexibleKeyItemFactory(requireContext().getResources());
-
         Intent intent = getActivity().getIntent();
         if (intent != null && intent.hasExtra(ImportKeyResult.EXTRA_RESULT)) {
             ImportKeyResult importKeyResult = intent.getParcelableExtra(ImportKeyResult.EXTRA_RESULT);
@@ -250,18 +245,35 @@ public class KeyListFragment extends RecyclerFragment<FlexibleAdapter<FlexibleKe
             }
         }
 
-        GenericViewModel viewModel = ViewModelProviders.of(this).get(GenericViewModel.class);
-        LiveData<List<FlexibleKeyItem>> liveData = viewModel.getGenericLiveData(requireContext(), this::loadFlexibleKeyItems);
-        liveData.observe(this, this::onLoadKeyItems);
+        KeyListViewModel viewModel = ViewModelProviders.of(this).get(KeyListViewModel.class);
+        keyListLiveData = viewModel.getKeyListLiveData(requireContext());
+        keyListLiveData.observe(this, this::onLoadKeyItems);
     }
 
-    @WorkerThread
-    private List<FlexibleKeyItem> loadFlexibleKeyItems() {
-        List<UnifiedKeyInfo> unifiedKeyInfo = keyRepository.getAllUnifiedKeyInfo();
-        return flexibleKeyItemFactory.mapUnifiedKeyInfoToFlexibleKeyItems(unifiedKeyInfo);
+    public static class KeyListViewModel extends ViewModel {
+        private KeyListLiveData keyListLiveData;
+
+        KeyListLiveData getKeyListLiveData(Context context) {
+            if (keyListLiveData == null) {
+                keyListLiveData = new KeyListLiveData(context.getApplicationContext());
+            }
+            return keyListLiveData;
+        }
+
+        @Override
+        protected void onCleared() {
+            if (keyListLiveData != null) {
+                keyListLiveData.stopObserving();
+            }
+        }
     }
 
-    private void onLoadKeyItems(List<FlexibleKeyItem> flexibleKeyItems) {
+    private void onLoadKeyItems(KeyListItems keyListItems) {
+        // items are mapped by the live data, off the main thread
+        List<FlexibleKeyItem> flexibleKeyItems = keyListItems.items;
+        List<FlexibleKeyItem> changedKeyItems = keyListItems.getItemsChangedSince(displayedKeyItems);
+        displayedKeyItems = flexibleKeyItems;
+
         FlexibleAdapter<FlexibleKeyItem> adapter = getAdapter();
         if (adapter == null) {
             adapter = new FlexibleAdapter<FlexibleKeyItem>(flexibleKeyItems, this, true) {
@@ -280,6 +292,11 @@ public class KeyListFragment extends RecyclerFragment<FlexibleAdapter<FlexibleKe
             setAdapter(adapter);
             adapter.setFastScroller(fastScroller);
             fastScroller.setBubbleTextCreator(this::getBubbleText);
+        } else if (changedKeyItems != null) {
+            // only rows changed in place, so there is no need to diff the whole list
+            for (FlexibleKeyItem changedKeyItem : changedKeyItems) {
+                adapter.updateItem(changedKeyItem, null);
+            }
         } else {
             adapter.updateDataSet(flexibleKeyItems, true);
         }
@@ -403,7 +420,7 @@ public class KeyListFragment extends RecyclerFragment<FlexibleAdapter<FlexibleKe
             @Override
             public boolean onMenuItemActionCollapse(MenuItem item) {
                 getAdapter().setFilter(null);
-                getAdapter().filterItems();
+                keyListLiveData.setSearchQuery(null);
                 return true;
             }
         });
@@ -531,8 +548,9 @@ public class KeyListFragment extends RecyclerFragment<FlexibleAdapter<FlexibleKe
 
     @Override
     public boolean onQueryTextChange(String searchText) {
+        // the filter is only used to highlight matches, filtering itself is done by the search index
         getAdapter().setFilter(searchText);
-        getAdapter().filterItems(300);
+        keyListLiveData.setSearchQuery(searchText);
 
         if (searchText.length() > 2) {
             vSearchButton.setText(getString(R.string.btn_search_for_query, searchText));
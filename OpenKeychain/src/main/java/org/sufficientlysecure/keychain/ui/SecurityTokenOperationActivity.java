@@ -36,6 +36,7 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.daos.KeyRepository;
 import org.sufficientlysecure.keychain.securitytoken.operations.ModifyPinTokenOp;
 import org.sufficientlysecure.keychain.securitytoken.SecurityTokenConnection;
@@ -79,6 +80,7 @@ public class SecurityTokenOperationActivity extends BaseSecurityTokenActivity {
 
     private CryptoInputParcel mInputParcel;
     private SecurityTokenInfo mResultTokenInfo;
+    private boolean mResultReturned;
 
     @Override
     protected void initTheme() {
@@ -142,6 +144,17 @@ public class SecurityTokenOperationActivity extends BaseSecurityTokenActivity {
         obtainPassphraseIfRequired();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // the operation waiting for this signature won't be resumed, release its output
+        if (isFinishing() && !mResultReturned && mRequiredInput != null
+                && mRequiredInput.mType == RequiredInputParcel.RequiredInputType.SECURITY_TOKEN_SIGN) {
+            PgpSignEncryptOperation.dropSuspendedOperations(mRequiredInput.mInputData);
+        }
+    }
+
     private void obtainPassphraseIfRequired() {
         // obtain passphrase for this subkey
         if (mRequiredInput.mType != RequiredInputParcel.RequiredInputType.SECURITY_TOKEN_MOVE_KEY_TO_CARD
@@ -315,6 +328,7 @@ public class SecurityTokenOperationActivity extends BaseSecurityTokenActivity {
     @Override
     protected final void onSecurityTokenPostExecute(final SecurityTokenConnection stConnection) {
         handleResult(mInputParcel);
+        mResultReturned = true;
 
         // show finish
         vAnimator.setDisplayedChild(2);
@@ -8,6 +8,7 @@ import java.util.Map;
 
 import android.content.res.Resources;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
@@ -25,15 +26,36 @@ public class FlexibleKeyItemFactory {
         myKeysHeader = new FlexibleKeyHeader(myKeysHeaderText);
     }
 
-    public List<FlexibleKeyItem> mapUnifiedKeyInfoToFlexibleKeyItems(List<UnifiedKeyInfo> unifiedKeyInfos) {
+    /**
+     * Maps keys to list items. Items of previousItems are reused for keys whose info didn't change, so
+     * they can be told apart from changed ones by identity. Not thread safe.
+     */
+    public List<FlexibleKeyItem> mapUnifiedKeyInfoToFlexibleKeyItems(List<UnifiedKeyInfo> unifiedKeyInfos,
+            boolean isSearchResult, @Nullable List<FlexibleKeyItem> previousItems) {
         List<FlexibleKeyItem> result = new ArrayList<>();
         if (unifiedKeyInfos == null) {
             return result;
         }
-        if (unifiedKeyInfos.isEmpty() || !unifiedKeyInfos.get(0).has_any_secret()) {
+        if (!isSearchResult && (unifiedKeyInfos.isEmpty() || !unifiedKeyInfos.get(0).has_any_secret())) {
             result.add(getDummyItem());
         }
+
+        HashMap<Long, FlexibleKeyDetailsItem> previousItemsByMasterKeyId = new HashMap<>();
+        if (previousItems != null) {
+            for (FlexibleKeyItem previousItem : previousItems) {
+                if (previousItem instanceof FlexibleKeyDetailsItem) {
+                    FlexibleKeyDetailsItem previousDetailsItem = (FlexibleKeyDetailsItem) previousItem;
+                    previousItemsByMasterKeyId.put(previousDetailsItem.keyInfo.master_key_id(), previousDetailsItem);
+                }
+            }
+        }
+
         for (UnifiedKeyInfo unifiedKeyInfo : unifiedKeyInfos) {
+            FlexibleKeyDetailsItem previousItem = previousItemsByMasterKeyId.get(unifiedKeyInfo.master_key_id());
+            if (previousItem != null && previousItem.keyInfo.equals(unifiedKeyInfo)) {
+                result.add(previousItem);
+                continue;
+            }
             FlexibleKeyHeader header = getFlexibleKeyHeader(unifiedKeyInfo);
             FlexibleKeyItem flexibleKeyItem = new FlexibleKeyDetailsItem(unifiedKeyInfo, header);
             result.add(flexibleKeyItem);
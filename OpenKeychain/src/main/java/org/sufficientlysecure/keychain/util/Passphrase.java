@@ -49,6 +49,8 @@ import java.util.Map.Entry;
 public class Passphrase implements Parcelable {
     private char[] mPassphrase;
     private HashMap<ParcelableS2K, byte[]> mCachedSessionKeys;
+    // not parcelled, only tracks session keys added in this process
+    private boolean mHasNewCachedSessionKeys;
 
     /**
      * According to http://stackoverflow.com/a/15844273 EditText is not using String internally
@@ -116,6 +118,31 @@ public class Passphrase implements Parcelable {
             mCachedSessionKeys = new HashMap<>();
         }
         mCachedSessionKeys.put(ParcelableS2K.fromS2K(keyEncryptionAlgorithm, s2k), sessionKey);
+        mHasNewCachedSessionKeys = true;
+    }
+
+    /** @return true if session keys were added to this object since it was created or unparcelled. */
+    public boolean hasNewCachedSessionKeys() {
+        return mHasNewCachedSessionKeys;
+    }
+
+    /**
+     * Copies all cached session keys of another Passphrase object into this one. This is a no-op
+     * unless both objects hold the same passphrase.
+     */
+    public void mergeCachedSessionKeys(Passphrase other) {
+        if (other.mCachedSessionKeys == null || !equals(other)) {
+            return;
+        }
+        if (mCachedSessionKeys == null) {
+            mCachedSessionKeys = new HashMap<>();
+        }
+        for (Entry<ParcelableS2K, byte[]> entry : other.mCachedSessionKeys.entrySet()) {
+            if (!mCachedSessionKeys.containsKey(entry.getKey())) {
+                // copy, the other object zeroes its keys once it is freed
+                mCachedSessionKeys.put(entry.getKey(), entry.getValue().clone());
+            }
+        }
     }
 
     /**
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain;
+
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import androidx.sqlite.db.SupportSQLiteOpenHelper.Callback;
+import androidx.sqlite.db.SupportSQLiteOpenHelper.Configuration;
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory;
+import android.database.Cursor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+
+
+@RunWith(KeychainTestRunner.class)
+public class KeychainDatabaseUpgradeTest {
+    private static final long MASTER_KEY_ID = 0x1234567890abcdefL;
+
+    @Test
+    public void testUpgradeFromVersion28() throws Exception {
+        createOldDatabase(28);
+
+        assertUpgradedDatabase();
+    }
+
+    @Test
+    public void testUpgradeFromVersion32() throws Exception {
+        createOldDatabase(32);
+
+        assertUpgradedDatabase();
+    }
+
+    private void assertUpgradedDatabase() {
+        SupportSQLiteDatabase db =
+                KeychainDatabase.getInstance(RuntimeEnvironment.application).getWritableDatabase();
+
+        Cursor cursor = db.query("SELECT master_key_id, email, has_encrypt_key_int FROM unifiedKeyView");
+        try {
+            Assert.assertTrue(cursor.moveToFirst());
+            Assert.assertEquals(MASTER_KEY_ID, cursor.getLong(0));
+            Assert.assertEquals("alice@example.com", cursor.getString(1));
+            Assert.assertEquals(0L, cursor.getLong(2));
+            Assert.assertFalse(cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+
+        cursor = db.query("SELECT COUNT(*) FROM key_metadata");
+        try {
+            Assert.assertTrue(cursor.moveToFirst());
+            Assert.assertEquals(1, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Creates the schema as it was before key_summary, with one key and its metadata. */
+    private void createOldDatabase(int version) {
+        SupportSQLiteOpenHelper helper = new FrameworkSQLiteOpenHelperFactory().create(
+                Configuration.builder(RuntimeEnvironment.application).name("openkeychain.db").callback(
+                        new Callback(version) {
+                            @Override
+                            public void onCreate(SupportSQLiteDatabase db) {
+                                createOldSchema(db, version);
+                            }
+
+                            @Override
+                            public void onUpgrade(SupportSQLiteDatabase db, int oldVersion, int newVersion) {
+                                throw new AssertionError();
+                            }
+                        }).build());
+        helper.getWritableDatabase();
+        helper.close();
+    }
+
+    @SuppressWarnings("deprecation")
+    private void createOldSchema(SupportSQLiteDatabase db, int version) {
+        db.execSQL("CREATE TABLE keyrings_public (master_key_id INTEGER NOT NULL PRIMARY KEY, key_ring_data BLOB NULL)");
+        if (version < 31) {
+            db.execSQL(KeysModel.CREATE_TABLE.replace("validFrom INTEGER NOT NULL,", ""));
+        } else {
+            db.execSQL(KeysModel.CREATE_TABLE);
+        }
+        db.execSQL(UserPacketsModel.CREATE_TABLE);
+        db.execSQL(CertsModel.CREATE_TABLE);
+        db.execSQL("CREATE TABLE key_metadata (master_key_id INTEGER PRIMARY KEY, last_updated INTEGER, seen_on_keyservers INTEGER, "
+                + "FOREIGN KEY(master_key_id) REFERENCES keyrings_public(master_key_id) ON DELETE CASCADE)");
+        db.execSQL(KeySignaturesModel.CREATE_TABLE);
+        db.execSQL(ApiAppsModel.CREATE_TABLE);
+        db.execSQL(OverriddenWarningsModel.CREATE_TABLE);
+        db.execSQL(AutocryptPeersModel.CREATE_TABLE);
+        db.execSQL(ApiAllowedKeysModel.CREATE_TABLE);
+
+        db.execSQL("INSERT INTO keyrings_public (master_key_id, key_ring_data) VALUES (" + MASTER_KEY_ID + ", NULL)");
+        db.execSQL("INSERT INTO keys (master_key_id, rank, key_id, algorithm, fingerprint, can_certify, can_sign, "
+                + "can_encrypt, can_authenticate, is_revoked, is_secure, creation"
+                + (version < 31 ? "" : ", validFrom") + ") VALUES (" + MASTER_KEY_ID + ", 0, " + MASTER_KEY_ID
+                + ", 1, x'00', 1, 1, 0, 0, 0, 1, 1000" + (version < 31 ? "" : ", 1000") + ")");
+        db.execSQL("INSERT INTO user_packets (master_key_id, rank, user_id, name, email, is_primary, is_revoked) "
+                + "VALUES (" + MASTER_KEY_ID + ", 0, 'Alice <alice@example.com>', 'Alice', 'alice@example.com', 1, 0)");
+        db.execSQL("INSERT INTO key_metadata (master_key_id, last_updated) VALUES (" + MASTER_KEY_ID + ", 1000)");
+    }
+}
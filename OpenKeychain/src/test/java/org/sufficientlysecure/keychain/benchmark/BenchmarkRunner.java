@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Minimal harness for the benchmarks in this package.
+ * <p>
+ * Each benchmark is run for a number of warmup iterations, which are discarded, followed by a
+ * number of measured iterations. Results are printed, and written as json to
+ * build/benchmark-results/(suite).json so runs can be compared to detect regressions.
+ * <p>
+ * Benchmarks are skipped unless the keychain.benchmark system property is set, e.g. by running
+ * gradle with -Pbenchmark.
+ */
+class BenchmarkRunner {
+    static final String PROPERTY_ENABLED = "keychain.benchmark";
+    static final String PROPERTY_OUTPUT_DIR = "keychain.benchmark.outputDir";
+
+    private static final String DEFAULT_OUTPUT_DIR = "build/benchmark-results";
+
+    interface BenchmarkTask {
+        void run() throws Exception;
+    }
+
+    private final String suiteName;
+    private final List<Result> results = new ArrayList<>();
+
+    BenchmarkRunner(String suiteName) {
+        this.suiteName = suiteName;
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean(PROPERTY_ENABLED);
+    }
+
+    /**
+     * Runs the given task and records its timing.
+     *
+     * @param operationsPerIteration number of operations done by one run of the task, used to
+     *                               compute throughput. e.g. the number of keys imported.
+     */
+    Result measure(String name, int warmupIterations, int iterations, int operationsPerIteration,
+            BenchmarkTask task) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            task.run();
+        }
+
+        long[] samples = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long startTime = System.nanoTime();
+            task.run();
+            samples[i] = System.nanoTime() - startTime;
+        }
+
+        Result result = new Result(name, operationsPerIteration, samples);
+        results.add(result);
+        System.out.println(suiteName + ": " + result);
+        return result;
+    }
+
+    Result measure(String name, int warmupIterations, int iterations, BenchmarkTask task) throws Exception {
+        return measure(name, warmupIterations, iterations, 1, task);
+    }
+
+    void writeResults() throws IOException {
+        File outputDir = new File(System.getProperty(PROPERTY_OUTPUT_DIR, DEFAULT_OUTPUT_DIR));
+        if (!outputDir.exists() && !outputDir.mkdirs()) {
+            throw new IOException("Failed creating benchmark output directory!");
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"suite\": \"").append(suiteName).append("\",\n");
+        json.append("  \"timestamp\": ").append(System.currentTimeMillis()).append(",\n");
+        json.append("  \"benchmarks\": [");
+        for (int i = 0; i < results.size(); i++) {
+            json.append(i == 0 ? "\n" : ",\n");
+            results.get(i).appendJson(json);
+        }
+        json.append("\n  ]\n}\n");
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(outputDir, suiteName + ".json")), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    static class Result {
+        final String name;
+        final int iterations;
+        final int operationsPerIteration;
+        final long minNanos;
+        final long maxNanos;
+        final long meanNanos;
+        final long p50Nanos;
+        final long p90Nanos;
+        final long p99Nanos;
+
+        Result(String name, int operationsPerIteration, long[] samples) {
+            this.name = name;
+            this.operationsPerIteration = operationsPerIteration;
+            this.iterations = samples.length;
+
+            long[] sorted = Arrays.copyOf(samples, samples.length);
+            Arrays.sort(sorted);
+
+            long sum = 0;
+            for (long sample : sorted) {
+                sum += sample;
+            }
+            minNanos = sorted[0];
+            maxNanos = sorted[sorted.length - 1];
+            meanNanos = sum / sorted.length;
+            p50Nanos = percentile(sorted, 50);
+            p90Nanos = percentile(sorted, 90);
+            p99Nanos = percentile(sorted, 99);
+        }
+
+        /** Nearest-rank percentile of an already sorted array. */
+        private static long percentile(long[] sorted, int percentile) {
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+
+        double getOperationsPerSecond() {
+            return operationsPerIteration * 1e9 / meanNanos;
+        }
+
+        void appendJson(StringBuilder json) {
+            json.append("    {");
+            json.append("\"name\": \"").append(name).append("\", ");
+            json.append("\"iterations\": ").append(iterations).append(", ");
+            json.append("\"ops_per_iteration\": ").append(operationsPerIteration).append(", ");
+            json.append("\"min_ns\": ").append(minNanos).append(", ");
+            json.append("\"mean_ns\": ").append(meanNanos).append(", ");
+            json.append("\"p50_ns\": ").append(p50Nanos).append(", ");
+            json.append("\"p90_ns\": ").append(p90Nanos).append(", ");
+            json.append("\"p99_ns\": ").append(p99Nanos).append(", ");
+            json.append("\"max_ns\": ").append(maxNanos).append(", ");
+            json.append("\"ops_per_second\": ").append(String.format(Locale.ENGLISH, "%.2f", getOperationsPerSecond()));
+            json.append("}");
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%s: mean %.3fms, p50 %.3fms, p90 %.3fms, p99 %.3fms (%d iterations, %.2f ops/s)",
+                    name, meanNanos / 1e6, p50Nanos / 1e6, p90Nanos / 1e6, p99Nanos / 1e6, iterations,
+                    getOperationsPerSecond());
+        }
+    }
+}
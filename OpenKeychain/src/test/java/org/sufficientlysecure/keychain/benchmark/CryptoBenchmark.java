@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.Security;
+import java.util.Random;
+
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+
+
+/** Benchmarks for asymmetric encryption, decryption, signing and ascii armor. */
+@RunWith(KeychainTestRunner.class)
+public class CryptoBenchmark {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 30;
+    private static final int PLAINTEXT_SIZE = 16 * 1024;
+    private static final int ARMOR_DATA_SIZE = 1024 * 1024;
+
+    private static BenchmarkRunner runner;
+
+    private static UncachedKeyRing rsaRing;
+    private static UncachedKeyRing ecdhRing;
+    private static UncachedKeyRing ed25519Ring;
+    private static UncachedKeyRing cv25519Ring;
+    private static byte[] plaintext;
+
+    private KeyWritableRepository keyRepository;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Assume.assumeTrue(BenchmarkRunner.isEnabled());
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        runner = new BenchmarkRunner("crypto");
+
+        rsaRing = createKeyRing(
+                SubkeyAdd.createSubkeyAdd(Algorithm.RSA, 2048, null, KeyFlags.CERTIFY_OTHER, 0L),
+                SubkeyAdd.createSubkeyAdd(Algorithm.RSA, 2048, null, KeyFlags.SIGN_DATA, 0L),
+                SubkeyAdd.createSubkeyAdd(Algorithm.RSA, 2048, null, KeyFlags.ENCRYPT_COMMS, 0L));
+        ecdhRing = createKeyRing(
+                SubkeyAdd.createSubkeyAdd(Algorithm.ECDSA, 0, Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L),
+                SubkeyAdd.createSubkeyAdd(Algorithm.ECDSA, 0, Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L),
+                SubkeyAdd.createSubkeyAdd(Algorithm.ECDH, 0, Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        ed25519Ring = createKeyRing(
+                SubkeyAdd.createSubkeyAdd(Algorithm.EDDSA, 0, null, KeyFlags.CERTIFY_OTHER, 0L),
+                SubkeyAdd.createSubkeyAdd(Algorithm.EDDSA, 0, null, KeyFlags.SIGN_DATA, 0L));
+        // cv25519 subkeys can't be generated, use a fixed key instead
+        cv25519Ring = KeyringTestingHelper.readRingFromResource("/test-keys/cv25519-key.sec.asc");
+
+        plaintext = new byte[PLAINTEXT_SIZE];
+        new Random(0).nextBytes(plaintext);
+    }
+
+    @AfterClass
+    public static void tearDownOnce() throws Exception {
+        if (runner != null) {
+            runner.writeResults();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        keyRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        keyRepository.saveSecretKeyRing(rsaRing);
+        keyRepository.saveSecretKeyRing(ecdhRing);
+        keyRepository.saveSecretKeyRing(ed25519Ring);
+        keyRepository.saveSecretKeyRing(cv25519Ring);
+    }
+
+    @Test
+    public void benchmarkRsa() throws Exception {
+        benchmarkEncryptDecrypt("rsa2048", rsaRing);
+    }
+
+    @Test
+    public void benchmarkEcdhP256() throws Exception {
+        benchmarkEncryptDecrypt("ecdh_p256", ecdhRing);
+    }
+
+    @Test
+    public void benchmarkCv25519() throws Exception {
+        benchmarkEncryptDecrypt("cv25519", cv25519Ring);
+    }
+
+    @Test
+    public void benchmarkEd25519() throws Exception {
+        PgpSignEncryptData data = PgpSignEncryptData.builder()
+                .setSignatureMasterKeyId(ed25519Ring.getMasterKeyId())
+                .build();
+
+        final byte[] signedData = signEncrypt(data);
+        runner.measure("ed25519_sign", WARMUP_ITERATIONS, ITERATIONS, () -> signEncrypt(data));
+        runner.measure("ed25519_verify", WARMUP_ITERATIONS, ITERATIONS, () -> decryptVerify(signedData));
+    }
+
+    @Test
+    public void benchmarkArmor() throws Exception {
+        byte[] data = new byte[ARMOR_DATA_SIZE];
+        new Random(0).nextBytes(data);
+
+        final byte[] armoredData = armor(data);
+        runner.measure("armor_encode_1mb", WARMUP_ITERATIONS, ITERATIONS, () -> armor(data));
+        runner.measure("armor_decode_1mb", WARMUP_ITERATIONS, ITERATIONS, () -> dearmor(armoredData));
+
+        ByteArrayOutputStream armoredKeyRing = new ByteArrayOutputStream();
+        rsaRing.encodeArmored(armoredKeyRing, null);
+        byte[] armoredKeyRingBytes = armoredKeyRing.toByteArray();
+        runner.measure("armor_decode_keyring", WARMUP_ITERATIONS, ITERATIONS,
+                () -> UncachedKeyRing.decodeFromData(armoredKeyRingBytes));
+    }
+
+    private void benchmarkEncryptDecrypt(String name, UncachedKeyRing keyRing) throws Exception {
+        PgpSignEncryptData data = PgpSignEncryptData.builder()
+                .setEncryptionMasterKeyIds(new long[] { keyRing.getMasterKeyId() })
+                .build();
+
+        final byte[] ciphertext = signEncrypt(data);
+        runner.measure(name + "_encrypt", WARMUP_ITERATIONS, ITERATIONS, () -> signEncrypt(data));
+        runner.measure(name + "_decrypt", WARMUP_ITERATIONS, ITERATIONS, () -> decryptVerify(ciphertext));
+    }
+
+    private byte[] signEncrypt(PgpSignEncryptData data) {
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application, keyRepository, null);
+        PgpSignEncryptResult result = op.execute(PgpSignEncryptInputParcel.createForBytes(data, null, plaintext),
+                CryptoInputParcel.createCryptoInputParcel());
+        Assert.assertTrue("encryption must succeed", result.success());
+        return result.getOutputBytes();
+    }
+
+    private void decryptVerify(byte[] input) {
+        PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application, keyRepository, null);
+        DecryptVerifyResult result = op.execute(PgpDecryptVerifyInputParcel.builder().setInputBytes(input).build(),
+                CryptoInputParcel.createCryptoInputParcel());
+        Assert.assertTrue("decryption must succeed", result.success());
+    }
+
+    private static byte[] armor(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArmoredOutputStream armorOut = new ArmoredOutputStream(out);
+        armorOut.write(data);
+        armorOut.close();
+        return out.toByteArray();
+    }
+
+    private static void dearmor(byte[] armoredData) throws Exception {
+        InputStream in = new ArmoredInputStream(new ByteArrayInputStream(armoredData));
+        byte[] buffer = new byte[8192];
+        // noinspection StatementWithEmptyBody
+        while (in.read(buffer) > 0) {
+            // just consume
+        }
+    }
+
+    private static UncachedKeyRing createKeyRing(SubkeyAdd... subkeyAdds) {
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        for (SubkeyAdd subkeyAdd : subkeyAdds) {
+            builder.addSubkeyAdd(subkeyAdd);
+        }
+        builder.addUserId("benchmark");
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(builder.build());
+        Assert.assertTrue("benchmark key creation must succeed", result.success());
+        return result.getRing();
+    }
+}
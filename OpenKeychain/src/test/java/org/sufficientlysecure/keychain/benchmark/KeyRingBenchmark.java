@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeySummaryModel;
+import org.sufficientlysecure.keychain.KeychainDatabase;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyRepository;
+import org.sufficientlysecure.keychain.daos.KeySearchDao;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.ImportOperation;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+
+
+/**
+ * Benchmarks for keyring processing and key database queries.
+ * <p>
+ * The key counts used for the unified key view can be set as a comma separated list in the
+ * keychain.benchmark.keyCounts system property.
+ */
+@RunWith(KeychainTestRunner.class)
+public class KeyRingBenchmark {
+    private static final String PROPERTY_KEY_COUNTS = "keychain.benchmark.keyCounts";
+    private static final String DEFAULT_KEY_COUNTS = "1000,10000,50000";
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 30;
+    private static final int LARGE_KEYRING_USER_IDS = 100;
+    private static final int LARGE_KEYRING_SUBKEYS = 20;
+    private static final int IMPORT_KEY_COUNT = 50;
+
+    private static BenchmarkRunner runner;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Assume.assumeTrue(BenchmarkRunner.isEnabled());
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        runner = new BenchmarkRunner("keyring");
+    }
+
+    @AfterClass
+    public static void tearDownOnce() throws Exception {
+        if (runner != null) {
+            runner.writeResults();
+        }
+    }
+
+    @Test
+    public void benchmarkCanonicalizeAndMerge() throws Exception {
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDSA, 0, Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        for (int i = 0; i < LARGE_KEYRING_SUBKEYS; i++) {
+            builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                    Algorithm.ECDH, 0, Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        }
+        for (int i = 0; i < LARGE_KEYRING_USER_IDS; i++) {
+            builder.addUserId("user " + i + " <user" + i + "@example.com>");
+        }
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(builder.build());
+        Assert.assertTrue("benchmark key creation must succeed", result.success());
+        UncachedKeyRing publicRing = result.getRing().extractPublicKeyRing();
+
+        runner.measure("canonicalize_large", WARMUP_ITERATIONS, ITERATIONS, () -> {
+            CanonicalizedKeyRing canonicalizedKeyRing = publicRing.canonicalize(new OperationLog(), 0);
+            Assert.assertNotNull(canonicalizedKeyRing);
+        });
+        runner.measure("merge_large", WARMUP_ITERATIONS, ITERATIONS, () -> {
+            UncachedKeyRing mergedRing = publicRing.merge(publicRing, new OperationLog(), 0);
+            Assert.assertNotNull(mergedRing);
+        });
+    }
+
+    @Test
+    public void benchmarkImport() throws Exception {
+        ArrayList<ParcelableKeyRing> keyList = new ArrayList<>();
+        for (int i = 0; i < IMPORT_KEY_COUNT; i++) {
+            SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+            builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(Algorithm.EDDSA, 0, null, KeyFlags.CERTIFY_OTHER, 0L));
+            builder.addUserId("import " + i + " <import" + i + "@example.com>");
+
+            PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(builder.build());
+            Assert.assertTrue("benchmark key creation must succeed", result.success());
+            keyList.add(ParcelableKeyRing.createFromEncodedBytes(result.getRing().extractPublicKeyRing().getEncoded()));
+        }
+
+        // force reinsert, so that every iteration does the full work
+        ImportKeyringParcel importKeyringParcel = ImportKeyringParcel.createImportKeyringParcel(keyList, null, true);
+        CryptoInputParcel cryptoInput = CryptoInputParcel.createCryptoInputParcel(ParcelableProxy.getForNoProxy());
+
+        runner.measure("import", 1, 10, IMPORT_KEY_COUNT, () -> {
+            ImportOperation op = new ImportOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.create(RuntimeEnvironment.application), null);
+            ImportKeyResult result = op.execute(importKeyringParcel, cryptoInput);
+            Assert.assertTrue("import must succeed", result.success());
+        });
+    }
+
+    @Test
+    public void benchmarkUnifiedKeyView() throws Exception {
+        KeyRepository keyRepository = KeyRepository.create(RuntimeEnvironment.application);
+
+        int insertedKeys = 0;
+        for (String keyCountStr : System.getProperty(PROPERTY_KEY_COUNTS, DEFAULT_KEY_COUNTS).split(",")) {
+            int keyCount = Integer.parseInt(keyCountStr.trim());
+            insertSyntheticKeys(insertedKeys, keyCount);
+            insertedKeys = keyCount;
+
+            long someMasterKeyId = getSyntheticMasterKeyId(keyCount / 2);
+            String someMailAddress = "user" + (keyCount / 2) + "@";
+
+            runner.measure("unified_all_" + keyCount, WARMUP_ITERATIONS, ITERATIONS, () -> {
+                List<?> keys = keyRepository.getAllUnifiedKeyInfo();
+                Assert.assertEquals(keyCount, keys.size());
+            });
+            runner.measure("unified_by_id_" + keyCount, WARMUP_ITERATIONS, ITERATIONS,
+                    () -> Assert.assertNotNull(keyRepository.getUnifiedKeyInfo(someMasterKeyId)));
+            runner.measure("unified_by_mail_" + keyCount, WARMUP_ITERATIONS, ITERATIONS,
+                    () -> keyRepository.getUnifiedKeyInfosByMailAddress(someMailAddress));
+            runner.measure("unified_search_" + keyCount, WARMUP_ITERATIONS, ITERATIONS,
+                    () -> Assert.assertFalse(keyRepository.searchUnifiedKeyInfo(someMailAddress).isEmpty()));
+        }
+    }
+
+    /**
+     * Inserts rows for keys with index fromIndex up to toIndex directly into the database. This
+     * skips key generation and parsing, which would take far too long for tens of thousands of
+     * keys, but yields the same rows that queries on the key list work on.
+     */
+    private static void insertSyntheticKeys(int fromIndex, int toIndex) {
+        SupportSQLiteDatabase db = KeychainDatabase.getInstance(RuntimeEnvironment.application).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SupportSQLiteStatement insertKeyRing = db.compileStatement(
+                    "INSERT INTO keyrings_public (master_key_id, key_ring_data) VALUES (?, NULL)");
+            SupportSQLiteStatement insertKey = db.compileStatement("INSERT INTO keys (master_key_id, rank, key_id, "
+                    + "key_size, algorithm, fingerprint, can_certify, can_sign, can_encrypt, can_authenticate, "
+                    + "is_revoked, has_secret, is_secure, creation, validFrom) "
+                    + "VALUES (?, 0, ?, 2048, 1, ?, 1, 1, 1, 0, 0, 0, 1, ?, ?)");
+            SupportSQLiteStatement insertUserPacket = db.compileStatement("INSERT INTO user_packets (master_key_id, "
+                    + "rank, user_id, name, email, is_primary, is_revoked) VALUES (?, 0, ?, ?, ?, 1, 0)");
+
+            for (int i = fromIndex; i < toIndex; i++) {
+                long masterKeyId = getSyntheticMasterKeyId(i);
+                byte[] fingerprint = new byte[20];
+                for (int j = 0; j < 8; j++) {
+                    fingerprint[12 + j] = (byte) (masterKeyId >> (56 - 8 * j));
+                }
+                long creation = 1500000000L + i;
+
+                insertKeyRing.bindLong(1, masterKeyId);
+                insertKeyRing.executeInsert();
+
+                insertKey.bindLong(1, masterKeyId);
+                insertKey.bindLong(2, masterKeyId);
+                insertKey.bindBlob(3, fingerprint);
+                insertKey.bindLong(4, creation);
+                insertKey.bindLong(5, creation);
+                insertKey.executeInsert();
+
+                String name = "user " + i;
+                String email = "user" + i + "@example.com";
+                insertUserPacket.bindLong(1, masterKeyId);
+                insertUserPacket.bindString(2, name + " <" + email + ">");
+                insertUserPacket.bindString(3, name);
+                insertUserPacket.bindString(4, email);
+                insertUserPacket.executeInsert();
+            }
+
+            db.execSQL("DELETE FROM key_summary");
+            new KeySummaryModel.InsertAllKeySummaries(db).execute();
+            KeySearchDao.rebuildSearchIndex(db);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static long getSyntheticMasterKeyId(int index) {
+        return 0x1000000000000000L + index;
+    }
+}
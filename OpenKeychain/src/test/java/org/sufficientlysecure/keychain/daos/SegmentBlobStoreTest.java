@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.daos;
+
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class SegmentBlobStoreTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testPutGetDelete() throws Exception {
+        SegmentBlobStore blobStore = SegmentBlobStore.open(temporaryFolder.getRoot());
+
+        blobStore.put(1L, new byte[] { 1, 2, 3 });
+        blobStore.put(2L, new byte[] { 4, 5 });
+        blobStore.put(1L, new byte[] { 6 });
+        blobStore.delete(2L);
+
+        Assert.assertArrayEquals(new byte[] { 6 }, blobStore.get(1L));
+        Assert.assertNull(blobStore.get(2L));
+        Assert.assertNull(blobStore.get(3L));
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        SegmentBlobStore blobStore = SegmentBlobStore.open(temporaryFolder.getRoot());
+        blobStore.put(1L, new byte[] { 1, 2, 3 });
+        blobStore.put(2L, new byte[] { 4, 5 });
+        blobStore.put(1L, new byte[] { 6 });
+        blobStore.delete(2L);
+
+        SegmentBlobStore reopenedBlobStore = SegmentBlobStore.open(temporaryFolder.getRoot());
+        Assert.assertArrayEquals(new byte[] { 6 }, reopenedBlobStore.get(1L));
+        Assert.assertNull(reopenedBlobStore.get(2L));
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        SegmentBlobStore blobStore = SegmentBlobStore.open(temporaryFolder.getRoot());
+        blobStore.put(1L, new byte[] { 1, 2, 3 });
+        blobStore.put(2L, new byte[] { 4, 5 });
+        blobStore.delete(1L);
+        blobStore.put(2L, new byte[] { 7, 8 });
+
+        blobStore.compact();
+
+        Assert.assertNull(blobStore.get(1L));
+        Assert.assertArrayEquals(new byte[] { 7, 8 }, blobStore.get(2L));
+        Assert.assertFalse(new File(temporaryFolder.getRoot(), "segment_00000000.dat").exists());
+        Assert.assertTrue(new File(temporaryFolder.getRoot(), "segment_00000001.dat").exists());
+
+        SegmentBlobStore reopenedBlobStore = SegmentBlobStore.open(temporaryFolder.getRoot());
+        Assert.assertNull(reopenedBlobStore.get(1L));
+        Assert.assertArrayEquals(new byte[] { 7, 8 }, reopenedBlobStore.get(2L));
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception {
+        SegmentBlobStore blobStore = SegmentBlobStore.open(temporaryFolder.getRoot());
+        blobStore.put(1L, new byte[] { 1, 2, 3 });
+        blobStore.put(2L, new byte[] { 4, 5, 6 });
+
+        File segmentFile = new File(temporaryFolder.getRoot(), "segment_00000000.dat");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(segmentFile, "rw");
+        randomAccessFile.setLength(randomAccessFile.length() - 1);
+        randomAccessFile.close();
+
+        SegmentBlobStore reopenedBlobStore = SegmentBlobStore.open(temporaryFolder.getRoot());
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, reopenedBlobStore.get(1L));
+        Assert.assertNull(reopenedBlobStore.get(2L));
+
+        reopenedBlobStore.put(2L, new byte[] { 7 });
+        Assert.assertArrayEquals(new byte[] { 7 }, reopenedBlobStore.get(2L));
+    }
+
+    @Test
+    public void testWritesOfOtherInstanceAreSeen() throws Exception {
+        // two instances on the same directory behave like the stores of two processes
+        SegmentBlobStore blobStore = SegmentBlobStore.open(temporaryFolder.getRoot());
+        SegmentBlobStore otherBlobStore = SegmentBlobStore.open(temporaryFolder.getRoot());
+
+        blobStore.put(1L, new byte[] { 1, 2, 3 });
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, otherBlobStore.get(1L));
+
+        otherBlobStore.put(1L, new byte[] { 4 });
+        otherBlobStore.put(2L, new byte[] { 5, 6 });
+        Assert.assertArrayEquals(new byte[] { 4 }, blobStore.get(1L));
+        Assert.assertArrayEquals(new byte[] { 5, 6 }, blobStore.get(2L));
+
+        blobStore.delete(2L);
+        blobStore.compact();
+        Assert.assertArrayEquals(new byte[] { 4 }, otherBlobStore.get(1L));
+        Assert.assertNull(otherBlobStore.get(2L));
+
+        otherBlobStore.put(3L, new byte[] { 7 });
+        Assert.assertArrayEquals(new byte[] { 7 }, blobStore.get(3L));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+
+@RunWith(KeychainTestRunner.class)
+public class ImportOperationTest {
+
+    static final int KEY_COUNT = 6;
+
+    static List<UncachedKeyRing> mStaticRings = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        PgpKeyOperation op = new PgpKeyOperation(null);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+            builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(Algorithm.EDDSA, 0, null, KeyFlags.CERTIFY_OTHER, 0L));
+            builder.addUserId("import " + i + " <import" + i + "@example.com>");
+
+            PgpEditKeyResult result = op.createSecretKeyRing(builder.build());
+            Assert.assertTrue("initial test key creation must succeed", result.success());
+            mStaticRings.add(result.getRing().extractPublicKeyRing());
+        }
+    }
+
+    @Test
+    public void testImportKeyList() throws Exception {
+        List<ParcelableKeyRing> keyList = new ArrayList<>();
+        for (UncachedKeyRing ring : mStaticRings) {
+            keyList.add(ParcelableKeyRing.createFromEncodedBytes(ring.getEncoded()));
+        }
+        // the same key twice in one import must not be saved twice, and a broken entry must not stop the others
+        keyList.add(ParcelableKeyRing.createFromEncodedBytes(mStaticRings.get(0).getEncoded()));
+        keyList.add(ParcelableKeyRing.createFromEncodedBytes(new byte[] { 1, 2, 3 }));
+
+        KeyWritableRepository keyRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        ImportOperation op = new ImportOperation(RuntimeEnvironment.application, keyRepository, null);
+        ImportKeyResult result = op.execute(ImportKeyringParcel.createImportKeyringParcel(keyList, null),
+                CryptoInputParcel.createCryptoInputParcel(ParcelableProxy.getForNoProxy()));
+
+        Assert.assertTrue("import must succeed", result.success());
+        Assert.assertEquals("all distinct keys must be imported as new", KEY_COUNT, result.mNewKeys);
+        Assert.assertEquals("broken entry must be counted as bad", 1, result.mBadKeys);
+        for (UncachedKeyRing ring : mStaticRings) {
+            Assert.assertNotNull("imported key must be in the database",
+                    keyRepository.getUnifiedKeyInfo(ring.getMasterKeyId()));
+        }
+    }
+
+}
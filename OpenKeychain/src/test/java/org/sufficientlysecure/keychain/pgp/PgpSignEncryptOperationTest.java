@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.Security;
+import java.util.Date;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.operations.PromoteKeyOperation;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.operations.results.PromoteKeyResult;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.PromoteKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+@RunWith(KeychainTestRunner.class)
+public class PgpSignEncryptOperationTest {
+
+    static UncachedKeyRing mStaticRing;
+
+    String mPlaintext = "dies ist ein plaintext ☭";
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        PgpKeyOperation op = new PgpKeyOperation(null);
+
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+        builder.addUserId("derp");
+        builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(TestingUtils.testPassphrase1));
+
+        PgpEditKeyResult result = op.createSecretKeyRing(builder.build());
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        Assert.assertNotNull("initial test key creation must succeed", result.getRing());
+
+        mStaticRing = result.getRing();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        KeyWritableRepository keyRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        keyRepository.savePublicKeyRing(mStaticRing.extractPublicKeyRing(), null);
+
+        // signing with a divert-to-card key needs the security token, which suspends the operation
+        PromoteKeyOperation op = new PromoteKeyOperation(RuntimeEnvironment.application, keyRepository, null, null);
+        byte[] aid = Hex.decode("D2760001240102000000012345670000");
+        PromoteKeyResult result = op.execute(
+                PromoteKeyringParcel.createPromoteKeyringParcel(mStaticRing.getMasterKeyId(), aid, null), null);
+        Assert.assertTrue("promotion must succeed", result.success());
+    }
+
+    @Test
+    public void testResumeSuspendedOperation() throws Exception {
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null);
+        PgpSignEncryptInputParcel input = createInput();
+        CryptoInputParcel cryptoInput = CryptoInputParcel.createCryptoInputParcel(new Date());
+
+        PgpSignEncryptResult pendingResult = op.execute(input, cryptoInput);
+        CryptoInputParcel tokenInput = addFakeSignedHash(pendingResult, cryptoInput);
+
+        PgpSignEncryptResult resumedResult = op.execute(input, tokenInput);
+        Assert.assertTrue("resumed operation must succeed", resumedResult.success());
+        Assert.assertTrue("operation must be resumed",
+                resumedResult.getLog().containsType(LogType.MSG_PSE_RESUMING));
+
+        // the same operation with the signed hash known from the start, which is never suspended
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] inputBytes = input.getInputBytes();
+        PgpSignEncryptResult result = op.execute(input.getData(), tokenInput,
+                new InputData(new ByteArrayInputStream(inputBytes), inputBytes.length), out);
+        Assert.assertTrue("operation must succeed", result.success());
+
+        Assert.assertArrayEquals("resumed output must equal output of a complete run",
+                out.toByteArray(), resumedResult.getOutputBytes());
+    }
+
+    @Test
+    public void testDroppedSuspendedOperation() throws Exception {
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null);
+        PgpSignEncryptInputParcel input = createInput();
+        CryptoInputParcel cryptoInput = CryptoInputParcel.createCryptoInputParcel(new Date());
+
+        PgpSignEncryptResult pendingResult = op.execute(input, cryptoInput);
+        CryptoInputParcel tokenInput = addFakeSignedHash(pendingResult, cryptoInput);
+
+        PgpSignEncryptOperation.dropSuspendedOperations(pendingResult.getRequiredInputParcel().mInputData);
+
+        PgpSignEncryptResult result = op.execute(input, tokenInput);
+        Assert.assertTrue("operation must succeed", result.success());
+        Assert.assertFalse("dropped operation must not be resumed",
+                result.getLog().containsType(LogType.MSG_PSE_RESUMING));
+    }
+
+    private PgpSignEncryptInputParcel createInput() {
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setSignatureMasterKeyId(mStaticRing.getMasterKeyId());
+        pgpData.setCleartextSignature(true);
+        pgpData.setEnableAsciiArmorOutput(true);
+
+        return PgpSignEncryptInputParcel.createForBytes(pgpData.build(), null, mPlaintext.getBytes());
+    }
+
+    /** The signature isn't verified here, so any well-formed ECDSA signature does as the token's answer. */
+    private static CryptoInputParcel addFakeSignedHash(PgpSignEncryptResult pendingResult,
+            CryptoInputParcel cryptoInput) throws Exception {
+        Assert.assertTrue("operation must be pending", pendingResult.isPending());
+        RequiredInputParcel requiredInput = pendingResult.getRequiredInputParcel();
+        Assert.assertEquals("operation must wait for the security token",
+                RequiredInputType.SECURITY_TOKEN_SIGN, requiredInput.mType);
+
+        byte[] signedHash = new DERSequence(
+                new ASN1Encodable[] { new ASN1Integer(1), new ASN1Integer(2) }).getEncoded();
+        return cryptoInput.withCryptoData(requiredInput.mInputData[0], signedHash);
+    }
+}
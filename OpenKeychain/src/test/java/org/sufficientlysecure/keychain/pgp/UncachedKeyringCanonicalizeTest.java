@@ -66,11 +66,14 @@ import org.sufficientlysecure.keychain.support.KeyringTestingHelper.RawPacket;
 import org.sufficientlysecure.keychain.util.Passphrase;
 
 import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /** Tests for the UncachedKeyring.canonicalize method.
@@ -370,6 +373,90 @@ public class UncachedKeyringCanonicalizeTest {
 
     }
 
+    @Test public void testForeignSignatureFlooding() throws Exception {
+
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        builder.addUserId("trix");
+        PgpKeyOperation op = new PgpKeyOperation(null);
+
+        UncachedKeyRing foreign = op.createSecretKeyRing(builder.build()).getRing();
+        Assert.assertNotNull("initial test key creation must succeed", foreign);
+        PGPSecretKey foreignSecretKey =
+                new PGPSecretKeyRing(foreign.getEncoded(), new JcaKeyFingerprintCalculator())
+                .getSecretKey();
+
+        // foreign certificates are only kept on public keys
+        UncachedKeyRing publicRing = ring.extractPublicKeyRing();
+        PGPPublicKey masterKey = publicRing.getPublicKey().getPublicKey();
+
+        UncachedKeyRing flooded = publicRing;
+        PGPSignature[] certs = new PGPSignature[3];
+        for (int i = 0; i < certs.length; i++) {
+            certs[i] = forgeSignature(foreignSecretKey, PGPSignature.DEFAULT_CERTIFICATION,
+                    subHashedPacketsGen, "twi", masterKey);
+            // inject right after the self-cert of "twi", in order
+            flooded = KeyringTestingHelper.injectPacket(flooded, certs[i].getEncoded(), 3 + i);
+        }
+
+        CanonicalizedKeyRing canonicalized = flooded.canonicalize(log, 0, false, null, 3);
+        Assert.assertFalse("foreign certificates within the limit must be kept",
+                KeyringTestingHelper.diffKeyrings(flooded.getEncoded(), canonicalized.getEncoded(), onlyA, onlyB));
+
+        canonicalized = flooded.canonicalize(log, 0, false, null, 2);
+        Assert.assertTrue("foreign certificates over the limit must be stripped",
+                KeyringTestingHelper.diffKeyrings(flooded.getEncoded(), canonicalized.getEncoded(), onlyA, onlyB));
+        Assert.assertEquals("one packet should be stripped after canonicalization", 1, onlyA.size());
+        Assert.assertEquals("no new packets after canonicalization", 0, onlyB.size());
+        Assert.assertArrayEquals("the last foreign certificate must be stripped",
+                certs[2].getEncoded(), onlyA.get(0).buf);
+        Assert.assertTrue("stripping must be logged", log.containsType(LogType.MSG_KC_UID_FOREIGN_TOO_MANY));
+
+        // revocations don't count, and a newer certificate by another key is appended after the
+        // flood, as on merge. the newest certificate of each issuer must be kept.
+        builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        builder.addUserId("owner");
+        UncachedKeyRing owner = op.createSecretKeyRing(builder.build()).getRing();
+        Assert.assertNotNull("initial test key creation must succeed", owner);
+        PGPSecretKey ownerSecretKey =
+                new PGPSecretKeyRing(owner.getEncoded(), new JcaKeyFingerprintCalculator())
+                .getSecretKey();
+
+        long now = new Date().getTime();
+        flooded = publicRing;
+        for (int i = 0; i < certs.length; i++) {
+            PGPSignatureSubpacketGenerator subpackets = new PGPSignatureSubpacketGenerator();
+            subpackets.setSignatureCreationTime(false, new Date(now - (10 - i) * 1000));
+            certs[i] = forgeSignature(foreignSecretKey, PGPSignature.DEFAULT_CERTIFICATION,
+                    subpackets, "twi", masterKey);
+            flooded = KeyringTestingHelper.injectPacket(flooded, certs[i].getEncoded(), 3 + i);
+        }
+        PGPSignatureSubpacketGenerator subpackets = new PGPSignatureSubpacketGenerator();
+        subpackets.setSignatureCreationTime(false, new Date(now - 5 * 1000));
+        PGPSignature revocation = forgeSignature(foreignSecretKey, PGPSignature.CERTIFICATION_REVOCATION,
+                subpackets, "twi", masterKey);
+        flooded = KeyringTestingHelper.injectPacket(flooded, revocation.getEncoded(), 3 + certs.length);
+        subpackets = new PGPSignatureSubpacketGenerator();
+        subpackets.setSignatureCreationTime(false, new Date(now - 1000));
+        PGPSignature ownerCert = forgeSignature(ownerSecretKey, PGPSignature.DEFAULT_CERTIFICATION,
+                subpackets, "twi", masterKey);
+        flooded = KeyringTestingHelper.injectPacket(flooded, ownerCert.getEncoded(), 4 + certs.length);
+
+        canonicalized = flooded.canonicalize(log, 0, false, null, 2);
+        Assert.assertTrue("foreign certificates over the limit must be stripped",
+                KeyringTestingHelper.diffKeyrings(flooded.getEncoded(), canonicalized.getEncoded(), onlyA, onlyB));
+        Assert.assertEquals("two packets should be stripped after canonicalization", 2, onlyA.size());
+        Assert.assertEquals("no new packets after canonicalization", 0, onlyB.size());
+        Assert.assertArrayEquals("the oldest foreign certificate must be stripped first",
+                certs[0].getEncoded(), onlyA.get(0).buf);
+        Assert.assertArrayEquals("older certificates of the same issuer must be stripped",
+                certs[1].getEncoded(), onlyA.get(1).buf);
+
+    }
+
     @Test public void testSignatureFuture() throws Exception {
 
         // generate future timestamp (we allow up to one day future timestamps)
@@ -680,6 +767,46 @@ public class UncachedKeyringCanonicalizeTest {
 
     }
 
+    @Test public void testVerificationCache() throws Exception {
+
+        // self-signatures may be verified concurrently, so this must be thread safe
+        final ConcurrentHashMap<ByteBuffer, Boolean> results = new ConcurrentHashMap<>();
+        SignatureVerificationCache cache = new SignatureVerificationCache() {
+            @Override
+            public Boolean getVerificationResult(long masterKeyId, byte[] cacheKey) {
+                return results.get(ByteBuffer.wrap(cacheKey));
+            }
+
+            @Override
+            public void putVerificationResult(long masterKeyId, byte[] cacheKey, boolean verified) {
+                Assert.assertEquals("results must be stored for the master key",
+                        ring.getMasterKeyId(), masterKeyId);
+                results.put(ByteBuffer.wrap(cacheKey), verified);
+            }
+        };
+
+        CanonicalizedKeyRing canonicalized = ring.canonicalize(log, 0, false, cache);
+        Assert.assertNotNull("canonicalization with empty cache must succeed", canonicalized);
+        Assert.assertArrayEquals("canonicalization with empty cache must not change the keyring",
+                ring.getEncoded(), canonicalized.getEncoded());
+        Assert.assertFalse("self-signatures must be cached", results.isEmpty());
+
+        HashMap<ByteBuffer, Boolean> previousResults = new HashMap<>(results);
+        canonicalized = ring.canonicalize(log, 0, false, cache);
+        Assert.assertArrayEquals("canonicalization with filled cache must yield the same keyring",
+                ring.getEncoded(), canonicalized.getEncoded());
+        Assert.assertEquals("canonicalization with filled cache must not add results",
+                previousResults, results);
+
+        // cached results take precedence over verification
+        for (ByteBuffer cacheKey : results.keySet()) {
+            results.put(cacheKey, false);
+        }
+        Assert.assertNull("keyring with all signatures cached as bad must be rejected",
+                ring.canonicalize(log, 0, false, cache));
+
+    }
+
     private static PGPSignature forgeSignature(PGPSecretKey key, int type,
                                                PGPSignatureSubpacketGenerator subpackets,
                                                PGPPublicKey publicKey)
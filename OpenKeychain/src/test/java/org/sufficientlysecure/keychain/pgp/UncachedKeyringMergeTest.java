@@ -41,6 +41,7 @@ import org.junit.runner.RunWith;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing.VerificationStatus;
@@ -184,6 +185,19 @@ public class UncachedKeyringMergeTest {
 
     }
 
+    @Test
+    public void testUnchangedKeys() throws Exception {
+
+        OperationLog log = new OperationLog();
+        UncachedKeyRing merged = ringA.merge(ringA.extractPublicKeyRing(), log, 0);
+        Assert.assertNotNull("merge must succeed", merged);
+        Assert.assertArrayEquals("merging keyring with its own public part must yield the same keyring",
+                ringA.getEncoded(), merged.getEncoded());
+        Assert.assertTrue("merge must find nothing new", log.containsType(LogType.MSG_MG_UNCHANGED));
+        Assert.assertFalse("merge must find nothing new", log.containsType(LogType.MSG_MG_FOUND_NEW));
+
+    }
+
     @Test
     public void testAddedUserId() throws Exception {
 
@@ -19,7 +19,11 @@
 package org.sufficientlysecure.keychain.provider;
 
 
+import android.database.Cursor;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
 import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -27,20 +31,44 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainDatabase;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyRepository.NotFoundException;
 import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
+import org.sufficientlysecure.keychain.operations.CertifyOperation;
+import org.sufficientlysecure.keychain.operations.results.CertifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.operations.results.UpdateTrustResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing.VerificationStatus;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.TestingUtils;
 
+import java.security.Security;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 
 @SuppressWarnings("WeakerAccess")
 @RunWith(KeychainTestRunner.class)
@@ -51,6 +79,7 @@ public class KeyRepositorySaveTest {
 
     @BeforeClass
     public static void setUpOnce() {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
         ShadowLog.stream = System.out;
     }
 
@@ -255,6 +284,229 @@ public class KeyRepositorySaveTest {
 
     }
 
+    @Test
+    public void testKeySummaryFollowsWrites() throws Exception {
+        UncachedKeyRing seckey = readRingFromResource("/test-keys/symantec_secret.asc");
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = pubkey.getMasterKeyId();
+
+        mDatabaseInteractor.savePublicKeyRing(pubkey);
+        UnifiedKeyInfo unifiedKeyInfo = mDatabaseInteractor.getUnifiedKeyInfo(masterKeyId);
+        Assert.assertNotNull("summary should exist after public import", unifiedKeyInfo);
+        Assert.assertFalse("public key should not have a secret", unifiedKeyInfo.has_any_secret());
+        Assert.assertTrue("secret key list should be empty", mDatabaseInteractor.getAllUnifiedKeyInfoWithSecret().isEmpty());
+
+        mDatabaseInteractor.saveSecretKeyRing(seckey);
+        unifiedKeyInfo = mDatabaseInteractor.getUnifiedKeyInfo(masterKeyId);
+        Assert.assertTrue("summary should be updated after secret import", unifiedKeyInfo.has_any_secret());
+        Assert.assertEquals("secret key list should contain the key",
+                1, mDatabaseInteractor.getAllUnifiedKeyInfoWithSecret().size());
+
+        mDatabaseInteractor.deleteKeyRing(masterKeyId);
+        Assert.assertNull("summary should be gone after delete", mDatabaseInteractor.getUnifiedKeyInfo(masterKeyId));
+        Assert.assertTrue("key list should be empty", mDatabaseInteractor.getAllUnifiedKeyInfo().isEmpty());
+    }
+
+    @Test
+    public void testKeyRingCacheInvalidatedByWrites() throws Exception {
+        UncachedKeyRing seckey = readRingFromResource("/test-keys/symantec_secret.asc");
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = pubkey.getMasterKeyId();
+
+        mDatabaseInteractor.savePublicKeyRing(pubkey);
+        CanonicalizedPublicKeyRing first = mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertSame("second lookup should be served from the cache",
+                first, mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId));
+
+        mDatabaseInteractor.saveSecretKeyRing(seckey);
+        CanonicalizedPublicKeyRing afterSecretImport = mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertNotSame("lookup after write should not return the stale keyring", first, afterSecretImport);
+
+        mDatabaseInteractor.deleteKeyRing(masterKeyId);
+        try {
+            mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId);
+            Assert.fail("deleted keyring should not be found");
+        } catch (NotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIdenticalKeyRingDetectedByDigest() throws Exception {
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+
+        SaveKeyringResult result = KeyWritableRepository.create(RuntimeEnvironment.application).savePublicKeyRing(pubkey);
+        Assert.assertTrue("first import should succeed", result.success());
+
+        result = KeyWritableRepository.create(RuntimeEnvironment.application).savePublicKeyRing(pubkey);
+        Assert.assertTrue("second import should succeed", result.success());
+        Assert.assertTrue("second import should be identical",
+                result.getLog().containsType(LogType.MSG_IP_SUCCESS_IDENTICAL));
+        Assert.assertFalse("identical keyring should be detected without a merge",
+                result.getLog().containsType(LogType.MSG_IP_MERGE_PUBLIC));
+
+        result = KeyWritableRepository.create(RuntimeEnvironment.application).savePublicKeyRing(pubkey, null, true);
+        Assert.assertTrue("forced refresh should merge", result.getLog().containsType(LogType.MSG_IP_MERGE_PUBLIC));
+    }
+
+    @Test
+    public void testIdenticalKeyRingChecksExpectedFingerprint() throws Exception {
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+
+        SaveKeyringResult result = KeyWritableRepository.create(RuntimeEnvironment.application).savePublicKeyRing(pubkey);
+        Assert.assertTrue("first import should succeed", result.success());
+
+        result = KeyWritableRepository.create(RuntimeEnvironment.application)
+                .savePublicKeyRing(pubkey, new byte[20]);
+        Assert.assertFalse("identical keyring with wrong fingerprint should fail", result.success());
+        Assert.assertTrue(result.getLog().containsType(LogType.MSG_IP_FINGERPRINT_ERROR));
+
+        result = KeyWritableRepository.create(RuntimeEnvironment.application)
+                .savePublicKeyRing(pubkey, pubkey.getFingerprint());
+        Assert.assertTrue("identical keyring with its own fingerprint should succeed", result.success());
+    }
+
+    @Test
+    public void testSavePrunesUnusedSignatureVerifications() throws Exception {
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = pubkey.getMasterKeyId();
+
+        SaveKeyringResult result = KeyWritableRepository.create(RuntimeEnvironment.application).savePublicKeyRing(pubkey);
+        Assert.assertTrue("first import should succeed", result.success());
+        Assert.assertTrue("self-signature verifications should be stored",
+                countSignatureVerifications(masterKeyId) > 0);
+
+        // verdicts of signatures which are no longer part of the keyring, e.g. superseded self-signatures
+        SupportSQLiteDatabase db = KeychainDatabase.getInstance(RuntimeEnvironment.application).getWritableDatabase();
+        db.execSQL("INSERT INTO signature_verifications (cache_key, master_key_id, verified) VALUES (x'00', ?, 1)",
+                new Object[] { masterKeyId });
+        db.execSQL("INSERT INTO signature_verifications (cache_key, master_key_id, verified) VALUES (x'01', ?, 1)",
+                new Object[] { masterKeyId + 1 });
+        long storedVerifications = countSignatureVerifications(masterKeyId);
+
+        result = KeyWritableRepository.create(RuntimeEnvironment.application).savePublicKeyRing(pubkey, null, true);
+        Assert.assertTrue("forced refresh should succeed", result.success());
+        Assert.assertEquals("only the unused verification should be pruned",
+                storedVerifications - 1, countSignatureVerifications(masterKeyId));
+        Assert.assertEquals("verifications of other keys should be kept",
+                1, countSignatureVerifications(masterKeyId + 1));
+    }
+
+    @Test
+    public void testSecretKeyTypesMatchSingleKeyDetection() throws Exception {
+        // the symantec secret key can only be imported with its public key, see testImportSymantec
+        mDatabaseInteractor.savePublicKeyRing(readRingFromResource("/test-keys/symantec_public.asc"));
+
+        for (String resource : new String[] { "/test-keys/symantec_secret.asc",
+                "/test-keys/divert_to_card_sec.asc", "/test-keys/cv25519-key.sec.asc" }) {
+            UncachedKeyRing sec = readRingFromResource(resource);
+            Assert.assertTrue("import of secret keyring should succeed",
+                    mDatabaseInteractor.saveSecretKeyRing(sec).success());
+            CanonicalizedSecretKeyRing secRing = mDatabaseInteractor.getCanonicalizedSecretKeyRing(sec.getMasterKeyId());
+
+            HashMap<Long, SecretKeyType> secretKeyTypes = secRing.getSecretKeyTypesSuperExpensive();
+            for (CanonicalizedSecretKey key : secRing.secretKeyIterator()) {
+                Assert.assertEquals("batch detection must match single key detection for " + resource,
+                        key.getSecretKeyTypeSuperExpensive(), secretKeyTypes.get(key.getKeyId()));
+                Assert.assertEquals("saved secret key type must match detection for " + resource,
+                        secretKeyTypes.get(key.getKeyId()), mDatabaseInteractor.getSecretKeyType(key.getKeyId()));
+            }
+        }
+    }
+
+    @Test
+    public void testBatchSessionRollback() throws Exception {
+        UncachedKeyRing committed = readRingFromResource("/test-keys/symantec_public.asc");
+        UncachedKeyRing rolledBack =
+                readRingFromResource("/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc");
+
+        mDatabaseInteractor.beginBatchSession();
+        Assert.assertTrue("first import should succeed", mDatabaseInteractor.savePublicKeyRing(committed).success());
+        mDatabaseInteractor.commitBatchSession();
+        Assert.assertTrue("second import should succeed", mDatabaseInteractor.savePublicKeyRing(rolledBack).success());
+        List<Long> rolledBackMasterKeyIds = mDatabaseInteractor.endBatchSession(false);
+
+        Assert.assertEquals("only the keyring saved after the commit should be rolled back",
+                Collections.singletonList(rolledBack.getMasterKeyId()), rolledBackMasterKeyIds);
+        Assert.assertNotNull("committed keyring should be kept",
+                mDatabaseInteractor.getUnifiedKeyInfo(committed.getMasterKeyId()));
+        Assert.assertNull("rolled back keyring should be gone",
+                mDatabaseInteractor.getUnifiedKeyInfo(rolledBack.getMasterKeyId()));
+    }
+
+    @Test
+    public void testUpdateTrustInPlace() throws Exception {
+        UncachedKeyRing signer = createKeyRing("signer", TestingUtils.testPassphrase1);
+        UncachedKeyRing target = createKeyRing("target", TestingUtils.testPassphrase2);
+        long signerMasterKeyId = signer.getMasterKeyId();
+        long targetMasterKeyId = target.getMasterKeyId();
+
+        mDatabaseInteractor.saveSecretKeyRing(signer);
+        mDatabaseInteractor.savePublicKeyRing(target.extractPublicKeyRing());
+
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application, mDatabaseInteractor, null, null);
+        CertifyActionsParcel.Builder actions = CertifyActionsParcel.builder(signerMasterKeyId);
+        actions.addAction(CertifyAction.createForUserIds(targetMasterKeyId,
+                target.getPublicKey().getUnorderedUserIds()));
+        CertifyResult certifyResult = op.execute(actions.build(),
+                CryptoInputParcel.createCryptoInputParcel(new Date(), TestingUtils.testPassphrase1));
+        Assert.assertTrue("certification must succeed", certifyResult.success());
+        Assert.assertEquals("certified key must be verified", VerificationStatus.VERIFIED_SECRET,
+                mDatabaseInteractor.getCanonicalizedPublicKeyRing(targetMasterKeyId).getVerified());
+
+        // without the secret key, its certification is no longer trusted
+        mDatabaseInteractor.deleteKeyRing(signerMasterKeyId);
+        UpdateTrustResult result = mDatabaseInteractor.updateTrustDb(
+                Collections.singletonList(signerMasterKeyId), new TestProgressable());
+        Assert.assertTrue("trust update must succeed", result.success());
+        Assert.assertTrue("certs must be updated in place", result.getLog().containsType(LogType.MSG_TRUST_KEY_IN_PLACE));
+        Assert.assertNull("key must no longer be verified after deleting the secret key",
+                mDatabaseInteractor.getCanonicalizedPublicKeyRing(targetMasterKeyId).getVerified());
+
+        // importing the secret key again makes its certification trusted again
+        mDatabaseInteractor.saveSecretKeyRing(signer);
+        result = mDatabaseInteractor.updateTrustDb(
+                Collections.singletonList(signerMasterKeyId), new TestProgressable());
+        Assert.assertTrue("trust update must succeed", result.success());
+        Assert.assertTrue("certs must be updated in place", result.getLog().containsType(LogType.MSG_TRUST_KEY_IN_PLACE));
+        Assert.assertEquals("key must be verified again after importing the secret key",
+                VerificationStatus.VERIFIED_SECRET,
+                mDatabaseInteractor.getCanonicalizedPublicKeyRing(targetMasterKeyId).getVerified());
+    }
+
+    UncachedKeyRing createKeyRing(String userId, Passphrase passphrase) {
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+        builder.addUserId(userId);
+        builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(passphrase));
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(builder.build());
+        Assert.assertTrue("test key creation must succeed", result.success());
+        return result.getRing();
+    }
+
+    static class TestProgressable implements Progressable {
+        @Override
+        public void setProgress(Integer resourceId, int current, int total) {
+        }
+
+        @Override
+        public void setPreventCancel() {
+        }
+    }
+
+    long countSignatureVerifications(long masterKeyId) {
+        SupportSQLiteDatabase db = KeychainDatabase.getInstance(RuntimeEnvironment.application).getReadableDatabase();
+        try (Cursor cursor = db.query("SELECT COUNT(*) FROM signature_verifications WHERE master_key_id = ?",
+                new Object[] { masterKeyId })) {
+            Assert.assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        }
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(KeyRepositorySaveTest.class.getResourceAsStream(name)).next();
     }
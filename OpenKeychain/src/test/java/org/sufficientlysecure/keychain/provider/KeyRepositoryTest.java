@@ -26,9 +26,12 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainDatabase;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
 import org.sufficientlysecure.keychain.daos.KeyRepository;
 import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
@@ -68,4 +71,44 @@ public class KeyRepositoryTest {
         Assert.assertEquals(expectedEncryptSubKeyId, (long) publicEncryptionIds.get(0));
     }
 
+    @Test
+    public void testSearchUnifiedKeyInfo() throws Exception {
+        KeyRepository keyRepository = KeyRepository.create(RuntimeEnvironment.application);
+        long masterKeyId = testKeyring.getMasterKeyId();
+
+        String primaryUserId = testKeyring.getPublicKey().getPrimaryUserIdWithFallback();
+        String userIdPrefix = primaryUserId.substring(0, 3);
+
+        assertSearchFindsOnly(keyRepository, userIdPrefix, masterKeyId);
+        assertSearchFindsOnly(keyRepository, userIdPrefix.toUpperCase(), masterKeyId);
+        assertSearchFindsOnly(keyRepository, "85a44339", masterKeyId);
+        assertSearchFindsOnly(keyRepository, "0xDA7207E3", masterKeyId);
+        Assert.assertTrue(keyRepository.searchUnifiedKeyInfo(userIdPrefix + " nomatch").isEmpty());
+        Assert.assertTrue(keyRepository.searchUnifiedKeyInfo(" <> ").isEmpty());
+
+        KeyWritableRepository.create(RuntimeEnvironment.application).deleteKeyRing(masterKeyId);
+        Assert.assertTrue(keyRepository.searchUnifiedKeyInfo(userIdPrefix).isEmpty());
+    }
+
+    @Test
+    public void testKeyRingCacheDroppedAfterWriteByOtherProcess() throws Exception {
+        KeyRepository keyRepository = KeyRepository.create(RuntimeEnvironment.application);
+        long masterKeyId = testKeyring.getMasterKeyId();
+
+        CanonicalizedPublicKeyRing keyRing = keyRepository.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertSame(keyRing, keyRepository.getCanonicalizedPublicKeyRing(masterKeyId));
+
+        // another process only leaves the incremented generation behind
+        KeychainDatabase.getInstance(RuntimeEnvironment.application).getWritableDatabase()
+                .execSQL("UPDATE keyrings_generation SET generation = generation + 1");
+
+        Assert.assertNotSame(keyRing, keyRepository.getCanonicalizedPublicKeyRing(masterKeyId));
+    }
+
+    private static void assertSearchFindsOnly(KeyRepository keyRepository, String searchText, long masterKeyId) {
+        List<UnifiedKeyInfo> result = keyRepository.searchUnifiedKeyInfo(searchText);
+        Assert.assertEquals("search for " + searchText, 1, result.size());
+        Assert.assertEquals(masterKeyId, result.get(0).master_key_id());
+    }
+
 }
\ No newline at end of file